@@ -0,0 +1,575 @@
+package com.github.zanderman.obd.classes;
+
+import com.github.zanderman.obd.interfaces.ActivityCallbackInterface;
+import com.github.zanderman.obd.interfaces.PIDCallbackInterface;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Class:
+ *      ActivityMonitor
+ *
+ * Description:
+ *      Power-aware polling: follows the vehicle's activity from the samples a
+ *      PIDScheduler delivers and sets the scheduler's duty to match.
+ *
+ *      ACTIVE polls at the registered rates. IDLE (engine running, speed 0 for
+ *      a while) polls at a fraction of them. ENGINE_OFF is entered after
+ *      several RPM readings of 0, several NO DATA replies in a row (the ECUs
+ *      went to sleep; since the scheduler stops polling a PID after its first
+ *      NO DATA, the heartbeat thread confirms with RPM reads right away and a
+ *      reply resumes the disabled PIDs) or an RPM of 0 with the battery below
+ *      charging voltage; polling is paused and a heartbeat thread reads the
+ *      adapter voltage (ATRV) and RPM once per heartbeat period instead.
+ *      Optionally the ELM327 is put into low-power mode (ATLP, state LOW_POWER)
+ *      between heartbeats, and woken up for each one; the session set up by
+ *      OBDAdapter.initialize() is replayed (fast path, see OBDInitializer)
+ *      rather than detected again. An RPM above 0 or a charging voltage, seen
+ *      either in a sample or by the heartbeat, returns to ACTIVE and makes
+ *      every PID due at once, so full rate is back within one cycle.
+ *
+ *      The monitor sees samples as a PIDCallbackInterface: register it for
+ *      RPM (and speed, module voltage) or wrap the application's callbacks
+ *      with observe(). State changes go to ActivityCallbackInterface
+ *      listeners and, as ACTIVITY_CHANGED, to the adapter's event bus.
+ */
+public class ActivityMonitor implements PIDCallbackInterface {
+
+    /**
+     * Activity states, highest duty first.
+     */
+    public enum State {
+        ACTIVE,         /* Engine running: full rate. */
+        IDLE,           /* Engine running, vehicle stationary: reduced rate. */
+        ENGINE_OFF,     /* Polling paused; heartbeat only. */
+        LOW_POWER       /* As ENGINE_OFF, with the ELM327 asleep (ATLP) between heartbeats. */
+    }
+
+    /**
+     * Constants
+     */
+    public static final int PID_RPM = 0x0C;
+    public static final int PID_SPEED = 0x0D;
+    public static final int PID_VOLTAGE = 0x42;
+    private static final long DEFAULT_HEARTBEAT = 30000;       /* Heartbeat period (in [ms]) while the engine is off. */
+    private static final long DEFAULT_IDLE_DELAY = 10000;      /* Time (in [ms]) stationary before IDLE. */
+    private static final double DEFAULT_IDLE_SCALE = 0.25;     /* Fraction of the rates polled while IDLE. */
+    private static final int DEFAULT_OFF_SAMPLES = 3;          /* RPM readings of 0 before ENGINE_OFF. */
+    private static final int DEFAULT_NO_DATA_LIMIT = 3;        /* NO DATA replies in a row before ENGINE_OFF. */
+    private static final double DEFAULT_CHARGING_VOLTAGE = 13.0;   /* Lowest voltage with the alternator running. */
+    private static final long PROBE_TIMEOUT = 5000;             /* Longest wait (in [ms]) for a heartbeat reply. */
+    private static final OBDCommand RPM = OBDCommand.of("010C");
+    private static final OBDCommand VOLTAGE = OBDCommand.of("ATRV");
+    private static final OBDCommand SLEEP = OBDCommand.of("ATLP");
+    private static final OBDCommand WAKE = OBDCommand.of("ATI");
+
+    /**
+     * Private Members
+     */
+    private final OBDAdapter adapter;
+    private final PIDScheduler scheduler;
+    private final CopyOnWriteArrayList<ActivityCallbackInterface> listeners = new CopyOnWriteArrayList<ActivityCallbackInterface>();
+    private long heartbeat = DEFAULT_HEARTBEAT;
+    private long idleDelay = DEFAULT_IDLE_DELAY;
+    private double idleScale = DEFAULT_IDLE_SCALE;
+    private int offSamples = DEFAULT_OFF_SAMPLES;
+    private int noDataLimit = DEFAULT_NO_DATA_LIMIT;
+    private double chargingVoltage = DEFAULT_CHARGING_VOLTAGE;
+    private boolean lowPower;
+    private volatile boolean running;
+    private Thread thread;
+
+    /* Activity (guarded by this). */
+    private State state = State.ACTIVE;
+    private double rpm = -1;
+    private int speed = -1;
+    private double voltage;
+    private int zeroRpm;            /* RPM readings of 0 in a row. */
+    private int noData;             /* NO DATA replies in a row. */
+    private long stationarySince;   /* System.nanoTime() of the first speed 0, or 0 while moving. */
+    private long nextBeat;
+    private long heartbeats;
+    private boolean confirm;        /* A NO DATA needs confirming by the heartbeat thread. */
+
+
+    /**
+     * Constructor:
+     *      ActivityMonitor( OBDAdapter, PIDScheduler )
+     *
+     * @param   adapter     Adapter used for heartbeats and low-power commands.
+     * @param   scheduler   Scheduler whose duty follows the activity.
+     */
+    public ActivityMonitor(OBDAdapter adapter, PIDScheduler scheduler) {
+        super();
+
+        this.adapter = adapter;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Method:
+     *      setHeartbeat( long )
+     *
+     * @param   millis  Heartbeat period while the engine is off (30 s by default).
+     */
+    public synchronized void setHeartbeat(long millis) {
+        this.heartbeat = Math.max(1, millis);
+        this.notifyAll();
+    }
+
+    /**
+     * Method:
+     *      setIdle( long, double )
+     *
+     * @param   delayMillis     Time stationary with the engine running before
+     *                          IDLE (10 s by default).
+     * @param   scale           Fraction of the registered rates polled while
+     *                          IDLE (0.25 by default; 1 to never slow down).
+     */
+    public synchronized void setIdle(long delayMillis, double scale) {
+        this.idleDelay = Math.max(0, delayMillis);
+        this.idleScale = Math.max(0, Math.min(1, scale));
+    }
+
+    /**
+     * Method:
+     *      setEngineOffLimits( int, int, double )
+     *
+     * @param   zeroRpm         RPM readings of 0 in a row before ENGINE_OFF (3 by default).
+     * @param   noData          NO DATA replies in a row before ENGINE_OFF (3 by default).
+     * @param   chargingVolts   Lowest voltage seen with the engine running
+     *                          (13.0 V by default); below it one RPM of 0 is enough.
+     */
+    public synchronized void setEngineOffLimits(int zeroRpm, int noData, double chargingVolts) {
+        this.offSamples = Math.max(1, zeroRpm);
+        this.noDataLimit = Math.max(1, noData);
+        this.chargingVoltage = chargingVolts;
+    }
+
+    /**
+     * Method:
+     *      setLowPower( boolean )
+     *
+     * @param   enabled     Whether the ELM327 is put to sleep (ATLP) while the
+     *                      engine is off. Disabled by default: the adapter
+     *                      resets on wake-up, so every heartbeat replays the
+     *                      session.
+     */
+    public synchronized void setLowPower(boolean enabled) {
+        this.lowPower = enabled;
+    }
+
+    /**
+     * Method:
+     *      addListener( ActivityCallbackInterface )
+     *
+     * @param   listener    Receiver of state changes.
+     */
+    public void addListener(ActivityCallbackInterface listener) {
+        this.listeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Method:
+     *      removeListener( ActivityCallbackInterface )
+     *
+     * @param   listener    Receiver of state changes.
+     */
+    public void removeListener(ActivityCallbackInterface listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Method:
+     *      getState( )
+     *
+     * @return  State   Current activity state.
+     */
+    public synchronized State getState() {
+        return (this.state);
+    }
+
+    /**
+     * Method:
+     *      getHeartbeats( )
+     *
+     * @return  long    Heartbeats sent while the engine was off.
+     */
+    public synchronized long getHeartbeats() {
+        return (this.heartbeats);
+    }
+
+    /**
+     * Method:
+     *      start( )
+     *
+     * Description:
+     *      Starts the heartbeat thread. It sleeps while the engine is running.
+     */
+    public synchronized void start() {
+        if (this.thread != null)
+            return;
+        this.running = true;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                beats();
+            }
+        }, "ActivityMonitor");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Method:
+     *      stop( )
+     *
+     * Description:
+     *      Stops the heartbeat. The scheduler keeps its current duty.
+     */
+    public synchronized void stop() {
+        this.running = false;
+        if (this.thread != null) {
+            this.thread.interrupt();
+            this.thread = null;
+        }
+    }
+
+    /**
+     * Method:
+     *      observe( PIDCallbackInterface )
+     *
+     * Description:
+     *      Wraps a scheduler callback so the monitor sees its samples and
+     *      failures before they are passed on.
+     *
+     * @param   downstream              Application callback (may be null).
+     * @return  PIDCallbackInterface    Callback to register with the scheduler.
+     */
+    public PIDCallbackInterface observe(final PIDCallbackInterface downstream) {
+        return (new PIDCallbackInterface() {
+            @Override
+            public void pidReceived(int pid, int ecu, byte[] data, int offset, int length) {
+                ActivityMonitor.this.pidReceived(pid, ecu, data, offset, length);
+                if (downstream != null)
+                    downstream.pidReceived(pid, ecu, data, offset, length);
+            }
+
+            @Override
+            public void pidFailed(int pid, Exception cause) {
+                ActivityMonitor.this.pidFailed(pid, cause);
+                if (downstream != null)
+                    downstream.pidFailed(pid, cause);
+            }
+        });
+    }
+
+    @Override
+    public void pidReceived(int pid, int ecu, byte[] data, int offset, int length) {
+        State from;
+        State to;
+        synchronized (this) {
+            long now = System.nanoTime();
+            this.noData = 0;
+            if (pid == PID_RPM && length >= 2) {
+                this.rpm = (((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF)) / 4.0;
+                this.zeroRpm = (this.rpm == 0) ? this.zeroRpm + 1 : 0;
+            } else if (pid == PID_SPEED && length >= 1) {
+                this.speed = data[offset] & 0xFF;
+                if (this.speed > 0)
+                    this.stationarySince = 0;
+                else if (this.stationarySince == 0)
+                    this.stationarySince = now;
+            } else if (pid == PID_VOLTAGE && length >= 2) {
+                this.voltage = (((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF)) / 1000.0;
+            }
+            from = this.state;
+            to = this.change(this.assess(now));
+        }
+        this.announce(from, to);
+    }
+
+    @Override
+    public void pidFailed(int pid, Exception cause) {
+        if (!(cause instanceof NoDataException))
+            return;
+        State from;
+        State to;
+        synchronized (this) {
+            this.noData++;
+            from = this.state;
+            to = this.change(this.assess(System.nanoTime()));
+            if (to == null && this.noData < this.noDataLimit && (from == State.ACTIVE || from == State.IDLE)) {
+                this.confirm = true;
+                this.notifyAll();
+            }
+        }
+        this.announce(from, to);
+    }
+
+    /**
+     * Method:
+     *      assess( long )
+     *
+     * Description:
+     *      State the samples so far call for. Caller holds the monitor.
+     *
+     * @param   now     System.nanoTime().
+     * @return  State   Next state (may be the current one).
+     */
+    private State assess(long now) {
+        boolean off = this.zeroRpm >= this.offSamples || this.noData >= this.noDataLimit
+                || (this.zeroRpm > 0 && this.voltage > 0 && this.voltage < this.chargingVoltage);
+        if (off)
+            return ((this.state == State.ACTIVE || this.state == State.IDLE) ? State.ENGINE_OFF : this.state);
+        if (this.rpm > 0 && this.speed == 0 && this.stationarySince != 0
+                && now - this.stationarySince >= this.idleDelay * 1000000L)
+            return (State.IDLE);
+        if (this.rpm > 0 || this.speed > 0)
+            return (State.ACTIVE);
+        return (this.state);
+    }
+
+    /**
+     * Method:
+     *      change( State )
+     *
+     * Description:
+     *      Enters a state and sets the scheduler's duty. Caller holds the monitor.
+     *
+     * @param   next    State to enter.
+     * @return  State   The state entered, or null if nothing changed.
+     */
+    private State change(State next) {
+        if (next == this.state)
+            return (null);
+        if (next == State.ENGINE_OFF && this.lowPower)
+            next = State.LOW_POWER;
+        boolean wasOff = (this.state == State.ENGINE_OFF || this.state == State.LOW_POWER);
+        this.state = next;
+        switch (next) {
+            case ACTIVE:
+            case IDLE:
+                if (wasOff) {
+                    this.zeroRpm = 0;
+                    this.stationarySince = 0;
+                    this.speed = -1;
+                }
+                this.noData = 0;
+                this.scheduler.setRateScale((next == State.ACTIVE) ? 1.0 : this.idleScale);
+                break;
+            default:
+                this.scheduler.setRateScale(0);
+                this.nextBeat = System.nanoTime() + this.heartbeat * 1000000L;
+                this.notifyAll();
+                break;
+        }
+        return (next);
+    }
+
+    /**
+     * Method:
+     *      announce( State, State )
+     *
+     * Description:
+     *      Reports a state change and sends the adapter to sleep when it
+     *      enters LOW_POWER.
+     *
+     * @param   from    Previous state.
+     * @param   to      New state, or null if nothing changed.
+     */
+    private void announce(State from, State to) {
+        if (to == null)
+            return;
+        if (to == State.LOW_POWER)
+            this.adapter.submit(SLEEP, OBDCommandPipeline.Priority.BACKGROUND, null);
+        for (ActivityCallbackInterface listener : this.listeners)
+            listener.activityChanged(from, to);
+        this.adapter.publish(OBDEvent.Type.ACTIVITY_CHANGED, to.name());
+    }
+
+    /**
+     * Method:
+     *      beats( )
+     *
+     * Description:
+     *      Heartbeat thread body: confirms NO DATA replies while the engine
+     *      runs, otherwise probes the vehicle once per heartbeat period.
+     */
+    private void beats() {
+        while (this.running) {
+            try {
+                boolean confirming;
+                synchronized (this) {
+                    confirming = (this.state == State.ACTIVE || this.state == State.IDLE);
+                    if (confirming && !this.confirm) {
+                        this.wait();
+                        continue;
+                    }
+                    if (!confirming) {
+                        long delay = this.nextBeat - System.nanoTime();
+                        if (delay > 0) {
+                            this.wait(delay / 1000000L, (int) (delay % 1000000L));
+                            continue;
+                        }
+                        this.nextBeat = System.nanoTime() + this.heartbeat * 1000000L;
+                        this.heartbeats++;
+                    }
+                    this.confirm = false;
+                }
+                if (confirming)
+                    this.confirm();
+                else
+                    this.beat();
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Method:
+     *      confirm( )
+     *
+     * Description:
+     *      Reads RPM once more after a NO DATA while the engine was running.
+     *
+     * @throws  InterruptedException    Monitor stopped.
+     */
+    private void confirm() throws InterruptedException {
+        double engine = this.readRpm();
+        State from;
+        State to;
+        synchronized (this) {
+            if (engine < 0) {
+                this.noData++;
+            } else {
+                this.noData = 0;
+                this.rpm = engine;
+                this.zeroRpm = (engine == 0) ? this.zeroRpm + 1 : 0;
+                this.scheduler.resume();    /* The NO DATA was transient. */
+            }
+            from = this.state;
+            to = this.change(this.assess(System.nanoTime()));
+            if (to == null && this.noData > 0 && this.noData < this.noDataLimit
+                    && (this.state == State.ACTIVE || this.state == State.IDLE))
+                this.confirm = true;
+        }
+        this.announce(from, to);
+    }
+
+    /**
+     * Method:
+     *      beat( )
+     *
+     * Description:
+     *      One heartbeat: wakes the adapter if it sleeps, reads voltage and
+     *      RPM, and returns to ACTIVE on any sign of a running engine.
+     *
+     * @throws  InterruptedException    Monitor stopped.
+     */
+    private void beat() throws InterruptedException {
+        boolean asleep;
+        synchronized (this) {
+            asleep = (this.state == State.LOW_POWER);
+        }
+        if (asleep) {
+            this.probe(WAKE);
+            OBDProfile session = this.adapter.getSession();
+            if (session != null) {
+                try {
+                    this.adapter.initialize(session);
+                } catch (IOException e) {
+                    return;     /* Still waking up; try again next heartbeat. */
+                }
+            }
+        }
+
+        double volts = this.readVoltage();
+        double engine = this.readRpm();
+        State from;
+        State to = null;
+        synchronized (this) {
+            from = this.state;
+            if ((engine > 0 || volts >= this.chargingVoltage) && (from == State.ENGINE_OFF || from == State.LOW_POWER)) {
+                this.rpm = engine;
+                this.voltage = volts;
+                to = this.change(State.ACTIVE);
+            }
+        }
+        this.announce(from, to);
+        if (to == null && asleep)
+            this.adapter.submit(SLEEP, OBDCommandPipeline.Priority.BACKGROUND, null);
+    }
+
+    /**
+     * Method:
+     *      readVoltage( )
+     *
+     * @return  double  Adapter supply voltage, or -1 if unknown.
+     */
+    private double readVoltage() throws InterruptedException {
+        OBDResponse response = this.probe(VOLTAGE);
+        if (response == null)
+            return (-1);
+        String text = response.getText().replaceAll("[^0-9.]", "");
+        try {
+            return ((text.length() > 0) ? Double.parseDouble(text) : -1);
+        } catch (NumberFormatException e) {
+            return (-1);
+        }
+    }
+
+    /**
+     * Method:
+     *      readRpm( )
+     *
+     * @return  double  Highest engine speed reported, or -1 if none (e.g. NO DATA).
+     */
+    private double readRpm() throws InterruptedException {
+        OBDResponse response = this.probe(RPM);
+        if (response == null)
+            return (-1);
+        byte[] frame = response.getFrame();
+        OBDProfile session = this.adapter.getSession();
+        List<OBDMessage> messages;
+        try {
+            messages = (session != null)
+                    ? OBDResponseParser.parse(session, response.getCommand(), frame, 0, frame.length)
+                    : OBDResponseParser.parse(response.getCommand(), frame, 0, frame.length, false);
+        } catch (IOException e) {
+            return (-1);
+        }
+        double best = -1;
+        for (OBDMessage message : messages) {
+            byte[] p = message.payload;
+            if (p.length >= 4 && (p[0] & 0xFF) == 0x41 && p[1] == PID_RPM)
+                best = Math.max(best, (((p[2] & 0xFF) << 8) | (p[3] & 0xFF)) / 4.0);
+        }
+        return (best);
+    }
+
+    /**
+     * Method:
+     *      probe( OBDCommand )
+     *
+     * @param   command         Heartbeat command.
+     * @return  OBDResponse     Reply, or null if the command failed.
+     * @throws  InterruptedException    Monitor stopped.
+     */
+    private OBDResponse probe(OBDCommand command) throws InterruptedException {
+        try {
+            return (this.adapter.submit(command, OBDCommandPipeline.Priority.BACKGROUND, null)
+                    .get(PROBE_TIMEOUT, TimeUnit.MILLISECONDS));
+        } catch (ExecutionException e) {
+            return (null);
+        } catch (TimeoutException e) {
+            return (null);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.github.zanderman.obd.classes;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import com.github.zanderman.obd.interfaces.OBDTransport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Class:
+ *      BluetoothTransport
+ *
+ * Description:
+ *      OBDTransport implementation backed by an RFCOMM (SPP) BluetoothSocket.
+ */
+public class BluetoothTransport implements OBDTransport {
+
+    /**
+     * Constants
+     */
+    private static final UUID uuid = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb"); /* Required UUID for OBD Bluetooth connection. */
+
+    /**
+     * Private Members
+     */
+    private final String address;
+    private BluetoothAdapter adapter;
+    private BluetoothDevice device;
+    private volatile BluetoothSocket socket;
+
+
+    /**
+     * Constructor:
+     *      BluetoothTransport( BluetoothDevice )
+     *
+     * Description:
+     *      Creates a new transport for a specific BluetoothDevice.
+     *
+     * @param   device  BluetoothDevice object.
+     */
+    public BluetoothTransport(BluetoothDevice device) {
+        super();
+
+        this.device = device;
+        this.address = device.getAddress();
+        this.adapter = BluetoothAdapter.getDefaultAdapter();
+        this.socket = null;
+    }
+
+    /**
+     * Constructor:
+     *      BluetoothTransport( String )
+     *
+     * Description:
+     *      Creates a new transport for a remembered MAC address; the device is
+     *      resolved with BluetoothAdapter.getRemoteDevice() on open(), which
+     *      needs no discovery.
+     *
+     * @param   address     MAC address of the device.
+     * @throws  IllegalArgumentException    The address is malformed.
+     */
+    public BluetoothTransport(String address) {
+        super();
+
+        if (!BluetoothAdapter.checkBluetoothAddress(address))
+            throw new IllegalArgumentException("Invalid Bluetooth address: " + address);
+        this.address = address;
+        this.adapter = BluetoothAdapter.getDefaultAdapter();
+        this.socket = null;
+    }
+
+    /**
+     * Method:
+     *      open( )
+     *
+     * Description:
+     *      Creates an RFCOMM socket to the device and connects it. A running
+     *      discovery is cancelled first, since it slows the connect down.
+     *
+     * @throws IOException  Bluetooth unsupported or connection failure.
+     */
+    @Override
+    public void open() throws IOException {
+
+        // Bluetooth NOT supported.
+        if (this.adapter == null)
+            throw new IOException("Bluetooth not supported on this device");
+
+        // Gain access to the actual device.
+        if (this.adapter.isDiscovering())
+            this.adapter.cancelDiscovery();
+        this.device = this.adapter.getRemoteDevice(this.address);
+
+        // Create a communications socket with the device and connect.
+        BluetoothSocket s = this.device.createRfcommSocketToServiceRecord(uuid);
+        try {
+            s.connect();
+        } catch (IOException e) {
+            try { s.close(); } catch (IOException ignored) { }
+            throw e;
+        }
+        this.socket = s;
+    }
+
+    /**
+     * Method:
+     *      close( )
+     *
+     * Description:
+     *      Closes the socket if one is open.
+     *
+     * @throws IOException  Socket close failure.
+     */
+    @Override
+    public void close() throws IOException {
+        BluetoothSocket s = this.socket;
+        this.socket = null;
+        if (s != null)
+            s.close();
+    }
+
+    /**
+     * Method:
+     *      isOpen( )
+     *
+     * Description:
+     *      Reports whether the underlying socket is connected.
+     *
+     * @return  boolean     Connection status.
+     */
+    @Override
+    public boolean isOpen() {
+        BluetoothSocket s = this.socket;
+        return (s != null && s.isConnected());
+    }
+
+    /**
+     * Method:
+     *      getInputStream( )
+     *
+     * @return  InputStream     Socket input stream.
+     * @throws  IOException     Transport is not open.
+     */
+    @Override
+    public InputStream getInputStream() throws IOException {
+        BluetoothSocket s = this.socket;
+        if (s == null)
+            throw new IOException("Transport not open");
+        return s.getInputStream();
+    }
+
+    /**
+     * Method:
+     *      getOutputStream( )
+     *
+     * @return  OutputStream    Socket output stream.
+     * @throws  IOException     Transport is not open.
+     */
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        BluetoothSocket s = this.socket;
+        if (s == null)
+            throw new IOException("Transport not open");
+        return s.getOutputStream();
+    }
+}
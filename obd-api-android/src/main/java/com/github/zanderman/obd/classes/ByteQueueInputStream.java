@@ -0,0 +1,125 @@
+package com.github.zanderman.obd.classes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Class:
+ *      ByteQueueInputStream
+ *
+ * Description:
+ *      Blocking byte queue exposed as an InputStream, used by in-process
+ *      transports to feed replies to the adapter. Reads block until bytes are
+ *      pushed; after shutdown() the remaining bytes are drained and then the
+ *      stream reports end of input.
+ */
+class ByteQueueInputStream extends InputStream {
+
+    /**
+     * Private Members
+     */
+    private byte[] data = new byte[4096];
+    private int head;
+    private int size;
+    private boolean closed;
+
+
+    /**
+     * Method:
+     *      reopen( )
+     *
+     * Description:
+     *      Discards queued bytes and accepts reads again.
+     */
+    synchronized void reopen() {
+        this.head = 0;
+        this.size = 0;
+        this.closed = false;
+    }
+
+    /**
+     * Method:
+     *      shutdown( )
+     *
+     * Description:
+     *      Ends the stream once queued bytes have been read.
+     */
+    synchronized void shutdown() {
+        this.closed = true;
+        this.notifyAll();
+    }
+
+    /**
+     * Method:
+     *      push( String )
+     *
+     * @param   text    ASCII text to queue.
+     */
+    synchronized void push(String text) {
+        int n = text.length();
+        this.ensure(n);
+        for (int i = 0; i < n; i++)
+            this.data[(this.head + this.size + i) % this.data.length] = (byte) text.charAt(i);
+        this.size += n;
+        this.notifyAll();
+    }
+
+    /**
+     * Method:
+     *      push( byte[], int, int )
+     *
+     * @param   bytes   Bytes to queue.
+     * @param   offset  First byte.
+     * @param   length  Number of bytes.
+     */
+    synchronized void push(byte[] bytes, int offset, int length) {
+        this.ensure(length);
+        for (int i = 0; i < length; i++)
+            this.data[(this.head + this.size + i) % this.data.length] = bytes[offset + i];
+        this.size += length;
+        this.notifyAll();
+    }
+
+    private void ensure(int n) {
+        if (this.size + n <= this.data.length)
+            return;
+        byte[] grown = new byte[Math.max(this.data.length * 2, this.size + n)];
+        for (int i = 0; i < this.size; i++)
+            grown[i] = this.data[(this.head + i) % this.data.length];
+        this.data = grown;
+        this.head = 0;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        byte[] one = new byte[1];
+        return ((this.read(one, 0, 1) < 0) ? -1 : (one[0] & 0xFF));
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return (0);
+        while (this.size == 0 && !this.closed) {
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        if (this.size == 0)
+            return (-1);
+        int n = Math.min(len, this.size);
+        for (int i = 0; i < n; i++)
+            b[off + i] = this.data[(this.head + i) % this.data.length];
+        this.head = (this.head + n) % this.data.length;
+        this.size -= n;
+        return (n);
+    }
+
+    @Override
+    public synchronized int available() {
+        return (this.size);
+    }
+}
@@ -0,0 +1,326 @@
+package com.github.zanderman.obd.classes;
+
+import com.github.zanderman.obd.interfaces.CANFrameCallbackInterface;
+import com.github.zanderman.obd.interfaces.LineCallbackInterface;
+
+/**
+ * Class:
+ *      CANFrameParser
+ *
+ * Description:
+ *      Streaming parser for ELM327 monitor output (ATMA with headers on).
+ *
+ *      Each line is one CAN frame: the header, then up to eight data bytes,
+ *      with or without spaces. 11-bit and 29-bit headers are told apart by
+ *      layout ("7E8 03 41 0D 3C" or "18 DA F1 10 03 41 0D 3C"; without spaces
+ *      by the parity of the digit count), and a single-digit DLC shown by
+ *      ATD1 is skipped. Frames are decoded straight from the reader's buffer
+ *      into an int ID and a long payload and passed on if they match one of
+ *      the acceptance filters; nothing is allocated per frame.
+ *
+ *      Lines that are not frames are counted: "BUFFER FULL" as an overrun,
+ *      frames marked "<RX ERROR" or "<DATA ERROR" and malformed lines as
+ *      errors, anything else (STOPPED, CAN ERROR, echo) as a message whose
+ *      text is kept in getLastMessage().
+ */
+public class CANFrameParser implements LineCallbackInterface {
+
+    /**
+     * Constants
+     */
+    public static final int EXTENDED = 0x80000000;     /* ID flag of 29-bit frames (as in SocketCAN). */
+    private static final int MAX_FILTERS = 32;
+    private static final byte[] BUFFER_FULL = {'B', 'U', 'F', 'F', 'E', 'R', ' ', 'F', 'U', 'L', 'L'};
+
+    /**
+     * Private Members
+     */
+    private final CANFrameCallbackInterface callback;
+    private volatile int[] filters = new int[0];    /* id, mask pairs; empty = accept all. */
+
+    /* Statistics (written by the reader thread only). */
+    private volatile long frames;
+    private volatile long filtered;
+    private volatile long errors;
+    private volatile long overruns;
+    private volatile String lastMessage;
+
+
+    /**
+     * Constructor:
+     *      CANFrameParser( CANFrameCallbackInterface )
+     *
+     * @param   callback    Consumer of accepted frames and overruns.
+     */
+    public CANFrameParser(CANFrameCallbackInterface callback) {
+        super();
+
+        this.callback = callback;
+    }
+
+    /**
+     * Method:
+     *      addFilter( int, int )
+     *
+     * Description:
+     *      Adds an acceptance filter: a frame passes if (frameId & mask) ==
+     *      (id & mask) for any filter. With no filters every frame passes.
+     *      Include EXTENDED in both to tell 29-bit from 11-bit IDs.
+     *
+     * @param   id      Filter ID.
+     * @param   mask    Bits of the ID that must match.
+     */
+    public synchronized void addFilter(int id, int mask) {
+        int[] current = this.filters;
+        if (current.length == 2 * MAX_FILTERS)
+            throw new IllegalStateException("At most " + MAX_FILTERS + " filters");
+        int[] next = new int[current.length + 2];
+        System.arraycopy(current, 0, next, 0, current.length);
+        next[current.length] = id & mask;
+        next[current.length + 1] = mask;
+        this.filters = next;
+    }
+
+    /**
+     * Method:
+     *      clearFilters( )
+     *
+     * Description:
+     *      Accepts every frame again.
+     */
+    public synchronized void clearFilters() {
+        this.filters = new int[0];
+    }
+
+    /**
+     * Method:
+     *      lineReceived( byte[], int, int, long )
+     *
+     * Description:
+     *      Parses one monitor line and reports the frame if it passes the filters.
+     */
+    @Override
+    public void lineReceived(byte[] buffer, int offset, int length, long timestamp) {
+        int start = offset;
+        int end = offset + length;
+        while (start < end && (buffer[start] == '\n' || buffer[start] == ' '))
+            start++;
+        while (end > start && (buffer[end - 1] == ' ' || buffer[end - 1] == '\n'))
+            end--;
+        if (start == end)
+            return;
+
+        /* Layout: digit count, first token length, spaces, non-hex content. */
+        int digits = 0;
+        int first = -1;
+        boolean spaced = false;
+        for (int i = start; i < end; i++) {
+            byte b = buffer[i];
+            if (b == ' ') {
+                spaced = true;
+                if (first < 0)
+                    first = digits;
+            } else if (hex(b) >= 0) {
+                digits++;
+            } else {
+                this.message(buffer, start, end);
+                return;
+            }
+        }
+        if (first < 0)
+            first = digits;
+
+        /* Header. */
+        int headerDigits;
+        boolean extended;
+        if (spaced) {
+            extended = (first == 2);
+            headerDigits = extended ? 8 : first;
+        } else {
+            extended = ((digits & 1) == 0);
+            headerDigits = extended ? 8 : 3;
+        }
+        if ((headerDigits != 3 && headerDigits != 8) || digits < headerDigits) {
+            this.errors++;
+            return;
+        }
+
+        int id = 0;
+        int n = 0;
+        int i = start;
+        for (; n < headerDigits; i++) {
+            int d = hex(buffer[i]);
+            if (d >= 0) {
+                id = (id << 4) | d;
+                n++;
+            }
+        }
+        if (extended)
+            id = (id & 0x1FFFFFFF) | EXTENDED;
+
+        /* Optional DLC token (ATD1), only recognizable with spaces. */
+        int dataDigits = digits - headerDigits;
+        if (spaced && (dataDigits & 1) == 1) {
+            while (i < end && buffer[i] == ' ')
+                i++;
+            if (i + 1 < end && buffer[i + 1] != ' ') {
+                this.errors++;
+                return;
+            }
+            i++;
+            dataDigits--;
+        }
+        if ((dataDigits & 1) == 1 || dataDigits > 16) {
+            this.errors++;
+            return;
+        }
+
+        /* Payload, top byte first. */
+        long payload = 0;
+        for (; i < end; i++) {
+            int d = hex(buffer[i]);
+            if (d >= 0)
+                payload = (payload << 4) | d;
+        }
+        int dlc = dataDigits / 2;
+        if (dlc > 0 && dlc < 8)
+            payload <<= 64 - 8 * dlc;
+
+        if (!this.accept(id)) {
+            this.filtered++;
+            return;
+        }
+        this.frames++;
+        this.callback.canFrameReceived(id, dlc, payload, timestamp);
+    }
+
+    /**
+     * Method:
+     *      begin( )
+     *
+     * Description:
+     *      Forgets the last message before a new monitoring pass.
+     */
+    void begin() {
+        this.lastMessage = null;
+    }
+
+    /**
+     * Method:
+     *      byteAt( long, int )
+     *
+     * @param   payload     Payload as passed to canFrameReceived().
+     * @param   index       Data byte index (0 - 7).
+     * @return  int         Data byte.
+     */
+    public static int byteAt(long payload, int index) {
+        return ((int) (payload >>> (56 - 8 * index)) & 0xFF);
+    }
+
+    /**
+     * Method:
+     *      getFrames( )
+     *
+     * @return  long    Frames passed to the callback.
+     */
+    public long getFrames() {
+        return (this.frames);
+    }
+
+    /**
+     * Method:
+     *      getFiltered( )
+     *
+     * @return  long    Well-formed frames rejected by the filters.
+     */
+    public long getFiltered() {
+        return (this.filtered);
+    }
+
+    /**
+     * Method:
+     *      getErrors( )
+     *
+     * @return  long    Malformed lines and frames the ELM327 marked as received in error.
+     */
+    public long getErrors() {
+        return (this.errors);
+    }
+
+    /**
+     * Method:
+     *      getOverruns( )
+     *
+     * @return  long    "BUFFER FULL" reports.
+     */
+    public long getOverruns() {
+        return (this.overruns);
+    }
+
+    /**
+     * Method:
+     *      getLastMessage( )
+     *
+     * @return  String  Latest line that was neither a frame nor an error, or null.
+     */
+    public String getLastMessage() {
+        return (this.lastMessage);
+    }
+
+    /**
+     * Method:
+     *      message( byte[], int, int )
+     *
+     * Description:
+     *      Classifies a line holding more than hex digits.
+     */
+    private void message(byte[] buffer, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == '<') {
+                this.errors++;
+                return;
+            }
+        }
+        if (end - start == BUFFER_FULL.length && matches(buffer, start, BUFFER_FULL)) {
+            this.overruns++;
+            this.lastMessage = "BUFFER FULL";
+            this.callback.monitorOverrun(this.overruns);
+            return;
+        }
+        this.lastMessage = OBDAdapter.text(buffer, start, end - start);
+    }
+
+    /**
+     * Method:
+     *      accept( int )
+     *
+     * @param   id          Frame ID.
+     * @return  boolean     True if no filters are set or one matches.
+     */
+    private boolean accept(int id) {
+        int[] f = this.filters;
+        if (f.length == 0)
+            return (true);
+        for (int i = 0; i < f.length; i += 2)
+            if ((id & f[i + 1]) == f[i])
+                return (true);
+        return (false);
+    }
+
+    private static boolean matches(byte[] buffer, int start, byte[] text) {
+        for (int i = 0; i < text.length; i++)
+            if (buffer[start + i] != text[i])
+                return (false);
+        return (true);
+    }
+
+    private static int hex(byte b) {
+        if (b >= '0' && b <= '9')
+            return (b - '0');
+        if (b >= 'A' && b <= 'F')
+            return (b - 'A' + 10);
+        if (b >= 'a' && b <= 'f')
+            return (b - 'a' + 10);
+        return (-1);
+    }
+}
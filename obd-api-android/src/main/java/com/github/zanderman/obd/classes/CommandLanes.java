@@ -0,0 +1,373 @@
+package com.github.zanderman.obd.classes;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Class:
+ *      CommandLanes
+ *
+ * Description:
+ *      Command queue of an OBDCommandPipeline, one FIFO lane per priority.
+ *
+ *      The next prompt slot goes to the oldest command of the highest lane
+ *      that has one, so an interactive request waits at most for the command
+ *      already in flight. To keep lower lanes moving, each counts the picks
+ *      it had to sit through while non-empty; once that reaches the lane's
+ *      starvation limit it is served next, before any higher lane. Thread
+ *      safe; take() blocks until a command is queued.
+ *
+ *      The queue also tracks the ECU addressing in effect on the adapter
+ *      (see OBDTarget). When the head of the REALTIME or BACKGROUND lane
+ *      would need a header switch, a later command of the same lane that
+ *      needs none is served first, as long as the head has waited less than
+ *      the grouping window, so requests for one ECU go out together. Header
+ *      commands the pipeline inserts are pushed in front of every lane.
+ */
+class CommandLanes {
+
+    /**
+     * Constants
+     */
+    static final int DEFAULT_REALTIME_LIMIT = 4;    /* Interactive commands a realtime command waits through. */
+    static final int DEFAULT_BACKGROUND_LIMIT = 8;  /* Higher-lane commands a background command waits through. */
+    static final long DEFAULT_GROUPING_WINDOW = 50; /* Longest time (in [ms]) a command is passed over to save a header switch. */
+
+    /**
+     * Private Members
+     */
+    private final List<ArrayDeque<OBDFuture>> lanes;
+    private final int[] limits;     /* Picks a waiting lane tolerates; 0 = none (never promoted). */
+    private final int[] skipped;
+    private final ArrayDeque<OBDFuture> urgent = new ArrayDeque<OBDFuture>();  /* Header commands, ahead of all lanes. */
+    private int size;
+    private long promotions;
+
+    /* Addressing. */
+    private OBDTarget active;                           /* In effect on the adapter; null = unknown. */
+    private int priority = OBDTarget.ANY;               /* ATCP byte in effect; ANY = unknown. */
+    private OBDTarget fallback = OBDTarget.FUNCTIONAL;  /* For requests without a target once headers were switched. */
+    private long window = DEFAULT_GROUPING_WINDOW * 1000000L;
+    private OBDTarget submitted;                        /* Addressing after the last submitted command. */
+    private long fifoSwitches;                          /* Header switches submission order would need. */
+    private long regrouped;
+
+
+    /**
+     * Constructor:
+     *      CommandLanes( )
+     */
+    CommandLanes() {
+        super();
+
+        int n = OBDCommandPipeline.Priority.values().length;
+        this.lanes = new ArrayList<ArrayDeque<OBDFuture>>(n);
+        for (int i = 0; i < n; i++)
+            this.lanes.add(new ArrayDeque<OBDFuture>());
+        this.limits = new int[n];
+        this.skipped = new int[n];
+        this.limits[OBDCommandPipeline.Priority.REALTIME.ordinal()] = DEFAULT_REALTIME_LIMIT;
+        this.limits[OBDCommandPipeline.Priority.BACKGROUND.ordinal()] = DEFAULT_BACKGROUND_LIMIT;
+    }
+
+    /**
+     * Method:
+     *      setStarvationLimit( Priority, int )
+     *
+     * @param   priority    Lane.
+     * @param   picks       Commands of higher lanes a waiting command of this
+     *                      lane lets go first, or 0 for no limit.
+     */
+    synchronized void setStarvationLimit(OBDCommandPipeline.Priority priority, int picks) {
+        this.limits[priority.ordinal()] = Math.max(0, picks);
+    }
+
+    /**
+     * Method:
+     *      add( OBDFuture )
+     *
+     * @param   future  Command to queue at the end of its lane.
+     */
+    synchronized void add(OBDFuture future) {
+        if (OBDTarget.readdresses(future.encoded)) {
+            this.submitted = null;
+        } else {
+            OBDTarget want = this.required(future, this.submitted);
+            if (want != null && !want.equals(this.submitted)) {
+                this.fifoSwitches++;
+                this.submitted = want;
+            }
+        }
+        this.lanes.get(future.priority.ordinal()).addLast(future);
+        this.size++;
+        this.notifyAll();
+    }
+
+    /**
+     * Method:
+     *      addFirst( OBDFuture )
+     *
+     * @param   future  Command to queue at the head of its lane (e.g. a retry).
+     */
+    synchronized void addFirst(OBDFuture future) {
+        this.lanes.get(future.priority.ordinal()).addFirst(future);
+        this.size++;
+        this.notifyAll();
+    }
+
+    /**
+     * Method:
+     *      push( OBDFuture )
+     *
+     * @param   future  Command to serve before every lane (header switches
+     *                  and the command that needs them).
+     */
+    synchronized void push(OBDFuture future) {
+        this.urgent.addFirst(future);
+        this.size++;
+        this.notifyAll();
+    }
+
+    /**
+     * Method:
+     *      poll( )
+     *
+     * @return  OBDFuture   Next command, or null if none is queued.
+     */
+    synchronized OBDFuture poll() {
+        return ((this.size == 0) ? null : this.next());
+    }
+
+    /**
+     * Method:
+     *      take( )
+     *
+     * @return  OBDFuture               Next command, waiting for one if needed.
+     * @throws  InterruptedException    The waiting thread was interrupted.
+     */
+    synchronized OBDFuture take() throws InterruptedException {
+        while (this.size == 0)
+            this.wait();
+        return (this.next());
+    }
+
+    /**
+     * Method:
+     *      size( )
+     *
+     * @return  int     Commands queued in all lanes.
+     */
+    synchronized int size() {
+        return (this.size);
+    }
+
+    /**
+     * Method:
+     *      size( Priority )
+     *
+     * @param   priority    Lane.
+     * @return  int         Commands queued in the lane.
+     */
+    synchronized int size(OBDCommandPipeline.Priority priority) {
+        return (this.lanes.get(priority.ordinal()).size());
+    }
+
+    /**
+     * Method:
+     *      getPromotions( )
+     *
+     * @return  long    Commands served ahead of a higher lane by their starvation limit.
+     */
+    synchronized long getPromotions() {
+        return (this.promotions);
+    }
+
+    /**
+     * Method:
+     *      setGroupingWindow( long )
+     *
+     * @param   millis  Longest time a queued command is passed over by
+     *                  commands that need no header switch, or 0 to keep
+     *                  every lane in strict FIFO order.
+     */
+    synchronized void setGroupingWindow(long millis) {
+        this.window = Math.max(0, millis) * 1000000L;
+    }
+
+    /**
+     * Method:
+     *      setFallback( OBDTarget )
+     *
+     * @param   target  Addressing restored for requests without a target.
+     */
+    synchronized void setFallback(OBDTarget target) {
+        this.fallback = target;
+    }
+
+    /**
+     * Method:
+     *      setActive( OBDTarget )
+     *
+     * Description:
+     *      The ATCP priority byte outlives switches to 11-bit headers, so it
+     *      is kept apart and only forgotten when the whole state is unknown.
+     *
+     * @param   target  Addressing now in effect on the adapter, or null if unknown.
+     */
+    synchronized void setActive(OBDTarget target) {
+        this.active = target;
+        if (target == null)
+            this.priority = OBDTarget.ANY;
+        else if (target.getSetPriority() != null)
+            this.priority = target.getPriority();
+    }
+
+    /**
+     * Method:
+     *      getActive( )
+     *
+     * @return  OBDTarget   Addressing in effect on the adapter, or null if unknown.
+     */
+    synchronized OBDTarget getActive() {
+        return (this.active);
+    }
+
+    /**
+     * Method:
+     *      getPriority( )
+     *
+     * @return  int     29-bit priority byte in effect on the adapter, or
+     *                  OBDTarget.ANY if unknown.
+     */
+    synchronized int getPriority() {
+        return (this.priority);
+    }
+
+    /**
+     * Method:
+     *      required( OBDFuture )
+     *
+     * @param   future      Command about to be written.
+     * @return  OBDTarget   Addressing it needs, or null if any will do.
+     */
+    synchronized OBDTarget required(OBDFuture future) {
+        return (this.required(future, this.active));
+    }
+
+    /**
+     * Method:
+     *      getFifoSwitches( )
+     *
+     * @return  long    Header switches the commands would have needed if
+     *                  written in submission order.
+     */
+    synchronized long getFifoSwitches() {
+        return (this.fifoSwitches);
+    }
+
+    /**
+     * Method:
+     *      getRegrouped( )
+     *
+     * @return  long    Commands served ahead of their lane's head to avoid a header switch.
+     */
+    synchronized long getRegrouped() {
+        return (this.regrouped);
+    }
+
+    /**
+     * Method:
+     *      required( OBDFuture, OBDTarget )
+     *
+     * Description:
+     *      Vehicle requests need their own target; those without one need the
+     *      fallback once the pipeline has switched headers (state known), and
+     *      nothing while the addressing is left to the application.
+     *
+     * @param   future      Command.
+     * @param   state       Addressing in effect, or null if unknown.
+     * @return  OBDTarget   Addressing it needs, or null if any will do.
+     */
+    private OBDTarget required(OBDFuture future, OBDTarget state) {
+        if (future.switching || future.encoded.isAt())
+            return (null);
+        if (future.target != null)
+            return (future.target);
+        return ((state != null) ? this.fallback : null);
+    }
+
+    /**
+     * Method:
+     *      next( )
+     *
+     * Description:
+     *      Picks the lane to serve and updates the waiting counts. Caller
+     *      holds the monitor and has checked that a command is queued.
+     *
+     * @return  OBDFuture   Next command.
+     */
+    private OBDFuture next() {
+        if (!this.urgent.isEmpty()) {
+            this.size--;
+            return (this.urgent.pollFirst());
+        }
+
+        int top = -1;
+        int pick = -1;
+        for (int i = 0; i < this.lanes.size(); i++) {
+            if (this.lanes.get(i).isEmpty())
+                continue;
+            if (top < 0)
+                top = i;
+            if (this.limits[i] > 0 && this.skipped[i] >= this.limits[i]) {
+                pick = i;
+                break;
+            }
+        }
+        if (pick < 0)
+            pick = top;
+        else if (pick != top)
+            this.promotions++;
+
+        for (int i = 0; i < this.lanes.size(); i++)
+            this.skipped[i] = (i == pick || this.lanes.get(i).isEmpty()) ? 0 : this.skipped[i] + 1;
+        this.size--;
+        if (pick > 0 && this.window > 0)
+            return (this.group(this.lanes.get(pick)));
+        return (this.lanes.get(pick).pollFirst());
+    }
+
+    /**
+     * Method:
+     *      group( ArrayDeque )
+     *
+     * Description:
+     *      Takes the lane's head, or the oldest command that can go out under
+     *      the current addressing while the head is within its window.
+     *
+     * @param   lane        Non-empty lane.
+     * @return  OBDFuture   Next command of the lane.
+     */
+    private OBDFuture group(ArrayDeque<OBDFuture> lane) {
+        OBDFuture head = lane.peekFirst();
+        if (this.active == null || !this.switches(head) || System.nanoTime() - head.getSubmitted() >= this.window)
+            return (lane.pollFirst());
+        Iterator<OBDFuture> it = lane.iterator();
+        while (it.hasNext()) {
+            OBDFuture f = it.next();
+            if (!this.switches(f)) {
+                it.remove();
+                this.regrouped++;
+                return (f);
+            }
+        }
+        return (lane.pollFirst());
+    }
+
+    private boolean switches(OBDFuture future) {
+        OBDTarget want = this.required(future, this.active);
+        return (want != null && !want.equals(this.active));
+    }
+}
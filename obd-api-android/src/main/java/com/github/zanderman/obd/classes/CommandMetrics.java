@@ -0,0 +1,286 @@
+package com.github.zanderman.obd.classes;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class:
+ *      CommandMetrics
+ *
+ * Description:
+ *      Link timings and outcome counts of one command (e.g. "010C").
+ *
+ *      Four stages of every round trip are kept in LatencyHistograms: the wait
+ *      for a prompt slot, the write itself, and the time from writing the
+ *      command to the first byte of the reply and to the closing '>' prompt.
+ *      Counters track bytes in both directions, replies, "NO DATA" replies,
+ *      error replies and link failures, and deadlines missed. A command that
+ *      answers after its deadline counts both as a timeout and as a reply.
+ */
+public class CommandMetrics {
+
+    /**
+     * Constants
+     */
+    static final int REPLY = 0;
+    static final int NO_DATA = 1;
+    static final int ERROR = 2;
+
+    /**
+     * Private Members
+     */
+    private final String command;
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram writeTime = new LatencyHistogram();
+    private final LatencyHistogram firstByte = new LatencyHistogram();
+    private final LatencyHistogram prompt = new LatencyHistogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong replies = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong noData = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+
+    /**
+     * Constructor:
+     *      CommandMetrics( String )
+     *
+     * @param   command     Command text (without response-count digit).
+     */
+    public CommandMetrics(String command) {
+        super();
+
+        this.command = command;
+    }
+
+    /**
+     * Method:
+     *      sending( long, int )
+     *
+     * Description:
+     *      Counts a write before it starts, so the reply (possibly read
+     *      before the write returns) is never counted ahead of it.
+     *
+     * @param   queueNanos  Time from submission to taking the prompt slot.
+     * @param   bytes       Bytes about to be written.
+     */
+    void sending(long queueNanos, int bytes) {
+        this.sent.incrementAndGet();
+        this.queueWait.record(queueNanos);
+        this.bytesOut.addAndGet(bytes);
+    }
+
+    /**
+     * Method:
+     *      written( long )
+     *
+     * @param   writeNanos  Time spent writing and flushing.
+     */
+    void written(long writeNanos) {
+        this.writeTime.record(writeNanos);
+    }
+
+    /**
+     * Method:
+     *      received( long, long, int, int )
+     *
+     * @param   firstByteNanos  Time from the write to the first reply byte, or negative if unknown.
+     * @param   promptNanos     Time from the write to the prompt.
+     * @param   bytes           Reply bytes (prompt excluded).
+     * @param   outcome         REPLY, NO_DATA or ERROR.
+     */
+    void received(long firstByteNanos, long promptNanos, int bytes, int outcome) {
+        this.replies.incrementAndGet();
+        if (firstByteNanos >= 0)
+            this.firstByte.record(firstByteNanos);
+        this.prompt.record(promptNanos);
+        this.bytesIn.addAndGet(bytes);
+        if (outcome == NO_DATA)
+            this.noData.incrementAndGet();
+        else if (outcome == ERROR)
+            this.errors.incrementAndGet();
+    }
+
+    /**
+     * Method:
+     *      timedOut( )
+     *
+     * Description:
+     *      The command missed its deadline.
+     */
+    void timedOut() {
+        this.timeouts.incrementAndGet();
+    }
+
+    /**
+     * Method:
+     *      failed( )
+     *
+     * Description:
+     *      The command could not be written.
+     */
+    void failed() {
+        this.errors.incrementAndGet();
+    }
+
+    /**
+     * Method:
+     *      add( CommandMetrics )
+     *
+     * @param   other   Metrics whose timings and counts are added to these.
+     */
+    public void add(CommandMetrics other) {
+        this.queueWait.add(other.queueWait);
+        this.writeTime.add(other.writeTime);
+        this.firstByte.add(other.firstByte);
+        this.prompt.add(other.prompt);
+        this.sent.addAndGet(other.sent.get());
+        this.replies.addAndGet(other.replies.get());
+        this.bytesOut.addAndGet(other.bytesOut.get());
+        this.bytesIn.addAndGet(other.bytesIn.get());
+        this.timeouts.addAndGet(other.timeouts.get());
+        this.noData.addAndGet(other.noData.get());
+        this.errors.addAndGet(other.errors.get());
+    }
+
+    /**
+     * Method:
+     *      copy( String )
+     *
+     * @param   command             Command name of the copy.
+     * @return  CommandMetrics      Independent copy of these metrics.
+     */
+    public CommandMetrics copy(String command) {
+        CommandMetrics copy = new CommandMetrics(command);
+        copy.add(this);
+        return (copy);
+    }
+
+    /**
+     * Method:
+     *      getCommand( )
+     *
+     * @return  String  Command text.
+     */
+    public String getCommand() {
+        return (this.command);
+    }
+
+    /**
+     * Method:
+     *      getQueueWait( )
+     *
+     * @return  LatencyHistogram    Time from submission to taking the prompt slot.
+     */
+    public LatencyHistogram getQueueWait() {
+        return (this.queueWait);
+    }
+
+    /**
+     * Method:
+     *      getWriteTime( )
+     *
+     * @return  LatencyHistogram    Time spent writing the command to the link.
+     */
+    public LatencyHistogram getWriteTime() {
+        return (this.writeTime);
+    }
+
+    /**
+     * Method:
+     *      getFirstByte( )
+     *
+     * @return  LatencyHistogram    Time from the write to the first byte of the reply.
+     */
+    public LatencyHistogram getFirstByte() {
+        return (this.firstByte);
+    }
+
+    /**
+     * Method:
+     *      getPrompt( )
+     *
+     * @return  LatencyHistogram    Time from the write to the closing prompt (round trip).
+     */
+    public LatencyHistogram getPrompt() {
+        return (this.prompt);
+    }
+
+    /**
+     * Method:
+     *      getSent( )
+     *
+     * @return  long    Number of times the command was written.
+     */
+    public long getSent() {
+        return (this.sent.get());
+    }
+
+    /**
+     * Method:
+     *      getReplies( )
+     *
+     * @return  long    Number of replies received.
+     */
+    public long getReplies() {
+        return (this.replies.get());
+    }
+
+    /**
+     * Method:
+     *      getBytesOut( )
+     *
+     * @return  long    Bytes written, terminators and digits included.
+     */
+    public long getBytesOut() {
+        return (this.bytesOut.get());
+    }
+
+    /**
+     * Method:
+     *      getBytesIn( )
+     *
+     * @return  long    Reply bytes received, prompts excluded.
+     */
+    public long getBytesIn() {
+        return (this.bytesIn.get());
+    }
+
+    /**
+     * Method:
+     *      getTimeouts( )
+     *
+     * @return  long    Number of missed deadlines.
+     */
+    public long getTimeouts() {
+        return (this.timeouts.get());
+    }
+
+    /**
+     * Method:
+     *      getNoData( )
+     *
+     * @return  long    Number of "NO DATA" replies.
+     */
+    public long getNoData() {
+        return (this.noData.get());
+    }
+
+    /**
+     * Method:
+     *      getErrors( )
+     *
+     * @return  long    Number of error replies (CAN ERROR, STOPPED, ?, ...) and failed writes.
+     */
+    public long getErrors() {
+        return (this.errors.get());
+    }
+
+    @Override
+    public String toString() {
+        return (this.command + ": sent=" + this.getSent() + " replies=" + this.getReplies()
+                + " timeouts=" + this.getTimeouts() + " noData=" + this.getNoData() + " errors=" + this.getErrors()
+                + " out=" + this.getBytesOut() + "B in=" + this.getBytesIn() + "B prompt[" + this.prompt + "]");
+    }
+}
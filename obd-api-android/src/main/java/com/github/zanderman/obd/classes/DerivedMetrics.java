@@ -0,0 +1,574 @@
+package com.github.zanderman.obd.classes;
+
+import com.github.zanderman.obd.interfaces.CompositeFormulaInterface;
+import com.github.zanderman.obd.interfaces.SampleSinkInterface;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Class:
+ *      DerivedMetrics
+ *
+ * Description:
+ *      Streaming computation of derived signals from decoded samples.
+ *
+ *      The stage is a SampleSinkInterface: hand it to a PIDDecoder on the
+ *      reader thread in place of a SampleStore or SamplePublisher, and give it
+ *      that store or publisher as its downstream sink. Every sample is passed
+ *      on unchanged and then updates the derived signals reading it, each of
+ *      which keeps constant-size state:
+ *
+ *          integrate()     time-weighted (trapezoidal) running integral,
+ *          ewma()          exponentially weighted moving average with a
+ *                          time constant, so irregular polling is handled,
+ *          window()        minimum, maximum or mean of the last N samples,
+ *                          kept in primitive rings (monotonic queues for the
+ *                          extremes, a running sum for the mean),
+ *          composite()     any formula of the latest values of other signals.
+ *
+ *      A derived value is emitted downstream under its own ID, at the
+ *      timestamp of the sample that produced it, and can feed further derived
+ *      signals. IDs share the PID space of the downstream sink; pick numbers
+ *      that are not polled (addFuelEconomy() uses 0xF1 - 0xF5). Signals may
+ *      only read signals registered before them, so chains never loop.
+ *
+ *      Like SampleStore, a signal is bound to the first ECU that reports it
+ *      and values from other ECUs are passed on but not derived from. One
+ *      thread feeds samples; getValue() may be read from any thread.
+ */
+public class DerivedMetrics implements SampleSinkInterface {
+
+    /**
+     * Window statistics.
+     */
+    public enum Statistic {
+        MIN,
+        MAX,
+        MEAN
+    }
+
+    /**
+     * Constants
+     */
+    public static final int FUEL_RATE = 0xF1;           /* Fuel rate [L/h] from MAF. */
+    public static final int FUEL_ECONOMY = 0xF2;        /* Instantaneous consumption [L/100 km]. */
+    public static final int TRIP_DISTANCE = 0xF3;       /* Distance [km] integrated from speed. */
+    public static final int TRIP_FUEL = 0xF4;           /* Fuel used [L] integrated from the fuel rate. */
+    public static final int TRIP_ECONOMY = 0xF5;        /* Trip consumption [L/100 km]. */
+    public static final double AIR_FUEL_RATIO = 14.7;   /* Stoichiometric petrol [g air / g fuel]. */
+    public static final double FUEL_DENSITY = 745.0;    /* Petrol [g/L]. */
+    public static final double MAX_GAP = 5.0;           /* Integrals skip longer gaps between samples [s]. */
+    private static final int SPEED = 0x0D;
+    private static final int MAF = 0x10;
+
+    /**
+     * Built-in formulas.
+     */
+    public static final CompositeFormulaInterface MAF_TO_FUEL_RATE = new CompositeFormulaInterface() {
+        @Override
+        public double compute(double[] inputs) {
+            return (inputs[0] * 3600.0 / (AIR_FUEL_RATIO * FUEL_DENSITY));
+        }
+    };
+    public static final CompositeFormulaInterface LITRES_PER_100KM = new CompositeFormulaInterface() {
+        @Override
+        public double compute(double[] inputs) {
+            /* Litres (or L/h) over kilometres (or km/h); undefined below 1 km (or 1 km/h). */
+            return ((inputs[1] < 1.0) ? Double.NaN : 100.0 * inputs[0] / inputs[1]);
+        }
+    };
+
+    /**
+     * Private Members
+     */
+    private final SampleSinkInterface downstream;
+    private final double secondsPerTick;
+    private final AtomicLongArray values = new AtomicLongArray(256);   /* Latest value bits per ID. */
+    private volatile Metric[][] routes = new Metric[256][];             /* Signals reading each ID. */
+    private volatile Metric[] metrics = new Metric[0];                  /* All signals, in registration order. */
+    private volatile boolean resetRequested;
+
+    /* Source binding (feeding thread only). */
+    private final int[] ecus = new int[256];
+    private final boolean[] bound = new boolean[256];
+
+
+    /**
+     * Constructor:
+     *      DerivedMetrics( SampleSinkInterface )
+     *
+     * Description:
+     *      Creates a stage for System.nanoTime() timestamps, as set by the
+     *      frame reader.
+     *
+     * @param   downstream  Receiver of all input and derived samples (may be null).
+     */
+    public DerivedMetrics(SampleSinkInterface downstream) {
+        this(downstream, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Constructor:
+     *      DerivedMetrics( SampleSinkInterface, TimeUnit )
+     *
+     * @param   downstream  Receiver of all input and derived samples (may be null).
+     * @param   unit        Unit of the sample timestamps.
+     */
+    public DerivedMetrics(SampleSinkInterface downstream, TimeUnit unit) {
+        super();
+
+        this.downstream = downstream;
+        this.secondsPerTick = 1.0 / unit.convert(1, TimeUnit.SECONDS);
+        for (int i = 0; i < 256; i++)
+            this.values.set(i, Double.doubleToRawLongBits(Double.NaN));
+    }
+
+    /**
+     * Method:
+     *      integrate( int, int, double )
+     *
+     * Description:
+     *      Registers the running time integral of a signal, in signal units
+     *      times seconds times scale (e.g. speed [km/h] with 1/3600 gives
+     *      km). Gaps longer than MAX_GAP (a dropped link) add nothing.
+     *
+     * @param   id          Derived signal ID.
+     * @param   source      Input signal ID.
+     * @param   scale       Factor applied to the integral.
+     */
+    public void integrate(int id, int source, double scale) {
+        this.register(new Integral(id, source, scale * this.secondsPerTick, MAX_GAP / this.secondsPerTick));
+    }
+
+    /**
+     * Method:
+     *      ewma( int, int, double )
+     *
+     * Description:
+     *      Registers an exponentially weighted moving average. Each sample
+     *      is weighted by 1 - exp(-dt / seconds), so the smoothing does not
+     *      depend on how often the signal is polled.
+     *
+     * @param   id          Derived signal ID.
+     * @param   source      Input signal ID.
+     * @param   seconds     Time constant.
+     */
+    public void ewma(int id, int source, double seconds) {
+        if (seconds <= 0)
+            throw new IllegalArgumentException("Time constant must be positive");
+        this.register(new Average(id, source, seconds / this.secondsPerTick));
+    }
+
+    /**
+     * Method:
+     *      window( int, int, Statistic, int )
+     *
+     * Description:
+     *      Registers the minimum, maximum or mean of the last samples of a
+     *      signal (fewer until that many have arrived).
+     *
+     * @param   id          Derived signal ID.
+     * @param   source      Input signal ID.
+     * @param   statistic   Statistic to emit.
+     * @param   samples     Window length in samples.
+     */
+    public void window(int id, int source, Statistic statistic, int samples) {
+        if (samples < 1)
+            throw new IllegalArgumentException("Window must hold at least one sample");
+        this.register(new Window(id, source, statistic, samples));
+    }
+
+    /**
+     * Method:
+     *      composite( int, CompositeFormulaInterface, int... )
+     *
+     * Description:
+     *      Registers a signal computed from the latest values of its inputs.
+     *      It is emitted on every input update once each input has a value,
+     *      unless the formula returns NaN.
+     *
+     * @param   id          Derived signal ID.
+     * @param   formula     Formula over the inputs.
+     * @param   inputs      Input signal IDs, passed to the formula in this order.
+     */
+    public void composite(int id, CompositeFormulaInterface formula, int... inputs) {
+        if (inputs.length == 0)
+            throw new IllegalArgumentException("Composite needs inputs");
+        this.register(new Composite(id, formula, inputs));
+    }
+
+    /**
+     * Method:
+     *      addFuelEconomy( )
+     *
+     * Description:
+     *      Registers the usual trip computer from MAF (PID 10) and speed
+     *      (PID 0D): FUEL_RATE, FUEL_ECONOMY, TRIP_DISTANCE, TRIP_FUEL and
+     *      TRIP_ECONOMY. Assumes a petrol engine at stoichiometry.
+     */
+    public void addFuelEconomy() {
+        this.composite(FUEL_RATE, MAF_TO_FUEL_RATE, MAF);
+        this.composite(FUEL_ECONOMY, LITRES_PER_100KM, FUEL_RATE, SPEED);
+        this.integrate(TRIP_DISTANCE, SPEED, 1.0 / 3600.0);
+        this.integrate(TRIP_FUEL, FUEL_RATE, 1.0 / 3600.0);
+        this.composite(TRIP_ECONOMY, LITRES_PER_100KM, TRIP_FUEL, TRIP_DISTANCE);
+    }
+
+    /**
+     * Method:
+     *      reset( )
+     *
+     * Description:
+     *      Clears all derived state (e.g. at the start of a trip). Takes
+     *      effect on the feeding thread with the next sample.
+     */
+    public void reset() {
+        this.resetRequested = true;
+    }
+
+    /**
+     * Method:
+     *      getValue( int )
+     *
+     * @param   id      Signal ID (input or derived).
+     * @return  double  Latest value, or NaN if none yet.
+     */
+    public double getValue(int id) {
+        return (Double.longBitsToDouble(this.values.get(id & 0xFF)));
+    }
+
+    /**
+     * Method:
+     *      sample( int, int, long, double )
+     *
+     * Description:
+     *      Passes a sample on and updates the signals derived from it.
+     *      Feeding thread only.
+     */
+    @Override
+    public void sample(int pid, int ecu, long timestamp, double value) {
+        if (this.resetRequested) {
+            this.resetRequested = false;
+            Metric[] all = this.metrics;
+            for (int i = 0; i < all.length; i++) {
+                all[i].clear();
+                this.values.set(all[i].id, Double.doubleToRawLongBits(Double.NaN));
+            }
+        }
+        this.dispatch(pid, ecu, timestamp, value);
+    }
+
+    /**
+     * Method:
+     *      dispatch( int, int, long, double )
+     *
+     * @param   pid         Signal ID.
+     * @param   ecu         Reporting ECU.
+     * @param   timestamp   Sample time.
+     * @param   value       Sample value.
+     */
+    private void dispatch(int pid, int ecu, long timestamp, double value) {
+        if (this.downstream != null)
+            this.downstream.sample(pid, ecu, timestamp, value);
+
+        pid &= 0xFF;
+        if (!this.bound[pid]) {
+            this.bound[pid] = true;
+            this.ecus[pid] = ecu;
+        } else if (this.ecus[pid] != ecu) {
+            return;
+        }
+        this.values.lazySet(pid, Double.doubleToRawLongBits(value));
+
+        Metric[] readers = this.routes[pid];
+        if (readers == null)
+            return;
+        for (int i = 0; i < readers.length; i++) {
+            Metric m = readers[i];
+            if (m.update(pid, timestamp, value))
+                this.dispatch(m.id, ecu, timestamp, m.value);
+        }
+    }
+
+    /**
+     * Method:
+     *      register( Metric )
+     *
+     * Description:
+     *      Adds a signal, copy-on-write. Its ID must not already be derived
+     *      nor read by an earlier signal.
+     *
+     * @param   metric  New signal.
+     */
+    private synchronized void register(Metric metric) {
+        Metric[] all = this.metrics;
+        for (int i = 0; i < all.length; i++) {
+            if (all[i].id == metric.id)
+                throw new IllegalArgumentException("Signal " + Integer.toHexString(metric.id) + " is already derived");
+            for (int input : all[i].inputs)
+                if (input == metric.id)
+                    throw new IllegalArgumentException("Signal " + Integer.toHexString(metric.id) + " is already an input");
+        }
+        for (int input : metric.inputs)
+            if (input == metric.id)
+                throw new IllegalArgumentException("Signal " + Integer.toHexString(metric.id) + " reads itself");
+
+        Metric[][] next = this.routes.clone();
+        for (int input : metric.inputs) {
+            Metric[] current = next[input];
+            if (current == null) {
+                next[input] = new Metric[] {metric};
+            } else {
+                boolean present = false;
+                for (Metric m : current)
+                    present |= (m == metric);
+                if (present)
+                    continue;
+                Metric[] grown = new Metric[current.length + 1];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                grown[current.length] = metric;
+                next[input] = grown;
+            }
+        }
+        Metric[] grown = new Metric[all.length + 1];
+        System.arraycopy(all, 0, grown, 0, all.length);
+        grown[all.length] = metric;
+        this.metrics = grown;
+        this.routes = next;
+    }
+
+
+    /**
+     * Class:
+     *      Metric
+     *
+     * Description:
+     *      A derived signal and its incremental state (feeding thread only).
+     */
+    private abstract static class Metric {
+        final int id;
+        final int[] inputs;
+        double value;
+
+        Metric(int id, int... inputs) {
+            this.id = id & 0xFF;
+            this.inputs = new int[inputs.length];
+            for (int i = 0; i < inputs.length; i++)
+                this.inputs[i] = inputs[i] & 0xFF;
+        }
+
+        /**
+         * Takes one input sample; returns true if value was updated.
+         */
+        abstract boolean update(int input, long timestamp, double sample);
+
+        /**
+         * Forgets all state.
+         */
+        abstract void clear();
+    }
+
+    /**
+     * Class:
+     *      Integral
+     */
+    private static class Integral extends Metric {
+        private final double scale;     /* Per timestamp tick. */
+        private final double maxGap;    /* In timestamp ticks. */
+        private boolean started;
+        private long lastTime;
+        private double lastSample;
+
+        Integral(int id, int source, double scale, double maxGap) {
+            super(id, source);
+            this.scale = scale;
+            this.maxGap = maxGap;
+        }
+
+        @Override
+        boolean update(int input, long timestamp, double sample) {
+            if (Double.isNaN(sample))
+                return (false);
+            if (this.started) {
+                long dt = timestamp - this.lastTime;
+                if (dt > 0 && dt <= this.maxGap)
+                    this.value += 0.5 * (sample + this.lastSample) * dt * this.scale;
+                else if (dt < 0)
+                    return (false);
+            }
+            this.started = true;
+            this.lastTime = timestamp;
+            this.lastSample = sample;
+            return (true);
+        }
+
+        @Override
+        void clear() {
+            this.started = false;
+            this.value = 0;
+        }
+    }
+
+    /**
+     * Class:
+     *      Average
+     */
+    private static class Average extends Metric {
+        private final double tau;       /* In timestamp ticks. */
+        private boolean started;
+        private long lastTime;
+
+        Average(int id, int source, double tau) {
+            super(id, source);
+            this.tau = tau;
+        }
+
+        @Override
+        boolean update(int input, long timestamp, double sample) {
+            if (Double.isNaN(sample))
+                return (false);
+            if (!this.started) {
+                this.started = true;
+                this.value = sample;
+            } else {
+                long dt = timestamp - this.lastTime;
+                if (dt < 0)
+                    return (false);
+                this.value += (1.0 - Math.exp(-dt / this.tau)) * (sample - this.value);
+            }
+            this.lastTime = timestamp;
+            return (true);
+        }
+
+        @Override
+        void clear() {
+            this.started = false;
+        }
+    }
+
+    /**
+     * Class:
+     *      Window
+     *
+     * Description:
+     *      Last N samples in a primitive ring. The mean keeps a running sum
+     *      (recomputed once per lap against rounding drift); the extremes keep
+     *      a monotonic queue of candidate values, each pushed and popped once.
+     */
+    private static class Window extends Metric {
+        private final Statistic statistic;
+        private final double[] ring;
+        private final long[] queueIndex;    /* Sample numbers of the candidates, oldest first. */
+        private final double[] queueValue;
+        private long count;
+        private double sum;
+        private int head;                   /* Queue front, ring position. */
+        private int size;                   /* Queue length. */
+
+        Window(int id, int source, Statistic statistic, int samples) {
+            super(id, source);
+            this.statistic = statistic;
+            this.ring = new double[samples];
+            this.queueIndex = (statistic == Statistic.MEAN) ? null : new long[samples];
+            this.queueValue = (statistic == Statistic.MEAN) ? null : new double[samples];
+        }
+
+        @Override
+        boolean update(int input, long timestamp, double sample) {
+            if (Double.isNaN(sample))
+                return (false);
+            int n = this.ring.length;
+            int slot = (int) (this.count % n);
+
+            if (this.statistic == Statistic.MEAN) {
+                this.sum += sample - ((this.count >= n) ? this.ring[slot] : 0);
+                this.ring[slot] = sample;
+                this.count++;
+                if (slot == n - 1) {
+                    double exact = 0;
+                    for (int i = 0; i < n; i++)
+                        exact += this.ring[i];
+                    this.sum = exact;
+                }
+                this.value = this.sum / Math.min(this.count, n);
+                return (true);
+            }
+
+            /* Expire the front, then drop candidates the new sample beats. */
+            if (this.size > 0 && this.queueIndex[this.head] <= this.count - n) {
+                this.head = (this.head + 1) % n;
+                this.size--;
+            }
+            boolean min = (this.statistic == Statistic.MIN);
+            while (this.size > 0) {
+                double back = this.queueValue[(this.head + this.size - 1) % n];
+                if (min ? back < sample : back > sample)
+                    break;
+                this.size--;
+            }
+            int tail = (this.head + this.size) % n;
+            this.queueIndex[tail] = this.count;
+            this.queueValue[tail] = sample;
+            this.size++;
+            this.ring[slot] = sample;
+            this.count++;
+            this.value = this.queueValue[this.head];
+            return (true);
+        }
+
+        @Override
+        void clear() {
+            this.count = 0;
+            this.sum = 0;
+            this.head = 0;
+            this.size = 0;
+        }
+    }
+
+    /**
+     * Class:
+     *      Composite
+     */
+    private static class Composite extends Metric {
+        private final CompositeFormulaInterface formula;
+        private final double[] latest;
+        private final boolean[] present;
+        private int missing;
+
+        Composite(int id, CompositeFormulaInterface formula, int... inputs) {
+            super(id, inputs);
+            this.formula = formula;
+            this.latest = new double[inputs.length];
+            this.present = new boolean[inputs.length];
+            this.missing = inputs.length;
+        }
+
+        @Override
+        boolean update(int input, long timestamp, double sample) {
+            for (int i = 0; i < this.inputs.length; i++) {
+                if (this.inputs[i] != input)
+                    continue;
+                this.latest[i] = sample;
+                if (!this.present[i]) {
+                    this.present[i] = true;
+                    this.missing--;
+                }
+            }
+            if (this.missing > 0)
+                return (false);
+            double result = this.formula.compute(this.latest);
+            if (Double.isNaN(result))
+                return (false);
+            this.value = result;
+            return (true);
+        }
+
+        @Override
+        void clear() {
+            for (int i = 0; i < this.present.length; i++)
+                this.present[i] = false;
+            this.missing = this.present.length;
+        }
+    }
+}
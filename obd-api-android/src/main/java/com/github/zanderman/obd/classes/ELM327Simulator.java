@@ -0,0 +1,1069 @@
+package com.github.zanderman.obd.classes;
+
+import com.github.zanderman.obd.interfaces.OBDTransport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Class:
+ *      ELM327Simulator
+ *
+ * Description:
+ *      In-process OBDTransport that behaves like an ELM327 attached to a vehicle.
+ *
+ *      Commands written to the output stream are answered on the input stream in
+ *      the same wire format a real ELM327 uses (echo, spaces, linefeeds, headers
+ *      and the trailing '>' prompt all follow the AT settings). Responses are
+ *      fully deterministic: the vehicle model is a table of Mode 01 PID values,
+ *      a DTC list and a VIN, and each command can be given a fixed latency.
+ *
+ *      Field behaviour can be reproduced on demand: "SEARCHING..." on the first
+ *      query in automatic protocol mode, "BUS INIT: ...OK" on the first query
+ *      once a K-line protocol (3 - 5) is set, "NO DATA" for unsupported
+ *      requests, queued faults such as "BUFFER FULL", and multi-line (ISO-TP)
+ *      replies for VIN and DTC requests or for several responding ECUs.
+ *      Requests are answered by the ECU addressed with ATSH (all of them for
+ *      the functional 7DF / DB33F1 header) and replies are filtered by ATCRA.
+ *      Like the ELM327 v1.5 it reports, it only takes 29-bit headers as ATCP
+ *      plus six digit ATSH.
+ *
+ *      ATMA streams the configured bus traffic (addBusFrame()), narrowed by
+ *      ATCRA, as fast as the reader takes it until any character is received
+ *      ("STOPPED") or the optional monitor limit is reached ("BUFFER FULL").
+ */
+public class ELM327Simulator implements OBDTransport {
+
+    /**
+     * Constants
+     */
+    public static final String VERSION = "ELM327 v1.5";
+    public static final int ECU_ENGINE = 0x7E8;
+    public static final int ECU_TRANSMISSION = 0x7E9;
+    private static final String[] PROTOCOL_NAMES = {
+            "AUTO",
+            "SAE J1850 PWM",
+            "SAE J1850 VPW",
+            "ISO 9141-2",
+            "ISO 14230-4 (KWP 5BAUD)",
+            "ISO 14230-4 (KWP FAST)",
+            "ISO 15765-4 (CAN 11/500)",
+            "ISO 15765-4 (CAN 29/500)",
+            "ISO 15765-4 (CAN 11/250)",
+            "ISO 15765-4 (CAN 29/250)",
+            "SAE J1939 (CAN 29/250)"
+    };
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final int MONITOR_BATCH = 32;        /* Frames per push while monitoring. */
+    private static final int MONITOR_BACKLOG = 16384;   /* Unread bytes at which monitoring waits for the reader. */
+
+    /**
+     * Private Members
+     */
+    private final ByteQueueInputStream inputStream = new ByteQueueInputStream();
+    private final SimulatorOutputStream outputStream = new SimulatorOutputStream();
+    private final BlockingQueue<String> commands = new LinkedBlockingQueue<String>();
+    private volatile boolean open;
+    private Thread worker;
+
+    /* Vehicle model. */
+    private final Map<Integer, Map<Integer, byte[]>> ecus = new LinkedHashMap<Integer, Map<Integer, byte[]>>();
+    private final List<Integer> dtcs = new ArrayList<Integer>();
+    private String vin = "1HGCM82633A004352";
+    private int vehicleProtocol = 6;
+    private String voltage = "12.6V";
+
+    /* Timing and faults. */
+    private long defaultLatency = 0;
+    private final Map<String, Long> latencies = new HashMap<String, Long>();
+    private final LinkedList<String> faults = new LinkedList<String>();
+    private final List<int[]> busFrames = new ArrayList<int[]>();    /* id, data bytes... */
+    private int monitorLimit;       /* Frames per ATMA before "BUFFER FULL" (0 = none). */
+    private boolean searchOnFirstQuery = true;
+    private long searchLatency;
+    private boolean modelResponseWait;
+    private boolean countHints = true;
+    private long settleWait;    /* ELM wait charged to the reply being built. */
+
+    /* ELM327 session settings (reset by ATZ/ATD). */
+    private boolean echo;
+    private boolean linefeeds;
+    private boolean spaces;
+    private boolean headers;
+    private int protocol;
+    private boolean searched;
+    private boolean busInit;        /* K-line (protocols 3 - 5) initialized since the protocol was set. */
+    private int responseWait;       /* ATST value (units of 4 ms). */
+    private int adaptiveTiming;     /* ATAT mode. */
+    private String receiveAddress = "";     /* ATCRA pattern ("" = all). */
+    private String sendHeader = "";         /* ATSH value ("" = default). */
+    private String lastCommand = "";
+
+
+    /**
+     * Constructor:
+     *      ELM327Simulator( )
+     *
+     * Description:
+     *      Creates a simulator with a single engine ECU (7E8) on ISO 15765-4
+     *      CAN 11/500 and a small table of typical Mode 01 values.
+     */
+    public ELM327Simulator() {
+        super();
+
+        this.addEcu(ECU_ENGINE);
+        this.setPid(0x04, 0x50);              /* Engine load: 31.4 % */
+        this.setPid(0x05, 0x7B);              /* Coolant: 83 C */
+        this.setPid(0x0B, 0x21);              /* Intake MAP: 33 kPa */
+        this.setPid(0x0C, 0x1A, 0xF8);        /* RPM: 1726 */
+        this.setPid(0x0D, 0x3C);              /* Speed: 60 km/h */
+        this.setPid(0x0F, 0x44);              /* Intake air: 28 C */
+        this.setPid(0x10, 0x01, 0x90);        /* MAF: 4.00 g/s */
+        this.setPid(0x11, 0x33);              /* Throttle: 20 % */
+        this.setPid(0x1F, 0x01, 0x2C);        /* Run time: 300 s */
+        this.setPid(0x2F, 0x80);              /* Fuel level: 50 % */
+        this.setPid(0x42, 0x31, 0x2A);        /* Module voltage: 12.586 V */
+        this.setPid(0x46, 0x3C);              /* Ambient air: 20 C */
+
+        this.reset();
+    }
+
+
+    /*
+     * ---------------------------------------------------------------------
+     *  Vehicle model configuration.
+     * ---------------------------------------------------------------------
+     */
+
+    /**
+     * Method:
+     *      addEcu( int )
+     *
+     * Description:
+     *      Adds a responding ECU identified by its 11-bit CAN response header
+     *      (e.g. 0x7E9). A new ECU answers only the PIDs set on it.
+     *
+     * @param   header  CAN response header of the ECU.
+     */
+    public synchronized void addEcu(int header) {
+        if (!this.ecus.containsKey(header))
+            this.ecus.put(header, new HashMap<Integer, byte[]>());
+    }
+
+    /**
+     * Method:
+     *      setPid( int, int... )
+     *
+     * Description:
+     *      Sets the Mode 01 data bytes returned by the engine ECU for a PID.
+     *
+     * @param   pid     Mode 01 PID.
+     * @param   data    Data bytes (A, B, C, D).
+     */
+    public void setPid(int pid, int... data) {
+        this.setEcuPid(ECU_ENGINE, pid, data);
+    }
+
+    /**
+     * Method:
+     *      setEcuPid( int, int, int... )
+     *
+     * Description:
+     *      Sets the Mode 01 data bytes returned by a specific ECU for a PID.
+     *
+     * @param   ecu     CAN response header of the ECU.
+     * @param   pid     Mode 01 PID.
+     * @param   data    Data bytes (A, B, C, D).
+     */
+    public synchronized void setEcuPid(int ecu, int pid, int... data) {
+        this.addEcu(ecu);
+        byte[] bytes = new byte[data.length];
+        for (int i = 0; i < data.length; i++)
+            bytes[i] = (byte) data[i];
+        this.ecus.get(ecu).put(pid & 0xFF, bytes);
+    }
+
+    /**
+     * Method:
+     *      removePid( int )
+     *
+     * Description:
+     *      Makes the engine ECU stop supporting a PID.
+     *
+     * @param   pid     Mode 01 PID.
+     */
+    public synchronized void removePid(int pid) {
+        this.ecus.get(ECU_ENGINE).remove(pid & 0xFF);
+    }
+
+    /**
+     * Method:
+     *      setDtcs( int... )
+     *
+     * Description:
+     *      Sets the stored trouble codes returned by Mode 03 as raw 16-bit values
+     *      (e.g. 0x0133 for P0133).
+     *
+     * @param   codes   Raw DTC values.
+     */
+    public synchronized void setDtcs(int... codes) {
+        this.dtcs.clear();
+        for (int code : codes)
+            this.dtcs.add(code & 0xFFFF);
+    }
+
+    /**
+     * Method:
+     *      setVin( String )
+     *
+     * @param   vin     17 character VIN returned by Mode 09 PID 02.
+     */
+    public synchronized void setVin(String vin) {
+        this.vin = vin;
+    }
+
+    /**
+     * Method:
+     *      setVehicleProtocol( int )
+     *
+     * Description:
+     *      Sets the protocol the simulated vehicle speaks (ELM numbering 1-9).
+     *      Requests sent on any other fixed protocol answer "NO DATA".
+     *
+     * @param   protocol    ELM protocol number.
+     */
+    public synchronized void setVehicleProtocol(int protocol) {
+        this.vehicleProtocol = protocol;
+    }
+
+    /**
+     * Method:
+     *      setVoltage( String )
+     *
+     * @param   voltage     Text returned by ATRV, e.g. "12.6V".
+     */
+    public synchronized void setVoltage(String voltage) {
+        this.voltage = voltage;
+    }
+
+
+    /*
+     * ---------------------------------------------------------------------
+     *  Timing and fault configuration.
+     * ---------------------------------------------------------------------
+     */
+
+    /**
+     * Method:
+     *      setDefaultLatency( long )
+     *
+     * @param   millis  Delay before answering any command without its own latency.
+     */
+    public synchronized void setDefaultLatency(long millis) {
+        this.defaultLatency = millis;
+    }
+
+    /**
+     * Method:
+     *      setLatency( String, long )
+     *
+     * Description:
+     *      Sets the delay before answering a specific command. The command is
+     *      matched without spaces and case-insensitively, e.g. "010C" or "ATZ".
+     *
+     * @param   command     Command text.
+     * @param   millis      Delay in milliseconds.
+     */
+    public synchronized void setLatency(String command, long millis) {
+        this.latencies.put(normalize(command), millis);
+    }
+
+    /**
+     * Method:
+     *      setSearchOnFirstQuery( boolean )
+     *
+     * @param   search  Whether the first OBD query in automatic protocol mode
+     *                  is prefixed with "SEARCHING...".
+     */
+    public synchronized void setSearchOnFirstQuery(boolean search) {
+        this.searchOnFirstQuery = search;
+    }
+
+    /**
+     * Method:
+     *      setSearchLatency( long )
+     *
+     * @param   millis  Extra delay of the first OBD query in automatic protocol
+     *                  mode, modelling the protocol search (seconds on K-line cars).
+     */
+    public synchronized void setSearchLatency(long millis) {
+        this.searchLatency = millis;
+    }
+
+    /**
+     * Method:
+     *      setModelResponseWait( boolean )
+     *
+     * Description:
+     *      When enabled, an OBD reply is held back by the time a real ELM327
+     *      waits for further ECU responses before printing its prompt: the
+     *      ATST value (4 ms units, default 32h) halved for ATAT1 and quartered
+     *      for ATAT2. A response-count hint that is met skips the wait. This is
+     *      a coarse model, not the exact ELM327 adaptive timing algorithm.
+     *
+     * @param   model   Whether to model the response wait.
+     */
+    public synchronized void setModelResponseWait(boolean model) {
+        this.modelResponseWait = model;
+    }
+
+    /**
+     * Method:
+     *      setResponseCountHints( boolean )
+     *
+     * @param   supported   Whether a trailing response-count digit is accepted
+     *                      (true, ELM327 v1.3 and later) or rejected with "?"
+     *                      as many clones do.
+     */
+    public synchronized void setResponseCountHints(boolean supported) {
+        this.countHints = supported;
+    }
+
+    /**
+     * Method:
+     *      addBusFrame( int, int... )
+     *
+     * Description:
+     *      Adds a frame to the bus traffic that ATMA repeats in a cycle. IDs
+     *      above 7FF are 29-bit.
+     *
+     * @param   id      CAN ID.
+     * @param   data    Data bytes (at most 8).
+     */
+    public synchronized void addBusFrame(int id, int... data) {
+        int[] frame = new int[data.length + 1];
+        frame[0] = id;
+        System.arraycopy(data, 0, frame, 1, data.length);
+        this.busFrames.add(frame);
+    }
+
+    /**
+     * Method:
+     *      setMonitorLimit( int )
+     *
+     * @param   frames  Frames each ATMA prints before "BUFFER FULL" (0 = unlimited).
+     */
+    public synchronized void setMonitorLimit(int frames) {
+        this.monitorLimit = frames;
+    }
+
+    /**
+     * Method:
+     *      injectFault( String )
+     *
+     * Description:
+     *      Queues a raw reply (e.g. "BUFFER FULL", "NO DATA", "CAN ERROR") that
+     *      replaces the answer to the next OBD query. Lines may be separated
+     *      by '\r' to produce a multi-line fault.
+     *
+     * @param   reply   Reply text.
+     */
+    public synchronized void injectFault(String reply) {
+        this.faults.add(reply);
+    }
+
+
+    /*
+     * ---------------------------------------------------------------------
+     *  OBDTransport implementation.
+     * ---------------------------------------------------------------------
+     */
+
+    @Override
+    public synchronized void open() throws IOException {
+        if (this.open)
+            return;
+
+        this.commands.clear();
+        this.inputStream.reopen();
+        this.open = true;
+
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                process();
+            }
+        }, "ELM327Simulator");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        Thread w;
+        synchronized (this) {
+            this.open = false;
+            w = this.worker;
+            this.worker = null;
+        }
+        if (w != null)
+            w.interrupt();
+        this.inputStream.shutdown();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return (this.open);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return (this.inputStream);
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return (this.outputStream);
+    }
+
+
+    /*
+     * ---------------------------------------------------------------------
+     *  Command processing.
+     * ---------------------------------------------------------------------
+     */
+
+    /**
+     * Method:
+     *      process( )
+     *
+     * Description:
+     *      Worker loop: answers each complete command line in arrival order.
+     */
+    private void process() {
+        while (this.open) {
+            try {
+                String raw = this.commands.take();
+                if (normalize(raw).equals("ATMA")) {
+                    this.monitor(raw);
+                    continue;
+                }
+                long delay;
+                String reply;
+                synchronized (this) {
+                    String command = normalize(raw);
+                    if (command.length() == 0)
+                        command = this.lastCommand;
+                    Long latency = this.latencies.get(command);
+                    if (latency == null && (command.length() & 1) == 1 && !command.startsWith("AT"))
+                        latency = this.latencies.get(command.substring(0, command.length() - 1));
+                    delay = (latency != null) ? latency : this.defaultLatency;
+                    reply = this.respond(raw, command);
+                    delay += this.settleWait;
+                }
+                if (delay > 0)
+                    Thread.sleep(delay);
+                this.inputStream.push(reply);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Method:
+     *      respond( String, String )
+     *
+     * Description:
+     *      Builds the complete wire reply (echo, lines and prompt) for a command.
+     *
+     * @param   raw         Command exactly as received.
+     * @param   command     Normalized command.
+     * @return  String      Wire reply.
+     */
+    private String respond(String raw, String command) {
+        StringBuilder out = new StringBuilder();
+        String eol = this.linefeeds ? "\r\n" : "\r";
+        this.settleWait = 0;
+
+        if (this.echo)
+            out.append(raw).append(eol);
+
+        List<String> lines;
+        if (command.startsWith("AT"))
+            lines = this.at(command.substring(2));
+        else {
+            lines = this.obd(command);
+            this.lastCommand = command;
+        }
+
+        for (String line : lines)
+            out.append(line).append(eol);
+        out.append(eol).append('>');
+        return (out.toString());
+    }
+
+    /**
+     * Method:
+     *      at( String )
+     *
+     * Description:
+     *      Handles an AT command (without the "AT" prefix).
+     *
+     * @param   c       Normalized command body.
+     * @return  List    Reply lines.
+     */
+    private List<String> at(String c) {
+        List<String> lines = new ArrayList<String>();
+
+        if (c.equals("Z") || c.equals("WS")) {
+            this.reset();
+            lines.add("");
+            lines.add(VERSION);
+        } else if (c.equals("D")) {
+            this.reset();
+            lines.add("OK");
+        } else if (c.equals("I")) {
+            lines.add(VERSION);
+        } else if (c.equals("@1")) {
+            lines.add("OBDII to RS232 Interpreter");
+        } else if (c.equals("RV")) {
+            lines.add(this.voltage);
+        } else if (c.equals("DP")) {
+            String name = PROTOCOL_NAMES[this.currentProtocol()];
+            lines.add((this.protocol == 0) ? "AUTO, " + name : name);
+        } else if (c.equals("DPN")) {
+            String number = Integer.toHexString(this.currentProtocol()).toUpperCase(Locale.US);
+            lines.add((this.protocol == 0) ? "A" + number : number);
+        } else if (c.matches("E[01]")) {
+            this.echo = c.charAt(1) == '1';
+            lines.add("OK");
+        } else if (c.matches("L[01]")) {
+            this.linefeeds = c.charAt(1) == '1';
+            lines.add("OK");
+        } else if (c.matches("S[01]")) {
+            this.spaces = c.charAt(1) == '1';
+            lines.add("OK");
+        } else if (c.matches("H[01]")) {
+            this.headers = c.charAt(1) == '1';
+            lines.add("OK");
+        } else if (c.matches("(SP|TP)A?[0-9A-C]")) {
+            this.protocol = (c.length() == 4) ? 0 : Character.digit(c.charAt(2), 16); /* "SPAh" is auto with a fallback. */
+            this.searched = false;
+            this.busInit = false;
+            lines.add("OK");
+        } else if (c.matches("AT[0-2]")) {
+            this.adaptiveTiming = c.charAt(2) - '0';
+            lines.add("OK");
+        } else if (c.matches("ST[0-9A-F]{2}")) {
+            int value = Integer.parseInt(c.substring(2), 16);
+            this.responseWait = (value == 0) ? 0x32 : value;
+            lines.add("OK");
+        } else if (c.matches("CRA[0-9A-FX]*")) {
+            this.receiveAddress = c.substring(3);
+            lines.add("OK");
+        } else if (c.matches("SH([0-9A-F]{3}|[0-9A-F]{6})")) {   /* Eight digits need v2.1. */
+            this.sendHeader = c.substring(2);
+            lines.add("OK");
+        } else if (c.equals("PC")) {
+            this.busInit = false;
+            lines.add("OK");
+        } else if (c.matches("(CAF[01]|CF[0-9A-F]+|CM[0-9A-F]+|CP[0-9A-F]{2}|M[01]|CEA|LP|R[01]|V[01])")) {
+            lines.add("OK");
+        } else {
+            lines.add("?");
+        }
+        return (lines);
+    }
+
+    /**
+     * Method:
+     *      monitor( String )
+     *
+     * Description:
+     *      Runs ATMA: prints the bus traffic in batches, pausing while the
+     *      reader is behind, until a character arrives or the limit is hit.
+     *
+     * @param   raw     Command exactly as received.
+     * @throws  InterruptedException    Simulator closed.
+     */
+    private void monitor(String raw) throws InterruptedException {
+        List<String> lines = new ArrayList<String>();
+        StringBuilder out = new StringBuilder();
+        String eol;
+        int limit;
+        synchronized (this) {
+            eol = this.linefeeds ? "\r\n" : "\r";
+            if (this.echo)
+                out.append(raw).append(eol);
+            for (int[] frame : this.busFrames) {
+                boolean extended = frame[0] > 0x7FF;
+                String id = extended ? String.format(Locale.US, "%08X", frame[0]) : String.format(Locale.US, "%03X", frame[0]);
+                if (!matches(this.receiveAddress, id))
+                    continue;
+                byte[] data = new byte[frame.length - 1];
+                for (int i = 0; i < data.length; i++)
+                    data[i] = (byte) frame[i + 1];
+                String header = null;
+                if (this.headers)
+                    header = extended ? this.hex(null, new byte[] {(byte) (frame[0] >> 24), (byte) (frame[0] >> 16),
+                            (byte) (frame[0] >> 8), (byte) frame[0]}, 0, 4) : id;
+                lines.add(this.hex(header, data, 0, data.length));
+            }
+            limit = this.monitorLimit;
+        }
+
+        long emitted = 0;
+        while (this.open) {
+            if (this.commands.poll() != null) {
+                this.inputStream.push(out.append("STOPPED").append(eol).append(eol).append('>').toString());
+                return;
+            }
+            for (int i = 0; i < MONITOR_BATCH && !lines.isEmpty(); i++) {
+                if (limit > 0 && emitted == limit) {
+                    this.inputStream.push(out.append("BUFFER FULL").append(eol).append(eol).append('>').toString());
+                    return;
+                }
+                out.append(lines.get((int) (emitted % lines.size()))).append(eol);
+                emitted++;
+            }
+            if (out.length() > 0)
+                this.inputStream.push(out.toString());
+            out.setLength(0);
+            while (this.open && this.commands.isEmpty()
+                    && (lines.isEmpty() || this.inputStream.available() > MONITOR_BACKLOG))
+                Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Method:
+     *      obd( String )
+     *
+     * Description:
+     *      Handles an OBD request (hex mode byte plus parameters).
+     *
+     * @param   c       Normalized command.
+     * @return  List    Reply lines.
+     */
+    private List<String> obd(String c) {
+        List<String> lines = new ArrayList<String>();
+
+        /*
+         * Requests must be whole hex bytes; an odd trailing digit is the
+         * ELM response-count hint and is not sent on the bus.
+         */
+        if (c.length() < 2 || !c.matches("[0-9A-F]+")) {
+            lines.add("?");
+            return (lines);
+        }
+        int hint = 0;
+        if ((c.length() & 1) == 1) {
+            if (!this.countHints) {
+                lines.add("?");
+                return (lines);
+            }
+            hint = Character.digit(c.charAt(c.length() - 1), 16);
+            c = c.substring(0, c.length() - 1);
+        }
+
+        if (this.protocol == 0 && !this.searched) {
+            this.searched = true;
+            this.settleWait += this.searchLatency;
+            if (this.searchOnFirstQuery)
+                lines.add("SEARCHING...");
+        }
+
+        if (!this.faults.isEmpty()) {
+            for (String line : this.faults.removeFirst().split("\r"))
+                lines.add(line);
+            return (lines);
+        }
+
+        if (this.protocol != 0 && this.protocol != this.vehicleProtocol) {
+            lines.add("NO DATA");
+            return (lines);
+        }
+        if (this.protocol >= 3 && this.protocol <= 5 && !this.busInit) {
+            this.busInit = true;
+            lines.add("BUS INIT: ...OK");
+        }
+        int status = lines.size();     /* Status lines before the replies. */
+
+        int[] request = new int[c.length() / 2];
+        for (int i = 0; i < request.length; i++)
+            request[i] = Integer.parseInt(c.substring(2 * i, 2 * i + 2), 16);
+
+        boolean first = true;
+        int responses = 0;
+        for (Map.Entry<Integer, Map<Integer, byte[]>> ecu : this.ecus.entrySet()) {
+            if (!this.addressed(ecu.getKey()))
+                continue;
+            List<byte[]> messages = this.messages(request, ecu.getValue(), first);
+            for (byte[] message : messages)
+                this.format(ecu.getKey(), message, lines);
+            responses += messages.size();
+            first = false;
+        }
+        if (this.modelResponseWait && (hint == 0 || hint > responses))
+            this.settleWait += (this.responseWait * 4L) >> this.adaptiveTiming;
+
+        if (lines.size() == status)
+            lines.add("NO DATA");
+        return (lines);
+    }
+
+    /**
+     * Method:
+     *      messages( int[], Map, boolean )
+     *
+     * Description:
+     *      Builds the response payloads one ECU sends for a request.
+     *
+     * @param   request     Request bytes (mode followed by parameters).
+     * @param   pids        The ECU's Mode 01 table.
+     * @param   primary     Whether this is the engine ECU (owns DTCs and VIN).
+     * @return  List        Payloads (one per bus message, ISO-TP not yet applied).
+     */
+    private List<byte[]> messages(int[] request, Map<Integer, byte[]> pids, boolean primary) {
+        List<byte[]> messages = new ArrayList<byte[]>();
+        int mode = request[0];
+
+        if (mode == 0x01 && request.length >= 2 && request.length <= 7) {
+            /* Multi-PID requests are only honoured on CAN. */
+            if (request.length > 2 && !this.isCan())
+                return (messages);
+
+            ByteList payload = new ByteList();
+            payload.add(0x41);
+            for (int i = 1; i < request.length; i++) {
+                int pid = request[i];
+                byte[] data = ((pid & 0x1F) == 0) ? bitmap(pids, pid) : pids.get(pid);
+                if (data == null)
+                    continue;
+                payload.add(pid);
+                payload.add(data);
+            }
+            if (payload.size() > 1)
+                messages.add(payload.toArray());
+        }
+
+        else if (mode == 0x03 && request.length == 1 && primary) {
+            if (this.isCan()) {
+                ByteList payload = new ByteList();
+                payload.add(0x43);
+                payload.add(this.dtcs.size());
+                for (int dtc : this.dtcs) {
+                    payload.add(dtc >> 8);
+                    payload.add(dtc);
+                }
+                messages.add(payload.toArray());
+            } else {
+                /* Legacy protocols carry three codes per message, zero padded. */
+                int i = 0;
+                do {
+                    ByteList payload = new ByteList();
+                    payload.add(0x43);
+                    for (int k = 0; k < 3; k++, i++) {
+                        int dtc = (i < this.dtcs.size()) ? this.dtcs.get(i) : 0;
+                        payload.add(dtc >> 8);
+                        payload.add(dtc);
+                    }
+                    messages.add(payload.toArray());
+                } while (i < this.dtcs.size());
+            }
+        }
+
+        else if (mode == 0x09 && request.length == 2 && primary) {
+            if (request[1] == 0x00) {
+                messages.add(new byte[] {0x49, 0x00, 0x54, 0x40, 0x00, 0x00});
+            } else if (request[1] == 0x02) {
+                byte[] text = this.vin.getBytes();
+                if (this.isCan()) {
+                    ByteList payload = new ByteList();
+                    payload.add(0x49);
+                    payload.add(0x02);
+                    payload.add(0x01);
+                    payload.add(text);
+                    messages.add(payload.toArray());
+                } else {
+                    /* Legacy protocols: five numbered messages of four bytes. */
+                    byte[] padded = new byte[20];
+                    System.arraycopy(text, 0, padded, 20 - text.length, text.length);
+                    for (int n = 0; n < 5; n++) {
+                        ByteList payload = new ByteList();
+                        payload.add(0x49);
+                        payload.add(0x02);
+                        payload.add(n + 1);
+                        for (int k = 0; k < 4; k++)
+                            payload.add(padded[4 * n + k]);
+                        messages.add(payload.toArray());
+                    }
+                }
+            }
+        }
+
+        return (messages);
+    }
+
+    /**
+     * Method:
+     *      format( int, byte[], List )
+     *
+     * Description:
+     *      Renders one ECU message as ELM327 output lines, applying ISO-TP
+     *      segmentation on CAN and the current header/space settings.
+     *
+     * @param   ecu         CAN response header of the ECU.
+     * @param   payload     Message payload.
+     * @param   lines       Output lines.
+     */
+    private void format(int ecu, byte[] payload, List<String> lines) {
+        if (!this.isCan()) {
+            ByteList bytes = new ByteList();
+            if (this.headers) {
+                bytes.add(0x48);
+                bytes.add(0x6B);
+                bytes.add(0x10 + (ecu - ECU_ENGINE));
+            }
+            bytes.add(payload);
+            if (this.headers) {
+                int sum = 0;
+                byte[] all = bytes.toArray();
+                for (byte b : all)
+                    sum += b & 0xFF;
+                bytes.add(sum);
+            }
+            lines.add(this.hex(null, bytes.toArray(), 0, bytes.size()));
+            return;
+        }
+
+        String header = null;
+        if (this.headers) {
+            boolean extended = (this.currentProtocol() == 7 || this.currentProtocol() == 9);
+            header = extended
+                    ? this.hex(null, new byte[] {0x18, (byte) 0xDA, (byte) 0xF1, (byte) (0x10 + (ecu - ECU_ENGINE))}, 0, 4)
+                    : Integer.toHexString(ecu).toUpperCase(Locale.US);
+        }
+
+        /* Single frame. */
+        if (payload.length <= 7) {
+            if (this.headers) {
+                byte[] frame = new byte[8];
+                frame[0] = (byte) payload.length;
+                System.arraycopy(payload, 0, frame, 1, payload.length);
+                lines.add(this.hex(header, frame, 0, 8));
+            } else {
+                lines.add(this.hex(null, payload, 0, payload.length));
+            }
+            return;
+        }
+
+        /* First frame followed by consecutive frames. */
+        if (this.headers) {
+            byte[] frame = new byte[8];
+            frame[0] = (byte) (0x10 | ((payload.length >> 8) & 0x0F));
+            frame[1] = (byte) payload.length;
+            System.arraycopy(payload, 0, frame, 2, 6);
+            lines.add(this.hex(header, frame, 0, 8));
+            int sequence = 1;
+            for (int offset = 6; offset < payload.length; offset += 7, sequence++) {
+                frame = new byte[8];
+                frame[0] = (byte) (0x20 | (sequence & 0x0F));
+                System.arraycopy(payload, offset, frame, 1, Math.min(7, payload.length - offset));
+                lines.add(this.hex(header, frame, 0, 8));
+            }
+        } else {
+            String length = Integer.toHexString(payload.length).toUpperCase(Locale.US);
+            while (length.length() < 3)
+                length = "0" + length;
+            lines.add(length);
+            lines.add("0:" + (this.spaces ? " " : "") + this.hex(null, payload, 0, 6));
+            int sequence = 1;
+            for (int offset = 6; offset < payload.length; offset += 7, sequence++) {
+                int n = Math.min(7, payload.length - offset);
+                lines.add(HEX[sequence & 0x0F] + ":" + (this.spaces ? " " : "") + this.hex(null, payload, offset, n));
+            }
+        }
+    }
+
+
+    /*
+     * ---------------------------------------------------------------------
+     *  Helpers.
+     * ---------------------------------------------------------------------
+     */
+
+    /**
+     * Method:
+     *      reset( )
+     *
+     * Description:
+     *      Restores ELM327 power-on defaults.
+     */
+    private void reset() {
+        this.echo = true;
+        this.linefeeds = false;
+        this.spaces = true;
+        this.headers = false;
+        this.protocol = 0;
+        this.searched = false;
+        this.busInit = false;
+        this.responseWait = 0x32;
+        this.adaptiveTiming = 1;
+        this.receiveAddress = "";
+        this.sendHeader = "";
+        this.lastCommand = "";
+    }
+
+    /**
+     * Method:
+     *      addressed( int )
+     *
+     * @param   ecu         CAN response header of the ECU.
+     * @return  boolean     True if the ECU answers requests sent with the
+     *                      current header and its reply passes ATCRA.
+     */
+    private boolean addressed(int ecu) {
+        int index = 0x10 + (ecu - ECU_ENGINE);
+        boolean extended = (this.currentProtocol() == 7 || this.currentProtocol() == 9);
+        String reply = extended ? String.format(Locale.US, "18DAF1%02X", index) : String.format(Locale.US, "%03X", ecu);
+        if (!matches(this.receiveAddress, reply))
+            return (false);
+        String h = this.sendHeader;
+        if (h.length() == 0 || h.equals("7DF") || h.equals("DB33F1"))
+            return (true);
+        if (h.length() == 3)
+            return (Integer.parseInt(h, 16) + 8 == ecu);
+        return (h.endsWith(String.format(Locale.US, "%02XF1", index)));
+    }
+
+    private int currentProtocol() {
+        return ((this.protocol == 0) ? this.vehicleProtocol : this.protocol);
+    }
+
+    private boolean isCan() {
+        return (this.currentProtocol() >= 6);
+    }
+
+    private String hex(String prefix, byte[] bytes, int offset, int length) {
+        StringBuilder s = new StringBuilder();
+        if (prefix != null) {
+            s.append(prefix);
+            if (this.spaces)
+                s.append(' ');
+        }
+        for (int i = 0; i < length; i++) {
+            if (i > 0 && this.spaces)
+                s.append(' ');
+            int b = bytes[offset + i] & 0xFF;
+            s.append(HEX[b >> 4]).append(HEX[b & 0x0F]);
+        }
+        return (s.toString());
+    }
+
+    private static byte[] bitmap(Map<Integer, byte[]> pids, int base) {
+        long bits = 0;
+        for (Integer pid : pids.keySet()) {
+            if (pid > base && pid <= base + 0x20)
+                bits |= 1L << (32 - (pid - base));
+        }
+        /* Advertise the next range whenever anything above this one exists. */
+        for (Integer pid : pids.keySet()) {
+            if (pid > base + 0x20)
+                bits |= 1L;
+        }
+        if (bits == 0 && base != 0)
+            return (null);
+        return (new byte[] {(byte) (bits >> 24), (byte) (bits >> 16), (byte) (bits >> 8), (byte) bits});
+    }
+
+    private static boolean matches(String pattern, String id) {
+        if (pattern.length() == 0)
+            return (true);
+        if (pattern.length() != id.length())
+            return (false);
+        for (int i = 0; i < id.length(); i++)
+            if (pattern.charAt(i) != 'X' && pattern.charAt(i) != id.charAt(i))
+                return (false);
+        return (true);
+    }
+
+    private static String normalize(String command) {
+        return (command.replace(" ", "").toUpperCase(Locale.US));
+    }
+
+
+    /**
+     * Class:
+     *      ByteList
+     *
+     * Description:
+     *      Minimal growable byte list used while building payloads.
+     */
+    private static class ByteList {
+        private byte[] bytes = new byte[16];
+        private int size;
+
+        void add(int b) {
+            if (this.size == this.bytes.length) {
+                byte[] grown = new byte[this.size * 2];
+                System.arraycopy(this.bytes, 0, grown, 0, this.size);
+                this.bytes = grown;
+            }
+            this.bytes[this.size++] = (byte) b;
+        }
+
+        void add(byte[] data) {
+            for (byte b : data)
+                this.add(b);
+        }
+
+        int size() {
+            return (this.size);
+        }
+
+        byte[] toArray() {
+            byte[] copy = new byte[this.size];
+            System.arraycopy(this.bytes, 0, copy, 0, this.size);
+            return (copy);
+        }
+    }
+
+
+    /**
+     * Class:
+     *      SimulatorOutputStream
+     *
+     * Description:
+     *      Collects written bytes into command lines terminated by '\r'.
+     */
+    private class SimulatorOutputStream extends OutputStream {
+        private final StringBuilder line = new StringBuilder();
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!open)
+                throw new IOException("Simulator not open");
+            char c = (char) (b & 0xFF);
+            synchronized (this.line) {
+                if (c == '\r') {
+                    commands.add(this.line.toString());
+                    this.line.setLength(0);
+                } else if (c != '\n') {
+                    this.line.append(c);
+                }
+            }
+        }
+    }
+}
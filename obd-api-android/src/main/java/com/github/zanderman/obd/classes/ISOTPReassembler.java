@@ -0,0 +1,378 @@
+package com.github.zanderman.obd.classes;
+
+import com.github.zanderman.obd.interfaces.LineCallbackInterface;
+import com.github.zanderman.obd.interfaces.MessageCallbackInterface;
+
+/**
+ * Class:
+ *      ISOTPReassembler
+ *
+ * Description:
+ *      Incremental reassembly of ELM327 response lines into per-ECU messages.
+ *
+ *      Lines are fed one at a time as they arrive (it is a line consumer for
+ *      the reader's line mode, see OBDAdapter.query()) and every message is
+ *      handed to the callback as soon as its last segment is in, instead of
+ *      after the whole reply has been framed. Replies of several ECUs may be
+ *      interleaved: first frames open one assembly per response header
+ *      (11-bit, 29-bit, or the single headerless "0:"/"1:" form), and each
+ *      consecutive frame is placed by its sequence number, which wraps after
+ *      15 and is resolved against the highest segment seen so far. Segments
+ *      arriving out of order or twice therefore still give the right bytes.
+ *
+ *      Lines that are not data (echo, "SEARCHING...", status and error
+ *      messages) are ignored here; OBDResponseParser reports them.
+ */
+public class ISOTPReassembler implements LineCallbackInterface {
+
+    /**
+     * Constants
+     */
+    public static final int MAX_ECUS = 8;      /* Assemblies in progress at a time. */
+    private static final int WINDOW = 8;        /* Sequence numbers resolved up to this far from the highest. */
+
+    /**
+     * Private Members
+     */
+    private final MessageCallbackInterface callback;
+    private final boolean legacyHeaders;
+    private final byte[] echo;                  /* Command echo, upper case without spaces, or null. */
+    private final Assembly[] assemblies = new Assembly[MAX_ECUS];
+    private byte[] line = new byte[64];         /* Current line, upper case without spaces. */
+
+    /* Statistics (written by the feeding thread only). */
+    private volatile long messages;
+    private volatile long discarded;
+
+
+    /**
+     * Constructor:
+     *      ISOTPReassembler( MessageCallbackInterface, boolean, String )
+     *
+     * @param   callback        Consumer of complete messages.
+     * @param   legacyHeaders   True when headers are on and the protocol is not CAN
+     *                          (three header bytes and a trailing checksum per line).
+     * @param   command         Command whose echo is skipped, or null (echo off).
+     */
+    public ISOTPReassembler(MessageCallbackInterface callback, boolean legacyHeaders, String command) {
+        super();
+
+        this.callback = callback;
+        this.legacyHeaders = legacyHeaders;
+        this.echo = (command == null) ? null : command.replace(" ", "").toUpperCase().getBytes();
+    }
+
+    /**
+     * Method:
+     *      lineReceived( byte[], int, int, long )
+     *
+     * Description:
+     *      Feeds one response line.
+     */
+    @Override
+    public void lineReceived(byte[] buffer, int offset, int length, long timestamp) {
+        int n = this.compact(buffer, offset, length);
+        if (n == 0 || this.isEcho(n))
+            return;
+
+        /* Headerless segment: "N:" and up to seven data bytes. */
+        if (n > 2 && this.line[1] == ':' && hex(this.line[0]) >= 0 && !this.legacyHeaders) {
+            Assembly headerless = this.find(OBDMessage.NO_HEADER);
+            if (headerless != null)
+                this.place(headerless, headerless.resolve(hex(this.line[0])), 2, n);
+            return;
+        }
+        for (int i = 0; i < n; i++)
+            if (hex(this.line[i]) < 0)
+                return;
+
+        /* Headerless length line that announces the segments. */
+        if (n == 3 && !this.legacyHeaders) {
+            this.open(OBDMessage.NO_HEADER, (hex(this.line[0]) << 8) | this.byteAt(1));
+            return;
+        }
+
+        /* Legacy protocol headers: 3 header bytes, data, checksum. */
+        if (this.legacyHeaders) {
+            if (n >= 8)
+                this.deliver(this.byteAt(4), this.bytes(6, n - 2));
+            return;
+        }
+
+        /* CAN headers: 11-bit (three digits, odd line length) or 29-bit (18 DA xx xx). */
+        int ecu;
+        int pciAt;
+        if ((n & 1) == 1) {
+            ecu = (hex(this.line[0]) << 8) | this.byteAt(1);
+            pciAt = 3;
+        } else if (n >= 10 && this.line[0] == '1' && this.line[1] == '8' && this.line[2] == 'D' && this.line[3] == 'A') {
+            ecu = (this.byteAt(0) << 24) | (this.byteAt(2) << 16) | (this.byteAt(4) << 8) | this.byteAt(6);
+            pciAt = 8;
+        } else {
+            this.deliver(OBDMessage.NO_HEADER, this.bytes(0, n));
+            return;
+        }
+        if (n < pciAt + 2)
+            return;
+
+        int pci = this.byteAt(pciAt);
+        int dataAt = pciAt + 2;
+        switch (pci >> 4) {
+            case 0x0:   /* Single frame. */
+                int count = Math.min(pci & 0x0F, (n - dataAt) / 2);
+                this.deliver(ecu, this.bytes(dataAt, dataAt + 2 * count));
+                break;
+            case 0x1:   /* First frame. */
+                if (n < dataAt + 2)
+                    break;
+                Assembly first = this.open(ecu, ((pci & 0x0F) << 8) | this.byteAt(dataAt));
+                if (first != null)
+                    this.place(first, 0, dataAt + 2, n);
+                break;
+            case 0x2:   /* Consecutive frame. */
+                Assembly next = this.find(ecu);
+                if (next != null)
+                    this.place(next, next.resolve(pci & 0x0F), dataAt, n);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Method:
+     *      reset( )
+     *
+     * Description:
+     *      Drops unfinished assemblies (e.g. before feeding the next reply).
+     */
+    public void reset() {
+        for (int i = 0; i < MAX_ECUS; i++) {
+            if (this.assemblies[i] != null) {
+                this.assemblies[i] = null;
+                this.discarded++;
+            }
+        }
+    }
+
+    /**
+     * Method:
+     *      getPending( )
+     *
+     * @return  int     Messages started but not yet complete.
+     */
+    public int getPending() {
+        int pending = 0;
+        for (int i = 0; i < MAX_ECUS; i++)
+            if (this.assemblies[i] != null)
+                pending++;
+        return (pending);
+    }
+
+    /**
+     * Method:
+     *      getMessages( )
+     *
+     * @return  long    Messages delivered.
+     */
+    public long getMessages() {
+        return (this.messages);
+    }
+
+    /**
+     * Method:
+     *      getDiscarded( )
+     *
+     * @return  long    Assemblies abandoned: restarted by a new first frame,
+     *                  dropped by reset() or beyond MAX_ECUS.
+     */
+    public long getDiscarded() {
+        return (this.discarded);
+    }
+
+    /**
+     * Method:
+     *      open( int, int )
+     *
+     * Description:
+     *      Starts the assembly of a message, replacing an unfinished one of
+     *      the same ECU.
+     *
+     * @param   ecu         Response header or NO_HEADER.
+     * @param   length      Announced payload length.
+     * @return  Assembly    New assembly, or null if MAX_ECUS are in progress.
+     */
+    private Assembly open(int ecu, int length) {
+        int free = -1;
+        for (int i = 0; i < MAX_ECUS; i++) {
+            Assembly a = this.assemblies[i];
+            if (a != null && a.ecu == ecu) {
+                this.discarded++;
+                free = i;
+                break;
+            }
+            if (a == null && free < 0)
+                free = i;
+        }
+        if (free < 0) {
+            this.discarded++;
+            return (null);
+        }
+        this.assemblies[free] = new Assembly(ecu, length);
+        return (this.assemblies[free]);
+    }
+
+    /**
+     * Method:
+     *      find( int )
+     *
+     * @param   ecu         Response header or NO_HEADER.
+     * @return  Assembly    Assembly in progress for the ECU, or null.
+     */
+    private Assembly find(int ecu) {
+        for (int i = 0; i < MAX_ECUS; i++) {
+            Assembly a = this.assemblies[i];
+            if (a != null && a.ecu == ecu)
+                return (a);
+        }
+        return (null);
+    }
+
+    /**
+     * Method:
+     *      place( Assembly, int, int, int )
+     *
+     * Description:
+     *      Copies one segment's data digits into its slot of the payload and
+     *      delivers the message once every segment is in.
+     *
+     * @param   a           Assembly.
+     * @param   segment     Segment index (0 = first frame), or -1 if unresolved.
+     * @param   from        First data digit in the line.
+     * @param   to          End of the line.
+     */
+    private void place(Assembly a, int segment, int from, int to) {
+        if (segment < 0 || segment >= a.received.length || a.received[segment])
+            return;
+        int at = (segment == 0) ? 0 : 6 + 7 * (segment - 1);
+        int count = Math.min(Math.min((segment == 0) ? 6 : 7, a.data.length - at), (to - from) / 2);
+        for (int i = 0; i < count; i++)
+            a.data[at + i] = (byte) this.byteAt(from + 2 * i);
+        a.received[segment] = true;
+        a.count++;
+        if (segment > a.highest)
+            a.highest = segment;
+        if (a.count < a.received.length)
+            return;
+
+        for (int i = 0; i < MAX_ECUS; i++)
+            if (this.assemblies[i] == a)
+                this.assemblies[i] = null;
+        this.deliver(a.ecu, a.data);
+    }
+
+    /**
+     * Method:
+     *      deliver( int, byte[] )
+     *
+     * @param   ecu         Response header or NO_HEADER.
+     * @param   payload     Complete payload.
+     */
+    private void deliver(int ecu, byte[] payload) {
+        this.messages++;
+        this.callback.messageReceived(new OBDMessage(ecu, payload));
+    }
+
+    /**
+     * Method:
+     *      compact( byte[], int, int )
+     *
+     * Description:
+     *      Copies the line into the scratch buffer without spaces and
+     *      linefeeds, in upper case.
+     *
+     * @return  int     Length of the compacted line.
+     */
+    private int compact(byte[] buffer, int offset, int length) {
+        if (this.line.length < length)
+            this.line = new byte[length];
+        int n = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = buffer[i];
+            if (b == ' ' || b == '\t' || b == '\n' || b == '\r')
+                continue;
+            this.line[n++] = (b >= 'a' && b <= 'z') ? (byte) (b - 32) : b;
+        }
+        return (n);
+    }
+
+    /**
+     * Method:
+     *      isEcho( int )
+     *
+     * @return  boolean     True if the line is the command's echo, possibly
+     *                      with a response-count digit appended on the wire.
+     */
+    private boolean isEcho(int n) {
+        byte[] e = this.echo;
+        if (e == null || n < e.length || n > e.length + 1)
+            return (false);
+        for (int i = 0; i < e.length; i++)
+            if (this.line[i] != e[i])
+                return (false);
+        return (n == e.length || ((e.length & 1) == 0 && !(e.length >= 2 && e[0] == 'A' && e[1] == 'T')));
+    }
+
+    private int byteAt(int at) {
+        return ((hex(this.line[at]) << 4) | hex(this.line[at + 1]));
+    }
+
+    private byte[] bytes(int from, int to) {
+        byte[] out = new byte[(to - from) / 2];
+        for (int i = 0; i < out.length; i++)
+            out[i] = (byte) this.byteAt(from + 2 * i);
+        return (out);
+    }
+
+    private static int hex(byte b) {
+        if (b >= '0' && b <= '9')
+            return (b - '0');
+        if (b >= 'A' && b <= 'F')
+            return (b - 'A' + 10);
+        return (-1);
+    }
+
+
+    /**
+     * Class:
+     *      Assembly
+     *
+     * Description:
+     *      One message in progress: the payload and which segments are in.
+     */
+    private static class Assembly {
+        final int ecu;
+        final byte[] data;
+        final boolean[] received;   /* Per segment; segment 0 is the first frame. */
+        int count;
+        int highest;
+
+        Assembly(int ecu, int length) {
+            this.ecu = ecu;
+            this.data = new byte[length];
+            this.received = new boolean[(length <= 6) ? 1 : 1 + (length - 6 + 6) / 7];
+        }
+
+        /**
+         * Maps a 4-bit sequence number to the nearest segment index around
+         * the highest segment received so far, or -1 if none fits.
+         */
+        int resolve(int sequence) {
+            int delta = (sequence - this.highest) & 0x0F;
+            if (delta > WINDOW)
+                delta -= 16;
+            int segment = this.highest + delta;
+            return ((segment < 0) ? -1 : segment);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.github.zanderman.obd.classes;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class:
+ *      LatencyEstimator
+ *
+ * Description:
+ *      Per-command response deadlines learned from measured round trips.
+ *
+ *      Works like a TCP retransmission timer: each command keeps a smoothed
+ *      round trip (gain 1/8) and a mean deviation (gain 1/4), and its deadline
+ *      is the smoothed value plus four deviations, clamped between a floor and
+ *      a ceiling. A command that has not been measured yet gets the ceiling; a
+ *      command that times out has its deadline doubled (up to the ceiling)
+ *      until it answers again.
+ */
+public class LatencyEstimator {
+
+    /**
+     * Constants
+     */
+    public static final long DEFAULT_MINIMUM = 200;    /* Floor (in [ms]) for learned deadlines. */
+    private static final int MAX_COMMANDS = 256;        /* Distinct commands tracked before starting over. */
+
+    /**
+     * Private Members
+     */
+    private final Map<String, Estimate> estimates = new HashMap<String, Estimate>();
+    private long minimum;
+    private long maximum;
+
+
+    /**
+     * Constructor:
+     *      LatencyEstimator( long, long )
+     *
+     * @param   minimum     Shortest deadline ever used (in [ms]).
+     * @param   maximum     Deadline for unmeasured commands and upper bound (in [ms]).
+     */
+    public LatencyEstimator(long minimum, long maximum) {
+        super();
+
+        this.minimum = minimum;
+        this.maximum = Math.max(minimum, maximum);
+    }
+
+    /**
+     * Method:
+     *      setBounds( long, long )
+     *
+     * @param   minimum     Shortest deadline ever used (in [ms]).
+     * @param   maximum     Deadline for unmeasured commands and upper bound (in [ms]).
+     */
+    public synchronized void setBounds(long minimum, long maximum) {
+        this.minimum = minimum;
+        this.maximum = Math.max(minimum, maximum);
+    }
+
+    /**
+     * Method:
+     *      getMaximum( )
+     *
+     * @return  long    Upper bound of every deadline (in [ms]).
+     */
+    public synchronized long getMaximum() {
+        return (this.maximum);
+    }
+
+    /**
+     * Method:
+     *      timeout( String )
+     *
+     * @param   command     Command text.
+     * @return  long        Deadline (in [ms]) for the command's response.
+     */
+    public synchronized long timeout(String command) {
+        Estimate e = this.estimates.get(command);
+        if (e == null || e.samples == 0)
+            return (this.maximum);
+        long rto = Math.max(this.minimum, (long) Math.ceil((e.smoothed + 4 * e.deviation) / 1e6));
+        return (Math.min(this.maximum, rto * e.backoff));
+    }
+
+    /**
+     * Method:
+     *      sample( String, long )
+     *
+     * Description:
+     *      Folds a measured round trip into the command's estimate.
+     *
+     * @param   command     Command text.
+     * @param   nanos       Time from write to prompt.
+     */
+    public synchronized void sample(String command, long nanos) {
+        Estimate e = this.estimates.get(command);
+        if (e == null) {
+            if (this.estimates.size() >= MAX_COMMANDS)
+                this.estimates.clear();
+            e = new Estimate();
+            this.estimates.put(command, e);
+        }
+        if (e.samples == 0) {
+            e.smoothed = nanos;
+            e.deviation = nanos / 2.0;
+        } else {
+            e.deviation += (Math.abs(nanos - e.smoothed) - e.deviation) / 4;
+            e.smoothed += (nanos - e.smoothed) / 8;
+        }
+        e.samples++;
+        e.backoff = 1;
+    }
+
+    /**
+     * Method:
+     *      expired( String )
+     *
+     * Description:
+     *      Doubles the command's deadline after a timeout.
+     *
+     * @param   command     Command text.
+     */
+    public synchronized void expired(String command) {
+        Estimate e = this.estimates.get(command);
+        if (e != null && e.backoff < 64)
+            e.backoff *= 2;
+    }
+
+    /**
+     * Method:
+     *      getSmoothed( String )
+     *
+     * @param   command     Command text.
+     * @return  long        Smoothed round trip in nanoseconds (0 until measured).
+     */
+    public synchronized long getSmoothed(String command) {
+        Estimate e = this.estimates.get(command);
+        return ((e == null) ? 0 : (long) e.smoothed);
+    }
+
+    /**
+     * Method:
+     *      getWorstCase( )
+     *
+     * @return  long    Largest smoothed round trip plus four deviations over all
+     *                  measured OBD requests (AT commands excluded), in
+     *                  nanoseconds (0 until measured).
+     */
+    public synchronized long getWorstCase() {
+        double worst = 0;
+        for (Map.Entry<String, Estimate> entry : this.estimates.entrySet()) {
+            Estimate e = entry.getValue();
+            if (e.samples > 0 && !entry.getKey().startsWith("AT"))
+                worst = Math.max(worst, e.smoothed + 4 * e.deviation);
+        }
+        return ((long) worst);
+    }
+
+
+    /**
+     * Class:
+     *      Estimate
+     *
+     * Description:
+     *      Round-trip statistics of one command.
+     */
+    private static class Estimate {
+        double smoothed;
+        double deviation;
+        int samples;
+        int backoff = 1;
+    }
+}
@@ -0,0 +1,198 @@
+package com.github.zanderman.obd.classes;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Class:
+ *      LatencyHistogram
+ *
+ * Description:
+ *      Lock-free, fixed-size histogram of durations.
+ *
+ *      Durations are bucketed by microsecond on a log-linear scale: each power
+ *      of two is split into eight buckets, so a bucket is at most 12.5% wide
+ *      and 272 buckets cover 1 us to about 19 hours. Recording is a handful of
+ *      atomic increments into preallocated arrays; it never locks and never
+ *      allocates, so it is safe on the reader and writer threads. Readers see
+ *      counts that may be a few samples apart; copy() gives a stable view.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Constants
+     */
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 36;     /* Values from 2^36 us on share the last bucket. */
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+    /**
+     * Private Members
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();    /* In [ns]. */
+    private final AtomicLong max = new AtomicLong();    /* In [ns]. */
+
+
+    /**
+     * Constructor:
+     *      LatencyHistogram( )
+     */
+    public LatencyHistogram() {
+        super();
+    }
+
+    /**
+     * Method:
+     *      record( long )
+     *
+     * @param   nanos   Duration (in [ns]); negative values count as zero.
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        this.counts.incrementAndGet(index(nanos / 1000L));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(nanos);
+        long m;
+        while (nanos > (m = this.max.get()))
+            if (this.max.compareAndSet(m, nanos))
+                break;
+    }
+
+    /**
+     * Method:
+     *      getCount( )
+     *
+     * @return  long    Number of recorded durations.
+     */
+    public long getCount() {
+        return (this.count.get());
+    }
+
+    /**
+     * Method:
+     *      getMean( )
+     *
+     * @return  double  Mean duration (in [ns]), or 0 when empty.
+     */
+    public double getMean() {
+        long n = this.count.get();
+        return ((n == 0) ? 0 : (double) this.sum.get() / n);
+    }
+
+    /**
+     * Method:
+     *      getMax( )
+     *
+     * @return  long    Longest duration (in [ns]).
+     */
+    public long getMax() {
+        return (this.max.get());
+    }
+
+    /**
+     * Method:
+     *      getPercentile( double )
+     *
+     * @param   fraction    Quantile between 0 and 1 (0.5 for the median).
+     * @return  long        Upper bound (in [ns]) of the bucket holding the quantile,
+     *                      never above the maximum, or 0 when empty.
+     */
+    public long getPercentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += this.counts.get(i);
+        if (total == 0)
+            return (0);
+        long rank = Math.max(1, (long) Math.ceil(Math.min(1.0, Math.max(0.0, fraction)) * total));
+        long seen = 0;
+        int i = 0;
+        for (; i < BUCKETS - 1; i++) {
+            seen += this.counts.get(i);
+            if (seen >= rank)
+                break;
+        }
+        return (Math.min((upper(i) + 1) * 1000L - 1, this.max.get()));
+    }
+
+    /**
+     * Method:
+     *      add( LatencyHistogram )
+     *
+     * Description:
+     *      Adds the durations recorded by another histogram to this one.
+     *
+     * @param   other   Histogram to merge.
+     */
+    public void add(LatencyHistogram other) {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                this.counts.addAndGet(i, c);
+                n += c;
+            }
+        }
+        this.count.addAndGet(n);
+        this.sum.addAndGet(other.sum.get());
+        long nanos = other.max.get();
+        long m;
+        while (nanos > (m = this.max.get()))
+            if (this.max.compareAndSet(m, nanos))
+                break;
+    }
+
+    /**
+     * Method:
+     *      copy( )
+     *
+     * @return  LatencyHistogram    Independent copy whose count matches its buckets.
+     */
+    public LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.add(this);
+        return (copy);
+    }
+
+    /**
+     * Method:
+     *      index( long )
+     *
+     * @param   micros  Duration (in [us]).
+     * @return  int     Bucket index.
+     */
+    static int index(long micros) {
+        if (micros < SUB_BUCKETS)
+            return ((int) micros);
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT - 1);
+        if (exponent == MAX_EXPONENT - 1 && micros >= (1L << MAX_EXPONENT))
+            return (BUCKETS - 1);
+        return (((exponent - SUB_BITS + 1) << SUB_BITS) + (int) ((micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1)));
+    }
+
+    /**
+     * Method:
+     *      upper( int )
+     *
+     * @param   index   Bucket index.
+     * @return  long    Largest duration (in [us]) counted in the bucket.
+     */
+    static long upper(int index) {
+        if (index < SUB_BUCKETS)
+            return (index);
+        int exponent = (index >>> SUB_BITS) + SUB_BITS - 1;
+        long width = 1L << (exponent - SUB_BITS);
+        return ((SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) * width + width - 1);
+    }
+
+    @Override
+    public String toString() {
+        return (String.format(Locale.US, "n=%d mean=%.1fms p50=%.1fms p99=%.1fms max=%.1fms", this.getCount(),
+                this.getMean() / 1e6, this.getPercentile(0.5) / 1e6, this.getPercentile(0.99) / 1e6,
+                this.getMax() / 1e6));
+    }
+}
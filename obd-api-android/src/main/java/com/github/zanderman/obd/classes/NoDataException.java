@@ -0,0 +1,25 @@
+package com.github.zanderman.obd.classes;
+
+import java.io.IOException;
+
+/**
+ * Class:
+ *      NoDataException
+ *
+ * Description:
+ *      The vehicle did not answer a request ("NO DATA"), typically because the
+ *      requested PID is not supported.
+ */
+@SuppressWarnings("serial")
+public class NoDataException extends IOException {
+
+    /**
+     * Constructor:
+     *      NoDataException( String )
+     *
+     * @param   command     Request that went unanswered.
+     */
+    public NoDataException(String command) {
+        super("NO DATA: " + command);
+    }
+}
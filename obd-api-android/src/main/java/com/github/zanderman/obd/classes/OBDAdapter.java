@@ -1,19 +1,28 @@
 package com.github.zanderman.obd.classes;
 
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
 import android.util.Log;
 
+import com.github.zanderman.obd.interfaces.CANFrameCallbackInterface;
+import com.github.zanderman.obd.interfaces.CommandCallbackInterface;
+import com.github.zanderman.obd.interfaces.ConnectionCallbackInterface;
+import com.github.zanderman.obd.interfaces.FrameCallbackInterface;
+import com.github.zanderman.obd.interfaces.MessageCallbackInterface;
+import com.github.zanderman.obd.interfaces.OBDTransport;
+import com.github.zanderman.obd.interfaces.ResponseCallbackInterface;
 import com.github.zanderman.obd.receivers.OBDReceiver;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
-import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -38,22 +47,32 @@ public class OBDAdapter implements Serializable {
         CONNECTED
     }
 
-    /**
-     * Constants
-     */
-    private final int TIMEOUT = 50; /* Total number of read-iterations before timing-out. */
-    private final UUID uuid = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb"); /* Required UUID for OBD Bluetooth connection. */
-
     /**
      * Private Members
      */
-    private BluetoothAdapter adapter;
-    private BluetoothDevice device;
-    private BluetoothSocket socket;
+    private OBDTransport transport;
     private OutputStream outputStream;
     private InputStream inputStream;
     private volatile Status status;
-    private Thread receiveThread;
+    private OBDFrameReader reader;
+    private OBDCommandPipeline pipeline;
+    private final LinkedBlockingQueue<OBDFuture> pending = new LinkedBlockingQueue<OBDFuture>(); /* Responses owed to receive(). */
+    private final CopyOnWriteArrayList<FrameCallbackInterface> frameListeners = new CopyOnWriteArrayList<FrameCallbackInterface>();
+    private final CopyOnWriteArrayList<CommandCallbackInterface> commandListeners = new CopyOnWriteArrayList<CommandCallbackInterface>();
+    private volatile long responseTimeout;      /* Upper bound (in [ms]) of learned deadlines; 0 = pipeline default. */
+    private volatile boolean responseCountHints = true;
+    private volatile boolean repeatLastCommand;
+    private final int[] starvationLimits = {0, -1, -1};    /* Per lane; -1 = pipeline default. */
+    private volatile long headerGrouping = -1;  /* Grouping window (in [ms]); -1 = pipeline default. */
+    private volatile OBDTarget defaultTarget;   /* Null = pipeline default. */
+    private volatile OBDProfile session;        /* Session state set up by initialize(); null until then. */
+    private volatile ScheduledExecutorService scheduler;    /* Shared executors of an OBDManager, or null. */
+    private volatile Executor dispatcher;
+    private volatile Executor connector;
+    private volatile long framesReceived;       /* Written by the reader thread only. */
+    private volatile long bytesReceived;
+    private final OBDMetrics metrics = new OBDMetrics();     /* Link instrumentation over the adapter's lifetime. */
+    private volatile OBDEventBus events;        /* Bus for connection, command and frame events, or null. */
 
     /**
      * Public Members
@@ -62,17 +81,6 @@ public class OBDAdapter implements Serializable {
     public String address;  // MAC address.
 
 
-    /**
-     * Shared Variables
-     */
-    volatile boolean worker_continue;
-    byte [] buffer; /* Buffer for read-in message. */
-    final byte delimiter = ((byte) '>');/* ASCII code for newline character. */
-    int bufferIndex;
-    String receivedMessage;
-    int timeoutCounter;
-
-
     /**
      * Constructor:
      *      OBDAdapter( BluetoothDevice )
@@ -87,34 +95,66 @@ public class OBDAdapter implements Serializable {
         super();
 
         // Configure the adapter.
-        this.configure(device);
+        this.configure(new BluetoothTransport(device), device.getName(), device.getAddress());
+    }
+
+    /**
+     * Constructor:
+     *      OBDAdapter( String )
+     *
+     * Description:
+     *      Creates new OBDAdapter object for a remembered MAC address. The
+     *      device is looked up with BluetoothAdapter.getRemoteDevice() when
+     *      connecting, so no discovery scan is needed.
+     *
+     * @param   address     MAC address of the adapter (e.g. "00:1D:A5:68:98:8B").
+     */
+    public OBDAdapter(String address) {
+        super();
+
+        // Configure the adapter.
+        this.configure(new BluetoothTransport(address), address, address);
+    }
+
+    /**
+     * Constructor:
+     *      OBDAdapter( OBDTransport, String, String )
+     *
+     * Description:
+     *      Creates new OBDAdapter object that communicates over an arbitrary
+     *      transport (e.g. the in-process ELM327Simulator).
+     *
+     * @param   transport   Byte-stream link to the ELM327 device.
+     * @param   name        Display name of the adapter.
+     * @param   address     Unique address of the adapter.
+     */
+    public OBDAdapter(OBDTransport transport, String name, String address) {
+        super();
+
+        // Configure the adapter.
+        this.configure(transport, name, address);
     }
 
     /**
      * Method:
-     *      configure( BluetoothDevice )
+     *      configure( OBDTransport, String, String )
      *
      * Description:
      *      Helper method to setup configuration of this OBD Adapter object.
      *
-     * @param   device      BluetoothDevice object.
+     * @param   transport   Byte-stream link to the ELM327 device.
+     * @param   name        Display name of the adapter.
+     * @param   address     Unique address of the adapter.
      * @return  boolean     Configuration success status.
      */
-    private boolean configure(BluetoothDevice device) {
+    private boolean configure(OBDTransport transport, String name, String address) {
 
         // Set the parameters of the device.
-        this.name = device.getName();
-        this.address = device.getAddress();
-        this.adapter = BluetoothAdapter.getDefaultAdapter();
-        this.device = device;
-        this.socket = null;
+        this.name = name;
+        this.address = address;
+        this.transport = transport;
         this.status = Status.DISCONNECTED;
 
-        /*
-         * Setup thread-shared variables.
-         */
-        this.worker_continue = true;
-
         // Return configuration success.
         return (true);
     }
@@ -125,83 +165,209 @@ public class OBDAdapter implements Serializable {
      *      connect( )
      *
      * Description:
-     *      Connect to Bluetooth OBD adapter using its MAC address.
+     *      Connect to Bluetooth OBD adapter using its MAC address. Blocks the
+     *      calling thread until the link is up or the attempt failed; see
+     *      connectAsync() for a non-blocking connect with retries.
      *
      * @return  boolean     Connection success status.
      */
     public boolean connect() {
-
         try {
-            // Bluetooth NOT supported.
-            if (this.adapter == null) {
-                return (false);
-            }
-            // Bluetooth is supported.
-            else {
-
-                /*
-                 * Bluetooth connection is very intensive,
-                 * placing it within a separate thread unloads
-                 * the main app of the processing needed.
-                 */
-                Thread connectionThread = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            // Gain access to the actual device.
-                            device = adapter.getRemoteDevice(address);
-
-                            // Create a communications socket with the device.
-                            socket = device.createRfcommSocketToServiceRecord(uuid);
-
-                            // Attempt to connect to the device.
-                            socket.connect();
-                            inputStream = socket.getInputStream();
-                            outputStream = socket.getOutputStream();
-
-                            // Change status to connected.
-                            status = Status.CONNECTED;
-                            Log.d("connectionThread", "Connected");
-
-                        } catch (Exception c) {
-                            Log.d("connectionThread",c.toString());
-                            try {
-                                // Disconnect from the device on error.
-                                socket.close();
-
-                                // Change status to disconnected.
-                                status = Status.DISCONNECTED;
-                                Log.d("connectionThread", "Disconnected");
-
-                            } catch (Exception d) {
-                                Log.d("connectionThread",d.toString());
-                            }
-                        }
-                    }
-                });
-                connectionThread.start();
-                connectionThread.join(); /* Wait for connection thread to complete. */
-
-                // Connection worked out correctly.
-                if ( this.socket.isConnected() && status == Status.CONNECTED )
-                    return (true);
-
-                    // Connection failed.
-                else
-                    return (false);
-            }
+            this.open();
+            return ( true );
         } catch (Exception e) {
             Log.d("adapter", e.toString());
+            return ( false );
+        }
+    }
 
-            // Disconnect from the device.
-            this.disconnect();
 
-            // Connection failure.
-            return (false);
+    /**
+     * Method:
+     *      connectAsync( RetryPolicy, ConnectionCallbackInterface )
+     *
+     * Description:
+     *      Connects without blocking the caller. Failed attempts are retried
+     *      with the policy's exponential backoff; progress is reported to the
+     *      callback. Attempts run on the OBDManager's connect pool when the
+     *      adapter is a managed session, otherwise on a short-lived thread.
+     *
+     * @param   policy              Attempts and backoff (null for a single attempt).
+     * @param   callback            Progress callback (may be null).
+     * @return  OBDConnectFuture    Completes with this adapter once connected.
+     */
+    public OBDConnectFuture connectAsync(RetryPolicy policy, ConnectionCallbackInterface callback) {
+        OBDConnectFuture future = new OBDConnectFuture(this, policy, callback, this.connector, this.scheduler);
+        future.start();
+        return ( future );
+    }
+
+
+    /**
+     * Method:
+     *      establish( )
+     *
+     * @return  boolean     Connection success status (see open()).
+     */
+    boolean establish() {
+        try {
+            this.open();
+            return ( true );
+        } catch (Exception e) {
+            Log.d("connectionThread", e.toString());
+            return ( false );
+        }
+    }
+
+
+    /**
+     * Method:
+     *      open( )
+     *
+     * Description:
+     *      Opens the link and starts the pipeline and reader on the calling
+     *      thread. The pipeline runs on the shared executors when the adapter
+     *      belongs to an OBDManager, otherwise on its own writer thread. On
+     *      failure everything started so far is torn down again.
+     *
+     * @throws  IOException     The link could not be established.
+     */
+    void open() throws IOException {
+        try {
+            // Attempt to open the link to the device.
+            this.transport.open();
+            this.inputStream = this.transport.getInputStream();
+            this.outputStream = this.transport.getOutputStream();
+
+            // Start the command pipeline and the long-lived reader for this connection.
+            this.pending.clear();
+            this.session = null;
+            this.pipeline = new OBDCommandPipeline(this.outputStream);
+            this.pipeline.setCommandCallback(this.commandCallback);
+            this.pipeline.setMetrics(this.metrics);
+            this.pipeline.setResponseCountHints(this.responseCountHints);
+            this.pipeline.setRepeatLastCommand(this.repeatLastCommand);
+            synchronized ( this.starvationLimits ) {
+                for ( OBDCommandPipeline.Priority lane : OBDCommandPipeline.Priority.values() )
+                    if ( this.starvationLimits[lane.ordinal()] >= 0 )
+                        this.pipeline.setStarvationLimit(lane, this.starvationLimits[lane.ordinal()]);
+            }
+            if ( this.headerGrouping >= 0 )
+                this.pipeline.setHeaderGrouping(this.headerGrouping);
+            if ( this.defaultTarget != null )
+                this.pipeline.setDefaultTarget(this.defaultTarget);
+            if ( this.responseTimeout > 0 )
+                this.pipeline.setTimeout(this.responseTimeout);
+            ScheduledExecutorService shared = this.scheduler;
+            if ( shared != null )
+                this.pipeline.start(shared, this.dispatcher);
+            else
+                this.pipeline.start("OBDCommandPipeline-" + this.address);
+            Link link = new Link(this.pipeline);
+            this.reader = link.reader = new OBDFrameReader(this.inputStream, link);
+            this.reader.start("OBDFrameReader-" + this.address);
+
+            // Change status to connected.
+            this.status = Status.CONNECTED;
+            Log.d("connectionThread", "Connected");
+            this.publish(OBDEvent.Type.CONNECTED, null);
+
+        } catch (IOException c) {
+            Log.d("connectionThread", c.toString());
+
+            // Disconnect from the device on error; every step tolerates a partial connect.
+            this.disconnect();
+            throw c;
+        } catch (RuntimeException c) {
+            this.disconnect();
+            throw new IOException(c);
         }
     }
 
 
+    /**
+     * Method:
+     *      setExecutors( ScheduledExecutorService, Executor, Executor )
+     *
+     * Description:
+     *      Makes later connections run their pipeline on shared executors
+     *      (used by OBDManager). Pass nulls to go back to a dedicated writer.
+     *
+     * @param   scheduler   Shared scheduler, or null.
+     * @param   dispatcher  Shared callback pool, or null.
+     * @param   connector   Shared pool for connection attempts, or null.
+     */
+    void setExecutors(ScheduledExecutorService scheduler, Executor dispatcher, Executor connector) {
+        this.scheduler = scheduler;
+        this.dispatcher = dispatcher;
+        this.connector = connector;
+    }
+
+
+    /**
+     * Method:
+     *      setEventBus( OBDEventBus )
+     *
+     * Description:
+     *      Publishes this adapter's connection, command and frame events on
+     *      a bus (OBDManager sets its own for managed sessions).
+     *
+     * @param   events      Event bus, or null to stop publishing.
+     */
+    public void setEventBus(OBDEventBus events) {
+        this.events = events;
+    }
+
+
+    /**
+     * Method:
+     *      isConnected( )
+     *
+     * @return  boolean     True while the link is up.
+     */
+    public boolean isConnected() {
+        return ( this.status == Status.CONNECTED );
+    }
+
+
+    /**
+     * Method:
+     *      getFramesReceived( )
+     *
+     * @return  long    Response frames received over the adapter's lifetime.
+     */
+    public long getFramesReceived() {
+        return ( this.framesReceived );
+    }
+
+
+    /**
+     * Method:
+     *      getBytesReceived( )
+     *
+     * @return  long    Bytes of response frames received over the adapter's lifetime.
+     */
+    public long getBytesReceived() {
+        return ( this.bytesReceived );
+    }
+
+
+    /**
+     * Method:
+     *      getMetrics( )
+     *
+     * Description:
+     *      Per-command link metrics (queue wait, write, first byte and prompt
+     *      times, bytes, timeouts, "NO DATA" and errors) over the adapter's
+     *      lifetime. Use OBDMetrics.snapshot() for a copy to report.
+     *
+     * @return  OBDMetrics  Live metrics.
+     */
+    public OBDMetrics getMetrics() {
+        return ( this.metrics );
+    }
+
+
     /**
      * Method:
      *      disconnect( )
@@ -214,35 +380,512 @@ public class OBDAdapter implements Serializable {
     public boolean disconnect() {
 
         try {
-            // Bluetooth NOT supported.
-            if (this.adapter == null) {
-                return (false);
-            }
-            // Bluetooth is supported.
-            else {
+            // Stop the pipeline and reader, then close the link to the device.
+            if (this.pipeline != null)
+                this.pipeline.stop(new IOException("Disconnected"));
+            if (this.reader != null)
+                this.reader.stop();
+            this.session = null;
+            boolean connected = ( this.status == Status.CONNECTED );
+            this.status = Status.DISCONNECTED;
+            this.transport.close();
+            if ( connected )
+                this.publish(OBDEvent.Type.DISCONNECTED, null);
+
+            Log.d("disconnectionThread", "Disconnected");
+
+            // Disconnection worked out correctly.
+            return (true);
+        } catch (Exception e) {
+            Log.d("adapter", e.toString());
+
+            // Disconnect failure.
+            return (false);
+        }
+    }
 
-                // Close connect to the Bluetooth socket.
-                this.socket.close();
-                this.outputStream.close();
-                this.inputStream.close();
 
-                /*
-                 * Reset worker continuation boolean.
-                 */
-                worker_continue = false;
+    /**
+     * Method:
+     *      submit( String )
+     *
+     * Description:
+     *      Queues a command for transmission to the device. The command is
+     *      written as soon as the device shows its prompt, and the returned
+     *      future completes when the response to it has been framed.
+     *
+     * @param command       Command to be sent to the device.
+     * @return OBDFuture    Pending response.
+     */
+    public OBDFuture submit( String command ) {
+        return ( this.submit(command, null) );
+    }
+
+
+    /**
+     * Method:
+     *      submit( String, ResponseCallbackInterface )
+     *
+     * Description:
+     *      Queues a command and reports its completion through a callback.
+     *      The callback runs on the connection's reader thread.
+     *
+     * @param command       Command to be sent to the device.
+     * @param callback      Completion callback.
+     * @return OBDFuture    Pending response.
+     */
+    public OBDFuture submit( String command, ResponseCallbackInterface callback ) {
+        OBDCommandPipeline p = this.pipeline;
+        if ( p == null || this.status != Status.CONNECTED ) {
+            OBDFuture future = new OBDFuture(command, callback);
+            future.fail(new IOException("Not connected"));
+            return ( future );
+        }
+        return ( p.submit(command, callback) );
+    }
+
+
+    /**
+     * Method:
+     *      submit( OBDCommand, ResponseCallbackInterface )
+     *
+     * Description:
+     *      Queues a pre-encoded command (see OBDCommand.of()) in the
+     *      REALTIME lane. Polling loops should keep their commands this way,
+     *      so each round trip writes the cached bytes without encoding
+     *      anything, and a user's request (submitted as text, INTERACTIVE)
+     *      still goes ahead of the queued polls.
+     *
+     * @param command       Encoded command.
+     * @param callback      Completion callback (may be null).
+     * @return OBDFuture    Pending response.
+     */
+    public OBDFuture submit( OBDCommand command, ResponseCallbackInterface callback ) {
+        return ( this.submit(command, OBDCommandPipeline.Priority.REALTIME, callback) );
+    }
+
+
+    /**
+     * Method:
+     *      submit( OBDCommand, Priority, ResponseCallbackInterface )
+     *
+     * Description:
+     *      Queues a pre-encoded command in a priority lane. Any number of
+     *      threads may submit; the next prompt goes to the highest lane (see
+     *      OBDCommandPipeline), so background polls never hold up a user's
+     *      request by more than the command already in flight.
+     *
+     * @param command       Encoded command.
+     * @param priority      Queue lane.
+     * @param callback      Completion callback (may be null).
+     * @return OBDFuture    Pending response.
+     */
+    public OBDFuture submit( OBDCommand command, OBDCommandPipeline.Priority priority, ResponseCallbackInterface callback ) {
+        return ( this.submit(command, null, priority, callback) );
+    }
+
+
+    /**
+     * Method:
+     *      submit( OBDCommand, OBDTarget, Priority, ResponseCallbackInterface )
+     *
+     * Description:
+     *      Queues a pre-encoded request for one ECU (e.g. the transmission or
+     *      a hybrid battery module). The pipeline switches the header only
+     *      when the adapter is set up for another ECU, and groups queued
+     *      polls by ECU to share each switch (see setHeaderGrouping()).
+     *
+     * @param command       Encoded command.
+     * @param target        ECU addressing, or null for the default.
+     * @param priority      Queue lane.
+     * @param callback      Completion callback (may be null).
+     * @return OBDFuture    Pending response.
+     */
+    public OBDFuture submit( OBDCommand command, OBDTarget target, OBDCommandPipeline.Priority priority, ResponseCallbackInterface callback ) {
+        OBDCommandPipeline p = this.pipeline;
+        if ( p == null || this.status != Status.CONNECTED ) {
+            OBDFuture future = new OBDFuture(command.getText(), callback);
+            future.fail(new IOException("Not connected"));
+            return ( future );
+        }
+        return ( p.submit(command, target, priority, callback) );
+    }
 
-                this.status = Status.DISCONNECTED;
-                Log.d("disconnectionThread", "Disconnected");
 
-                // Disconnection worked out correctly.
-                return (true);
+    /**
+     * Method:
+     *      query( String, MessageCallbackInterface )
+     *
+     * Description:
+     *      Queues a request whose reply may span many lines (VIN, DTCs,
+     *      calibration IDs, several ECUs). The reader hands each reply line
+     *      to an ISOTPReassembler as it arrives, so every ECU's payload is
+     *      delivered, in sequence order, as soon as its last segment is in.
+     *      The returned future still completes with the whole response at
+     *      the prompt, where error replies can be checked.
+     *
+     * @param command       Request to be sent to the device.
+     * @param callback      Consumer of complete messages (reader thread).
+     * @return OBDFuture    Pending response.
+     */
+    public OBDFuture query( String command, MessageCallbackInterface callback ) {
+        OBDCommandPipeline p = this.pipeline;
+        final OBDFrameReader r = this.reader;
+        if ( p == null || r == null || this.status != Status.CONNECTED ) {
+            OBDFuture future = new OBDFuture(command, null);
+            future.fail(new IOException("Not connected"));
+            return ( future );
+        }
+        OBDProfile s = this.session;
+        final ISOTPReassembler reassembler = new ISOTPReassembler(callback,
+                s != null && s.isLegacyHeaders(), (s != null && s.isCompact()) ? null : command);
+        return ( p.submit(OBDCommand.of(command), null, OBDCommandPipeline.Priority.INTERACTIVE, null, new Runnable() {
+            @Override
+            public void run() {
+                r.setLineConsumer(reassembler, false);
             }
-        } catch (Exception e) {
-            Log.d("adapter", e.toString());
+        }) );
+    }
 
-            // Disconnect failure.
-            return (false);
+
+    /**
+     * Method:
+     *      initialize( )
+     *
+     * Description:
+     *      Runs the managed session setup (reset, ATE0, ATL0, ATS0, ATH1 when
+     *      several ECUs answer, protocol search) and verifies every step.
+     *      Blocks on adapter round trips; call it off the main thread.
+     *
+     * @return OBDProfile   Resulting session state.
+     * @throws IOException  A step failed or was not acknowledged.
+     */
+    public OBDProfile initialize() throws IOException {
+        return ( this.initialize(new OBDInitializer(this), null) );
+    }
+
+
+    /**
+     * Method:
+     *      initialize( OBDProfileStore )
+     *
+     * Description:
+     *      As initialize(), but replays this adapter's stored profile when it
+     *      still matches the vehicle and stores the resulting profile.
+     *
+     * @param store         Profile store.
+     * @return OBDProfile   Resulting session state.
+     * @throws IOException  A step failed or was not acknowledged.
+     */
+    public OBDProfile initialize( OBDProfileStore store ) throws IOException {
+        return ( this.initialize(new OBDInitializer(this), store) );
+    }
+
+
+    /**
+     * Method:
+     *      initialize( OBDProfile )
+     *
+     * Description:
+     *      As initialize(), but replays a known session (e.g. the current one
+     *      after the adapter was asleep) and only detects from scratch when it
+     *      no longer matches the vehicle.
+     *
+     * @param known         Session to restore.
+     * @return OBDProfile   Resulting session state.
+     * @throws IOException  A step failed or was not acknowledged.
+     */
+    public OBDProfile initialize( OBDProfile known ) throws IOException {
+        OBDInitializer initializer = new OBDInitializer(this);
+        this.session = null;
+        OBDProfile profile = initializer.initialize(known);
+        this.session = profile;
+        return ( profile );
+    }
+
+
+    /**
+     * Method:
+     *      initialize( OBDInitializer, OBDProfileStore )
+     *
+     * @param initializer   Configured initializer for this adapter.
+     * @param store         Profile store, or null.
+     * @return OBDProfile   Resulting session state.
+     * @throws IOException  A step failed or was not acknowledged.
+     */
+    public OBDProfile initialize( OBDInitializer initializer, OBDProfileStore store ) throws IOException {
+        this.session = null;
+        OBDProfile profile = ( store != null ) ? initializer.initialize(store) : initializer.initialize((OBDProfile) null);
+        this.session = profile;
+        return ( profile );
+    }
+
+
+    /**
+     * Method:
+     *      getSession( )
+     *
+     * Description:
+     *      Session state established by initialize(): the compact format,
+     *      headers and protocol that framing and decoding may rely on.
+     *
+     * @return OBDProfile   Current session, or null if the adapter was not initialized.
+     */
+    public OBDProfile getSession() {
+        return ( this.session );
+    }
+
+
+    /**
+     * Method:
+     *      setResponseTimeout( long )
+     *
+     * Description:
+     *      Sets the longest time a submitted command may wait for its prompt.
+     *      Commands start with this deadline; once measured, each command's
+     *      deadline follows its own round trips and never exceeds it.
+     *
+     * @param millis    Timeout in milliseconds.
+     */
+    public void setResponseTimeout( long millis ) {
+        this.responseTimeout = millis;
+        OBDCommandPipeline p = this.pipeline;
+        if ( p != null )
+            p.setTimeout(millis);
+    }
+
+
+    /**
+     * Method:
+     *      setResponseCountHints( boolean )
+     *
+     * Description:
+     *      Enables or disables appending the learned ELM327 response-count
+     *      digit to OBD requests (enabled by default).
+     *
+     * @param enabled   Whether hints are sent.
+     */
+    public void setResponseCountHints( boolean enabled ) {
+        this.responseCountHints = enabled;
+        OBDCommandPipeline p = this.pipeline;
+        if ( p != null )
+            p.setResponseCountHints(enabled);
+    }
+
+
+    /**
+     * Method:
+     *      setStarvationLimit( Priority, int )
+     *
+     * Description:
+     *      Sets how many higher-lane commands a queued command of a lane lets
+     *      go first before it takes the next prompt (see
+     *      OBDCommandPipeline.setStarvationLimit()). Kept across connections.
+     *
+     * @param priority  Lane.
+     * @param picks     Higher-lane commands to let go first, or 0 for no limit.
+     */
+    public void setStarvationLimit( OBDCommandPipeline.Priority priority, int picks ) {
+        synchronized ( this.starvationLimits ) {
+            this.starvationLimits[priority.ordinal()] = Math.max(0, picks);
         }
+        OBDCommandPipeline p = this.pipeline;
+        if ( p != null )
+            p.setStarvationLimit(priority, picks);
+    }
+
+
+    /**
+     * Method:
+     *      getQueueLength( Priority )
+     *
+     * @param priority  Lane.
+     * @return int      Commands of the lane waiting for a prompt slot (0 when not connected).
+     */
+    public int getQueueLength( OBDCommandPipeline.Priority priority ) {
+        OBDCommandPipeline p = this.pipeline;
+        return ( (p != null) ? p.getQueueLength(priority) : 0 );
+    }
+
+
+    /**
+     * Method:
+     *      getPromotions( )
+     *
+     * @return long     Commands of the current connection served ahead of a
+     *                  higher lane by their starvation limit.
+     */
+    public long getPromotions() {
+        OBDCommandPipeline p = this.pipeline;
+        return ( (p != null) ? p.getPromotions() : 0 );
+    }
+
+
+    /**
+     * Method:
+     *      setHeaderGrouping( long )
+     *
+     * Description:
+     *      Sets how long a queued poll may be passed over by polls for the
+     *      ECU the adapter is already addressing (see
+     *      OBDCommandPipeline.setHeaderGrouping()). Kept across connections.
+     *
+     * @param millis    Grouping window, or 0 to keep strict FIFO order.
+     */
+    public void setHeaderGrouping( long millis ) {
+        this.headerGrouping = Math.max(0, millis);
+        OBDCommandPipeline p = this.pipeline;
+        if ( p != null )
+            p.setHeaderGrouping(millis);
+    }
+
+
+    /**
+     * Method:
+     *      setDefaultTarget( OBDTarget )
+     *
+     * Description:
+     *      Sets the addressing restored for requests without a target
+     *      (OBDTarget.FUNCTIONAL unless set). Kept across connections.
+     *
+     * @param target    Default addressing.
+     */
+    public void setDefaultTarget( OBDTarget target ) {
+        this.defaultTarget = target;
+        OBDCommandPipeline p = this.pipeline;
+        if ( p != null )
+            p.setDefaultTarget(target);
+    }
+
+
+    /**
+     * Method:
+     *      getHeaderSwitches( )
+     *
+     * @return long     Header switches written on the current connection.
+     */
+    public long getHeaderSwitches() {
+        OBDCommandPipeline p = this.pipeline;
+        return ( (p != null) ? p.getHeaderSwitches() : 0 );
+    }
+
+
+    /**
+     * Method:
+     *      getHeaderSwitchesSaved( )
+     *
+     * @return long     Header switches avoided on the current connection,
+     *                  compared with writing requests in submission order.
+     */
+    public long getHeaderSwitchesSaved() {
+        OBDCommandPipeline p = this.pipeline;
+        return ( (p != null) ? p.getHeaderSwitchesSaved() : 0 );
+    }
+
+
+    /**
+     * Method:
+     *      setRepeatLastCommand( boolean )
+     *
+     * Description:
+     *      Lets the pipeline send a vehicle request that repeats the one just
+     *      answered as a lone carriage return (ELM327 repeat). Disabled by
+     *      default since some clones do not implement it.
+     *
+     * @param enabled   Whether repeated requests are shortened.
+     */
+    public void setRepeatLastCommand( boolean enabled ) {
+        this.repeatLastCommand = enabled;
+        OBDCommandPipeline p = this.pipeline;
+        if ( p != null )
+            p.setRepeatLastCommand(enabled);
+    }
+
+
+    /**
+     * Method:
+     *      isResponseCountHintsActive( )
+     *
+     * @return boolean  True while the current connection sends response-count digits.
+     */
+    public boolean isResponseCountHintsActive() {
+        OBDCommandPipeline p = this.pipeline;
+        return ( p != null && p.isResponseCountHintsActive() );
+    }
+
+
+    /**
+     * Method:
+     *      tuneElmTiming( )
+     *
+     * Description:
+     *      Tunes the ELM327's own response wait from the latencies measured so
+     *      far: enables adaptive timing (ATAT1) and sets ATST to cover the
+     *      slowest measured OBD request.
+     *
+     * @return OBDFuture    Pending ATST response, or null when nothing was measured yet.
+     */
+    public OBDFuture tuneElmTiming() {
+        OBDCommandPipeline p = this.pipeline;
+        if ( p == null || p.getSuggestedElmTimeout() == 0 )
+            return ( null );
+        String st = Integer.toHexString(0x100 | p.getSuggestedElmTimeout()).substring(1).toUpperCase();
+        this.submit("ATAT1");
+        return ( this.submit("ATST" + st) );
+    }
+
+
+    /**
+     * Method:
+     *      getLatencyEstimator( )
+     *
+     * @return LatencyEstimator     Learned per-command deadlines of the current connection, or null.
+     */
+    public LatencyEstimator getLatencyEstimator() {
+        OBDCommandPipeline p = this.pipeline;
+        return ( (p != null) ? p.getLatencyEstimator() : null );
+    }
+
+
+    /**
+     * Method:
+     *      getPipeline( )
+     *
+     * @return OBDCommandPipeline   Pipeline of the current connection, or null.
+     */
+    OBDCommandPipeline getPipeline() {
+        return ( this.pipeline );
+    }
+
+
+    /**
+     * Method:
+     *      getReader( )
+     *
+     * @return OBDFrameReader   Reader of the current connection, or null.
+     */
+    OBDFrameReader getReader() {
+        return ( this.reader );
+    }
+
+
+    /**
+     * Method:
+     *      monitor( CANFrameCallbackInterface )
+     *
+     * Description:
+     *      Starts passive CAN monitoring (ATMA) with automatic re-arming and
+     *      no filters. Frames are delivered on the reader thread until the
+     *      returned monitor is stopped; see OBDMonitor for filters.
+     *
+     * @param callback      Consumer of monitored frames.
+     * @return OBDMonitor   Running monitor.
+     * @throws IOException  The adapter is not connected.
+     */
+    public OBDMonitor monitor( CANFrameCallbackInterface callback ) throws IOException {
+        OBDMonitor monitor = new OBDMonitor(this, callback);
+        monitor.start();
+        return ( monitor );
     }
 
 
@@ -252,6 +895,7 @@ public class OBDAdapter implements Serializable {
      *
      * Description:
      *      Transmits a string to the Bluetooth device currently connected.
+     *      The response is collected later with receive().
      *
      * @param message   String to be sent to the device.
      * @return boolean  Status of transmission completion.
@@ -265,143 +909,207 @@ public class OBDAdapter implements Serializable {
             return ( false );
 
         /*
-         * Message is valid.
+         * Not connected.
          */
+        if ( this.status != Status.CONNECTED )
+            return ( false );
+
+        /*
+         * Queue the message; its response is owed to the next receive() call.
+         */
+        this.pending.add(this.submit(message));
+        return ( true );
+    }
+
+
+    /**
+     * Method:
+     *      send( OBDCommand )
+     *
+     * Description:
+     *      Like send( String ), with a pre-encoded command.
+     *
+     * @param command   Encoded command.
+     * @return boolean  Status of transmission completion.
+     */
+    public boolean send( OBDCommand command ) {
+        if ( command == null || this.status != Status.CONNECTED )
+            return ( false );
+        this.pending.add(this.submit(command, null));
+        return ( true );
+    }
+
+
+    /**
+     * Method:
+     *      receive( )
+     *
+     * Description:
+     *      Obtains the response to the oldest message sent with send(). Waits
+     *      no longer than the command's own deadline, after which the pipeline
+     *      fails it.
+     *
+     * @return String   Message obtained from reading the device, or null on failure or timeout.
+     */
+    public String receive() {
+        OBDFuture future = this.pending.poll();
+        if ( future == null )
+            return ( null );
         try {
-            /*
-             * Ensure message contains a newline delimiter.
-             */
-            message.replace("\n", "").replace("\r", ""); /* Remove any newline and carriage return characters. */
-            message = message + "\r\n"; /* Add required line terminator to 'cleaned' message string. */
-
-            // Send the data-bytes.
-            this.outputStream = socket.getOutputStream();
-            this.outputStream.write(message.getBytes());
-            this.outputStream.flush();
-
-            /*
-             * Slight delay (in [ms]) in sending to account for emptying of buffer.
-             */
-            try{ Thread.sleep(100); }catch(InterruptedException e){ }
-
-            // Transmit successful.
-            return ( true );
+            return ( future.get().getText() );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return ( null );
         } catch ( Exception e ) {
-            return ( false );
+            return ( null );
         }
     }
 
 
     /**
      * Method:
-     *      receive( )
+     *      addFrameListener( FrameCallbackInterface )
      *
      * Description:
-     *      Obtains incoming data from the Bluetooth device.
+     *      Registers an additional consumer of raw response frames. Listeners are
+     *      invoked on the reader thread, before the matching command completes,
+     *      and must copy any bytes they keep.
      *
-     *      Note that the communication interface must be implemented
-     *      to obtain the data outside of the helper background thread.
+     * @param listener  Frame consumer.
+     */
+    public void addFrameListener( FrameCallbackInterface listener ) {
+        this.frameListeners.addIfAbsent(listener);
+    }
+
+
+    /**
+     * Method:
+     *      removeFrameListener( FrameCallbackInterface )
      *
-     * @return String   Message obtained from reading the device.
+     * @param listener  Frame consumer to remove.
      */
-    public String receive() {
+    public void removeFrameListener( FrameCallbackInterface listener ) {
+        this.frameListeners.remove(listener);
+    }
 
-        /*
-         * Initialize all required reception variables.
-         */
-        buffer = new byte[1024]; /* Buffer for read-in message. */
-        bufferIndex = 0;
-        receivedMessage = "";
-        timeoutCounter = 0;
 
-        /*
-         * Initialize receiver worker thread.
-         */
-        this.receiveThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
+    /**
+     * Method:
+     *      addCommandListener( CommandCallbackInterface )
+     *
+     * Description:
+     *      Registers an observer of every command written to the adapter.
+     *      Listeners are invoked on the pipeline's writer thread.
+     *
+     * @param listener  Command observer.
+     */
+    public void addCommandListener( CommandCallbackInterface listener ) {
+        this.commandListeners.addIfAbsent(listener);
+    }
 
-                /*
-                 * Loop until stopped.
-                 */
-                while ( worker_continue && (timeoutCounter < TIMEOUT) ) {
-
-                    try {
-
-                        // Obtain the number of bytes currently available.
-                        inputStream = socket.getInputStream();
-                        int bytesAvailable = inputStream.available();
-
-                        /*
-                         * Incoming data is available for read.
-                         */
-                        if ( bytesAvailable > 0 ) {
-
-                            /*
-                             * Setup byte array and read-in the bytes.
-                             */
-                            byte[] packet = new byte[bytesAvailable];
-                            inputStream.read(packet);
-
-                            /*
-                             * Check if any of the received bytes was a delimiter.
-                             */
-                            for ( int i = 0; i < bytesAvailable; i++ ) {
-
-                                // If byte is carriage return, don't add it.
-                                if (packet[i] == ((byte) '\r'))
-                                    continue;
-
-                                // If byte is ending character, don't add it.
-                                // Also, quit the loop.
-                                if (packet[i] == delimiter)
-                                    break;
-
-                                /*
-                                 * Add byte to message if its not the last character.
-                                 */
-                                if ((!receivedMessage.equals("")) || (packet[i] != delimiter))
-                                    receivedMessage = receivedMessage + ((char)packet[i]);
-                            }
-
-                            // Reset the counter on a successful read.
-                            timeoutCounter = 0;
-                        }
-                        else
-                            timeoutCounter++;
-                    } catch ( Exception e ) {
-
-                        /*
-                         * Stop worker operation.
-                         */
-                        worker_continue = false;
-
-                        Log.d("OBDAdapter", "Exception caught in READ operation.");
-                    }
-                }
-
-                /*
-                 * Reset worker continuation boolean for next runthrough.
-                 */
-                worker_continue = true;
-            }
-        });
 
-        /*
-         * Start the worker thread.
-         */
-        this.receiveThread.start();
+    /**
+     * Method:
+     *      removeCommandListener( CommandCallbackInterface )
+     *
+     * @param listener  Command observer to remove.
+     */
+    public void removeCommandListener( CommandCallbackInterface listener ) {
+        this.commandListeners.remove(listener);
+    }
 
-        /*
-         * Wait until data is received and return result if possible.
-         */
-        try {
-            this.receiveThread.join();
-            return ( receivedMessage );
-        } catch ( Exception e )
-        {
-            worker_continue = false;
-            return ( null );
+
+    /**
+     * Method:
+     *      text( byte[], int, int )
+     *
+     * Description:
+     *      Converts a frame to the legacy String form (carriage returns and
+     *      linefeeds removed).
+     *
+     * @param buffer    Frame bytes.
+     * @param offset    Frame start.
+     * @param length    Frame length.
+     * @return String   Frame text.
+     */
+    static String text( byte[] buffer, int offset, int length ) {
+        char[] chars = new char[length];
+        int n = 0;
+        for ( int i = offset; i < offset + length; i++ ) {
+            byte b = buffer[i];
+            if ( b != '\r' && b != '\n' )
+                chars[n++] = (char) (b & 0xFF);
+        }
+        return ( new String(chars, 0, n) );
+    }
+
+
+    /**
+     * Method:
+     *      publish( OBDEvent.Type, String )
+     *
+     * Description:
+     *      Publishes an event of this adapter if a bus is set.
+     *
+     * @param type      Event type.
+     * @param data      Cause, command, frame text or state, or null.
+     */
+    void publish( OBDEvent.Type type, String data ) {
+        OBDEventBus bus = this.events;
+        if ( bus != null )
+            bus.publish(type, this, data);
+    }
+
+
+    /**
+     * Command observer attached to this adapter's pipeline.
+     */
+    private final CommandCallbackInterface commandCallback = new CommandCallbackInterface() {
+        @Override
+        public void commandSent(String command) {
+            for ( CommandCallbackInterface listener : commandListeners )
+                listener.commandSent(command);
+            publish(OBDEvent.Type.COMMAND_SENT, command);
+        }
+    };
+
+
+    /**
+     * Frame consumer attached to the reader of one connection. It feeds the
+     * pipeline of that same connection, so a reader that only notices the
+     * end of an old link after a reconnect cannot stop the new pipeline.
+     */
+    private class Link implements FrameCallbackInterface {
+        private final OBDCommandPipeline pipeline;
+        private OBDFrameReader reader;
+
+        Link(OBDCommandPipeline pipeline) {
+            this.pipeline = pipeline;
+        }
+
+        @Override
+        public void frameReceived(byte[] buffer, int offset, int length) {
+            framesReceived++;
+            bytesReceived += length;
+
+            // Listeners see the frame before the command it answers completes.
+            for ( FrameCallbackInterface listener : frameListeners )
+                listener.frameReceived(buffer, offset, length);
+            OBDEventBus bus = events;
+            if ( bus != null && bus.hasListeners() )
+                bus.publish(new OBDEvent(OBDEvent.Type.FRAME_RECEIVED, OBDAdapter.this, null, text(buffer, offset, length)));
+            this.pipeline.frameReceived(buffer, offset, length, this.reader.getFrameTime());
+        }
+
+        @Override
+        public void readerStopped(Exception cause) {
+            if ( cause != null ) {
+                Log.d("OBDAdapter", "Reader stopped: " + cause.toString());
+                publish(OBDEvent.Type.LINK_LOST, cause.toString());
+            }
+            this.pipeline.readerStopped(cause);
+            for ( FrameCallbackInterface listener : frameListeners )
+                listener.readerStopped(cause);
         }
     }
 
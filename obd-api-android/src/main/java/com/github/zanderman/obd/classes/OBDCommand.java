@@ -0,0 +1,139 @@
+package com.github.zanderman.obd.classes;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Class:
+ *      OBDCommand
+ *
+ * Description:
+ *      A command encoded once for the wire: its ASCII bytes and the closing
+ *      carriage return, plus the variants carrying a response-count digit
+ *      (see ResponseCountHints), built on first use.
+ *
+ *      Instances are immutable and interned by of(), so polling the same
+ *      request over and over neither allocates nor encodes anything; the
+ *      pipeline writes the cached array as it is. Commands are plain ASCII;
+ *      other characters are replaced by '?'.
+ */
+public final class OBDCommand {
+
+    /**
+     * Constants
+     */
+    public static final int MAX_INTERNED = 1024;    /* Commands kept by of(); later ones are not shared. */
+
+    /**
+     * Private Members
+     */
+    private static final ConcurrentHashMap<String, OBDCommand> INTERNED = new ConcurrentHashMap<String, OBDCommand>();
+    private final String text;
+    private final byte[] bytes;                     /* Text and '\r'. */
+    private final AtomicReferenceArray<byte[]> hinted = new AtomicReferenceArray<byte[]>(16);   /* Text, hint digit and '\r', by digit. */
+    private final boolean at;
+
+
+    /**
+     * Constructor:
+     *      OBDCommand( String )
+     *
+     * @param   text    Command text without terminator.
+     */
+    private OBDCommand(String text) {
+        super();
+
+        this.text = text;
+        this.bytes = encode(text, 0);
+        this.at = text.regionMatches(true, 0, "AT", 0, 2);
+    }
+
+    /**
+     * Method:
+     *      of( String )
+     *
+     * Description:
+     *      Returns the shared encoding of a command, creating it on first use.
+     *      Line terminators in the text are dropped.
+     *
+     * @param   text            Command text.
+     * @return  OBDCommand      Encoded command.
+     */
+    public static OBDCommand of(String text) {
+        OBDCommand command = INTERNED.get(text);
+        if (command != null)
+            return (command);
+        command = new OBDCommand(OBDCommandPipeline.strip(text));
+        if (INTERNED.size() >= MAX_INTERNED)
+            return (command);
+        OBDCommand raced = INTERNED.putIfAbsent(text, command);
+        return ((raced != null) ? raced : command);
+    }
+
+    /**
+     * Method:
+     *      getText( )
+     *
+     * @return  String  Command text without terminator.
+     */
+    public String getText() {
+        return (this.text);
+    }
+
+    /**
+     * Method:
+     *      isAt( )
+     *
+     * @return  boolean     True for adapter (AT) commands, false for vehicle requests.
+     */
+    public boolean isAt() {
+        return (this.at);
+    }
+
+    /**
+     * Method:
+     *      getBytes( int )
+     *
+     * Description:
+     *      Wire bytes of the command. The array is shared; do not modify it.
+     *
+     * @param   hint    Response-count digit to append (1 - 15), or 0 for none.
+     * @return  byte[]  Command, digit and carriage return.
+     */
+    byte[] getBytes(int hint) {
+        if (hint <= 0 || hint > 15)
+            return (this.bytes);
+        byte[] encoded = this.hinted.get(hint);
+        if (encoded == null) {
+            encoded = encode(this.text, hint);
+            this.hinted.set(hint, encoded);
+        }
+        return (encoded);
+    }
+
+    /**
+     * Method:
+     *      encode( String, int )
+     *
+     * @param   text    Command text.
+     * @param   hint    Response-count digit, or 0 for none.
+     * @return  byte[]  ASCII bytes, digit and carriage return.
+     */
+    private static byte[] encode(String text, int hint) {
+        int n = text.length();
+        byte[] out = new byte[n + ((hint > 0) ? 2 : 1)];
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            out[i] = (c < 0x80) ? (byte) c : (byte) '?';
+        }
+        if (hint > 0)
+            out[n++] = (byte) Character.toUpperCase(Character.forDigit(hint, 16));
+        out[n] = '\r';
+        return (out);
+    }
+
+    @Override
+    public String toString() {
+        return (this.text);
+    }
+}
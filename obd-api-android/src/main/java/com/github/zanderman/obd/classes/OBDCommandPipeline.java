@@ -0,0 +1,1008 @@
+package com.github.zanderman.obd.classes;
+
+import com.github.zanderman.obd.interfaces.CommandCallbackInterface;
+import com.github.zanderman.obd.interfaces.FrameCallbackInterface;
+import com.github.zanderman.obd.interfaces.ResponseCallbackInterface;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Class:
+ *      OBDCommandPipeline
+ *
+ * Description:
+ *      Asynchronous command queue for one ELM327 connection.
+ *
+ *      The ELM327 accepts exactly one command per '>' prompt. Submitted commands
+ *      wait in a queue; a single dedicated writer thread holds the next
+ *      command ready and writes it the moment the prompt for the previous one
+ *      arrives. Each frame delivered by the reader completes the command that is
+ *      in flight, so responses are matched to requests without any fixed delay.
+ *
+ *      Any number of threads may submit. The queue has one FIFO lane per
+ *      Priority: the next prompt goes to the highest lane with a command, so
+ *      an interactive request waits at most for the command in flight even
+ *      behind a long backlog of polls, and starvation limits (see
+ *      setStarvationLimit()) keep the lower lanes moving.
+ *
+ *      Requests may name the ECU they are for (OBDTarget). The pipeline
+ *      remembers the header in effect, writes ATSH/ATCRA itself only when the
+ *      next request needs a different one, and serves polls for the current
+ *      ECU ahead of others in their lane within a short window (see
+ *      setHeaderGrouping()), so each switch is shared by as many requests as
+ *      possible. getHeaderSwitchesSaved() reports the switches avoided.
+ *
+ *      Each command's deadline is learned from its measured round trips
+ *      (LatencyEstimator), and OBD requests whose number of ECU replies is
+ *      known carry the ELM327 response-count digit so the adapter does not
+ *      wait out its own timeout after the last reply (ResponseCountHints).
+ *
+ *      Instead of its own writer thread, a pipeline can run on executors
+ *      shared by many connections (see OBDManager): the next command is then
+ *      written by a task on the scheduler as soon as the slot frees up, the
+ *      deadline is a scheduled task, and response callbacks run on the
+ *      dispatch pool.
+ *
+ *      Every round trip is recorded into OBDMetrics: queue wait, write time,
+ *      time to the first reply byte and to the prompt, bytes, timeouts and
+ *      "NO DATA" and error replies, without locks or allocations.
+ *
+ *      Commands are written as pre-encoded OBDCommand bytes, one write and
+ *      one flush per command. With setRepeatLastCommand() a vehicle request
+ *      that was just answered is sent again as a lone carriage return, which
+ *      the ELM327 takes as "repeat the last command". Separate commands are
+ *      never coalesced into one write: the ELM327 aborts whatever it is doing
+ *      on any byte received before its prompt.
+ *
+ *      Open-ended commands such as ATMA (see OBDMonitor) hold the prompt slot
+ *      without a deadline until the device ends them or interrupt() stops
+ *      them; their duration does not feed the latency estimate.
+ */
+public class OBDCommandPipeline implements FrameCallbackInterface {
+
+    /**
+     * Queue lanes, highest first.
+     */
+    public enum Priority {
+        INTERACTIVE,    /* One-off requests a user is waiting for (default). */
+        REALTIME,       /* Live polling, e.g. dashboard gauges (PIDBatcher). */
+        BACKGROUND      /* Logging, discovery and other work nobody waits for. */
+    }
+
+    /**
+     * Constants
+     */
+    private static final long DEFAULT_TIMEOUT = 2000; /* Longest time (in [ms]) to wait for a prompt. */
+    private static final long OPEN_LIMIT = TimeUnit.DAYS.toMillis(365);    /* "Deadline" of open-ended commands. */
+    private static final byte[] REPEAT = {'\r'};
+
+    /**
+     * Private Members
+     */
+    private final OutputStream outputStream;
+    private final CommandLanes queue = new CommandLanes();
+    private final LatencyEstimator latency = new LatencyEstimator(LatencyEstimator.DEFAULT_MINIMUM, DEFAULT_TIMEOUT);
+    private final ResponseCountHints hints = new ResponseCountHints();
+    private final Object lock = new Object();
+    private volatile boolean running;
+    private volatile long timeout = DEFAULT_TIMEOUT;
+    private volatile CommandCallbackInterface commandCallback;
+    private volatile OBDMetrics metrics = new OBDMetrics();
+    private Thread writer;
+    private ScheduledExecutorService scheduler;     /* Shared mode: writes and deadlines. */
+    private volatile Executor dispatcher;           /* Shared mode: response callbacks. */
+    private volatile boolean repeat;                /* Send repeated requests as a lone '\r'. */
+    private volatile long repeats;
+    private volatile long headerSwitches;           /* Written by the sending thread only. */
+
+    /* Last write (guarded by outputStream; answered is set by the reader). */
+    private OBDCommand lastCommand;
+    private int lastHint;
+    private volatile boolean answered;              /* The last written command got its prompt. */
+    private byte[] out = new byte[64];              /* Coalesces a command with its interrupt. */
+
+    /* Prompt slot (guarded by lock). */
+    private OBDFuture inFlight;
+    private long deadline;
+    private boolean abandoned;
+    private boolean pumping;            /* Shared mode: a write task is queued or running. */
+    private ScheduledFuture<?> timer;   /* Shared mode: deadline of the in-flight command. */
+
+
+    /**
+     * Constructor:
+     *      OBDCommandPipeline( OutputStream )
+     *
+     * @param   outputStream    Stream of bytes to the ELM327.
+     */
+    public OBDCommandPipeline(OutputStream outputStream) {
+        super();
+
+        this.outputStream = outputStream;
+    }
+
+    /**
+     * Method:
+     *      start( String )
+     *
+     * Description:
+     *      Starts the dedicated writer thread.
+     *
+     * @param   name    Thread name.
+     */
+    public synchronized void start(String name) {
+        if (this.writer != null)
+            return;
+        this.running = true;
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, name);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Method:
+     *      start( ScheduledExecutorService, Executor )
+     *
+     * Description:
+     *      Starts the pipeline on shared executors instead of a dedicated
+     *      writer thread.
+     *
+     * @param   scheduler   Runs writes and deadline checks (a single thread suffices).
+     * @param   dispatcher  Runs response callbacks (may be null to run them on the reader thread).
+     */
+    public synchronized void start(ScheduledExecutorService scheduler, Executor dispatcher) {
+        if (this.writer != null || this.scheduler != null)
+            return;
+        this.scheduler = scheduler;
+        this.dispatcher = dispatcher;
+        this.running = true;
+        this.pump();
+    }
+
+    /**
+     * Method:
+     *      stop( Exception )
+     *
+     * Description:
+     *      Stops the writer and fails the in-flight and every queued command.
+     *
+     * @param   cause   Failure reported to pending commands.
+     */
+    public void stop(Exception cause) {
+        Thread w;
+        synchronized (this) {
+            this.running = false;
+            w = this.writer;
+            this.writer = null;
+        }
+        if (w != null)
+            w.interrupt();
+
+        OBDFuture pending;
+        synchronized (this.lock) {
+            pending = this.inFlight;
+            this.inFlight = null;
+            if (this.timer != null)
+                this.timer.cancel(false);
+            this.lock.notifyAll();
+        }
+        if (pending != null)
+            pending.fail(cause);
+        while ((pending = this.queue.poll()) != null)
+            pending.fail(cause);
+    }
+
+    /**
+     * Method:
+     *      setTimeout( long )
+     *
+     * Description:
+     *      Sets the deadline for commands that have not been measured yet,
+     *      which is also the upper bound of every learned deadline.
+     *
+     * @param   millis  Longest time to wait for a command's prompt before failing it.
+     */
+    public void setTimeout(long millis) {
+        this.timeout = millis;
+        this.latency.setBounds(Math.min(LatencyEstimator.DEFAULT_MINIMUM, millis), millis);
+    }
+
+    /**
+     * Method:
+     *      getLatencyEstimator( )
+     *
+     * @return  LatencyEstimator    Learned per-command deadlines.
+     */
+    public LatencyEstimator getLatencyEstimator() {
+        return (this.latency);
+    }
+
+    /**
+     * Method:
+     *      setResponseCountHints( boolean )
+     *
+     * @param   enabled     Whether learned response-count digits are appended to
+     *                      OBD requests (enabled by default). Adapters that
+     *                      reject the digit turn the feature off by themselves.
+     */
+    public void setResponseCountHints(boolean enabled) {
+        this.hints.setEnabled(enabled);
+    }
+
+    /**
+     * Method:
+     *      isResponseCountHintsActive( )
+     *
+     * @return  boolean     True while response-count digits are being sent.
+     */
+    public boolean isResponseCountHintsActive() {
+        return (this.hints.isActive());
+    }
+
+    /**
+     * Method:
+     *      getSuggestedElmTimeout( )
+     *
+     * Description:
+     *      ATST value covering the slowest measured OBD request (smoothed round
+     *      trip plus four deviations), for tuning the adapter's own wait.
+     *
+     * @return  int     ATST argument (units of 4 ms, 1 - 255), or 0 until measured.
+     */
+    public int getSuggestedElmTimeout() {
+        long worst = this.latency.getWorstCase();
+        if (worst == 0)
+            return (0);
+        return ((int) Math.max(1, Math.min(0xFF, (worst / 1000000L + 3) / 4)));
+    }
+
+    /**
+     * Method:
+     *      setStarvationLimit( Priority, int )
+     *
+     * Description:
+     *      Bounds how long a lane waits: once a queued command of the lane
+     *      has let this many commands of higher lanes go first, it takes the
+     *      next prompt. Defaults are 4 for REALTIME and 8 for BACKGROUND;
+     *      INTERACTIVE is never passed over.
+     *
+     * @param   priority    Lane.
+     * @param   picks       Higher-lane commands to let go first, or 0 for no limit.
+     */
+    public void setStarvationLimit(Priority priority, int picks) {
+        this.queue.setStarvationLimit(priority, picks);
+    }
+
+    /**
+     * Method:
+     *      getQueueLength( Priority )
+     *
+     * @param   priority    Lane.
+     * @return  int         Number of commands of the lane waiting for a prompt slot.
+     */
+    public int getQueueLength(Priority priority) {
+        return (this.queue.size(priority));
+    }
+
+    /**
+     * Method:
+     *      getPromotions( )
+     *
+     * @return  long    Commands that took a prompt ahead of a higher lane
+     *                  because of their starvation limit.
+     */
+    public long getPromotions() {
+        return (this.queue.getPromotions());
+    }
+
+    /**
+     * Method:
+     *      setHeaderGrouping( long )
+     *
+     * Description:
+     *      Sets how long a queued REALTIME or BACKGROUND command may be passed
+     *      over by later commands of its lane that need no header switch
+     *      (50 ms by default). INTERACTIVE commands are never reordered.
+     *
+     * @param   millis  Grouping window, or 0 to keep strict FIFO order.
+     */
+    public void setHeaderGrouping(long millis) {
+        this.queue.setGroupingWindow(millis);
+    }
+
+    /**
+     * Method:
+     *      setDefaultTarget( OBDTarget )
+     *
+     * Description:
+     *      Sets the addressing restored for requests submitted without a
+     *      target after a targeted one (OBDTarget.FUNCTIONAL by default; use
+     *      OBDTarget.FUNCTIONAL_29 on 29-bit buses).
+     *
+     * @param   target  Default addressing.
+     */
+    public void setDefaultTarget(OBDTarget target) {
+        this.queue.setFallback(target);
+    }
+
+    /**
+     * Method:
+     *      getHeaderSwitches( )
+     *
+     * @return  long    Header switches written (each one ATSH and/or ATCRA).
+     */
+    public long getHeaderSwitches() {
+        return (this.headerSwitches);
+    }
+
+    /**
+     * Method:
+     *      getHeaderSwitchesSaved( )
+     *
+     * @return  long    Header switches the submitted commands would have
+     *                  needed in submission order, less those written.
+     */
+    public long getHeaderSwitchesSaved() {
+        return (Math.max(0, this.queue.getFifoSwitches() - this.headerSwitches));
+    }
+
+    /**
+     * Method:
+     *      setRepeatLastCommand( boolean )
+     *
+     * Description:
+     *      Enables the ELM327 repeat: a vehicle request identical to the one
+     *      just answered is written as a single carriage return instead of
+     *      the whole command. Off by default; some clones do not repeat.
+     *
+     * @param   enabled     Whether repeated requests are shortened.
+     */
+    public void setRepeatLastCommand(boolean enabled) {
+        this.repeat = enabled;
+    }
+
+    /**
+     * Method:
+     *      getRepeats( )
+     *
+     * @return  long    Commands sent as a lone carriage return.
+     */
+    public long getRepeats() {
+        return (this.repeats);
+    }
+
+    /**
+     * Method:
+     *      setCommandCallback( CommandCallbackInterface )
+     *
+     * @param   callback    Notified on the writer thread just before each command is written (may be null).
+     */
+    public void setCommandCallback(CommandCallbackInterface callback) {
+        this.commandCallback = callback;
+    }
+
+    /**
+     * Method:
+     *      setMetrics( OBDMetrics )
+     *
+     * @param   metrics     Receives the link instrumentation (e.g. the adapter's,
+     *                      to keep it across connections).
+     */
+    public void setMetrics(OBDMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Method:
+     *      getMetrics( )
+     *
+     * @return  OBDMetrics  Link instrumentation of this pipeline.
+     */
+    public OBDMetrics getMetrics() {
+        return (this.metrics);
+    }
+
+    /**
+     * Method:
+     *      submit( String, ResponseCallbackInterface )
+     *
+     * Description:
+     *      Queues a command for transmission.
+     *
+     * @param   command     Command text; line terminators are stripped.
+     * @param   callback    Optional completion callback (may be null).
+     * @return  OBDFuture   Pending response.
+     */
+    public OBDFuture submit(String command, ResponseCallbackInterface callback) {
+        return (this.submit(OBDCommand.of(command), null, Priority.INTERACTIVE, callback, null));
+    }
+
+    /**
+     * Method:
+     *      submit( OBDCommand, ResponseCallbackInterface )
+     *
+     * Description:
+     *      Queues a pre-encoded command in the REALTIME lane: the form
+     *      polling loops use, so text submissions (INTERACTIVE) overtake it.
+     *
+     * @param   command     Encoded command.
+     * @param   callback    Optional completion callback (may be null).
+     * @return  OBDFuture   Pending response.
+     */
+    public OBDFuture submit(OBDCommand command, ResponseCallbackInterface callback) {
+        return (this.submit(command, null, Priority.REALTIME, callback, null));
+    }
+
+    /**
+     * Method:
+     *      submit( OBDCommand, Priority, ResponseCallbackInterface )
+     *
+     * Description:
+     *      Queues a pre-encoded command in the given lane.
+     *
+     * @param   command     Encoded command.
+     * @param   priority    Queue lane.
+     * @param   callback    Optional completion callback (may be null).
+     * @return  OBDFuture   Pending response.
+     */
+    public OBDFuture submit(OBDCommand command, Priority priority, ResponseCallbackInterface callback) {
+        return (this.submit(command, null, priority, callback, null));
+    }
+
+    /**
+     * Method:
+     *      submit( OBDCommand, OBDTarget, Priority, ResponseCallbackInterface )
+     *
+     * Description:
+     *      Queues a pre-encoded request for one ECU. The header is switched
+     *      before it is written if needed.
+     *
+     * @param   command     Encoded command.
+     * @param   target      ECU addressing, or null for the default.
+     * @param   priority    Queue lane.
+     * @param   callback    Optional completion callback (may be null).
+     * @return  OBDFuture   Pending response.
+     */
+    public OBDFuture submit(OBDCommand command, OBDTarget target, Priority priority, ResponseCallbackInterface callback) {
+        return (this.submit(command, target, priority, callback, null));
+    }
+
+    /**
+     * Method:
+     *      submit( OBDCommand, OBDTarget, Priority, ResponseCallbackInterface, Runnable )
+     *
+     * Description:
+     *      Queues a command with a hook that runs on the writing thread just
+     *      before the command is written (e.g. to set up the reader for it).
+     *
+     * @param   command     Encoded command.
+     * @param   target      ECU addressing, or null for the default.
+     * @param   priority    Queue lane.
+     * @param   callback    Optional completion callback (may be null).
+     * @param   sending     Run just before the command is written (may be null).
+     * @return  OBDFuture   Pending response.
+     */
+    OBDFuture submit(OBDCommand command, OBDTarget target, Priority priority, ResponseCallbackInterface callback, Runnable sending) {
+        OBDFuture future = new OBDFuture(command, callback);
+        future.dispatcher = this.dispatcher;
+        future.sending = sending;
+        future.priority = priority;
+        future.target = target;
+        if (!this.running) {
+            future.fail(new IOException("Not connected"));
+        } else {
+            this.queue.add(future);
+            this.pump();
+        }
+        return (future);
+    }
+
+    /**
+     * Method:
+     *      submitOpen( String, ResponseCallbackInterface, Runnable )
+     *
+     * Description:
+     *      Queues an open-ended command: it keeps the prompt slot, with no
+     *      deadline, until the device prints its prompt or interrupt() stops it.
+     *
+     * @param   command     Command text; line terminators are stripped.
+     * @param   callback    Optional completion callback (may be null).
+     * @param   sending     Run on the writing thread just before the command is written (may be null).
+     * @return  OBDFuture   Pending response.
+     */
+    OBDFuture submitOpen(String command, ResponseCallbackInterface callback, Runnable sending) {
+        OBDFuture future = new OBDFuture(OBDCommand.of(command), callback);
+        future.dispatcher = this.dispatcher;
+        future.sending = sending;
+        future.open = true;
+        if (!this.running) {
+            future.fail(new IOException("Not connected"));
+        } else {
+            this.queue.add(future);
+            this.pump();
+        }
+        return (future);
+    }
+
+    /**
+     * Method:
+     *      interrupt( OBDFuture )
+     *
+     * Description:
+     *      Stops an open-ended command by sending the device a single carriage
+     *      return, the ELM327 "keypress". The command then completes with the
+     *      device's prompt. If it is still being written, the keypress follows
+     *      the write; if it already completed, nothing is sent.
+     *
+     * @param   future          Open-ended command.
+     * @throws  IOException     Link failure.
+     */
+    void interrupt(OBDFuture future) throws IOException {
+        synchronized (this.outputStream) {
+            future.interrupted = true;
+            if (!future.written)
+                return;
+            synchronized (this.lock) {
+                if (this.inFlight != future)
+                    return;
+            }
+            this.outputStream.write('\r');
+            this.outputStream.flush();
+        }
+    }
+
+    /**
+     * Method:
+     *      getQueueLength( )
+     *
+     * @return  int     Number of commands waiting for a prompt slot, in all lanes.
+     */
+    public int getQueueLength() {
+        return (this.queue.size());
+    }
+
+    /**
+     * Method:
+     *      writeLoop( )
+     *
+     * Description:
+     *      Writer thread body: wait for the prompt slot, then write the next
+     *      queued command immediately.
+     */
+    private void writeLoop() {
+        OBDFuture next = null;
+        while (this.running) {
+            try {
+                this.awaitSlot();
+
+                next = this.route(this.queue.take());
+                if (next == null)
+                    continue;
+
+                long limit = next.open ? OPEN_LIMIT : this.latency.timeout(next.getCommand());
+                next.hint = (next.target == null) ? this.hints.hint(next.getCommand()) : 0;
+                synchronized (this.lock) {
+                    this.occupy(next, limit);
+                }
+                this.send(next);
+                next = null;
+
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                this.release(next, e);
+                next = null;
+            }
+        }
+    }
+
+    /**
+     * Method:
+     *      pump( )
+     *
+     * Description:
+     *      Shared mode: queues a write task on the scheduler unless one is
+     *      already pending or a command is in flight.
+     */
+    private void pump() {
+        ScheduledExecutorService executor = this.scheduler;
+        if (executor == null)
+            return;
+        synchronized (this.lock) {
+            if (this.pumping || this.inFlight != null || !this.running)
+                return;
+            this.pumping = true;
+        }
+        executor.execute(this.writeTask);
+    }
+
+    /**
+     * Shared mode: writes queued commands while the prompt slot is free.
+     */
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                OBDFuture next;
+                synchronized (lock) {
+                    next = running && inFlight == null ? queue.poll() : null;
+                    if (next == null) {
+                        pumping = false;
+                        return;
+                    }
+                    next = route(next);
+                    if (next == null)
+                        continue;
+                    next.hint = (next.target == null) ? hints.hint(next.getCommand()) : 0;
+                    long limit = next.open ? OPEN_LIMIT : latency.timeout(next.getCommand());
+                    occupy(next, limit);
+                    timer = scheduler.schedule(deadlineTask, limit, TimeUnit.MILLISECONDS);
+                }
+                try {
+                    send(next);
+                } catch (IOException e) {
+                    release(next, e);
+                }
+            }
+        }
+    };
+
+    /**
+     * Shared mode: fails a command that missed its deadline and, one timeout
+     * later, frees the slot it kept reserved (see awaitSlot()).
+     */
+    private final Runnable deadlineTask = new Runnable() {
+        @Override
+        public void run() {
+            OBDFuture expired = null;
+            synchronized (lock) {
+                if (inFlight == null || !running || System.nanoTime() < deadline)
+                    return;
+                if (!abandoned) {
+                    abandoned = true;
+                    expired = inFlight;
+                    deadline = System.nanoTime() + timeout * 1000000L;
+                    timer = scheduler.schedule(deadlineTask, timeout, TimeUnit.MILLISECONDS);
+                } else {
+                    inFlight = null;
+                }
+            }
+            if (expired != null) {
+                if (expired.switching)
+                    queue.setActive(null);
+                latency.expired(expired.getCommand());
+                metrics.command(expired.getCommand()).timedOut();
+                expired.fail(new TimeoutException(expired.getCommand()));
+            } else {
+                pump();
+            }
+        }
+    };
+
+    /**
+     * Method:
+     *      route( OBDFuture )
+     *
+     * Description:
+     *      Checks the addressing a command taken from the queue needs. If the
+     *      adapter is set up for another ECU, the command goes back in front
+     *      of the queue behind the ATCP/ATSH/ATCRA commands that switch over,
+     *      and the first of those is returned instead. Application commands that
+     *      change the addressing make the tracked state unknown.
+     *
+     * @param   next        Command taken from the queue.
+     * @return  OBDFuture   Command to write now, or null if there is none.
+     */
+    private OBDFuture route(OBDFuture next) {
+        if (next.isDone())
+            return (null);
+        if (next.switching)
+            return (next);
+        if (OBDTarget.readdresses(next.encoded)) {
+            this.queue.setActive(null);
+            return (next);
+        }
+        OBDTarget from = this.queue.getActive();
+        OBDTarget want = this.queue.required(next);
+        if (want == null || want.equals(from))
+            return (next);
+        if (next.rerouted) {
+            next.fail(new IOException("Header switch to " + want + " failed"));
+            return (null);
+        }
+
+        next.rerouted = true;
+        this.queue.push(next);
+        if (from == null || from.getReceive() != want.getReceive())
+            this.queue.push(this.switching(want.getSetReceive(), next));
+        if (from == null || from.getHeader() != want.getHeader())
+            this.queue.push(this.switching(want.getSetHeader(), next));
+        if (want.getSetPriority() != null && this.queue.getPriority() != want.getPriority())
+            this.queue.push(this.switching(want.getSetPriority(), next));
+        this.queue.setActive(want);
+        this.headerSwitches++;
+        return (this.queue.poll());
+    }
+
+    /**
+     * Method:
+     *      switching( OBDCommand, OBDFuture )
+     *
+     * @param   command     ATCP, ATSH or ATCRA command.
+     * @param   next        Command it is written for.
+     * @return  OBDFuture   Header command to queue.
+     */
+    private OBDFuture switching(OBDCommand command, OBDFuture next) {
+        OBDFuture future = new OBDFuture(command, null);
+        future.dispatcher = this.dispatcher;
+        future.priority = next.priority;
+        future.switching = true;
+        return (future);
+    }
+
+    /**
+     * Method:
+     *      occupy( OBDFuture, long )
+     *
+     * Description:
+     *      Takes the prompt slot for a command about to be written. Caller holds lock.
+     *
+     * @param   next    Command to write.
+     * @param   limit   Its deadline (in [ms]).
+     */
+    private void occupy(OBDFuture next, long limit) {
+        this.inFlight = next;
+        this.abandoned = false;
+        this.deadline = System.nanoTime() + limit * 1000000L;
+        next.sent = System.nanoTime();
+    }
+
+    /**
+     * Method:
+     *      send( OBDFuture )
+     *
+     * Description:
+     *      Notifies the command observer and writes the command.
+     *
+     * @param   next            Command holding the prompt slot.
+     * @throws  IOException     Link failure.
+     */
+    private void send(OBDFuture next) throws IOException {
+        CommandCallbackInterface callback = this.commandCallback;
+        if (callback != null)
+            callback.commandSent(next.getCommand());
+        if (next.sending != null)
+            next.sending.run();
+        this.write(next);
+    }
+
+    /**
+     * Method:
+     *      awaitSlot( )
+     *
+     * Description:
+     *      Blocks until no command is in flight. A command whose prompt does not
+     *      arrive by its deadline is failed with a TimeoutException, but the slot
+     *      stays reserved for one more full timeout period so a late prompt
+     *      cannot be mistaken for the next command's response.
+     *
+     * @throws InterruptedException     Writer was stopped.
+     */
+    private void awaitSlot() throws InterruptedException {
+        OBDFuture expired = null;
+        synchronized (this.lock) {
+            while (this.inFlight != null && this.running) {
+                long remaining = this.deadline - System.nanoTime();
+                if (remaining > 0) {
+                    long ms = remaining / 1000000L;
+                    this.lock.wait(ms, (int) (remaining % 1000000L));
+                } else if (!this.abandoned) {
+                    this.abandoned = true;
+                    expired = this.inFlight;
+                    this.deadline = System.nanoTime() + this.timeout * 1000000L;
+                    break;
+                } else {
+                    this.inFlight = null;
+                }
+            }
+        }
+        if (expired != null) {
+            if (expired.switching)
+                this.queue.setActive(null);
+            this.latency.expired(expired.getCommand());
+            this.metrics.command(expired.getCommand()).timedOut();
+            expired.fail(new TimeoutException(expired.getCommand()));
+            this.awaitSlot();
+        }
+        if (!this.running)
+            throw new InterruptedException();
+    }
+
+    /**
+     * Method:
+     *      write( OBDFuture )
+     *
+     * @param   future          Command to write.
+     * @throws  IOException     Link failure.
+     */
+    private void write(OBDFuture future) throws IOException {
+        OBDCommand command = future.encoded;
+        int hint = future.hint;
+        byte[] bytes = command.getBytes(hint);
+        int length = bytes.length;
+
+        CommandMetrics metrics = this.metrics.command(future.getCommand());
+        long start;
+        synchronized (this.outputStream) {
+            if (this.repeat && this.answered && command == this.lastCommand && hint == this.lastHint
+                    && !command.isAt() && !future.open) {
+                bytes = REPEAT;
+                length = 1;
+                this.repeats++;
+            }
+            this.lastCommand = command;
+            this.lastHint = hint;
+            this.answered = false;
+
+            if (future.open) {
+                future.written = true;
+                if (future.interrupted) {
+                    if (this.out.length <= length)
+                        this.out = new byte[length + 1];
+                    System.arraycopy(bytes, 0, this.out, 0, length);
+                    this.out[length++] = '\r';
+                    bytes = this.out;
+                }
+            }
+            metrics.sending(future.sent - future.getSubmitted(), length);
+            start = System.nanoTime();
+            this.outputStream.write(bytes, 0, length);
+            this.outputStream.flush();
+        }
+        metrics.written(System.nanoTime() - start);
+    }
+
+    /**
+     * Method:
+     *      release( OBDFuture, Exception )
+     *
+     * Description:
+     *      Frees the prompt slot held by a command that could not be written.
+     */
+    private void release(OBDFuture future, Exception cause) {
+        if (future != null)
+            this.metrics.command(future.getCommand()).failed();
+        synchronized (this.lock) {
+            if (this.inFlight == future) {
+                this.inFlight = null;
+                if (this.timer != null)
+                    this.timer.cancel(false);
+            }
+        }
+        if (future != null)
+            future.fail(cause);
+    }
+
+    /**
+     * Method:
+     *      frameReceived( byte[], int, int )
+     *
+     * Description:
+     *      Completes the in-flight command with the frame that ended at its
+     *      prompt and frees the slot for the writer. Frames without a command
+     *      in flight are dropped; a late frame of an abandoned command only
+     *      feeds the latency estimate. A hinted request rejected with "?" is
+     *      written again without the digit.
+     */
+    @Override
+    public void frameReceived(byte[] buffer, int offset, int length) {
+        this.frameReceived(buffer, offset, length, 0);
+    }
+
+    /**
+     * Method:
+     *      frameReceived( byte[], int, int, long )
+     *
+     * @param   buffer      Frame bytes.
+     * @param   offset      Frame start.
+     * @param   length      Frame length.
+     * @param   firstByte   System.nanoTime() when the frame's first byte arrived
+     *                      (OBDFrameReader.getFrameTime()), or 0 if unknown.
+     */
+    void frameReceived(byte[] buffer, int offset, int length, long firstByte) {
+        long now = System.nanoTime();
+        OBDFuture done;
+        synchronized (this.lock) {
+            done = this.inFlight;
+            this.inFlight = null;
+            if (this.timer != null)
+                this.timer.cancel(false);
+            if (done != null && done.hint > 0 && isUnknown(buffer, offset, length)) {
+                this.hints.rejected();
+                done.hint = 0;
+                this.queue.addFirst(done);
+                done = null;
+            }
+            if (done != null && done.switching && isUnknown(buffer, offset, length))
+                this.queue.setActive(null);
+            this.answered = (done != null && !done.open);
+            this.lock.notifyAll();
+        }
+        this.pump();
+        if (done == null)
+            return;
+        if (!done.open)
+            this.latency.sample(done.getCommand(), now - done.sent);
+        this.metrics.command(done.getCommand()).received((firstByte != 0) ? firstByte - done.sent : -1,
+                now - done.sent, length, OBDMetrics.classify(buffer, offset, length));
+        if (done.isDone())
+            return;
+        if (done.target == null && !done.switching)
+            this.hints.observed(done.getCommand(), done.hint, buffer, offset, length);
+
+        byte[] frame = new byte[length];
+        System.arraycopy(buffer, offset, frame, 0, length);
+        done.complete(new OBDResponse(done.getCommand(), frame, done.getSubmitted(), done.sent, now));
+    }
+
+    /**
+     * Method:
+     *      readerStopped( Exception )
+     *
+     * Description:
+     *      The link is gone; nothing queued can complete.
+     */
+    @Override
+    public void readerStopped(Exception cause) {
+        this.stop((cause != null) ? cause : new IOException("Disconnected"));
+    }
+
+    /**
+     * Method:
+     *      isUnknown( byte[], int, int )
+     *
+     * @return  boolean     True if any line of the frame is the ELM327 "?"
+     *                      (unknown command) reply.
+     */
+    private static boolean isUnknown(byte[] buffer, int offset, int length) {
+        int chars = 0;
+        boolean question = false;
+        for (int i = offset; i <= offset + length; i++) {
+            byte b = (i < offset + length) ? buffer[i] : (byte) '\r';
+            if (b == '\r' || b == '\n') {
+                if (chars == 1 && question)
+                    return (true);
+                chars = 0;
+                question = false;
+            } else if (b != ' ') {
+                chars++;
+                question = (b == '?');
+            }
+        }
+        return (false);
+    }
+
+    /**
+     * Method:
+     *      strip( String )
+     *
+     * @param   command     Raw command text.
+     * @return  String      Command with any carriage returns and linefeeds removed.
+     */
+    static String strip(String command) {
+        if (command.indexOf('\r') < 0 && command.indexOf('\n') < 0)
+            return (command);
+        return (command.replace("\n", "").replace("\r", ""));
+    }
+}
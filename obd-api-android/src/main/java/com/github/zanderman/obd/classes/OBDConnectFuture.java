@@ -0,0 +1,287 @@
+package com.github.zanderman.obd.classes;
+
+import com.github.zanderman.obd.interfaces.ConnectionCallbackInterface;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Class:
+ *      OBDConnectFuture
+ *
+ * Description:
+ *      Pending result of an asynchronous OBDAdapter connect.
+ *
+ *      Runs connection attempts until one succeeds or the RetryPolicy is used
+ *      up, waiting the policy's backoff in between. Attempts run on a thread
+ *      of their own, or on an executor with the waits scheduled on a
+ *      ScheduledExecutorService (OBDManager), so no thread sleeps through the
+ *      backoff. Progress is reported to an optional
+ *      ConnectionCallbackInterface on the attempting thread; cancel() stops
+ *      further attempts.
+ */
+public class OBDConnectFuture implements Future<OBDAdapter> {
+
+    /**
+     * Private Members
+     */
+    private final OBDAdapter adapter;
+    private final RetryPolicy policy;
+    private final ConnectionCallbackInterface callback;
+    private final Executor executor;
+    private final ScheduledExecutorService scheduler;
+    private int attempts;
+    private boolean done;
+    private boolean cancelled;
+    private Exception failure;
+    private Thread thread;
+
+
+    /**
+     * Constructor:
+     *      OBDConnectFuture( OBDAdapter, RetryPolicy, ConnectionCallbackInterface, Executor, ScheduledExecutorService )
+     *
+     * @param   adapter     Adapter to connect.
+     * @param   policy      Attempts and backoff.
+     * @param   callback    Progress callback (may be null).
+     * @param   executor    Runs attempts, or null for a thread of its own.
+     * @param   scheduler   Schedules the backoff when executor is set.
+     */
+    OBDConnectFuture(OBDAdapter adapter, RetryPolicy policy, ConnectionCallbackInterface callback,
+                     Executor executor, ScheduledExecutorService scheduler) {
+        super();
+
+        this.adapter = adapter;
+        this.policy = (policy != null) ? policy : RetryPolicy.NONE;
+        this.callback = callback;
+        this.executor = executor;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Method:
+     *      start( )
+     *
+     * Description:
+     *      Starts the first attempt.
+     */
+    void start() {
+        if (this.executor == null) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            }, "OBDConnect-" + this.adapter.address);
+            t.setDaemon(true);
+            synchronized (this) {
+                this.thread = t;
+            }
+            t.start();
+        } else {
+            this.submit();
+        }
+    }
+
+    /**
+     * Method:
+     *      getAdapter( )
+     *
+     * @return  OBDAdapter  Adapter being connected.
+     */
+    public OBDAdapter getAdapter() {
+        return (this.adapter);
+    }
+
+    /**
+     * Method:
+     *      getAttempts( )
+     *
+     * @return  int     Attempts started so far.
+     */
+    public synchronized int getAttempts() {
+        return (this.attempts);
+    }
+
+    /**
+     * Method:
+     *      loop( )
+     *
+     * Description:
+     *      Own-thread mode: attempt, sleep through the backoff, repeat.
+     */
+    private void loop() {
+        long delay;
+        while ((delay = this.attempt()) >= 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                this.finish(new CancellationException("Connect cancelled"));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Method:
+     *      submit( )
+     *
+     * Description:
+     *      Executor mode: runs one attempt and schedules the next after the backoff.
+     */
+    private void submit() {
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long delay = attempt();
+                    if (delay < 0)
+                        return;
+                    try {
+                        scheduler.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                submit();
+                            }
+                        }, delay, TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException e) {
+                        finish(new IOException("Connect abandoned: executor shut down"));
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.finish(new IOException("Connect abandoned: executor shut down"));
+        }
+    }
+
+    /**
+     * Method:
+     *      attempt( )
+     *
+     * Description:
+     *      Runs one connection attempt and reports it.
+     *
+     * @return  long    Wait before the next attempt (in [ms]), or -1 when finished.
+     */
+    private long attempt() {
+        int n;
+        synchronized (this) {
+            if (this.done)
+                return (-1);
+            n = ++this.attempts;
+        }
+
+        Exception cause;
+        try {
+            this.adapter.open();
+            synchronized (this) {
+                if (!this.done) {
+                    this.done = true;
+                    this.notifyAll();
+                    cause = null;
+                } else {
+                    cause = this.failure;   /* Cancelled while connecting. */
+                }
+            }
+            if (cause == null) {
+                if (this.callback != null)
+                    this.callback.connected(this.adapter);
+            } else {
+                this.adapter.disconnect();
+            }
+            return (-1);
+        } catch (Exception e) {
+            cause = e;
+        }
+
+        if (n >= this.policy.getMaxAttempts()) {
+            this.finish(cause);
+            return (-1);
+        }
+        long delay = this.policy.delay(n);
+        if (this.callback != null)
+            this.callback.attemptFailed(this.adapter, n, cause, delay);
+        synchronized (this) {
+            return (this.done ? -1 : delay);
+        }
+    }
+
+    /**
+     * Method:
+     *      finish( Exception )
+     *
+     * Description:
+     *      Completes the future with a failure and reports it.
+     */
+    private void finish(Exception cause) {
+        synchronized (this) {
+            if (this.done)
+                return;
+            this.done = true;
+            this.failure = cause;
+            this.notifyAll();
+        }
+        if (this.callback != null)
+            this.callback.connectionFailed(this.adapter, cause);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        Thread t;
+        synchronized (this) {
+            if (this.done)
+                return (false);
+            this.cancelled = true;
+            t = this.thread;
+        }
+        this.finish(new CancellationException("Connect cancelled"));
+        if (t != null && mayInterruptIfRunning)
+            t.interrupt();
+        return (true);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return (this.cancelled);
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return (this.done);
+    }
+
+    @Override
+    public synchronized OBDAdapter get() throws InterruptedException, ExecutionException {
+        while (!this.done)
+            this.wait();
+        return (this.result());
+    }
+
+    @Override
+    public synchronized OBDAdapter get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        while (!this.done) {
+            long remaining = end - System.nanoTime();
+            if (remaining <= 0)
+                throw new TimeoutException("Connect to " + this.adapter.address);
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return (this.result());
+    }
+
+    private OBDAdapter result() throws ExecutionException {
+        if (this.cancelled)
+            throw new CancellationException("Connect cancelled");
+        if (this.failure != null)
+            throw new ExecutionException(this.failure);
+        return (this.adapter);
+    }
+}
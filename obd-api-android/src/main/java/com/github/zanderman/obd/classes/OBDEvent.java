@@ -0,0 +1,114 @@
+package com.github.zanderman.obd.classes;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * Class:
+ *      OBDEvent
+ *
+ * Description:
+ *      One adapter or discovery event carried by an OBDEventBus. Which of the
+ *      adapter, device and data fields are set depends on the type.
+ */
+public class OBDEvent {
+
+    /**
+     * Event types.
+     */
+    public enum Type {
+        BLUETOOTH_ERROR,    /* data: error message. */
+        DISCOVERY_STARTED,
+        DISCOVERY_FINISHED,
+        DEVICE_FOUND,       /* device: the device found. */
+        CONNECTED,          /* adapter. */
+        DISCONNECTED,       /* adapter. */
+        LINK_LOST,          /* adapter; data: cause. */
+        COMMAND_SENT,       /* adapter; data: command. */
+        FRAME_RECEIVED,     /* adapter; data: frame text. */
+        ACTIVITY_CHANGED    /* adapter; data: new ActivityMonitor state. */
+    }
+
+    /**
+     * Private Members
+     */
+    private final Type type;
+    private final OBDAdapter adapter;
+    private final BluetoothDevice device;
+    private final String data;
+    private final long timestamp;
+
+
+    /**
+     * Constructor:
+     *      OBDEvent( Type, OBDAdapter, BluetoothDevice, String )
+     *
+     * @param   type        Event type.
+     * @param   adapter     Adapter the event concerns, or null.
+     * @param   device      Discovered device, or null.
+     * @param   data        Message, command or frame text, or null.
+     */
+    public OBDEvent(Type type, OBDAdapter adapter, BluetoothDevice device, String data) {
+        super();
+
+        this.type = type;
+        this.adapter = adapter;
+        this.device = device;
+        this.data = data;
+        this.timestamp = System.nanoTime();
+    }
+
+    /**
+     * Method:
+     *      getType( )
+     *
+     * @return  Type    Event type.
+     */
+    public Type getType() {
+        return (this.type);
+    }
+
+    /**
+     * Method:
+     *      getAdapter( )
+     *
+     * @return  OBDAdapter  Adapter the event concerns, or null for discovery events.
+     */
+    public OBDAdapter getAdapter() {
+        return (this.adapter);
+    }
+
+    /**
+     * Method:
+     *      getDevice( )
+     *
+     * @return  BluetoothDevice     Device found (DEVICE_FOUND only).
+     */
+    public BluetoothDevice getDevice() {
+        return (this.device);
+    }
+
+    /**
+     * Method:
+     *      getData( )
+     *
+     * @return  String  Error message, cause, command or frame text, or null.
+     */
+    public String getData() {
+        return (this.data);
+    }
+
+    /**
+     * Method:
+     *      getTimestamp( )
+     *
+     * @return  long    System.nanoTime() when the event was published.
+     */
+    public long getTimestamp() {
+        return (this.timestamp);
+    }
+
+    @Override
+    public String toString() {
+        return (this.type + ((this.data != null) ? ": " + this.data : ""));
+    }
+}
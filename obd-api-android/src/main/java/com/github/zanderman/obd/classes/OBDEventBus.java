@@ -0,0 +1,292 @@
+package com.github.zanderman.obd.classes;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import com.github.zanderman.obd.interfaces.EventBatchCallbackInterface;
+import com.github.zanderman.obd.interfaces.EventCallbackInterface;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class:
+ *      OBDEventBus
+ *
+ * Description:
+ *      In-process bus for adapter and discovery events, replacing the round
+ *      trip through system broadcasts.
+ *
+ *      Listeners are kept in copy-on-write arrays, so publishing takes no
+ *      lock. With direct listeners only, it allocates nothing beyond the
+ *      event; with batched listeners, queueing the event allocates one queue
+ *      node. Direct listeners are called on the publishing thread. Batched
+ *      listeners never see single events: published events are queued and
+ *      handed over as one list per display frame (Choreographer) on the main
+ *      thread, so a stream of frames costs the UI looper one message per
+ *      frame however fast the adapter answers. The queue is bounded; past the
+ *      capacity the oldest events are dropped and counted.
+ */
+public class OBDEventBus {
+
+    /**
+     * Constants
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+    private static final EventCallbackInterface[] NO_LISTENERS = new EventCallbackInterface[0];
+    private static final EventBatchCallbackInterface[] NO_BATCH_LISTENERS = new EventBatchCallbackInterface[0];
+
+    /**
+     * Private Members
+     */
+    private volatile EventCallbackInterface[] listeners = NO_LISTENERS;
+    private volatile EventBatchCallbackInterface[] batchListeners = NO_BATCH_LISTENERS;
+    private final Executor frames;          /* Runs the flush once per frame. */
+    private final int capacity;
+    private final ConcurrentLinkedQueue<OBDEvent> queue = new ConcurrentLinkedQueue<OBDEvent>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+    private final ArrayList<OBDEvent> batch = new ArrayList<OBDEvent>();   /* Flush only. */
+
+
+    /**
+     * Constructor:
+     *      OBDEventBus( )
+     *
+     * Description:
+     *      Creates a bus delivering batches on the main thread at display
+     *      frame rate.
+     */
+    public OBDEventBus() {
+        this(new DisplayFrames(), DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor:
+     *      OBDEventBus( Executor, int )
+     *
+     * Description:
+     *      Creates a bus delivering batches on the given executor. At most one
+     *      flush is outstanding at a time; each run of it is one "frame".
+     *
+     * @param   frames      Runs the batch flush (e.g. a Handler or a frame clock).
+     * @param   capacity    Events held for batched listeners between flushes.
+     */
+    public OBDEventBus(Executor frames, int capacity) {
+        super();
+
+        this.frames = frames;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Method:
+     *      addListener( EventCallbackInterface )
+     *
+     * @param   listener    Direct listener, called on the publishing thread.
+     */
+    public synchronized void addListener(EventCallbackInterface listener) {
+        EventCallbackInterface[] current = this.listeners;
+        for (EventCallbackInterface l : current)
+            if (l == listener)
+                return;
+        EventCallbackInterface[] next = new EventCallbackInterface[current.length + 1];
+        System.arraycopy(current, 0, next, 0, current.length);
+        next[current.length] = listener;
+        this.listeners = next;
+    }
+
+    /**
+     * Method:
+     *      removeListener( EventCallbackInterface )
+     *
+     * @param   listener    Direct listener to remove.
+     */
+    public synchronized void removeListener(EventCallbackInterface listener) {
+        EventCallbackInterface[] current = this.listeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] != listener)
+                continue;
+            EventCallbackInterface[] next = (current.length == 1) ? NO_LISTENERS : new EventCallbackInterface[current.length - 1];
+            System.arraycopy(current, 0, next, 0, i);
+            System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+            this.listeners = next;
+            return;
+        }
+    }
+
+    /**
+     * Method:
+     *      addBatchListener( EventBatchCallbackInterface )
+     *
+     * @param   listener    Batched listener, called once per frame on the main thread.
+     */
+    public synchronized void addBatchListener(EventBatchCallbackInterface listener) {
+        EventBatchCallbackInterface[] current = this.batchListeners;
+        for (EventBatchCallbackInterface l : current)
+            if (l == listener)
+                return;
+        EventBatchCallbackInterface[] next = new EventBatchCallbackInterface[current.length + 1];
+        System.arraycopy(current, 0, next, 0, current.length);
+        next[current.length] = listener;
+        this.batchListeners = next;
+    }
+
+    /**
+     * Method:
+     *      removeBatchListener( EventBatchCallbackInterface )
+     *
+     * Description:
+     *      Removes a batched listener. Once none is left, events are no
+     *      longer queued.
+     *
+     * @param   listener    Batched listener to remove.
+     */
+    public synchronized void removeBatchListener(EventBatchCallbackInterface listener) {
+        EventBatchCallbackInterface[] current = this.batchListeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] != listener)
+                continue;
+            EventBatchCallbackInterface[] next = (current.length == 1) ? NO_BATCH_LISTENERS
+                    : new EventBatchCallbackInterface[current.length - 1];
+            System.arraycopy(current, 0, next, 0, i);
+            System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+            this.batchListeners = next;
+            return;
+        }
+    }
+
+    /**
+     * Method:
+     *      hasListeners( )
+     *
+     * Description:
+     *      Lets publishers skip building events nobody receives (e.g. the
+     *      text of every frame).
+     *
+     * @return  boolean     True if any listener is registered.
+     */
+    public boolean hasListeners() {
+        return (this.listeners.length != 0 || this.batchListeners.length != 0);
+    }
+
+    /**
+     * Method:
+     *      getDropped( )
+     *
+     * @return  long    Events dropped because batched listeners fell a full queue behind.
+     */
+    public long getDropped() {
+        return (this.dropped.get());
+    }
+
+    /**
+     * Method:
+     *      publish( OBDEvent )
+     *
+     * Description:
+     *      Calls the direct listeners and queues the event for the batched
+     *      ones, scheduling a flush for the next frame if none is pending.
+     *
+     * @param   event   Event to publish.
+     */
+    public void publish(OBDEvent event) {
+        EventCallbackInterface[] direct = this.listeners;
+        for (int i = 0; i < direct.length; i++)
+            direct[i].eventReceived(event);
+
+        if (this.batchListeners.length == 0)
+            return;
+        this.queue.offer(event);
+        if (this.queued.incrementAndGet() > this.capacity && this.queue.poll() != null) {
+            this.queued.decrementAndGet();
+            this.dropped.incrementAndGet();
+        }
+        if (this.scheduled.compareAndSet(false, true))
+            this.frames.execute(this.flush);
+    }
+
+    /**
+     * Method:
+     *      publish( OBDEvent.Type, OBDAdapter, String )
+     *
+     * Description:
+     *      Publishes an adapter event, building it only if anyone listens.
+     *
+     * @param   type        Event type.
+     * @param   adapter     Adapter the event concerns.
+     * @param   data        Cause, command or frame text, or null.
+     */
+    public void publish(OBDEvent.Type type, OBDAdapter adapter, String data) {
+        if (this.hasListeners())
+            this.publish(new OBDEvent(type, adapter, null, data));
+    }
+
+    /**
+     * Delivers everything queued so far to the batched listeners. Runs on the
+     * frame executor, never concurrently with itself.
+     */
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            /* Cleared first: events published during delivery get the next frame. */
+            scheduled.set(false);
+            OBDEvent event;
+            while ((event = queue.poll()) != null) {
+                queued.decrementAndGet();
+                batch.add(event);
+            }
+            if (batch.isEmpty())
+                return;
+            List<OBDEvent> events = Collections.unmodifiableList(batch);
+            try {
+                EventBatchCallbackInterface[] current = batchListeners;
+                for (int i = 0; i < current.length; i++)
+                    current[i].eventsReceived(events);
+            } finally {
+                batch.clear();
+            }
+        }
+    };
+
+    /**
+     * Frame executor of the default bus: hops to the main thread and runs the
+     * flush in the next Choreographer frame callback.
+     */
+    private static final class DisplayFrames implements Executor, Runnable, Choreographer.FrameCallback {
+        private Handler handler;            /* Created on first use, off the constructor's thread. */
+        private volatile Runnable task;
+
+        @Override
+        public void execute(Runnable task) {
+            this.task = task;
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                this.run();
+                return;
+            }
+            synchronized (this) {
+                if (this.handler == null)
+                    this.handler = new Handler(Looper.getMainLooper());
+            }
+            this.handler.post(this);
+        }
+
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            this.task.run();
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package com.github.zanderman.obd.classes;
+
+import com.github.zanderman.obd.interfaces.FrameCallbackInterface;
+import com.github.zanderman.obd.interfaces.LineCallbackInterface;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Class:
+ *      OBDFrameReader
+ *
+ * Description:
+ *      Long-lived, single reader for one connection.
+ *
+ *      The reader performs blocking reads straight into a reusable ring buffer,
+ *      scans only the newly arrived bytes for the ELM327 '>' prompt and hands
+ *      each complete frame to its consumer as a view into that buffer. Frames
+ *      that wrap around the end of the ring are copied once into a reusable
+ *      frame array. No memory is allocated per read or per byte.
+ *
+ *      The reader can also be switched to line mode until the next prompt:
+ *      every line is then handed to a line consumer as soon as its carriage
+ *      return arrives, either in addition to the frame (to act on a long
+ *      multi-line reply while it arrives) or instead of it, for output that
+ *      streams without a prompt (ATMA monitoring) and would fill the ring.
+ */
+public class OBDFrameReader implements Runnable {
+
+    /**
+     * Constants
+     */
+    public static final byte PROMPT = (byte) '>';
+    public static final byte CR = (byte) '\r';
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Private Members
+     */
+    private final InputStream inputStream;
+    private final FrameCallbackInterface callback;
+    private final byte[] ring;
+    private final byte[] frame;
+    private final int mask;
+    private volatile boolean running;
+    private volatile LineCallbackInterface lines;   /* Line mode consumer until the next prompt, or null. */
+    private volatile boolean consume;               /* Line mode drops lines from the frame. */
+    private Thread thread;
+
+    /* Ring state (reader thread only). */
+    private long frameStart;    /* Absolute index of the first byte of the pending frame. */
+    private long lineStart;     /* Absolute index of the first byte of the pending line (line mode). */
+    private long written;       /* Absolute index one past the last byte received. */
+    private long readTime;      /* System.nanoTime() of the latest read. */
+    private long frameTime;     /* System.nanoTime() when the pending frame's first byte arrived (0 = none yet). */
+
+    /* Statistics. */
+    private volatile long framesRead;
+    private volatile long bytesRead;
+    private volatile long overruns;
+
+
+    /**
+     * Constructor:
+     *      OBDFrameReader( InputStream, FrameCallbackInterface )
+     *
+     * Description:
+     *      Creates a reader with the default 4 KiB ring.
+     *
+     * @param   inputStream     Stream of bytes from the ELM327.
+     * @param   callback        Consumer of complete frames.
+     */
+    public OBDFrameReader(InputStream inputStream, FrameCallbackInterface callback) {
+        this(inputStream, callback, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor:
+     *      OBDFrameReader( InputStream, FrameCallbackInterface, int )
+     *
+     * Description:
+     *      Creates a reader with a ring of the given capacity, rounded up to a
+     *      power of two. The capacity bounds the longest frame that can be
+     *      delivered intact.
+     *
+     * @param   inputStream     Stream of bytes from the ELM327.
+     * @param   callback        Consumer of complete frames.
+     * @param   capacity        Ring capacity in bytes.
+     */
+    public OBDFrameReader(InputStream inputStream, FrameCallbackInterface callback, int capacity) {
+        super();
+
+        int size = Integer.highestOneBit(Math.max(capacity, 64) - 1) << 1;
+        this.inputStream = inputStream;
+        this.callback = callback;
+        this.ring = new byte[size];
+        this.frame = new byte[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Method:
+     *      start( String )
+     *
+     * Description:
+     *      Starts the reader on its own daemon thread.
+     *
+     * @param   name    Thread name.
+     */
+    public synchronized void start(String name) {
+        if (this.thread != null)
+            return;
+        this.running = true;
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Method:
+     *      stop( )
+     *
+     * Description:
+     *      Requests the reader to end. The blocking read is released when the
+     *      underlying stream is closed.
+     */
+    public synchronized void stop() {
+        this.running = false;
+        if (this.thread != null) {
+            this.thread.interrupt();
+            this.thread = null;
+        }
+    }
+
+    /**
+     * Method:
+     *      setLineConsumer( LineCallbackInterface, boolean )
+     *
+     * Description:
+     *      Switches the reader to line mode for the rest of the current frame.
+     *      Lines go to the consumer; when consumed, they are also dropped and
+     *      the frame delivered at the next prompt holds only what followed the
+     *      last line. The reader leaves line mode by itself at that prompt.
+     *      Set it before writing the command whose output is to be streamed.
+     *
+     * @param   lines       Line consumer, or null to leave line mode.
+     * @param   consume     Whether lines are removed from the frame.
+     */
+    public void setLineConsumer(LineCallbackInterface lines, boolean consume) {
+        this.consume = consume;
+        this.lines = lines;
+    }
+
+    /**
+     * Method:
+     *      isRunning( )
+     *
+     * @return  boolean     Whether the reader loop is active.
+     */
+    public boolean isRunning() {
+        return (this.running);
+    }
+
+    /**
+     * Method:
+     *      run( )
+     *
+     * Description:
+     *      Reader loop: block for input, append it to the ring and emit every
+     *      frame terminated inside the newly read bytes.
+     */
+    @Override
+    public void run() {
+        Exception cause = null;
+        this.running = true;
+        this.frameStart = 0;
+        this.lineStart = 0;
+        this.written = 0;
+
+        try {
+            while (this.running) {
+
+                /*
+                 * The pending frame filled the ring without a prompt.
+                 * Discard it so the stream can resynchronize on the next prompt.
+                 */
+                if (this.written - this.frameStart == this.ring.length) {
+                    this.overruns++;
+                    this.frameStart = this.lineStart = this.written;
+                }
+
+                /*
+                 * Read directly into the contiguous free space of the ring.
+                 */
+                int position = (int) (this.written & this.mask);
+                int free = this.ring.length - (int) (this.written - this.frameStart);
+                int contiguous = Math.min(free, this.ring.length - position);
+                int count = this.inputStream.read(this.ring, position, contiguous);
+                if (count < 0)
+                    break;
+
+                this.bytesRead += count;
+                this.readTime = System.nanoTime();
+                if (this.written == this.frameStart)
+                    this.frameTime = this.readTime;
+                this.scan(this.written, count);
+            }
+        } catch (IOException e) {
+            if (this.running)
+                cause = e;
+        }
+
+        this.running = false;
+        this.callback.readerStopped(cause);
+    }
+
+    /**
+     * Method:
+     *      scan( long, int )
+     *
+     * Description:
+     *      Looks for prompts in newly received bytes and emits completed frames.
+     *
+     * @param   from    Absolute index of the first new byte.
+     * @param   count   Number of new bytes.
+     */
+    private void scan(long from, int count) {
+        this.written = from + count;
+        LineCallbackInterface consumer = this.lines;
+
+        for (long i = from; i < this.written; i++) {
+            byte b = this.ring[(int) (i & this.mask)];
+            if (b == CR && consumer != null) {
+                this.line(consumer, i);
+                continue;
+            }
+            if (b != PROMPT)
+                continue;
+
+            /* A prompt ends line mode. */
+            if (consumer != null) {
+                consumer = null;
+                this.lines = null;
+            }
+
+            int length = (int) (i - this.frameStart);
+            int start = (int) (this.frameStart & this.mask);
+            this.frameStart = this.lineStart = i + 1;
+            this.framesRead++;
+
+            /* Contiguous frames are handed out in place; wrapped ones are copied once. */
+            if (start + length <= this.ring.length) {
+                this.callback.frameReceived(this.ring, start, length);
+            } else {
+                int head = this.ring.length - start;
+                System.arraycopy(this.ring, start, this.frame, 0, head);
+                System.arraycopy(this.ring, 0, this.frame, head, length - head);
+                this.callback.frameReceived(this.frame, 0, length);
+            }
+
+            /* Bytes after the prompt arrived with this read and start the next frame. */
+            this.frameTime = (i + 1 < this.written) ? this.readTime : 0;
+        }
+    }
+
+    /**
+     * Method:
+     *      line( LineCallbackInterface, long )
+     *
+     * Description:
+     *      Line mode: hands the line ending at the carriage return to the
+     *      consumer and, if lines are consumed, drops it from the pending frame.
+     *
+     * @param   consumer    Line consumer.
+     * @param   end         Absolute index of the carriage return.
+     */
+    private void line(LineCallbackInterface consumer, long end) {
+        int length = (int) (end - this.lineStart);
+        int start = (int) (this.lineStart & this.mask);
+        this.lineStart = end + 1;
+        if (!this.consume) {
+            this.deliverLine(consumer, start, length);
+            return;
+        }
+        this.frameStart = end + 1;
+        this.deliverLine(consumer, start, length);
+        this.frameTime = (end + 1 < this.written) ? this.readTime : 0;
+    }
+
+    /**
+     * Method:
+     *      deliverLine( LineCallbackInterface, int, int )
+     *
+     * @param   consumer    Line consumer.
+     * @param   start       Ring index of the line.
+     * @param   length      Line length.
+     */
+    private void deliverLine(LineCallbackInterface consumer, int start, int length) {
+        if (start + length <= this.ring.length) {
+            consumer.lineReceived(this.ring, start, length, this.readTime);
+        } else {
+            int head = this.ring.length - start;
+            System.arraycopy(this.ring, start, this.frame, 0, head);
+            System.arraycopy(this.ring, 0, this.frame, head, length - head);
+            consumer.lineReceived(this.frame, 0, length, this.readTime);
+        }
+    }
+
+    /**
+     * Method:
+     *      getFrameTime( )
+     *
+     * Description:
+     *      Arrival time of the first byte of the frame being delivered, with
+     *      the resolution of one read. Valid on the reader thread during
+     *      frameReceived().
+     *
+     * @return  long    System.nanoTime() of the read that brought the frame's first byte.
+     */
+    public long getFrameTime() {
+        return (this.frameTime);
+    }
+
+    /**
+     * Method:
+     *      getFramesRead( )
+     *
+     * @return  long    Number of frames delivered.
+     */
+    public long getFramesRead() {
+        return (this.framesRead);
+    }
+
+    /**
+     * Method:
+     *      getBytesRead( )
+     *
+     * @return  long    Number of bytes received.
+     */
+    public long getBytesRead() {
+        return (this.bytesRead);
+    }
+
+    /**
+     * Method:
+     *      getOverruns( )
+     *
+     * @return  long    Number of frames discarded for exceeding the ring.
+     */
+    public long getOverruns() {
+        return (this.overruns);
+    }
+}
@@ -0,0 +1,259 @@
+package com.github.zanderman.obd.classes;
+
+import com.github.zanderman.obd.interfaces.ResponseCallbackInterface;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Class:
+ *      OBDFuture
+ *
+ * Description:
+ *      Pending result of a submitted command.
+ *
+ *      Completes exactly once, either with the OBDResponse matched to the
+ *      command by the ELM327 prompt or with the failure cause. Callers may block
+ *      on get() or attach a ResponseCallbackInterface. The callback runs on the
+ *      completing thread, or on the pipeline's dispatch executor when it has one.
+ */
+public class OBDFuture implements Future<OBDResponse> {
+
+    /**
+     * Private Members
+     */
+    private final String command;
+    final OBDCommand encoded;       /* Wire encoding, or null if not created by a pipeline. */
+    private final long submitted;
+    private ResponseCallbackInterface callback;
+    private OBDResponse response;
+    private Exception failure;
+    private boolean done;
+    private boolean cancelled;
+    volatile long sent;         /* Set by the pipeline when written. */
+    volatile int hint;          /* Response-count digit appended on the wire (0 = none). */
+    volatile Executor dispatcher;   /* Runs the callback when set (shared OBDManager pool). */
+    volatile Runnable sending;      /* Run by the pipeline just before the command is written. */
+    volatile boolean open;          /* Open-ended command: no deadline (see OBDMonitor). */
+    volatile OBDCommandPipeline.Priority priority = OBDCommandPipeline.Priority.INTERACTIVE;  /* Queue lane. */
+    volatile OBDTarget target;      /* ECU addressing, or null for the pipeline's default. */
+    volatile boolean switching;     /* Header command inserted by the pipeline. */
+    volatile boolean rerouted;      /* Header switch already attempted for this command. */
+    boolean written;                /* Open-ended command: on the wire (guarded by the pipeline's stream). */
+    boolean interrupted;            /* Open-ended command: stop requested (guarded by the pipeline's stream). */
+
+
+    /**
+     * Constructor:
+     *      OBDFuture( String, ResponseCallbackInterface )
+     *
+     * @param   command     Command text (without terminator).
+     * @param   callback    Optional completion callback (may be null).
+     */
+    public OBDFuture(String command, ResponseCallbackInterface callback) {
+        super();
+
+        this.command = command;
+        this.encoded = null;
+        this.callback = callback;
+        this.submitted = System.nanoTime();
+    }
+
+    /**
+     * Constructor:
+     *      OBDFuture( OBDCommand, ResponseCallbackInterface )
+     *
+     * @param   command     Encoded command.
+     * @param   callback    Optional completion callback (may be null).
+     */
+    OBDFuture(OBDCommand command, ResponseCallbackInterface callback) {
+        super();
+
+        this.command = command.getText();
+        this.encoded = command;
+        this.callback = callback;
+        this.submitted = System.nanoTime();
+    }
+
+    /**
+     * Method:
+     *      getCommand( )
+     *
+     * @return  String  Command text.
+     */
+    public String getCommand() {
+        return (this.command);
+    }
+
+    /**
+     * Method:
+     *      getPriority( )
+     *
+     * @return  Priority    Queue lane the command was submitted to.
+     */
+    public OBDCommandPipeline.Priority getPriority() {
+        return (this.priority);
+    }
+
+    /**
+     * Method:
+     *      getTarget( )
+     *
+     * @return  OBDTarget   ECU addressing the command was submitted with, or null.
+     */
+    public OBDTarget getTarget() {
+        return (this.target);
+    }
+
+    /**
+     * Method:
+     *      getSubmitted( )
+     *
+     * @return  long    System.nanoTime() at submission.
+     */
+    public long getSubmitted() {
+        return (this.submitted);
+    }
+
+    /**
+     * Method:
+     *      setCallback( ResponseCallbackInterface )
+     *
+     * Description:
+     *      Attaches a completion callback. If the future already completed the
+     *      callback is invoked immediately on the calling thread.
+     *
+     * @param   callback    Completion callback.
+     */
+    public void setCallback(ResponseCallbackInterface callback) {
+        boolean fire;
+        synchronized (this) {
+            this.callback = callback;
+            fire = this.done;
+        }
+        if (fire)
+            this.notifyCallback(callback);
+    }
+
+    /**
+     * Method:
+     *      complete( OBDResponse )
+     *
+     * @param   response    Matched response.
+     * @return  boolean     Whether this call completed the future.
+     */
+    boolean complete(OBDResponse response) {
+        ResponseCallbackInterface cb;
+        synchronized (this) {
+            if (this.done)
+                return (false);
+            this.response = response;
+            this.done = true;
+            cb = this.callback;
+            this.notifyAll();
+        }
+        this.notifyCallback(cb);
+        return (true);
+    }
+
+    /**
+     * Method:
+     *      fail( Exception )
+     *
+     * @param   cause       Failure cause.
+     * @return  boolean     Whether this call completed the future.
+     */
+    boolean fail(Exception cause) {
+        ResponseCallbackInterface cb;
+        synchronized (this) {
+            if (this.done)
+                return (false);
+            this.failure = cause;
+            this.done = true;
+            cb = this.callback;
+            this.notifyAll();
+        }
+        this.notifyCallback(cb);
+        return (true);
+    }
+
+    private void notifyCallback(final ResponseCallbackInterface cb) {
+        if (cb == null)
+            return;
+        Executor executor = this.dispatcher;
+        if (executor != null) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(cb);
+                    }
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                /* Pool shut down: deliver on this thread. */
+            }
+        }
+        this.deliver(cb);
+    }
+
+    private void deliver(ResponseCallbackInterface cb) {
+        if (this.response != null)
+            cb.responseReceived(this.response);
+        else
+            cb.responseFailed(this.command, this.failure);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (this.done)
+                return (false);
+            this.cancelled = true;
+        }
+        return (this.fail(new CancellationException(this.command)));
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return (this.cancelled);
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return (this.done);
+    }
+
+    @Override
+    public synchronized OBDResponse get() throws InterruptedException, ExecutionException {
+        while (!this.done)
+            this.wait();
+        return (this.result());
+    }
+
+    @Override
+    public synchronized OBDResponse get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!this.done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                throw new TimeoutException(this.command);
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return (this.result());
+    }
+
+    private OBDResponse result() throws ExecutionException {
+        if (this.cancelled)
+            throw new CancellationException(this.command);
+        if (this.failure != null)
+            throw new ExecutionException(this.failure);
+        return (this.response);
+    }
+}
@@ -0,0 +1,321 @@
+package com.github.zanderman.obd.classes;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Class:
+ *      OBDInitializer
+ *
+ * Description:
+ *      Brings a freshly connected adapter into a known session state, reusing
+ *      what was learned on earlier connections whenever possible.
+ *
+ *      Every session is compact: echo, linefeeds and spaces are turned off
+ *      (ATE0, ATL0, ATS0), which removes roughly a third to half of the bytes
+ *      of a typical reply, and headers (ATH1) are turned on when more than one
+ *      ECU answers or when requested. Each step must be acknowledged.
+ *
+ *      With a stored OBDProfile the fast path replays only what the adapter
+ *      needs: ATD, the echo/linefeed/space/header settings, ATSP with the
+ *      recorded protocol and the recorded ATST, then one 0100 query. The reply
+ *      must come from the same number of ECUs (the same ones, with headers on)
+ *      and advertise the same PIDs 01-20 as recorded, otherwise the vehicle or
+ *      its state differs and the full path runs instead: ATZ, the settings,
+ *      automatic protocol search, ATDPN, a supported-PID probe and a fresh
+ *      profile. Either way, a successful run leaves the profile in the store.
+ *
+ *      All methods block on adapter round trips; call them off the main thread.
+ */
+public class OBDInitializer {
+
+    /**
+     * Private Members
+     */
+    private final OBDAdapter adapter;
+    private boolean headers = false;
+    private int protocol = 0;
+    private boolean fastPath;
+
+
+    /**
+     * Constructor:
+     *      OBDInitializer( OBDAdapter )
+     *
+     * @param   adapter     Connected adapter.
+     */
+    public OBDInitializer(OBDAdapter adapter) {
+        super();
+
+        this.adapter = adapter;
+    }
+
+    /**
+     * Method:
+     *      setHeaders( boolean )
+     *
+     * @param   headers     Whether the session always shows response headers (ATH1),
+     *                      even when only one ECU answers.
+     */
+    public void setHeaders(boolean headers) {
+        this.headers = headers;
+    }
+
+    /**
+     * Method:
+     *      setProtocol( int )
+     *
+     * @param   protocol    ELM327 protocol number (1 - C) to use on full
+     *                      detection, or 0 for the automatic search (default).
+     */
+    public void setProtocol(int protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * Method:
+     *      usedFastPath( )
+     *
+     * @return  boolean     True if the last initialization was satisfied by the stored profile.
+     */
+    public boolean usedFastPath() {
+        return (this.fastPath);
+    }
+
+    /**
+     * Method:
+     *      initialize( OBDProfileStore )
+     *
+     * Description:
+     *      Initializes the adapter from its stored profile if there is one,
+     *      and stores the resulting profile.
+     *
+     * @param   store           Profile store.
+     * @return  OBDProfile      Profile of the session now in effect.
+     * @throws  IOException     The adapter could not be initialized.
+     */
+    public OBDProfile initialize(OBDProfileStore store) throws IOException {
+        OBDProfile profile = this.initialize(store.get(this.adapter.address));
+        store.put(profile);
+        return (profile);
+    }
+
+    /**
+     * Method:
+     *      initialize( OBDProfile )
+     *
+     * @param   known           Profile from an earlier connection, or null.
+     * @return  OBDProfile      Profile of the session now in effect (known itself, refreshed,
+     *                          when the fast path succeeded).
+     * @throws  IOException     The adapter could not be initialized.
+     */
+    public OBDProfile initialize(OBDProfile known) throws IOException {
+        this.fastPath = false;
+        if (known != null && known.getProtocol() > 0 && known.getSupportedPids() != null
+                && known.isCompact() && (known.isHeaders() || !this.headers)) {
+            try {
+                if (this.replay(known)) {
+                    this.fastPath = true;
+                    known.setUpdated(System.currentTimeMillis());
+                    return (known);
+                }
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                Log.d("OBDInitializer", "Profile rejected: " + e.toString());
+            }
+        }
+        return (this.detect());
+    }
+
+    /**
+     * Method:
+     *      replay( OBDProfile )
+     *
+     * Description:
+     *      Fast path: restores the recorded session and checks it still fits.
+     *
+     * @param   known           Stored profile.
+     * @return  boolean         True if the vehicle matched the profile.
+     * @throws  IOException     A command failed.
+     */
+    private boolean replay(OBDProfile known) throws IOException {
+        this.expect("ATD", "OK");
+        this.settings(known.isHeaders());
+        this.expect("ATSP" + Integer.toHexString(known.getProtocol()).toUpperCase(Locale.US), "OK");
+        if (known.getElmTimeout() > 0) {
+            this.expect("ATAT1", "OK");
+            this.expect("ATST" + Integer.toHexString(0x100 | known.getElmTimeout()).substring(1).toUpperCase(Locale.US), "OK");
+        }
+
+        List<OBDMessage> messages = this.query("0100", known.isLegacyHeaders());
+        SupportedPids pids = new SupportedPids();
+        List<Integer> ecus = ecus(messages, pids);
+        return (ecus.size() == known.getEcus().size()
+                && (!known.isHeaders() || ecus.containsAll(known.getEcus()))
+                && pids.equalsRange(known.getSupportedPids(), 0x00));
+    }
+
+    /**
+     * Method:
+     *      detect( )
+     *
+     * Description:
+     *      Full path: resets the adapter and learns everything from scratch.
+     *
+     * @return  OBDProfile      New profile.
+     * @throws  IOException     The adapter could not be initialized.
+     */
+    private OBDProfile detect() throws IOException {
+        this.expect("ATZ", "ELM");
+        this.settings(this.headers);
+        this.expect("ATSP" + Integer.toHexString(this.protocol).toUpperCase(Locale.US), "OK");
+
+        /* The first query runs the protocol search; the protocol decides the header format. */
+        this.command("0100");
+        String number = this.lastLine(this.command("ATDPN"));
+        if (number.startsWith("A"))
+            number = number.substring(1);
+        int protocol;
+        try {
+            protocol = Integer.parseInt(number, 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected ATDPN reply: " + number);
+        }
+        if (protocol < 1 || protocol > 0xC)
+            throw new IOException("No protocol detected: " + number);
+        this.expect("ATSP" + Integer.toHexString(protocol).toUpperCase(Locale.US), "OK");
+
+        OBDProfile profile = new OBDProfile(this.adapter.address);
+        profile.setProtocol(protocol);
+        profile.setHeaders(this.headers);
+
+        /* Headerless replies of several ECUs cannot be told apart. */
+        List<OBDMessage> messages = this.query("0100", profile.isLegacyHeaders());
+        if (!profile.isHeaders() && ecus(messages, new SupportedPids()).size() > 1) {
+            this.expect("ATH1", "OK");
+            profile.setHeaders(true);
+            messages = this.query("0100", profile.isLegacyHeaders());
+        }
+        profile.setEcus(ecus(messages, new SupportedPids()));
+        profile.setSupportedPids(SupportedPidCache.probe(this.adapter, profile.isLegacyHeaders()));
+
+        OBDCommandPipeline pipeline = this.adapter.getPipeline();
+        if (pipeline != null) {
+            profile.setElmTimeout(pipeline.getSuggestedElmTimeout());
+            profile.setLatency(pipeline.getLatencyEstimator().getWorstCase() / 1000000L);
+        }
+        profile.setUpdated(System.currentTimeMillis());
+        return (profile);
+    }
+
+    /**
+     * Method:
+     *      settings( boolean )
+     *
+     * Description:
+     *      Applies the compact format and the header setting.
+     *
+     * @param   headers         Whether headers are shown.
+     * @throws  IOException     A setting was not acknowledged.
+     */
+    private void settings(boolean headers) throws IOException {
+        this.expect("ATE0", "OK");
+        this.expect("ATL0", "OK");
+        this.expect("ATS0", "OK");
+        this.expect(headers ? "ATH1" : "ATH0", "OK");
+    }
+
+    /**
+     * Method:
+     *      ecus( List, SupportedPids )
+     *
+     * @param   messages    Messages answering 0100.
+     * @param   pids        Receives the advertised PIDs 01-20.
+     * @return  List        Responding ECUs, one entry per answer.
+     */
+    private static List<Integer> ecus(List<OBDMessage> messages, SupportedPids pids) {
+        List<Integer> ecus = new ArrayList<Integer>();
+        for (OBDMessage message : messages) {
+            byte[] data = message.payload;
+            if (data.length >= 6 && (data[0] & 0xFF) == 0x41 && data[1] == 0x00) {
+                pids.addRange(0x00, data, 2);
+                ecus.add(message.ecu);
+            }
+        }
+        return (ecus);
+    }
+
+    /**
+     * Method:
+     *      query( String, boolean )
+     *
+     * @param   command         OBD request.
+     * @param   legacyHeaders   True when headers are on and the protocol is not CAN.
+     * @return  List            Parsed reply.
+     * @throws  IOException     The request failed or was not answered.
+     */
+    private List<OBDMessage> query(String command, boolean legacyHeaders) throws IOException {
+        byte[] frame = this.command(command).getFrame();
+        return (OBDResponseParser.parse(command, frame, 0, frame.length, legacyHeaders));
+    }
+
+    /**
+     * Method:
+     *      expect( String, String )
+     *
+     * Description:
+     *      Sends a command and verifies its reply.
+     *
+     * @param   command         Command to send.
+     * @param   token           Text the reply must contain.
+     * @throws  IOException     The command failed or the reply lacks the token.
+     */
+    private void expect(String command, String token) throws IOException {
+        String text = this.command(command).getText();
+        if (!text.contains(token))
+            throw new IOException(command + " not acknowledged: " + text);
+    }
+
+    /**
+     * Method:
+     *      command( String )
+     *
+     * @param   command         Command to send.
+     * @return  OBDResponse     Its reply.
+     * @throws  IOException     The command failed.
+     */
+    private OBDResponse command(String command) throws IOException {
+        try {
+            return (this.adapter.submit(command).get());
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(command);
+        }
+    }
+
+    /**
+     * Method:
+     *      lastLine( OBDResponse )
+     *
+     * @param   response    Reply of an AT command.
+     * @return  String      Its last non-empty line (the value after any echo).
+     */
+    private String lastLine(OBDResponse response) {
+        String[] lines = new String(response.getFrame()).split("[\r\n]");
+        for (int i = lines.length - 1; i >= 0; i--) {
+            String line = lines[i].replace(">", "").trim();
+            if (line.length() > 0)
+                return (line);
+        }
+        return ("");
+    }
+}
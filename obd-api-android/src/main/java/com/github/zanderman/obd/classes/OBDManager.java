@@ -10,8 +10,27 @@ import android.content.IntentFilter;
 import android.util.Log;
 
 import com.github.zanderman.obd.interfaces.BluetoothCallbackInterface;
+import com.github.zanderman.obd.interfaces.ConnectionCallbackInterface;
+import com.github.zanderman.obd.interfaces.MetricsCallbackInterface;
 import com.github.zanderman.obd.receivers.OBDReceiver;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Class:
  *      OBDManager
@@ -19,6 +38,20 @@ import com.github.zanderman.obd.receivers.OBDReceiver;
  * Description:
  *      Primary class for managing all Bluetooth interactions.
  *
+ *      The manager also owns the live adapter sessions. Sessions share a
+ *      small, fixed set of threads no matter how many adapters are connected:
+ *      one scheduler thread (command writes, deadlines, PIDScheduler ticks
+ *      and throughput sampling), a dispatch pool for response callbacks and
+ *      a connect pool whose threads exit when idle. Each socket keeps one
+ *      reader thread, since its reads block.
+ *
+ *      Metrics listeners receive a snapshot of every session's per-command
+ *      link metrics (see OBDMetrics) periodically, on the dispatch pool.
+ *
+ *      Discovery broadcasts and the events of every session are published
+ *      on one OBDEventBus (getEventBus()), directly or batched per display
+ *      frame on the main thread.
+ *
  * Author:
  *      Alexander DeRieux
  */
@@ -28,6 +61,10 @@ public class OBDManager {
      * Constants
      */
     private static final int REQUEST_ENABLE_BT = 1;
+    private static final int DEFAULT_DISPATCH_THREADS = 2;
+    private static final int CONNECT_THREADS = 2;
+    private static final long THROUGHPUT_PERIOD = 1000;    /* Throughput sampling period (in [ms]). */
+    private static final long DEFAULT_METRICS_PERIOD = 10000;  /* Metrics report period (in [ms]). */
 
     /**
      * Private Members
@@ -35,6 +72,28 @@ public class OBDManager {
     private BluetoothAdapter adapter;
     private IntentFilter btFilter;
     private OBDReceiver receiver;
+    private final OBDEventBus events;
+
+    /* Live sessions and the executors they share (created on the first session). */
+    private final CopyOnWriteArrayList<OBDAdapter> sessions = new CopyOnWriteArrayList<OBDAdapter>();
+    private final int dispatchThreads;
+    private ScheduledExecutorService scheduler;
+    private ExecutorService dispatcher;
+    private ThreadPoolExecutor connector;
+
+    /* Aggregate throughput. */
+    private long removedFrames;         /* Totals of sessions already removed. */
+    private long removedBytes;
+    private long lastFrames;
+    private long lastBytes;
+    private long lastSample;
+    private volatile double frameRate;
+    private volatile double byteRate;
+
+    /* Metrics reports. */
+    private final CopyOnWriteArrayList<MetricsCallbackInterface> metricsListeners = new CopyOnWriteArrayList<MetricsCallbackInterface>();
+    private long metricsPeriod = DEFAULT_METRICS_PERIOD;
+    private ScheduledFuture<?> metricsTask;
 
 
     /**
@@ -45,7 +104,37 @@ public class OBDManager {
      *      Creates new OBDManager object.
      */
     public OBDManager() {
+        this(DEFAULT_DISPATCH_THREADS);
+    }
+
+    /**
+     * Constructor:
+     *      OBDManager( int )
+     *
+     * Description:
+     *      Creates new OBDManager object with a dispatch pool of the given size.
+     *
+     * @param dispatchThreads   Threads running response callbacks of all sessions.
+     */
+    public OBDManager(int dispatchThreads) {
+        this(dispatchThreads, new OBDEventBus());
+    }
+
+    /**
+     * Constructor:
+     *      OBDManager( int, OBDEventBus )
+     *
+     * Description:
+     *      Creates new OBDManager object publishing its events on the given bus.
+     *
+     * @param dispatchThreads   Threads running response callbacks of all sessions.
+     * @param events            Bus for discovery and session events.
+     */
+    public OBDManager(int dispatchThreads, OBDEventBus events) {
         super();
+
+        this.dispatchThreads = Math.max(1, dispatchThreads);
+        this.events = events;
     }
 
     /**
@@ -66,6 +155,7 @@ public class OBDManager {
         // Ensure device supports bluetooth.
         if(adapter == null) {
             bluetoothCallbackInterface.bluetoothError("BT not supported on this device");
+            this.events.publish(new OBDEvent(OBDEvent.Type.BLUETOOTH_ERROR, null, null, "BT not supported on this device"));
         }
 
         else {
@@ -77,7 +167,7 @@ public class OBDManager {
             }
 
             // Create the receiver object.
-            this.receiver = new OBDReceiver(bluetoothCallbackInterface);
+            this.receiver = new OBDReceiver(bluetoothCallbackInterface, this.events);
 
             // Create intent filter and add BT actions.
             this.btFilter = new IntentFilter();
@@ -159,4 +249,383 @@ public class OBDManager {
         // Start the BT discovery process.
         this.adapter.cancelDiscovery();
     }
+
+
+    /**
+     * Method:
+     *      addSession( OBDAdapter )
+     *
+     * Description:
+     *      Adds an adapter to the managed sessions and connects it on the
+     *      connect pool. Its pipeline then runs on the shared executors.
+     *
+     * @param adapter           Adapter to manage.
+     * @return Future           Connection success status.
+     */
+    public Future<Boolean> addSession(final OBDAdapter adapter) {
+        synchronized (this) {
+            this.executors();
+            adapter.setExecutors(this.scheduler, this.dispatcher, this.connector);
+            adapter.setEventBus(this.events);
+            this.sessions.addIfAbsent(adapter);
+        }
+        return (this.connector.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return (adapter.isConnected() || adapter.establish());
+            }
+        }));
+    }
+
+
+    /**
+     * Method:
+     *      addSession( OBDAdapter, RetryPolicy, ConnectionCallbackInterface )
+     *
+     * Description:
+     *      Adds an adapter to the managed sessions and connects it with
+     *      retries. Attempts run on the connect pool and the backoff waits are
+     *      scheduled, so retrying sessions hold no thread while waiting.
+     *
+     * @param adapter               Adapter to manage.
+     * @param policy                Attempts and backoff.
+     * @param callback              Progress callback (may be null).
+     * @return OBDConnectFuture     Completes with the adapter once connected.
+     */
+    public OBDConnectFuture addSession(OBDAdapter adapter, RetryPolicy policy, ConnectionCallbackInterface callback) {
+        synchronized (this) {
+            this.executors();
+            adapter.setExecutors(this.scheduler, this.dispatcher, this.connector);
+            adapter.setEventBus(this.events);
+            this.sessions.addIfAbsent(adapter);
+        }
+        return (adapter.connectAsync(policy, callback));
+    }
+
+
+    /**
+     * Method:
+     *      connectRemembered( String, RetryPolicy, ConnectionCallbackInterface )
+     *
+     * Description:
+     *      Fast path to a known adapter: stops any scan and connects straight
+     *      to the MAC address (BluetoothAdapter.getRemoteDevice()), without
+     *      waiting for discovery to find the device. The address typically
+     *      comes from OBDProfileStore.getLatest().
+     *
+     * @param address               MAC address of the adapter.
+     * @param policy                Attempts and backoff.
+     * @param callback              Progress callback (may be null).
+     * @return OBDConnectFuture     Completes with the managed adapter once connected.
+     */
+    public OBDConnectFuture connectRemembered(String address, RetryPolicy policy, ConnectionCallbackInterface callback) {
+        if (this.adapter != null && this.adapter.isDiscovering())
+            this.stopScan();
+        return (this.addSession(new OBDAdapter(address), policy, callback));
+    }
+
+
+    /**
+     * Method:
+     *      removeSession( OBDAdapter )
+     *
+     * Description:
+     *      Disconnects an adapter and stops managing it.
+     *
+     * @param adapter           Managed adapter.
+     * @return boolean          False if the adapter was not managed.
+     */
+    public boolean removeSession(OBDAdapter adapter) {
+        if (!this.sessions.remove(adapter))
+            return (false);
+        adapter.disconnect();
+        adapter.setExecutors(null, null, null);
+        adapter.setEventBus(null);
+        synchronized (this) {
+            this.removedFrames += adapter.getFramesReceived();
+            this.removedBytes += adapter.getBytesReceived();
+        }
+        return (true);
+    }
+
+
+    /**
+     * Method:
+     *      getSessions( )
+     *
+     * @return List     Managed adapters.
+     */
+    public List<OBDAdapter> getSessions() {
+        return (Collections.unmodifiableList(this.sessions));
+    }
+
+
+    /**
+     * Method:
+     *      getEventBus( )
+     *
+     * @return OBDEventBus      Bus carrying discovery events and the events of every session.
+     */
+    public OBDEventBus getEventBus() {
+        return (this.events);
+    }
+
+
+    /**
+     * Method:
+     *      getScheduler( )
+     *
+     * Description:
+     *      Shared scheduler, e.g. for PIDScheduler.start(ScheduledExecutorService).
+     *      Tasks run on it must not block.
+     *
+     * @return ScheduledExecutorService     Shared scheduler.
+     */
+    public synchronized ScheduledExecutorService getScheduler() {
+        this.executors();
+        return (this.scheduler);
+    }
+
+
+    /**
+     * Method:
+     *      getFramesReceived( )
+     *
+     * @return long     Response frames received by all sessions, including removed ones.
+     */
+    public synchronized long getFramesReceived() {
+        long frames = this.removedFrames;
+        for (OBDAdapter adapter : this.sessions)
+            frames += adapter.getFramesReceived();
+        return (frames);
+    }
+
+
+    /**
+     * Method:
+     *      getBytesReceived( )
+     *
+     * @return long     Response bytes received by all sessions, including removed ones.
+     */
+    public synchronized long getBytesReceived() {
+        long bytes = this.removedBytes;
+        for (OBDAdapter adapter : this.sessions)
+            bytes += adapter.getBytesReceived();
+        return (bytes);
+    }
+
+
+    /**
+     * Method:
+     *      getFrameRate( )
+     *
+     * @return double   Responses per second over all sessions, sampled every second.
+     */
+    public double getFrameRate() {
+        return (this.frameRate);
+    }
+
+
+    /**
+     * Method:
+     *      getByteRate( )
+     *
+     * @return double   Response bytes per second over all sessions, sampled every second.
+     */
+    public double getByteRate() {
+        return (this.byteRate);
+    }
+
+
+    /**
+     * Method:
+     *      snapshotMetrics( )
+     *
+     * @return Map      Per-command metrics of all current sessions combined, keyed by command.
+     */
+    public Map<String, CommandMetrics> snapshotMetrics() {
+        Map<String, CommandMetrics> total = new TreeMap<String, CommandMetrics>();
+        for (OBDAdapter adapter : this.sessions) {
+            for (Map.Entry<String, CommandMetrics> entry : adapter.getMetrics().snapshot().entrySet()) {
+                CommandMetrics metrics = total.get(entry.getKey());
+                if (metrics == null)
+                    total.put(entry.getKey(), entry.getValue());
+                else
+                    metrics.add(entry.getValue());
+            }
+        }
+        return (total);
+    }
+
+
+    /**
+     * Method:
+     *      addMetricsListener( MetricsCallbackInterface )
+     *
+     * Description:
+     *      Registers a consumer of periodic metrics reports, one per session
+     *      and period, delivered on the dispatch pool.
+     *
+     * @param listener          Metrics consumer.
+     */
+    public synchronized void addMetricsListener(MetricsCallbackInterface listener) {
+        this.metricsListeners.addIfAbsent(listener);
+        this.executors();
+        if (this.metricsTask == null)
+            this.scheduleMetrics();
+    }
+
+
+    /**
+     * Method:
+     *      removeMetricsListener( MetricsCallbackInterface )
+     *
+     * @param listener          Metrics consumer to remove.
+     */
+    public void removeMetricsListener(MetricsCallbackInterface listener) {
+        this.metricsListeners.remove(listener);
+    }
+
+
+    /**
+     * Method:
+     *      setMetricsPeriod( long )
+     *
+     * @param millis            Time between metrics reports (default 10 s).
+     */
+    public synchronized void setMetricsPeriod(long millis) {
+        this.metricsPeriod = Math.max(1, millis);
+        if (this.metricsTask != null) {
+            this.metricsTask.cancel(false);
+            this.scheduleMetrics();
+        }
+    }
+
+
+    /**
+     * Method:
+     *      shutdown( )
+     *
+     * Description:
+     *      Removes every session and stops the shared threads.
+     */
+    public void shutdown() {
+        for (OBDAdapter adapter : this.sessions)
+            this.removeSession(adapter);
+        synchronized (this) {
+            if (this.scheduler == null)
+                return;
+            this.scheduler.shutdownNow();
+            this.metricsTask = null;
+            this.dispatcher.shutdown();
+            this.connector.shutdown();
+            this.scheduler = null;
+            this.dispatcher = null;
+            this.connector = null;
+        }
+    }
+
+
+    /**
+     * Method:
+     *      executors( )
+     *
+     * Description:
+     *      Creates the shared executors on first use. Caller holds the monitor.
+     */
+    private void executors() {
+        if (this.scheduler != null)
+            return;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, threads("OBDManager-scheduler"));
+        this.dispatcher = new ThreadPoolExecutor(this.dispatchThreads, this.dispatchThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), threads("OBDManager-dispatch"));
+        this.connector = new ThreadPoolExecutor(CONNECT_THREADS, CONNECT_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threads("OBDManager-connect"));
+        this.connector.allowCoreThreadTimeOut(true);
+
+        this.lastSample = System.nanoTime();
+        this.scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sample();
+            }
+        }, THROUGHPUT_PERIOD, THROUGHPUT_PERIOD, TimeUnit.MILLISECONDS);
+        if (!this.metricsListeners.isEmpty())
+            this.scheduleMetrics();
+    }
+
+
+    /**
+     * Method:
+     *      sample( )
+     *
+     * Description:
+     *      Updates the aggregate rates from the totals.
+     */
+    private synchronized void sample() {
+        long now = System.nanoTime();
+        long frames = this.getFramesReceived();
+        long bytes = this.getBytesReceived();
+        double seconds = (now - this.lastSample) / 1e9;
+        if (seconds > 0) {
+            this.frameRate = (frames - this.lastFrames) / seconds;
+            this.byteRate = (bytes - this.lastBytes) / seconds;
+        }
+        this.lastFrames = frames;
+        this.lastBytes = bytes;
+        this.lastSample = now;
+    }
+
+
+    /**
+     * Method:
+     *      scheduleMetrics( )
+     *
+     * Description:
+     *      Starts the periodic metrics report. Caller holds the monitor and
+     *      the executors exist.
+     */
+    private void scheduleMetrics() {
+        final Runnable report = new Runnable() {
+            @Override
+            public void run() {
+                for (OBDAdapter session : sessions) {
+                    if (metricsListeners.isEmpty())
+                        return;
+                    Map<String, CommandMetrics> snapshot = session.getMetrics().snapshot();
+                    for (MetricsCallbackInterface listener : metricsListeners)
+                        listener.metricsReported(session, snapshot);
+                }
+            }
+        };
+        final ExecutorService pool = this.dispatcher;
+        this.metricsTask = this.scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                if (!metricsListeners.isEmpty())
+                    pool.execute(report);
+            }
+        }, this.metricsPeriod, this.metricsPeriod, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Method:
+     *      threads( String )
+     *
+     * @param name              Thread name prefix.
+     * @return ThreadFactory    Factory of numbered daemon threads.
+     */
+    private static ThreadFactory threads(final String name) {
+        return (new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return (thread);
+            }
+        });
+    }
 }
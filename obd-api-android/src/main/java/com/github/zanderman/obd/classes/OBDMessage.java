@@ -0,0 +1,38 @@
+package com.github.zanderman.obd.classes;
+
+/**
+ * Class:
+ *      OBDMessage
+ *
+ * Description:
+ *      One complete response payload from one ECU (ISO-TP segments joined,
+ *      header, PCI bytes, padding and checksums removed).
+ */
+public class OBDMessage {
+
+    /**
+     * Constants
+     */
+    public static final int NO_HEADER = -1; /* Headers were off; the ECU is unknown. */
+
+    /**
+     * Public Members
+     */
+    public final int ecu;           // Response header (e.g. 0x7E8) or NO_HEADER.
+    public final byte[] payload;    // Payload, starting with the response mode byte.
+
+
+    /**
+     * Constructor:
+     *      OBDMessage( int, byte[] )
+     *
+     * @param   ecu         Response header or NO_HEADER.
+     * @param   payload     Payload bytes.
+     */
+    public OBDMessage(int ecu, byte[] payload) {
+        super();
+
+        this.ecu = ecu;
+        this.payload = payload;
+    }
+}
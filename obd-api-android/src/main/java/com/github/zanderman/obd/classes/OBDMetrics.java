@@ -0,0 +1,177 @@
+package com.github.zanderman.obd.classes;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class:
+ *      OBDMetrics
+ *
+ * Description:
+ *      Per-command link instrumentation of one adapter (see CommandMetrics).
+ *
+ *      Commands are keyed by their text, so single-PID requests ("010C") are
+ *      tracked per PID and batched requests ("010C0D11") per batch. A command
+ *      seen for the first time allocates its metrics once; after that recording
+ *      only looks the command up and bumps atomic counters, so the pipeline's
+ *      hot path takes no locks and allocates nothing. Past MAX_COMMANDS
+ *      distinct commands, new ones share the OTHER entry.
+ *
+ *      snapshot() copies everything for shipping elsewhere; totals are
+ *      cumulative over the adapter's lifetime, across reconnects.
+ */
+public class OBDMetrics {
+
+    /**
+     * Constants
+     */
+    public static final String OTHER = "*";         /* Shared entry once MAX_COMMANDS is reached. */
+    private static final int MAX_COMMANDS = 256;
+    private static final byte[] NO_DATA = ascii("NODATA");
+    private static final byte[] ERROR = ascii("ERROR");
+    private static final byte[][] ERRORS = {
+            ascii("?"), ascii("BUFFERFULL"), ascii("BUSBUSY"), ascii("LVRESET"), ascii("STOPPED"),
+            ascii("UNABLETOCONNECT"), ascii("ACTALERT"), ascii("LPALERT")
+    };
+
+    /**
+     * Private Members
+     */
+    private final ConcurrentHashMap<String, CommandMetrics> commands = new ConcurrentHashMap<String, CommandMetrics>();
+
+
+    /**
+     * Constructor:
+     *      OBDMetrics( )
+     */
+    public OBDMetrics() {
+        super();
+    }
+
+    /**
+     * Method:
+     *      get( String )
+     *
+     * @param   command             Command text.
+     * @return  CommandMetrics      Live metrics of the command, or null if it was never sent.
+     */
+    public CommandMetrics get(String command) {
+        return (this.commands.get(command));
+    }
+
+    /**
+     * Method:
+     *      command( String )
+     *
+     * Description:
+     *      Recording side: the command's metrics, created on first use.
+     *
+     * @param   command             Command text.
+     * @return  CommandMetrics      Live metrics to record into.
+     */
+    CommandMetrics command(String command) {
+        CommandMetrics metrics = this.commands.get(command);
+        if (metrics != null)
+            return (metrics);
+        String key = command;
+        if (this.commands.size() >= MAX_COMMANDS) {
+            key = OTHER;
+            metrics = this.commands.get(OTHER);
+            if (metrics != null)
+                return (metrics);
+        }
+        metrics = new CommandMetrics(key);
+        CommandMetrics existing = this.commands.putIfAbsent(key, metrics);
+        return ((existing != null) ? existing : metrics);
+    }
+
+    /**
+     * Method:
+     *      snapshot( )
+     *
+     * @return  Map     Copies of every command's metrics, sorted by command.
+     */
+    public Map<String, CommandMetrics> snapshot() {
+        Map<String, CommandMetrics> snapshot = new TreeMap<String, CommandMetrics>();
+        for (Map.Entry<String, CommandMetrics> entry : this.commands.entrySet())
+            snapshot.put(entry.getKey(), entry.getValue().copy(entry.getKey()));
+        return (snapshot);
+    }
+
+    /**
+     * Method:
+     *      getTotal( )
+     *
+     * @return  CommandMetrics  Copy of the metrics of all commands combined.
+     */
+    public CommandMetrics getTotal() {
+        CommandMetrics total = new CommandMetrics(OTHER);
+        for (CommandMetrics metrics : this.commands.values())
+            total.add(metrics);
+        return (total);
+    }
+
+    /**
+     * Method:
+     *      classify( byte[], int, int )
+     *
+     * Description:
+     *      Sorts a reply frame into REPLY, NO_DATA or ERROR without allocating.
+     *      Spaces are ignored, so compact and spaced replies match alike.
+     *
+     * @param   buffer  Frame bytes.
+     * @param   offset  Frame start.
+     * @param   length  Frame length.
+     * @return  int     CommandMetrics.REPLY, NO_DATA or ERROR.
+     */
+    static int classify(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        int start = offset;
+        while (start < end) {
+            int stop = start;
+            while (stop < end && buffer[stop] != '\r' && buffer[stop] != '\n')
+                stop++;
+            if (matches(buffer, start, stop, NO_DATA, false))
+                return (CommandMetrics.NO_DATA);
+            if (matches(buffer, start, stop, ERROR, true))
+                return (CommandMetrics.ERROR);
+            for (byte[] error : ERRORS)
+                if (matches(buffer, start, stop, error, false))
+                    return (CommandMetrics.ERROR);
+            start = stop + 1;
+        }
+        return (CommandMetrics.REPLY);
+    }
+
+    /**
+     * Method:
+     *      matches( byte[], int, int, byte[], boolean )
+     *
+     * @param   buffer      Frame bytes.
+     * @param   start       Line start.
+     * @param   stop        Line end (exclusive).
+     * @param   token       Token without spaces.
+     * @param   suffix      True if the line only has to end with the token.
+     * @return  boolean     True if the line, spaces ignored, is (or ends with) the token.
+     */
+    private static boolean matches(byte[] buffer, int start, int stop, byte[] token, boolean suffix) {
+        int t = token.length;
+        for (int i = stop - 1; i >= start; i--) {
+            if (buffer[i] == ' ')
+                continue;
+            if (t == 0)
+                return (suffix);
+            if (buffer[i] != token[--t])
+                return (false);
+        }
+        return (t == 0);
+    }
+
+    private static byte[] ascii(String text) {
+        byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) text.charAt(i);
+        return (bytes);
+    }
+}
@@ -0,0 +1,253 @@
+package com.github.zanderman.obd.classes;
+
+import com.github.zanderman.obd.interfaces.CANFrameCallbackInterface;
+import com.github.zanderman.obd.interfaces.ResponseCallbackInterface;
+
+import java.io.IOException;
+
+/**
+ * Class:
+ *      OBDMonitor
+ *
+ * Description:
+ *      Passive CAN bus monitoring (ATMA) on a connected adapter.
+ *
+ *      ATMA prints every frame on the bus, thousands per second, and only
+ *      returns to the prompt on "BUFFER FULL" (the ELM327 could not send
+ *      frames out as fast as they arrived) or when it receives a character.
+ *      The monitor runs ATMA as an open-ended pipeline command and switches
+ *      the connection's reader to line mode, so each frame is parsed by a
+ *      CANFrameParser straight out of the read buffer and delivered as an
+ *      ID, DLC and packed payload without any allocation.
+ *
+ *      Headers are turned on for the duration (and off again afterwards
+ *      unless the session uses them), ATCRA can narrow what the ELM327
+ *      forwards, and software acceptance filters narrow what is delivered.
+ *      After an overrun the monitor re-arms itself with a new ATMA; any
+ *      other end of monitoring stops it with the ELM327's message as cause.
+ *      Commands submitted meanwhile wait until the monitor stops.
+ */
+public class OBDMonitor {
+
+    /**
+     * Private Members
+     */
+    private final OBDAdapter adapter;
+    private final CANFrameCallbackInterface callback;
+    private final CANFrameParser parser;
+    private String receiveAddress;
+    private boolean rearm = true;
+    private boolean headers;            /* Session keeps headers on after monitoring. */
+    private volatile boolean running;
+    private OBDCommandPipeline pipeline;
+    private OBDFrameReader reader;
+    private volatile OBDFuture pass;    /* ATMA in flight. */
+    private volatile long rearms;
+
+
+    /**
+     * Constructor:
+     *      OBDMonitor( OBDAdapter, CANFrameCallbackInterface )
+     *
+     * @param   adapter     Connected adapter on a CAN protocol.
+     * @param   callback    Consumer of monitored frames, called on the reader thread.
+     */
+    public OBDMonitor(OBDAdapter adapter, CANFrameCallbackInterface callback) {
+        super();
+
+        this.adapter = adapter;
+        this.callback = callback;
+        this.parser = new CANFrameParser(callback);
+    }
+
+    /**
+     * Method:
+     *      addFilter( int, int )
+     *
+     * Description:
+     *      Adds a software acceptance filter (see CANFrameParser.addFilter()).
+     *
+     * @param   id      Filter ID.
+     * @param   mask    Bits of the ID that must match.
+     */
+    public void addFilter(int id, int mask) {
+        this.parser.addFilter(id, mask);
+    }
+
+    /**
+     * Method:
+     *      setReceiveAddress( String )
+     *
+     * Description:
+     *      Makes the ELM327 itself forward only matching frames (ATCRA, e.g.
+     *      "7E8" or "7EX"), which saves link bandwidth. Applies from the next
+     *      start().
+     *
+     * @param   pattern     ATCRA argument, or null for all frames.
+     */
+    public synchronized void setReceiveAddress(String pattern) {
+        this.receiveAddress = pattern;
+    }
+
+    /**
+     * Method:
+     *      setRearm( boolean )
+     *
+     * @param   rearm   Whether monitoring restarts after a "BUFFER FULL" (default true).
+     */
+    public synchronized void setRearm(boolean rearm) {
+        this.rearm = rearm;
+    }
+
+    /**
+     * Method:
+     *      start( )
+     *
+     * Description:
+     *      Queues the setup commands and ATMA. Returns without waiting; frames
+     *      flow once ATMA has been written.
+     *
+     * @throws  IOException     The adapter is not connected.
+     */
+    public synchronized void start() throws IOException {
+        if (this.running)
+            return;
+        OBDCommandPipeline p = this.adapter.getPipeline();
+        OBDFrameReader r = this.adapter.getReader();
+        if (p == null || r == null || !this.adapter.isConnected())
+            throw new IOException("Not connected");
+
+        OBDProfile session = this.adapter.getSession();
+        this.headers = (session != null && session.isHeaders());
+        if (!this.headers)
+            p.submit("ATH1", null);
+        if (this.receiveAddress != null)
+            p.submit("ATCRA" + this.receiveAddress, null);
+        this.pipeline = p;
+        this.reader = r;
+        this.running = true;
+        this.arm();
+    }
+
+    /**
+     * Method:
+     *      stop( )
+     *
+     * Description:
+     *      Interrupts ATMA and restores the settings changed by start(). The
+     *      callback's monitorStopped() follows once the ELM327 has returned
+     *      to its prompt.
+     */
+    public synchronized void stop() {
+        if (!this.running)
+            return;
+        this.running = false;
+        OBDFuture current = this.pass;
+        if (current == null)
+            return;
+        try {
+            this.pipeline.interrupt(current);
+        } catch (IOException e) {
+            /* The link is gone; the pass fails on its own. */
+        }
+    }
+
+    /**
+     * Method:
+     *      isRunning( )
+     *
+     * @return  boolean     True from start() until stop() or the end of monitoring.
+     */
+    public boolean isRunning() {
+        return (this.running);
+    }
+
+    /**
+     * Method:
+     *      getParser( )
+     *
+     * @return  CANFrameParser  Parser with the frame, filter, error and overrun counts.
+     */
+    public CANFrameParser getParser() {
+        return (this.parser);
+    }
+
+    /**
+     * Method:
+     *      getRearms( )
+     *
+     * @return  long    Times monitoring was restarted after an overrun.
+     */
+    public long getRearms() {
+        return (this.rearms);
+    }
+
+    /**
+     * Method:
+     *      arm( )
+     *
+     * Description:
+     *      Queues one ATMA pass. The reader enters line mode just before the
+     *      command is written and leaves it at the closing prompt. Caller
+     *      holds the monitor.
+     */
+    private void arm() {
+        final OBDFrameReader r = this.reader;
+        this.pass = this.pipeline.submitOpen("ATMA", this.passEnded, new Runnable() {
+            @Override
+            public void run() {
+                parser.begin();
+                r.setLineConsumer(parser, true);
+            }
+        });
+    }
+
+    /**
+     * Method:
+     *      finish( Exception )
+     *
+     * Description:
+     *      Ends monitoring: restores settings and notifies the callback.
+     *
+     * @param   cause   Why monitoring ended, or null after stop().
+     */
+    private void finish(Exception cause) {
+        synchronized (this) {
+            this.running = false;
+            this.pass = null;
+            if (this.adapter.isConnected()) {
+                if (this.receiveAddress != null)
+                    this.pipeline.submit("ATCRA", null);
+                if (!this.headers)
+                    this.pipeline.submit("ATH0", null);
+            }
+        }
+        this.callback.monitorStopped(cause);
+    }
+
+    /**
+     * Completion of an ATMA pass: re-arm after an overrun, otherwise stop.
+     */
+    private final ResponseCallbackInterface passEnded = new ResponseCallbackInterface() {
+        @Override
+        public void responseReceived(OBDResponse response) {
+            String message = parser.getLastMessage();
+            synchronized (OBDMonitor.this) {
+                if (running && rearm && "BUFFER FULL".equals(message)) {
+                    rearms++;
+                    arm();
+                    return;
+                }
+            }
+            if (!running)
+                finish(null);
+            else
+                finish(new IOException("Monitoring ended: " + ((message != null) ? message : response.getText())));
+        }
+
+        @Override
+        public void responseFailed(String command, Exception cause) {
+            finish(cause);
+        }
+    };
+}
@@ -0,0 +1,349 @@
+package com.github.zanderman.obd.classes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Class:
+ *      OBDProfile
+ *
+ * Description:
+ *      Everything learned about one adapter and the vehicle behind it that
+ *      allows the next connection to skip detection: the negotiated protocol
+ *      (ATSP n), the echo/linefeed/space/header settings, the responding
+ *      ECUs, the supported PIDs and the tuned ELM327 timeout (ATST).
+ *
+ *      Profiles are kept by OBDProfileStore and converted to and from
+ *      java.util.Properties for storage.
+ */
+public class OBDProfile {
+
+    /**
+     * Private Members
+     */
+    private final String address;
+    private int protocol;
+    private boolean echo;
+    private boolean linefeeds;
+    private boolean spaces;
+    private boolean headers;
+    private final List<Integer> ecus = new ArrayList<Integer>();
+    private SupportedPids supportedPids;
+    private int elmTimeout;         /* ATST argument; 0 = adapter default. */
+    private long latency;           /* Worst-case measured OBD round trip (in [ms]). */
+    private long updated;           /* Wall-clock time of the last successful init (epoch ms). */
+
+
+    /**
+     * Constructor:
+     *      OBDProfile( String )
+     *
+     * @param   address     Adapter MAC address.
+     */
+    public OBDProfile(String address) {
+        super();
+
+        this.address = address;
+    }
+
+    /**
+     * Method:
+     *      getAddress( )
+     *
+     * @return  String      Adapter MAC address.
+     */
+    public String getAddress() {
+        return (this.address);
+    }
+
+    /**
+     * Method:
+     *      getProtocol( )
+     *
+     * @return  int     ELM327 protocol number (1 - C) locked with ATSP, or 0 if unknown.
+     */
+    public int getProtocol() {
+        return (this.protocol);
+    }
+
+    /**
+     * Method:
+     *      setProtocol( int )
+     *
+     * @param   protocol    ELM327 protocol number (1 - C).
+     */
+    public void setProtocol(int protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * Method:
+     *      isEcho( )
+     *
+     * @return  boolean     Command echo (ATE).
+     */
+    public boolean isEcho() {
+        return (this.echo);
+    }
+
+    /**
+     * Method:
+     *      setEcho( boolean )
+     *
+     * @param   echo        Command echo (ATE).
+     */
+    public void setEcho(boolean echo) {
+        this.echo = echo;
+    }
+
+    /**
+     * Method:
+     *      isLinefeeds( )
+     *
+     * @return  boolean     Linefeeds after carriage returns (ATL).
+     */
+    public boolean isLinefeeds() {
+        return (this.linefeeds);
+    }
+
+    /**
+     * Method:
+     *      setLinefeeds( boolean )
+     *
+     * @param   linefeeds   Linefeeds after carriage returns (ATL).
+     */
+    public void setLinefeeds(boolean linefeeds) {
+        this.linefeeds = linefeeds;
+    }
+
+    /**
+     * Method:
+     *      isSpaces( )
+     *
+     * @return  boolean     Spaces between bytes (ATS).
+     */
+    public boolean isSpaces() {
+        return (this.spaces);
+    }
+
+    /**
+     * Method:
+     *      setSpaces( boolean )
+     *
+     * @param   spaces      Spaces between bytes (ATS).
+     */
+    public void setSpaces(boolean spaces) {
+        this.spaces = spaces;
+    }
+
+    /**
+     * Method:
+     *      isHeaders( )
+     *
+     * @return  boolean     Headers shown (ATH).
+     */
+    public boolean isHeaders() {
+        return (this.headers);
+    }
+
+    /**
+     * Method:
+     *      setHeaders( boolean )
+     *
+     * @param   headers     Headers shown (ATH).
+     */
+    public void setHeaders(boolean headers) {
+        this.headers = headers;
+    }
+
+    /**
+     * Method:
+     *      isLegacyHeaders( )
+     *
+     * @return  boolean     True when headers are on and the protocol is not CAN,
+     *                      as expected by OBDResponseParser and PIDBatcher.
+     */
+    public boolean isLegacyHeaders() {
+        return (this.headers && this.protocol >= 1 && this.protocol <= 5);
+    }
+
+    /**
+     * Method:
+     *      isCompact( )
+     *
+     * @return  boolean     True when echo, linefeeds and spaces are all off, the
+     *                      format OBDInitializer sets up and the parsers assume.
+     */
+    public boolean isCompact() {
+        return (!this.echo && !this.linefeeds && !this.spaces);
+    }
+
+    /**
+     * Method:
+     *      getEcus( )
+     *
+     * @return  List    Response headers of the ECUs that answered 0100
+     *                  (OBDMessage.NO_HEADER entries when headers were off).
+     */
+    public List<Integer> getEcus() {
+        return (Collections.unmodifiableList(this.ecus));
+    }
+
+    /**
+     * Method:
+     *      setEcus( List )
+     *
+     * @param   ecus        Response headers of the responding ECUs.
+     */
+    public void setEcus(List<Integer> ecus) {
+        this.ecus.clear();
+        this.ecus.addAll(ecus);
+    }
+
+    /**
+     * Method:
+     *      getSupportedPids( )
+     *
+     * @return  SupportedPids   Mode 01 PIDs supported by the vehicle, or null if unknown.
+     */
+    public SupportedPids getSupportedPids() {
+        return (this.supportedPids);
+    }
+
+    /**
+     * Method:
+     *      setSupportedPids( SupportedPids )
+     *
+     * @param   supportedPids   Supported Mode 01 PIDs (may be null).
+     */
+    public void setSupportedPids(SupportedPids supportedPids) {
+        this.supportedPids = supportedPids;
+    }
+
+    /**
+     * Method:
+     *      getElmTimeout( )
+     *
+     * @return  int     ATST argument (units of 4 ms), or 0 for the adapter default.
+     */
+    public int getElmTimeout() {
+        return (this.elmTimeout);
+    }
+
+    /**
+     * Method:
+     *      setElmTimeout( int )
+     *
+     * @param   elmTimeout  ATST argument (units of 4 ms), 0 for the default.
+     */
+    public void setElmTimeout(int elmTimeout) {
+        this.elmTimeout = elmTimeout;
+    }
+
+    /**
+     * Method:
+     *      getLatency( )
+     *
+     * @return  long    Worst-case measured OBD round trip (in [ms]), or 0 if unknown.
+     */
+    public long getLatency() {
+        return (this.latency);
+    }
+
+    /**
+     * Method:
+     *      setLatency( long )
+     *
+     * @param   latency     Worst-case measured OBD round trip (in [ms]).
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Method:
+     *      getUpdated( )
+     *
+     * @return  long    Time of the last successful initialization (epoch ms).
+     */
+    public long getUpdated() {
+        return (this.updated);
+    }
+
+    /**
+     * Method:
+     *      setUpdated( long )
+     *
+     * @param   updated     Time of the last successful initialization (epoch ms).
+     */
+    public void setUpdated(long updated) {
+        this.updated = updated;
+    }
+
+    /**
+     * Method:
+     *      toProperties( )
+     *
+     * @return  Properties  Storable form of the profile.
+     */
+    public Properties toProperties() {
+        Properties p = new Properties();
+        p.setProperty("address", this.address);
+        p.setProperty("protocol", Integer.toHexString(this.protocol).toUpperCase());
+        p.setProperty("echo", String.valueOf(this.echo));
+        p.setProperty("linefeeds", String.valueOf(this.linefeeds));
+        p.setProperty("spaces", String.valueOf(this.spaces));
+        p.setProperty("headers", String.valueOf(this.headers));
+        StringBuilder ecus = new StringBuilder();
+        for (Integer ecu : this.ecus)
+            ecus.append((ecus.length() > 0) ? "," : "").append(Integer.toHexString(ecu).toUpperCase());
+        p.setProperty("ecus", ecus.toString());
+        if (this.supportedPids != null)
+            p.setProperty("pids", this.supportedPids.toHex());
+        p.setProperty("elmTimeout", String.valueOf(this.elmTimeout));
+        p.setProperty("latency", String.valueOf(this.latency));
+        p.setProperty("updated", String.valueOf(this.updated));
+        return (p);
+    }
+
+    /**
+     * Method:
+     *      fromProperties( Properties )
+     *
+     * @param   p                           Output of toProperties().
+     * @return  OBDProfile                  Restored profile.
+     * @throws  IllegalArgumentException    A value is missing or malformed.
+     */
+    public static OBDProfile fromProperties(Properties p) {
+        String address = p.getProperty("address");
+        if (address == null)
+            throw new IllegalArgumentException("Profile without address");
+        try {
+            OBDProfile profile = new OBDProfile(address);
+            profile.protocol = Integer.parseInt(p.getProperty("protocol", "0"), 16);
+            profile.echo = Boolean.parseBoolean(p.getProperty("echo"));
+            profile.linefeeds = Boolean.parseBoolean(p.getProperty("linefeeds"));
+            profile.spaces = Boolean.parseBoolean(p.getProperty("spaces"));
+            profile.headers = Boolean.parseBoolean(p.getProperty("headers"));
+            for (String ecu : p.getProperty("ecus", "").split(","))
+                if (ecu.length() > 0)
+                    profile.ecus.add((int) Long.parseLong(ecu, 16));
+            if (p.getProperty("pids") != null)
+                profile.supportedPids = SupportedPids.fromHex(p.getProperty("pids"));
+            profile.elmTimeout = Integer.parseInt(p.getProperty("elmTimeout", "0"));
+            profile.latency = Long.parseLong(p.getProperty("latency", "0"));
+            profile.updated = Long.parseLong(p.getProperty("updated", "0"));
+            return (profile);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed profile for " + address, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return ("OBDProfile(" + this.address + ", protocol " + Integer.toHexString(this.protocol).toUpperCase()
+                + ", " + this.ecus.size() + " ECUs)");
+    }
+}
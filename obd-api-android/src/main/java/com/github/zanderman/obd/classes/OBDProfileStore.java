@@ -0,0 +1,163 @@
+package com.github.zanderman.obd.classes;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Class:
+ *      OBDProfileStore
+ *
+ * Description:
+ *      Persistent OBDProfile cache keyed by adapter MAC address.
+ *
+ *      Each profile is one properties file in the store directory (for an
+ *      Android app, typically a folder under Context.getFilesDir()). Profiles
+ *      are read lazily and kept in memory; put() writes through to disk via a
+ *      temporary file so a crash never leaves a half-written profile behind.
+ */
+public class OBDProfileStore {
+
+    /**
+     * Private Members
+     */
+    private final File directory;
+    private final Map<String, OBDProfile> profiles = new HashMap<String, OBDProfile>();
+
+
+    /**
+     * Constructor:
+     *      OBDProfileStore( File )
+     *
+     * @param   directory   Directory holding the profile files (created if missing).
+     */
+    public OBDProfileStore(File directory) {
+        super();
+
+        this.directory = directory;
+    }
+
+    /**
+     * Method:
+     *      get( String )
+     *
+     * @param   address     Adapter MAC address.
+     * @return  OBDProfile  Stored profile, or null if none (or unreadable).
+     */
+    public synchronized OBDProfile get(String address) {
+        return (this.load(key(address)));
+    }
+
+    private OBDProfile load(String key) {
+        OBDProfile profile = this.profiles.get(key);
+        if (profile != null)
+            return (profile);
+
+        File file = this.file(key);
+        if (!file.exists())
+            return (null);
+        Properties p = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                p.load(in);
+            } finally {
+                in.close();
+            }
+            profile = OBDProfile.fromProperties(p);
+        } catch (IOException e) {
+            return (null);
+        } catch (IllegalArgumentException e) {
+            return (null);
+        }
+        this.profiles.put(key, profile);
+        return (profile);
+    }
+
+    /**
+     * Method:
+     *      getLatest( )
+     *
+     * Description:
+     *      Finds the adapter that was initialized most recently, e.g. to
+     *      reconnect to it without a discovery scan.
+     *
+     * @return  OBDProfile  Most recently updated profile, or null if the store is empty.
+     */
+    public synchronized OBDProfile getLatest() {
+        File[] files = this.directory.listFiles();
+        OBDProfile latest = null;
+        if (files == null)
+            return (null);
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(".properties"))
+                continue;
+            OBDProfile profile = this.load(name.substring(0, name.length() - ".properties".length()));
+            if (profile != null && (latest == null || profile.getUpdated() > latest.getUpdated()))
+                latest = profile;
+        }
+        return (latest);
+    }
+
+    /**
+     * Method:
+     *      put( OBDProfile )
+     *
+     * Description:
+     *      Stores (or replaces) a profile.
+     *
+     * @param   profile         Profile to store.
+     * @throws  IOException     The profile could not be written.
+     */
+    public synchronized void put(OBDProfile profile) throws IOException {
+        String key = key(profile.getAddress());
+        if (!this.directory.isDirectory() && !this.directory.mkdirs())
+            throw new IOException("Cannot create " + this.directory);
+
+        File file = this.file(key);
+        File temp = new File(this.directory, file.getName() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            profile.toProperties().store(out, "OBD adapter profile");
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file))
+                throw new IOException("Cannot replace " + file);
+        }
+        this.profiles.put(key, profile);
+    }
+
+    /**
+     * Method:
+     *      remove( String )
+     *
+     * Description:
+     *      Forgets the profile of an adapter, forcing full detection next time.
+     *
+     * @param   address     Adapter MAC address.
+     */
+    public synchronized void remove(String address) {
+        String key = key(address);
+        this.profiles.remove(key);
+        this.file(key).delete();
+    }
+
+    private File file(String key) {
+        return (new File(this.directory, key + ".properties"));
+    }
+
+    private static String key(String address) {
+        return (address.toUpperCase(Locale.US).replaceAll("[^0-9A-Z]", ""));
+    }
+}
@@ -0,0 +1,124 @@
+package com.github.zanderman.obd.classes;
+
+/**
+ * Class:
+ *      OBDResponse
+ *
+ * Description:
+ *      Complete reply to a single command, matched to it by the ELM327 prompt.
+ *      Holds a private copy of the raw frame plus the pipeline timestamps.
+ */
+public class OBDResponse {
+
+    /**
+     * Private Members
+     */
+    private final String command;
+    private final byte[] frame;
+    private final long submitted;
+    private final long sent;
+    private final long received;
+    private String text;
+
+
+    /**
+     * Constructor:
+     *      OBDResponse( String, byte[], long, long, long )
+     *
+     * @param   command     Command that produced this response.
+     * @param   frame       Raw frame bytes (prompt excluded), owned by the response.
+     * @param   submitted   System.nanoTime() at submission.
+     * @param   sent        System.nanoTime() when the command was written.
+     * @param   received    System.nanoTime() when the prompt arrived.
+     */
+    public OBDResponse(String command, byte[] frame, long submitted, long sent, long received) {
+        super();
+
+        this.command = command;
+        this.frame = frame;
+        this.submitted = submitted;
+        this.sent = sent;
+        this.received = received;
+    }
+
+    /**
+     * Method:
+     *      getCommand( )
+     *
+     * @return  String  Command that produced this response.
+     */
+    public String getCommand() {
+        return (this.command);
+    }
+
+    /**
+     * Method:
+     *      getFrame( )
+     *
+     * @return  byte[]  Raw frame bytes as received (prompt excluded).
+     */
+    public byte[] getFrame() {
+        return (this.frame);
+    }
+
+    /**
+     * Method:
+     *      getText( )
+     *
+     * Description:
+     *      Frame as text with carriage returns and linefeeds removed, matching
+     *      what OBDAdapter.receive() has always returned.
+     *
+     * @return  String  Response text.
+     */
+    public String getText() {
+        if (this.text == null)
+            this.text = OBDAdapter.text(this.frame, 0, this.frame.length);
+        return (this.text);
+    }
+
+    /**
+     * Method:
+     *      isNoData( )
+     *
+     * @return  boolean     Whether the vehicle did not answer the request.
+     */
+    public boolean isNoData() {
+        return (this.getText().contains("NO DATA"));
+    }
+
+    /**
+     * Method:
+     *      getQueueNanos( )
+     *
+     * @return  long    Time spent waiting for a prompt slot.
+     */
+    public long getQueueNanos() {
+        return (this.sent - this.submitted);
+    }
+
+    /**
+     * Method:
+     *      getRoundTripNanos( )
+     *
+     * @return  long    Time from writing the command to receiving its prompt.
+     */
+    public long getRoundTripNanos() {
+        return (this.received - this.sent);
+    }
+
+    /**
+     * Method:
+     *      getReceivedNanos( )
+     *
+     * @return  long    System.nanoTime() when the prompt arrived.
+     */
+    public long getReceivedNanos() {
+        return (this.received);
+    }
+
+    @Override
+    public String toString() {
+        return (this.command + " => " + this.getText());
+    }
+}
@@ -0,0 +1,194 @@
+package com.github.zanderman.obd.classes;
+
+import com.github.zanderman.obd.interfaces.MessageCallbackInterface;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class:
+ *      OBDResponseParser
+ *
+ * Description:
+ *      Turns a raw ELM327 response frame into per-ECU OBDMessage payloads.
+ *
+ *      Handles command echo, "SEARCHING...", spaces or no spaces, CAN 11-bit and
+ *      29-bit headers (detected from the line layout), ISO-TP first/consecutive
+ *      frames both with headers and in the headerless "0:"/"1:" form, and
+ *      several ECUs answering the same request; the segments are put together
+ *      by an ISOTPReassembler, in sequence order. Error replies are reported as
+ *      exceptions. Frames of a compact session (see OBDInitializer) skip the
+ *      echo and space handling.
+ */
+public final class OBDResponseParser {
+
+    /**
+     * Constants
+     */
+    private static final String[] ERRORS = {
+            "?", "ERROR", "BUFFER FULL", "BUS BUSY", "BUS ERROR", "CAN ERROR", "DATA ERROR",
+            "FB ERROR", "LV RESET", "STOPPED", "UNABLE TO CONNECT", "ACT ALERT", "LP ALERT"
+    };
+
+
+    /**
+     * Constructor:
+     *      OBDResponseParser( )
+     *
+     * Description:
+     *      Static helper; not instantiable.
+     */
+    private OBDResponseParser() {
+        super();
+    }
+
+    /**
+     * Method:
+     *      parse( String, byte[], int, int, boolean )
+     *
+     * Description:
+     *      Parses one response frame.
+     *
+     * @param   command         Command that produced the frame (used to drop its echo).
+     * @param   frame           Frame bytes.
+     * @param   offset          Frame start.
+     * @param   length          Frame length.
+     * @param   legacyHeaders   True when headers are on and the protocol is not CAN
+     *                          (three header bytes and a trailing checksum per line).
+     * @return  List            Complete messages, in arrival order per ECU.
+     * @throws  IOException     NoDataException for "NO DATA", IOException for other error replies.
+     */
+    public static List<OBDMessage> parse(String command, byte[] frame, int offset, int length, boolean legacyHeaders)
+            throws IOException {
+        return (parse(command, frame, offset, length, legacyHeaders, false));
+    }
+
+    /**
+     * Method:
+     *      parse( OBDProfile, String, byte[], int, int )
+     *
+     * Description:
+     *      Parses one response frame of a session set up by OBDInitializer.
+     *      When the session is compact (echo, linefeeds and spaces off) lines
+     *      are taken verbatim: no echo matching and no space filtering.
+     *
+     * @param   session         Session in effect (OBDAdapter.getSession()).
+     * @param   command         Command that produced the frame.
+     * @param   frame           Frame bytes.
+     * @param   offset          Frame start.
+     * @param   length          Frame length.
+     * @return  List            Complete messages, in arrival order per ECU.
+     * @throws  IOException     NoDataException for "NO DATA", IOException for other error replies.
+     */
+    public static List<OBDMessage> parse(OBDProfile session, String command, byte[] frame, int offset, int length)
+            throws IOException {
+        return (parse(command, frame, offset, length, session.isLegacyHeaders(), session.isCompact()));
+    }
+
+    private static List<OBDMessage> parse(String command, byte[] frame, int offset, int length, boolean legacyHeaders,
+                                          boolean compact) throws IOException {
+
+        final List<OBDMessage> messages = new ArrayList<OBDMessage>();
+        ISOTPReassembler reassembler = new ISOTPReassembler(new MessageCallbackInterface() {
+            @Override
+            public void messageReceived(OBDMessage message) {
+                messages.add(message);
+            }
+        }, legacyHeaders, null);
+        String echo = (command == null || compact) ? null : command.replace(" ", "").toUpperCase();
+
+        int end = offset + length;
+        int start = offset;
+        while (start < end) {
+            int stop = start;
+            while (stop < end && frame[stop] != '\r' && frame[stop] != '\n')
+                stop++;
+            String line = compact ? verbatim(frame, start, stop) : compact(frame, start, stop);
+            int lineStart = start;
+            start = stop + 1;
+
+            if (line.length() == 0 || line.equals("SEARCHING...") || isEcho(line, echo))
+                continue;
+            if (line.startsWith("BUSINIT") || line.startsWith("BUS INIT"))
+                if (line.endsWith("OK"))
+                    continue;
+                else
+                    throw new IOException(line);    /* "BUS INIT: ...ERROR" */
+            if (line.equals("NODATA") || line.equals("NO DATA"))
+                throw new NoDataException(command);
+            for (String error : ERRORS)
+                if (line.equals(error) || line.equals(error.replace(" ", "")))
+                    throw new IOException(error);
+
+            /*
+             * Data lines, including headerless "N:" segments, go to the reassembler.
+             */
+            boolean segment = line.length() > 2 && line.charAt(1) == ':' && !legacyHeaders;
+            if (!segment && !isHex(line, 0, line.length()))
+                throw new IOException(line);
+            if (legacyHeaders && line.length() < 8)
+                throw new IOException(line);
+            reassembler.lineReceived(frame, lineStart, stop - lineStart, 0);
+        }
+
+        if (messages.isEmpty() && reassembler.getPending() > 0)
+            throw new IOException("Incomplete multi-frame response");
+        return (messages);
+    }
+
+    /**
+     * Method:
+     *      compact( byte[], int, int )
+     *
+     * @return  String  Line text with spaces removed, upper case.
+     */
+    private static String compact(byte[] frame, int start, int stop) {
+        char[] chars = new char[stop - start];
+        int n = 0;
+        for (int i = start; i < stop; i++) {
+            char c = (char) (frame[i] & 0xFF);
+            if (c == ' ' || c == '\t')
+                continue;
+            chars[n++] = (c >= 'a' && c <= 'z') ? (char) (c - 32) : c;
+        }
+        return (new String(chars, 0, n));
+    }
+
+    /**
+     * Method:
+     *      verbatim( byte[], int, int )
+     *
+     * @return  String  Line text as received (compact sessions; status
+     *                  messages such as "NO DATA" keep their spaces).
+     */
+    private static String verbatim(byte[] frame, int start, int stop) {
+        char[] chars = new char[stop - start];
+        for (int i = start; i < stop; i++)
+            chars[i - start] = (char) (frame[i] & 0xFF);
+        return (new String(chars));
+    }
+
+    /**
+     * Method:
+     *      isEcho( String, String )
+     *
+     * @return  boolean     True if the line is the command's echo, possibly
+     *                      with a response-count digit appended on the wire.
+     */
+    private static boolean isEcho(String line, String echo) {
+        if (echo == null || !line.startsWith(echo))
+            return (false);
+        return (line.length() == echo.length()
+                || (line.length() == echo.length() + 1 && (echo.length() & 1) == 0 && !echo.startsWith("AT")));
+    }
+
+    private static boolean isHex(String s, int from, int to) {
+        if (from >= to)
+            return (false);
+        for (int i = from; i < to; i++)
+            if (Character.digit(s.charAt(i), 16) < 0)
+                return (false);
+        return (true);
+    }
+}
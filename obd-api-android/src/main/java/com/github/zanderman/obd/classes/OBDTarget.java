@@ -0,0 +1,192 @@
+package com.github.zanderman.obd.classes;
+
+import java.util.Locale;
+
+/**
+ * Class:
+ *      OBDTarget
+ *
+ * Description:
+ *      ECU addressing of a request: the CAN header it is sent with (ATSH) and,
+ *      optionally, the only response address accepted (ATCRA).
+ *
+ *      The pipeline keeps track of the addressing in effect on the adapter and
+ *      only writes the header commands when a request needs different ones
+ *      (see OBDCommandPipeline.submit( OBDCommand, OBDTarget, Priority,
+ *      ResponseCallbackInterface )). The commands are encoded once here.
+ *      Headers up to 0x7FF are 11-bit and written as three digits. Larger
+ *      ones are 29-bit: the priority byte goes out with ATCP and the other
+ *      six digits with ATSH, since ELM327 versions before 2.1 answer "?" to
+ *      an eight digit ATSH.
+ */
+public final class OBDTarget {
+
+    /**
+     * Constants
+     */
+    public static final int ANY = -1;   /* No receive filter. */
+    public static final OBDTarget FUNCTIONAL = new OBDTarget(0x7DF, ANY);          /* 11-bit broadcast to all emission ECUs. */
+    public static final OBDTarget FUNCTIONAL_29 = new OBDTarget(0x18DB33F1, ANY);  /* 29-bit broadcast. */
+    public static final OBDTarget ENGINE = of(0x7E0);
+    public static final OBDTarget TRANSMISSION = of(0x7E1);
+
+    /**
+     * Private Members
+     */
+    private final int header;
+    private final int receive;
+    private final OBDCommand setPriority;
+    private final OBDCommand setHeader;
+    private final OBDCommand setReceive;
+
+
+    /**
+     * Constructor:
+     *      OBDTarget( int, int )
+     *
+     * @param   header      Request header.
+     * @param   receive     Response address, or ANY.
+     */
+    private OBDTarget(int header, int receive) {
+        super();
+
+        this.header = header;
+        this.receive = receive;
+        this.setPriority = (header <= 0x7FF) ? null : OBDCommand.of(String.format(Locale.US, "ATCP%02X", header >>> 24));
+        this.setHeader = OBDCommand.of((header <= 0x7FF) ? "ATSH" + address(header)
+                : String.format(Locale.US, "ATSH%06X", header & 0xFFFFFF));
+        this.setReceive = OBDCommand.of((receive == ANY) ? "ATCRA" : "ATCRA" + address(receive));
+    }
+
+    /**
+     * Method:
+     *      of( int )
+     *
+     * Description:
+     *      Physical addressing of one ECU. Responses are filtered to the
+     *      ECU's own reply address: request + 8 for 11-bit headers, source and
+     *      target swapped for 29-bit 18DAxxyy headers.
+     *
+     * @param   header      Request header (e.g. 0x7E1 or 0x18DA18F1).
+     * @return  OBDTarget   Addressing.
+     */
+    public static OBDTarget of(int header) {
+        if (header <= 0x7FF)
+            return (new OBDTarget(header, (header >= 0x7E0 && header <= 0x7E7) ? header + 8 : ANY));
+        if ((header >>> 16) == 0x18DA)
+            return (new OBDTarget(header, 0x18DA0000 | ((header & 0xFF) << 8) | ((header >> 8) & 0xFF)));
+        return (new OBDTarget(header, ANY));
+    }
+
+    /**
+     * Method:
+     *      of( int, int )
+     *
+     * @param   header      Request header.
+     * @param   receive     Response address, or ANY.
+     * @return  OBDTarget   Addressing.
+     */
+    public static OBDTarget of(int header, int receive) {
+        return (new OBDTarget(header, receive));
+    }
+
+    /**
+     * Method:
+     *      getHeader( )
+     *
+     * @return  int     Request header.
+     */
+    public int getHeader() {
+        return (this.header);
+    }
+
+    /**
+     * Method:
+     *      getReceive( )
+     *
+     * @return  int     Response address, or ANY.
+     */
+    public int getReceive() {
+        return (this.receive);
+    }
+
+    /**
+     * Method:
+     *      getPriority( )
+     *
+     * @return  int     Priority byte of a 29-bit header, or ANY for 11-bit.
+     */
+    int getPriority() {
+        return ((this.setPriority == null) ? ANY : this.header >>> 24);
+    }
+
+    /**
+     * Method:
+     *      getSetPriority( )
+     *
+     * @return  OBDCommand  ATCP command selecting the priority byte, or null
+     *                      for 11-bit headers.
+     */
+    OBDCommand getSetPriority() {
+        return (this.setPriority);
+    }
+
+    /**
+     * Method:
+     *      getSetHeader( )
+     *
+     * @return  OBDCommand  ATSH command selecting the header (the low three
+     *                      bytes of a 29-bit one).
+     */
+    OBDCommand getSetHeader() {
+        return (this.setHeader);
+    }
+
+    /**
+     * Method:
+     *      getSetReceive( )
+     *
+     * @return  OBDCommand  ATCRA command selecting the response filter.
+     */
+    OBDCommand getSetReceive() {
+        return (this.setReceive);
+    }
+
+    /**
+     * Method:
+     *      readdresses( OBDCommand )
+     *
+     * @param   command     Adapter command.
+     * @return  boolean     True if it changes or resets the addressing, so
+     *                      the state the pipeline tracks is no longer known.
+     */
+    static boolean readdresses(OBDCommand command) {
+        if (!command.isAt())
+            return (false);
+        String c = command.getText().replace(" ", "").toUpperCase(Locale.US);
+        return (c.equals("ATZ") || c.equals("ATWS") || c.equals("ATD") || c.equals("ATAR")
+                || c.startsWith("ATSH") || c.startsWith("ATCRA") || c.startsWith("ATCP"));
+    }
+
+    private static String address(int value) {
+        return (String.format(Locale.US, (value <= 0x7FF) ? "%03X" : "%08X", value));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof OBDTarget))
+            return (false);
+        OBDTarget t = (OBDTarget) other;
+        return (t.header == this.header && t.receive == this.receive);
+    }
+
+    @Override
+    public int hashCode() {
+        return (this.header * 31 + this.receive);
+    }
+
+    @Override
+    public String toString() {
+        return ((this.receive == ANY) ? address(this.header) : address(this.header) + "/" + address(this.receive));
+    }
+}
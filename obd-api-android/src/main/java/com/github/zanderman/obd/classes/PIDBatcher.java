@@ -0,0 +1,448 @@
+package com.github.zanderman.obd.classes;
+
+import com.github.zanderman.obd.interfaces.PIDCallbackInterface;
+import com.github.zanderman.obd.interfaces.ResponseCallbackInterface;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Class:
+ *      PIDBatcher
+ *
+ * Description:
+ *      Batching layer for Mode 01 reads on top of an OBDAdapter.
+ *
+ *      Pending PID reads are combined into multi-PID requests of up to six PIDs
+ *      (e.g. "01 0C 0D 05 10 11 0F"). Only one batch is outstanding at a time, so
+ *      everything requested while a batch is on the wire rides in the next one.
+ *      Replies from every ECU are split back into per-PID values using the data
+ *      lengths in PIDTable. On protocols other than CAN (ATDPN 1-5), or when the
+ *      vehicle rejects a multi-PID request, the batcher falls back to single-PID
+ *      requests. When the vehicle's supported PIDs are known (SupportedPidCache),
+ *      reads of unsupported PIDs fail at once and are never put on the wire.
+ *      Once the adapter was initialized (OBDAdapter.initialize()) its session
+ *      supplies the protocol and header format, replies are parsed in the
+ *      compact format and, unless set explicitly, the supported PIDs probed
+ *      during initialization.
+ */
+public class PIDBatcher {
+
+    /**
+     * Constants
+     */
+    public static final int MAX_PIDS = 6;
+    private static final int UNKNOWN = 0;
+    private static final int SUPPORTED = 1;
+    private static final int UNSUPPORTED = 2;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Private Members
+     */
+    private final OBDAdapter adapter;
+    private final LinkedHashMap<Integer, List<PIDCallbackInterface>> pending = new LinkedHashMap<Integer, List<PIDCallbackInterface>>();
+    private final LinkedHashMap<Integer, List<PIDCallbackInterface>> retries = new LinkedHashMap<Integer, List<PIDCallbackInterface>>(); /* Single-PID retries of rejected batches. */
+    private int batchSize = MAX_PIDS;
+    private int multiPid = UNKNOWN;
+    private boolean legacyHeaders;
+    private boolean outstanding;
+    private volatile SupportedPids supported;
+    private volatile OBDCommandPipeline.Priority priority = OBDCommandPipeline.Priority.REALTIME;
+    private volatile OBDTarget target;      /* ECU polled, or null for the default addressing. */
+
+    /* Statistics. */
+    private volatile long requestsSent;
+    private volatile long pidsDelivered;
+
+
+    /**
+     * Constructor:
+     *      PIDBatcher( OBDAdapter )
+     *
+     * @param   adapter     Connected adapter used as the command sink.
+     */
+    public PIDBatcher(OBDAdapter adapter) {
+        super();
+
+        this.adapter = adapter;
+    }
+
+    /**
+     * Method:
+     *      setBatchSize( int )
+     *
+     * @param   size    Maximum PIDs per request (1-6).
+     */
+    public synchronized void setBatchSize(int size) {
+        this.batchSize = Math.max(1, Math.min(MAX_PIDS, size));
+    }
+
+    /**
+     * Method:
+     *      getBatchSize( )
+     *
+     * @return  int     Maximum PIDs per request.
+     */
+    public synchronized int getBatchSize() {
+        return (this.batchSize);
+    }
+
+    /**
+     * Method:
+     *      setMultiPidSupported( boolean )
+     *
+     * Description:
+     *      Overrides protocol detection (by default the protocol of the adapter's
+     *      session is used, or ATDPN is queried once).
+     *
+     * @param   supported   Whether multi-PID requests may be sent.
+     */
+    public synchronized void setMultiPidSupported(boolean supported) {
+        this.multiPid = supported ? SUPPORTED : UNSUPPORTED;
+    }
+
+    /**
+     * Method:
+     *      isMultiPidSupported( )
+     *
+     * @return  boolean     Whether requests are currently being batched.
+     */
+    public synchronized boolean isMultiPidSupported() {
+        return (this.multiPid == SUPPORTED);
+    }
+
+    /**
+     * Method:
+     *      setLegacyHeaders( boolean )
+     *
+     * @param   legacyHeaders   True when headers are on and the protocol is not CAN
+     *                          (ignored once the adapter has a session).
+     */
+    public synchronized void setLegacyHeaders(boolean legacyHeaders) {
+        this.legacyHeaders = legacyHeaders;
+    }
+
+    /**
+     * Method:
+     *      setSupportedPids( SupportedPids )
+     *
+     * @param   pids    PIDs the vehicle supports, or null to use the
+     *                  session's (every request is sent without a session).
+     */
+    public void setSupportedPids(SupportedPids pids) {
+        this.supported = pids;
+    }
+
+    /**
+     * Method:
+     *      setPriority( Priority )
+     *
+     * @param   priority    Queue lane of the batched requests (REALTIME by default;
+     *                      BACKGROUND for logging that nobody watches live).
+     */
+    public void setPriority(OBDCommandPipeline.Priority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Method:
+     *      setTarget( OBDTarget )
+     *
+     * Description:
+     *      Addresses the batched requests to one ECU (e.g. the transmission).
+     *      Batchers for different ECUs may poll through the same adapter; the
+     *      pipeline groups their requests to share header switches.
+     *
+     * @param   target  ECU addressing, or null for the default.
+     */
+    public void setTarget(OBDTarget target) {
+        this.target = target;
+    }
+
+    /**
+     * Method:
+     *      isSupported( int )
+     *
+     * @param   pid         Mode 01 PID.
+     * @return  boolean     False only if the PID is known to be unsupported.
+     */
+    public boolean isSupported(int pid) {
+        SupportedPids pids = this.supported;
+        if (pids == null) {
+            OBDProfile session = this.adapter.getSession();
+            pids = (session != null) ? session.getSupportedPids() : null;
+        }
+        return (pids == null || pids.isSupported(pid));
+    }
+
+    /**
+     * Method:
+     *      request( int, PIDCallbackInterface )
+     *
+     * Description:
+     *      Requests one read of a Mode 01 PID. Requests for a PID that is already
+     *      pending share the same slot in the next batch. A PID known to be
+     *      unsupported fails immediately with NoDataException on the calling
+     *      thread.
+     *
+     * @param   pid         Mode 01 PID.
+     * @param   callback    Receives the value (once per responding ECU) or the failure.
+     */
+    public void request(int pid, PIDCallbackInterface callback) {
+        if (!this.isSupported(pid)) {
+            callback.pidFailed(pid & 0xFF, new NoDataException(String.format(Locale.US, "01%02X", pid & 0xFF)));
+            return;
+        }
+        synchronized (this) {
+            List<PIDCallbackInterface> waiters = this.pending.get(pid & 0xFF);
+            if (waiters == null) {
+                waiters = new ArrayList<PIDCallbackInterface>(2);
+                this.pending.put(pid & 0xFF, waiters);
+            }
+            waiters.add(callback);
+        }
+        this.dispatch();
+    }
+
+    /**
+     * Method:
+     *      getRequestsSent( )
+     *
+     * @return  long    Number of Mode 01 requests put on the wire.
+     */
+    public long getRequestsSent() {
+        return (this.requestsSent);
+    }
+
+    /**
+     * Method:
+     *      getPidsDelivered( )
+     *
+     * @return  long    Number of PID values delivered to callbacks.
+     */
+    public long getPidsDelivered() {
+        return (this.pidsDelivered);
+    }
+
+    /**
+     * Method:
+     *      dispatch( )
+     *
+     * Description:
+     *      Sends the next batch when nothing is outstanding.
+     */
+    private void dispatch() {
+        final Map<Integer, List<PIDCallbackInterface>> batch = new LinkedHashMap<Integer, List<PIDCallbackInterface>>();
+        final OBDProfile session = this.adapter.getSession();
+        final boolean legacy;
+        final boolean retry;
+        boolean detect = false;
+
+        synchronized (this) {
+            if (this.outstanding || (this.pending.isEmpty() && this.retries.isEmpty()))
+                return;
+            this.outstanding = true;
+            retry = !this.retries.isEmpty();
+            if (this.multiPid == UNKNOWN && session != null)
+                this.multiPid = (session.getProtocol() >= 6) ? SUPPORTED : UNSUPPORTED;
+
+            if (this.multiPid == UNKNOWN && !retry) {
+                detect = true;
+            } else {
+                Map<Integer, List<PIDCallbackInterface>> source = retry ? this.retries : this.pending;
+                int limit = (this.multiPid == SUPPORTED && !retry) ? this.batchSize : 1;
+                Iterator<Map.Entry<Integer, List<PIDCallbackInterface>>> it = source.entrySet().iterator();
+                while (it.hasNext() && batch.size() < limit) {
+                    Map.Entry<Integer, List<PIDCallbackInterface>> entry = it.next();
+                    batch.put(entry.getKey(), entry.getValue());
+                    it.remove();
+                }
+            }
+            legacy = this.legacyHeaders;
+        }
+
+        if (detect) {
+            this.detect();
+            return;
+        }
+
+        /* Recurring batches map to the same interned, pre-encoded command. */
+        char[] command = new char[2 + 2 * batch.size()];
+        int n = 0;
+        command[n++] = '0';
+        command[n++] = '1';
+        for (Integer pid : batch.keySet()) {
+            command[n++] = HEX[(pid >> 4) & 0x0F];
+            command[n++] = HEX[pid & 0x0F];
+        }
+        this.requestsSent++;
+
+        this.adapter.submit(OBDCommand.of(new String(command)), this.target, this.priority, new ResponseCallbackInterface() {
+            @Override
+            public void responseReceived(OBDResponse response) {
+                byte[] frame = response.getFrame();
+                try {
+                    deliver(batch, (session != null)
+                            ? OBDResponseParser.parse(session, response.getCommand(), frame, 0, frame.length)
+                            : OBDResponseParser.parse(response.getCommand(), frame, 0, frame.length, legacy));
+                    if (retry) {
+                        synchronized (PIDBatcher.this) {
+                            multiPid = UNSUPPORTED;
+                        }
+                    }
+                } catch (IOException e) {
+                    rejected(batch, e);
+                }
+                finished();
+            }
+
+            @Override
+            public void responseFailed(String command, Exception cause) {
+                for (Map.Entry<Integer, List<PIDCallbackInterface>> entry : batch.entrySet())
+                    fail(entry.getKey(), entry.getValue(), cause);
+                finished();
+            }
+        });
+    }
+
+    /**
+     * Method:
+     *      detect( )
+     *
+     * Description:
+     *      Asks the ELM327 for the active protocol; only CAN (6 and above)
+     *      supports multi-PID requests.
+     */
+    private void detect() {
+        this.adapter.submit("ATDPN", new ResponseCallbackInterface() {
+            @Override
+            public void responseReceived(OBDResponse response) {
+                String text = response.getText().replace("ATDPN", "").trim();
+                int protocol = text.isEmpty() ? -1 : Character.digit(text.charAt(text.length() - 1), 16);
+                synchronized (PIDBatcher.this) {
+                    if (PIDBatcher.this.multiPid == UNKNOWN)
+                        PIDBatcher.this.multiPid = (protocol >= 6) ? SUPPORTED : UNSUPPORTED;
+                }
+                finished();
+            }
+
+            @Override
+            public void responseFailed(String command, Exception cause) {
+                synchronized (PIDBatcher.this) {
+                    if (PIDBatcher.this.multiPid == UNKNOWN)
+                        PIDBatcher.this.multiPid = UNSUPPORTED;
+                }
+                finished();
+            }
+        });
+    }
+
+    /**
+     * Method:
+     *      deliver( Map, List )
+     *
+     * Description:
+     *      Splits every ECU's Mode 01 reply into its PIDs and hands each value to
+     *      its waiters. PIDs that no ECU returned fail with NoDataException.
+     */
+    private void deliver(Map<Integer, List<PIDCallbackInterface>> batch, List<OBDMessage> messages) {
+        Map<Integer, Boolean> answered = new LinkedHashMap<Integer, Boolean>();
+
+        for (OBDMessage message : messages) {
+            byte[] p = message.payload;
+            if (p.length < 2 || (p[0] & 0xFF) != 0x41)
+                continue;
+
+            int i = 1;
+            while (i < p.length) {
+                int pid = p[i] & 0xFF;
+                int length = PIDTable.length(pid);
+                if (length == 0 || i + 1 + length > p.length)
+                    length = p.length - i - 1; /* Unknown length: only safe as the last PID. */
+
+                List<PIDCallbackInterface> waiters = batch.get(pid);
+                if (waiters != null) {
+                    answered.put(pid, Boolean.TRUE);
+                    for (PIDCallbackInterface waiter : waiters)
+                        waiter.pidReceived(pid, message.ecu, p, i + 1, length);
+                    this.pidsDelivered++;
+                }
+                i += 1 + length;
+            }
+        }
+
+        for (Map.Entry<Integer, List<PIDCallbackInterface>> entry : batch.entrySet())
+            if (!answered.containsKey(entry.getKey()))
+                fail(entry.getKey(), entry.getValue(), new NoDataException(String.format(Locale.US, "01%02X", entry.getKey())));
+    }
+
+    /**
+     * Method:
+     *      rejected( Map, IOException, boolean )
+     *
+     * Description:
+     *      Handles an error reply. A multi-PID request answered with "NO DATA" is
+     *      retried one PID at a time (on CAN an ECU that understands multi-PID
+     *      requests answers whichever PIDs it supports, so a single success then
+     *      proves it does not). Any other error to a multi-PID request switches
+     *      the batcher to single requests. A rejected single request fails its
+     *      waiters.
+     *
+     * @param   batch   PIDs of the rejected request.
+     * @param   cause   Error reply.
+     */
+    private void rejected(Map<Integer, List<PIDCallbackInterface>> batch, IOException cause) {
+        if (batch.size() == 1) {
+            for (Map.Entry<Integer, List<PIDCallbackInterface>> entry : batch.entrySet())
+                fail(entry.getKey(), entry.getValue(), cause);
+            return;
+        }
+
+        synchronized (this) {
+            if (cause instanceof NoDataException) {
+                merge(this.retries, batch);
+            } else {
+                this.multiPid = UNSUPPORTED;
+                LinkedHashMap<Integer, List<PIDCallbackInterface>> requeued = new LinkedHashMap<Integer, List<PIDCallbackInterface>>(batch);
+                merge(requeued, this.pending);
+                this.pending.clear();
+                this.pending.putAll(requeued);
+            }
+        }
+    }
+
+    private static void merge(Map<Integer, List<PIDCallbackInterface>> into, Map<Integer, List<PIDCallbackInterface>> from) {
+        for (Map.Entry<Integer, List<PIDCallbackInterface>> entry : from.entrySet()) {
+            List<PIDCallbackInterface> waiters = into.get(entry.getKey());
+            if (waiters != null)
+                waiters.addAll(entry.getValue());
+            else
+                into.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Method:
+     *      finished( )
+     *
+     * Description:
+     *      Marks the outstanding request complete and sends the next batch.
+     */
+    private void finished() {
+        synchronized (this) {
+            this.outstanding = false;
+        }
+        this.dispatch();
+    }
+
+    private static void fail(int pid, List<PIDCallbackInterface> waiters, Exception cause) {
+        for (PIDCallbackInterface waiter : waiters)
+            waiter.pidFailed(pid, cause);
+    }
+}
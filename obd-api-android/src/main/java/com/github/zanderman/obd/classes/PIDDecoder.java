@@ -0,0 +1,426 @@
+package com.github.zanderman.obd.classes;
+
+import com.github.zanderman.obd.interfaces.SampleSinkInterface;
+
+/**
+ * Class:
+ *      PIDDecoder
+ *
+ * Description:
+ *      Allocation-free decoder for Mode 01 responses.
+ *
+ *      Hex digits are parsed straight out of the raw ELM327 frame into a
+ *      reusable int buffer (no intermediate Strings), ISO-TP segments are joined
+ *      in preallocated per-ECU slots, and every PID is scaled with the SAE J1979
+ *      formula from a static table indexed by PID. Results are written to a
+ *      caller-provided SampleSinkInterface as primitives.
+ *
+ *      Instances keep parsing state and are not thread-safe; use one decoder
+ *      per reading thread. The static value() methods are stateless.
+ */
+public class PIDDecoder {
+
+    /**
+     * Formula types.
+     */
+    private static final byte RAW = 0;          /* Big-endian unsigned value of all data bytes. */
+    private static final byte A = 1;            /* A * scale + offset */
+    private static final byte AB = 2;           /* (256A + B) * scale + offset */
+    private static final byte SIGNED_AB = 3;    /* signed16(256A + B) * scale + offset */
+
+    /**
+     * Formula table, indexed by PID.
+     */
+    private static final byte[] FORMULA = new byte[256];
+    private static final double[] SCALE = new double[256];
+    private static final double[] OFFSET = new double[256];
+
+    static {
+        double percent = 100.0 / 255.0;
+        double trim = 100.0 / 128.0;
+        double ratio = 2.0 / 65536.0;
+
+        formula(0x04, 0x04, A, percent, 0);         /* Calculated engine load [%] */
+        formula(0x05, 0x05, A, 1, -40);             /* Coolant temperature [C] */
+        formula(0x06, 0x09, A, trim, -100);         /* Fuel trims [%] */
+        formula(0x0A, 0x0A, A, 3, 0);               /* Fuel pressure [kPa] */
+        formula(0x0B, 0x0B, A, 1, 0);               /* Intake manifold pressure [kPa] */
+        formula(0x0C, 0x0C, AB, 0.25, 0);           /* Engine speed [rpm] */
+        formula(0x0D, 0x0D, A, 1, 0);               /* Vehicle speed [km/h] */
+        formula(0x0E, 0x0E, A, 0.5, -64);           /* Timing advance [deg] */
+        formula(0x0F, 0x0F, A, 1, -40);             /* Intake air temperature [C] */
+        formula(0x10, 0x10, AB, 0.01, 0);           /* MAF air flow [g/s] */
+        formula(0x11, 0x11, A, percent, 0);         /* Throttle position [%] */
+        formula(0x14, 0x1B, A, 0.005, 0);           /* O2 sensor voltage [V] */
+        formula(0x1F, 0x1F, AB, 1, 0);              /* Run time since start [s] */
+        formula(0x21, 0x21, AB, 1, 0);              /* Distance with MIL on [km] */
+        formula(0x22, 0x22, AB, 0.079, 0);          /* Fuel rail pressure (vacuum) [kPa] */
+        formula(0x23, 0x23, AB, 10, 0);             /* Fuel rail gauge pressure [kPa] */
+        formula(0x24, 0x2B, AB, ratio, 0);          /* O2 sensor equivalence ratio */
+        formula(0x2C, 0x2C, A, percent, 0);         /* Commanded EGR [%] */
+        formula(0x2D, 0x2D, A, trim, -100);         /* EGR error [%] */
+        formula(0x2E, 0x2F, A, percent, 0);         /* Evap purge, fuel level [%] */
+        formula(0x30, 0x30, A, 1, 0);               /* Warm-ups since codes cleared */
+        formula(0x31, 0x31, AB, 1, 0);              /* Distance since codes cleared [km] */
+        formula(0x32, 0x32, SIGNED_AB, 0.25, 0);    /* Evap system vapour pressure [Pa] */
+        formula(0x33, 0x33, A, 1, 0);               /* Barometric pressure [kPa] */
+        formula(0x34, 0x3B, AB, ratio, 0);          /* O2 sensor equivalence ratio */
+        formula(0x3C, 0x3F, AB, 0.1, -40);          /* Catalyst temperature [C] */
+        formula(0x42, 0x42, AB, 0.001, 0);          /* Control module voltage [V] */
+        formula(0x43, 0x43, AB, percent, 0);        /* Absolute load [%] */
+        formula(0x44, 0x44, AB, ratio, 0);          /* Commanded equivalence ratio */
+        formula(0x45, 0x45, A, percent, 0);         /* Relative throttle position [%] */
+        formula(0x46, 0x46, A, 1, -40);             /* Ambient air temperature [C] */
+        formula(0x47, 0x4C, A, percent, 0);         /* Throttle and pedal positions [%] */
+        formula(0x4D, 0x4E, AB, 1, 0);              /* Time with MIL on / since cleared [min] */
+        formula(0x50, 0x50, A, 10, 0);              /* Maximum MAF [g/s] */
+        formula(0x52, 0x52, A, percent, 0);         /* Ethanol fuel [%] */
+        formula(0x53, 0x53, AB, 0.005, 0);          /* Absolute evap pressure [kPa] */
+        formula(0x54, 0x54, SIGNED_AB, 1, 0);       /* Evap system vapour pressure [Pa] */
+        formula(0x55, 0x58, A, trim, -100);         /* Secondary O2 fuel trims [%] */
+        formula(0x59, 0x59, AB, 10, 0);             /* Fuel rail absolute pressure [kPa] */
+        formula(0x5A, 0x5B, A, percent, 0);         /* Pedal position, hybrid pack life [%] */
+        formula(0x5C, 0x5C, A, 1, -40);             /* Engine oil temperature [C] */
+        formula(0x5D, 0x5D, AB, 1.0 / 128.0, -210); /* Fuel injection timing [deg] */
+        formula(0x5E, 0x5E, AB, 0.05, 0);           /* Engine fuel rate [L/h] */
+        formula(0x61, 0x62, A, 1, -125);            /* Demanded / actual torque [%] */
+        formula(0x63, 0x63, AB, 1, 0);              /* Reference torque [Nm] */
+        formula(0xA6, 0xA6, RAW, 0.1, 0);           /* Odometer [km] */
+    }
+
+    /**
+     * Reusable parsing state.
+     */
+    private static final int MAX_ECUS = 8;
+    private static final int MAX_PAYLOAD = 256;
+    private final int[] line = new int[MAX_PAYLOAD];                /* Bytes of the current line. */
+    private final int[] slotEcu = new int[MAX_ECUS];                /* ECU header per ISO-TP slot. */
+    private final int[][] slotData = new int[MAX_ECUS][MAX_PAYLOAD];
+    private final int[] slotSize = new int[MAX_ECUS];
+    private final int[] slotLength = new int[MAX_ECUS];             /* Announced length, 0 = free. */
+    private boolean legacyHeaders;
+
+
+    /**
+     * Constructor:
+     *      PIDDecoder( )
+     *
+     * Description:
+     *      Creates a decoder with its parsing buffers preallocated.
+     */
+    public PIDDecoder() {
+        super();
+    }
+
+    /**
+     * Method:
+     *      setLegacyHeaders( boolean )
+     *
+     * @param   legacyHeaders   True when headers are on and the protocol is not CAN.
+     */
+    public void setLegacyHeaders(boolean legacyHeaders) {
+        this.legacyHeaders = legacyHeaders;
+    }
+
+    /**
+     * Method:
+     *      setSession( OBDProfile )
+     *
+     * Description:
+     *      Adopts the header format of an initialized adapter session
+     *      (OBDAdapter.getSession()).
+     *
+     * @param   session     Session in effect.
+     */
+    public void setSession(OBDProfile session) {
+        this.legacyHeaders = session.isLegacyHeaders();
+    }
+
+    /**
+     * Method:
+     *      value( int, byte[], int, int )
+     *
+     * Description:
+     *      Scales the raw data bytes of one PID.
+     *
+     * @param   pid     Mode 01 PID.
+     * @param   data    Raw data bytes.
+     * @param   offset  First data byte (A).
+     * @param   length  Number of data bytes.
+     * @return  double  Decoded value.
+     */
+    public static double value(int pid, byte[] data, int offset, int length) {
+        int a = (length > 0) ? data[offset] & 0xFF : 0;
+        int b = (length > 1) ? data[offset + 1] & 0xFF : 0;
+        int c = (length > 2) ? data[offset + 2] & 0xFF : 0;
+        int d = (length > 3) ? data[offset + 3] & 0xFF : 0;
+        return (value(pid, length, a, b, c, d));
+    }
+
+    /**
+     * Method:
+     *      value( int, int, int, int, int, int )
+     *
+     * @param   pid     Mode 01 PID.
+     * @param   length  Number of data bytes (at most the first four are used).
+     * @param   a       Data byte A.
+     * @param   b       Data byte B.
+     * @param   c       Data byte C.
+     * @param   d       Data byte D.
+     * @return  double  Decoded value.
+     */
+    public static double value(int pid, int length, int a, int b, int c, int d) {
+        pid &= 0xFF;
+        double raw;
+        switch (FORMULA[pid]) {
+            case A:
+                raw = a;
+                break;
+            case AB:
+                raw = (a << 8) | b;
+                break;
+            case SIGNED_AB:
+                raw = (short) ((a << 8) | b);
+                break;
+            default:
+                int n = Math.max(0, Math.min(length, 4));
+                long v = ((((long) a << 24) | (b << 16) | (c << 8) | d) & 0xFFFFFFFFL) >>> (8 * (4 - n));
+                return ((SCALE[pid] == 0) ? v : v * SCALE[pid] + OFFSET[pid]);
+        }
+        return (raw * SCALE[pid] + OFFSET[pid]);
+    }
+
+    /**
+     * Method:
+     *      decode( byte[], int, int, long, SampleSinkInterface )
+     *
+     * Description:
+     *      Decodes every Mode 01 value in a raw response frame (any mix of PIDs
+     *      and ECUs, single or multi-frame, with or without spaces and CAN
+     *      headers) and writes each one to the sink.
+     *
+     * @param   frame       Raw frame bytes.
+     * @param   offset      Frame start.
+     * @param   length      Frame length.
+     * @param   timestamp   Timestamp passed through to the sink.
+     * @param   sink        Receiver of decoded values.
+     * @return  int         Number of samples written.
+     */
+    public int decode(byte[] frame, int offset, int length, long timestamp, SampleSinkInterface sink) {
+        int samples = 0;
+        int end = offset + length;
+        int start = offset;
+        for (int i = 0; i < MAX_ECUS; i++)
+            this.slotLength[i] = 0;
+
+        while (start < end) {
+            int stop = start;
+            while (stop < end && frame[stop] != '\r' && frame[stop] != '\n')
+                stop++;
+            samples += this.line(frame, start, stop, timestamp, sink);
+            start = stop + 1;
+        }
+        return (samples);
+    }
+
+    /**
+     * Method:
+     *      line( byte[], int, int, long, SampleSinkInterface )
+     *
+     * Description:
+     *      Parses one response line into the line buffer and routes it by
+     *      layout: headerless segment ("N:"), headerless length, CAN header,
+     *      legacy header, or plain single frame.
+     */
+    private int line(byte[] frame, int start, int stop, long timestamp, SampleSinkInterface sink) {
+        int digits = 0;
+        int value = 0;
+        int count = 0;
+        int sequence = -1;
+
+        for (int i = start; i < stop; i++) {
+            int c = frame[i];
+            int nibble;
+            if (c >= '0' && c <= '9')
+                nibble = c - '0';
+            else if (c >= 'A' && c <= 'F')
+                nibble = c - 'A' + 10;
+            else if (c >= 'a' && c <= 'f')
+                nibble = c - 'a' + 10;
+            else if (c == ' ')
+                continue;
+            else if (c == ':' && digits == 1 && sequence < 0) {
+                sequence = value;
+                digits = 0;
+                value = 0;
+                continue;
+            } else
+                return (0); /* Not data (echo text, SEARCHING..., NO DATA, ...). */
+
+            value = (value << 4) | nibble;
+            if (++digits == 2 && count < MAX_PAYLOAD) {
+                this.line[count++] = value;
+                digits = 0;
+                value = 0;
+            }
+        }
+
+        /* Headerless ISO-TP segment. */
+        if (sequence >= 0) {
+            int slot = this.slot(OBDMessage.NO_HEADER, false);
+            if (slot < 0)
+                return (0);
+            this.append(slot, 0, count);
+            return (this.complete(slot, timestamp, sink));
+        }
+
+        /* Headerless ISO-TP length line (three hex digits). */
+        if (count == 1 && digits == 1 && !this.legacyHeaders) {
+            int slot = this.slot(OBDMessage.NO_HEADER, true);
+            this.slotLength[slot] = (this.line[0] << 4) | value;
+            this.slotSize[slot] = 0;
+            return (0);
+        }
+
+        if (this.legacyHeaders) {
+            if (count < 5)
+                return (0);
+            return (this.emit(this.line, 3, count - 4, this.line[2], timestamp, sink));
+        }
+
+        /* 11-bit CAN header: three digits, so the digit count is odd. */
+        int ecu;
+        int pci;
+        if (digits == 1) {
+            if (count < 2)
+                return (0);
+            ecu = (this.line[0] << 4) | (this.line[1] >> 4);
+            /* Re-align: every following byte straddles two parsed bytes. */
+            for (int i = 1; i < count; i++)
+                this.line[i - 1] = ((this.line[i] & 0x0F) << 4) | ((i + 1 < count) ? this.line[i + 1] >> 4 : value);
+            count -= 1;
+            pci = this.line[0];
+            return (this.can(ecu, pci, 1, count, timestamp, sink));
+        }
+
+        /* 29-bit CAN header (18 DA F1 xx). */
+        if (count >= 5 && this.line[0] == 0x18 && this.line[1] == 0xDA) {
+            ecu = (this.line[0] << 24) | (this.line[1] << 16) | (this.line[2] << 8) | this.line[3];
+            return (this.can(ecu, this.line[4], 5, count, timestamp, sink));
+        }
+
+        /* Plain single frame. */
+        return (this.emit(this.line, 0, count, OBDMessage.NO_HEADER, timestamp, sink));
+    }
+
+    /**
+     * Method:
+     *      can( int, int, int, int, long, SampleSinkInterface )
+     *
+     * Description:
+     *      Handles one CAN line after its header: single, first or consecutive frame.
+     */
+    private int can(int ecu, int pci, int dataAt, int count, long timestamp, SampleSinkInterface sink) {
+        switch (pci >> 4) {
+            case 0x0:
+                return (this.emit(this.line, dataAt, Math.min(pci & 0x0F, count - dataAt), ecu, timestamp, sink));
+            case 0x1: {
+                if (dataAt + 1 > count)
+                    return (0);
+                int slot = this.slot(ecu, true);
+                this.slotLength[slot] = Math.min(((pci & 0x0F) << 8) | this.line[dataAt], MAX_PAYLOAD);
+                this.slotSize[slot] = 0;
+                this.append(slot, dataAt + 1, count);
+                return (0);
+            }
+            case 0x2: {
+                int slot = this.slot(ecu, false);
+                if (slot < 0)
+                    return (0);
+                this.append(slot, dataAt, count);
+                return (this.complete(slot, timestamp, sink));
+            }
+            default:
+                return (0);
+        }
+    }
+
+    /**
+     * Method:
+     *      slot( int, boolean )
+     *
+     * @param   ecu     ECU header.
+     * @param   create  Whether to claim a free slot if none is assigned.
+     * @return  int     Slot index, or -1.
+     */
+    private int slot(int ecu, boolean create) {
+        int free = -1;
+        for (int i = 0; i < MAX_ECUS; i++) {
+            if (this.slotLength[i] != 0 && this.slotEcu[i] == ecu)
+                return (i);
+            if (this.slotLength[i] == 0 && free < 0)
+                free = i;
+        }
+        if (!create)
+            return (-1);
+        if (free < 0)
+            free = 0;
+        this.slotEcu[free] = ecu;
+        this.slotLength[free] = MAX_PAYLOAD;
+        return (free);
+    }
+
+    private void append(int slot, int from, int to) {
+        int[] data = this.slotData[slot];
+        for (int i = from; i < to && this.slotSize[slot] < this.slotLength[slot]; i++)
+            data[this.slotSize[slot]++] = this.line[i];
+    }
+
+    private int complete(int slot, long timestamp, SampleSinkInterface sink) {
+        if (this.slotSize[slot] < this.slotLength[slot])
+            return (0);
+        int samples = this.emit(this.slotData[slot], 0, this.slotSize[slot], this.slotEcu[slot], timestamp, sink);
+        this.slotLength[slot] = 0;
+        return (samples);
+    }
+
+    /**
+     * Method:
+     *      emit( int[], int, int, int, long, SampleSinkInterface )
+     *
+     * Description:
+     *      Splits one complete Mode 01 payload into PIDs and writes their values.
+     *
+     * @return  int     Number of samples written.
+     */
+    private int emit(int[] payload, int from, int length, int ecu, long timestamp, SampleSinkInterface sink) {
+        if (length < 2 || payload[from] != 0x41)
+            return (0);
+
+        int samples = 0;
+        int end = from + length;
+        int i = from + 1;
+        while (i < end) {
+            int pid = payload[i];
+            int n = PIDTable.length(pid);
+            if (n == 0 || i + 1 + n > end)
+                n = end - i - 1;
+            int a = (n > 0) ? payload[i + 1] : 0;
+            int b = (n > 1) ? payload[i + 2] : 0;
+            int c = (n > 2) ? payload[i + 3] : 0;
+            int d = (n > 3) ? payload[i + 4] : 0;
+            sink.sample(pid, ecu, timestamp, value(pid, n, a, b, c, d));
+            samples++;
+            i += 1 + n;
+        }
+        return (samples);
+    }
+
+    private static void formula(int first, int last, byte type, double scale, double offset) {
+        for (int pid = first; pid <= last; pid++) {
+            FORMULA[pid] = type;
+            SCALE[pid] = scale;
+            OFFSET[pid] = offset;
+        }
+    }
+}
@@ -0,0 +1,557 @@
+package com.github.zanderman.obd.classes;
+
+import com.github.zanderman.obd.interfaces.PIDCallbackInterface;
+import com.github.zanderman.obd.interfaces.SchedulerCallbackInterface;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class:
+ *      PIDScheduler
+ *
+ * Description:
+ *      Rate-based polling of Mode 01 PIDs with per-signal frequencies.
+ *
+ *      Each PID is registered with a target rate and a priority (e.g. RPM at
+ *      20 Hz, speed at 10 Hz, coolant at 0.2 Hz). The scheduler issues reads
+ *      through a PIDBatcher on top of the OBDAdapter and keeps at most one
+ *      batch worth of reads outstanding. Replacements are chosen the moment a
+ *      read completes, so the request rate follows the link capacity instead
+ *      of a fixed loop and every prompt slot goes to the most urgent PID.
+ *      Due PIDs are ordered by how late they are relative to their period,
+ *      weighted by priority, so an overloaded link sheds the low-priority
+ *      signals first. PIDs that run well below their target are reported
+ *      through SchedulerCallbackInterface. PIDs the vehicle does not support
+ *      (NO DATA, or unsupported according to the batcher's SupportedPids) are
+ *      disabled on their first poll. The scheduler runs on its own thread or
+ *      on a shared ScheduledExecutorService (see OBDManager).
+ *
+ *      All rates can be scaled down together (setRateScale(), e.g. by an
+ *      ActivityMonitor while the vehicle idles) or polling paused with a
+ *      scale of 0. Raising the scale makes every PID due at once, so full
+ *      rate is back within one cycle.
+ */
+public class PIDScheduler {
+
+    /**
+     * Constants
+     */
+    private static final double SHORTFALL = 0.9;    /* Report below 90 % of target. */
+    private static final double RECOVERY = 0.95;    /* Clear the report above 95 % of target. */
+    private static final double ALPHA = 0.2;        /* EWMA weight for rate measurements. */
+    private static final int MIN_SAMPLES = 5;       /* Samples before a shortfall is reported. */
+
+    /**
+     * Private Members
+     */
+    private final PIDBatcher batcher;
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final CopyOnWriteArrayList<SchedulerCallbackInterface> listeners = new CopyOnWriteArrayList<SchedulerCallbackInterface>();
+    private int inFlight;
+    private volatile boolean running;
+    private Thread thread;
+    private ScheduledExecutorService executor;  /* Shared mode: runs tick. */
+    private ScheduledFuture<?> timer;
+    private long timerAt = Long.MAX_VALUE;
+    private double scale = 1.0;     /* Fraction of the registered rates polled; 0 = paused. */
+
+    /* Link measurements. */
+    private long lastCompletion;
+    private double completionInterval;  /* EWMA of nanoseconds between delivered PIDs. */
+
+
+    /**
+     * Constructor:
+     *      PIDScheduler( OBDAdapter )
+     *
+     * @param   adapter     Connected adapter used as the command sink.
+     */
+    public PIDScheduler(OBDAdapter adapter) {
+        this(new PIDBatcher(adapter));
+    }
+
+    /**
+     * Constructor:
+     *      PIDScheduler( PIDBatcher )
+     *
+     * @param   batcher     Batching layer used to issue reads.
+     */
+    public PIDScheduler(PIDBatcher batcher) {
+        super();
+
+        this.batcher = batcher;
+    }
+
+    /**
+     * Method:
+     *      getBatcher( )
+     *
+     * @return  PIDBatcher  Batching layer used by this scheduler.
+     */
+    public PIDBatcher getBatcher() {
+        return (this.batcher);
+    }
+
+    /**
+     * Method:
+     *      register( int, double, int, PIDCallbackInterface )
+     *
+     * Description:
+     *      Registers (or re-registers) a PID for periodic polling.
+     *
+     * @param   pid         Mode 01 PID.
+     * @param   rateHz      Target sample rate (above 0).
+     * @param   priority    Relative importance; higher values win under load.
+     * @param   callback    Receives every sample.
+     */
+    public synchronized void register(int pid, double rateHz, int priority, PIDCallbackInterface callback) {
+        if (!(rateHz > 0))
+            throw new IllegalArgumentException("Rate must be positive");
+        this.unregister(pid);
+        Entry entry = new Entry(pid & 0xFF, rateHz, priority, callback);
+        entry.due = System.nanoTime();
+        this.entries.add(entry);
+        this.notifyAll();
+        this.arm(entry.due);
+    }
+
+    /**
+     * Method:
+     *      unregister( int )
+     *
+     * @param   pid     Mode 01 PID to stop polling.
+     */
+    public synchronized void unregister(int pid) {
+        for (int i = 0; i < this.entries.size(); i++) {
+            if (this.entries.get(i).pid == (pid & 0xFF)) {
+                this.entries.remove(i).removed = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Method:
+     *      addListener( SchedulerCallbackInterface )
+     *
+     * @param   listener    Receiver of rate reports.
+     */
+    public void addListener(SchedulerCallbackInterface listener) {
+        this.listeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Method:
+     *      removeListener( SchedulerCallbackInterface )
+     *
+     * @param   listener    Receiver of rate reports.
+     */
+    public void removeListener(SchedulerCallbackInterface listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Method:
+     *      start( )
+     *
+     * Description:
+     *      Starts the scheduling thread.
+     */
+    public synchronized void start() {
+        if (this.thread != null || this.executor != null)
+            return;
+        this.running = true;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                schedule();
+            }
+        }, "PIDScheduler");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Method:
+     *      start( ScheduledExecutorService )
+     *
+     * Description:
+     *      Starts scheduling on a shared executor instead of a thread of its own.
+     *
+     * @param   executor    Shared scheduler.
+     */
+    public synchronized void start(ScheduledExecutorService executor) {
+        if (this.thread != null || this.executor != null)
+            return;
+        this.running = true;
+        this.executor = executor;
+        this.arm(System.nanoTime());
+    }
+
+    /**
+     * Method:
+     *      stop( )
+     *
+     * Description:
+     *      Stops issuing reads. Reads already outstanding still complete.
+     */
+    public synchronized void stop() {
+        this.running = false;
+        if (this.thread != null) {
+            this.thread.interrupt();
+            this.thread = null;
+        }
+        if (this.timer != null)
+            this.timer.cancel(false);
+        this.timer = null;
+        this.timerAt = Long.MAX_VALUE;
+        this.executor = null;
+    }
+
+    /**
+     * Method:
+     *      setRateScale( double )
+     *
+     * Description:
+     *      Polls every PID at a fraction of its registered rate. Going up,
+     *      every PID becomes due immediately; coming back from a pause, PIDs
+     *      disabled by NO DATA while the vehicle was quiet are polled again
+     *      (one that is really unsupported is disabled on its first poll).
+     *      Rate measurements start over.
+     *
+     * @param   scale   Fraction of the registered rates (0 - 1); 0 pauses polling.
+     */
+    public synchronized void setRateScale(double scale) {
+        double previous = this.scale;
+        this.scale = Math.max(0, Math.min(1, scale));
+        long now = System.nanoTime();
+        for (Entry entry : this.entries) {
+            if (this.scale > previous && entry.due > now)
+                entry.due = now;
+            entry.lastSample = 0;
+            entry.interval = 0;
+            entry.samples = 0;
+            entry.reported = false;
+        }
+        this.lastCompletion = 0;
+        this.completionInterval = 0;
+        if (previous == 0 && this.scale > 0)
+            this.resume();
+        this.notifyAll();
+        this.arm(now);
+    }
+
+    /**
+     * Method:
+     *      resume( )
+     *
+     * Description:
+     *      Polls again, right away, every PID disabled by NO DATA (e.g. once
+     *      the vehicle answers again after a transient NO DATA).
+     */
+    public synchronized void resume() {
+        long now = System.nanoTime();
+        for (Entry entry : this.entries) {
+            if (entry.disabled) {
+                entry.disabled = false;
+                entry.due = now;
+            }
+        }
+        this.notifyAll();
+        this.arm(now);
+    }
+
+    /**
+     * Method:
+     *      getRateScale( )
+     *
+     * @return  double  Fraction of the registered rates being polled (0 = paused).
+     */
+    public synchronized double getRateScale() {
+        return (this.scale);
+    }
+
+    /**
+     * Method:
+     *      getCapacity( )
+     *
+     * @return  double  Measured link capacity in PID samples per second (0 until measured).
+     */
+    public synchronized double getCapacity() {
+        return ((this.completionInterval > 0) ? 1e9 / this.completionInterval : 0);
+    }
+
+    /**
+     * Method:
+     *      getDemand( )
+     *
+     * @return  double  Sum of all registered target rates in samples per second.
+     */
+    public synchronized double getDemand() {
+        double demand = 0;
+        for (Entry entry : this.entries)
+            if (!entry.disabled)
+                demand += entry.rate;
+        return (demand);
+    }
+
+    /**
+     * Method:
+     *      getAchievedRate( int )
+     *
+     * @param   pid     Mode 01 PID.
+     * @return  double  Measured sample rate of the PID (0 until measured).
+     */
+    public synchronized double getAchievedRate(int pid) {
+        for (Entry entry : this.entries)
+            if (entry.pid == (pid & 0xFF))
+                return (entry.achieved());
+        return (0);
+    }
+
+    /**
+     * Method:
+     *      schedule( )
+     *
+     * Description:
+     *      Scheduler thread body. Sleeps until the next deadline (or until a
+     *      registration changes) and issues whatever is due.
+     */
+    private void schedule() {
+        while (this.running) {
+            try {
+                long wake = this.pump();
+                synchronized (this) {
+                    long delay = wake - System.nanoTime();
+                    if (wake == Long.MAX_VALUE)
+                        this.wait();
+                    else if (delay > 0)
+                        this.wait(delay / 1000000L, (int) (delay % 1000000L));
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Shared mode: issues what is due and re-arms for the next deadline.
+     */
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            long wake = pump();
+            synchronized (PIDScheduler.this) {
+                if (timerAt <= System.nanoTime()) {
+                    timer = null;
+                    timerAt = Long.MAX_VALUE;
+                }
+                arm(wake);
+            }
+        }
+    };
+
+    /**
+     * Method:
+     *      arm( long )
+     *
+     * Description:
+     *      Shared mode: makes sure a tick runs no later than the given time.
+     *      Caller holds the monitor; does nothing in thread mode.
+     *
+     * @param   wake    System.nanoTime() of the next deadline, or Long.MAX_VALUE.
+     */
+    private void arm(long wake) {
+        if (this.executor == null || !this.running || wake == Long.MAX_VALUE)
+            return;
+        if (this.timer != null && this.timerAt <= wake)
+            return;
+        if (this.timer != null)
+            this.timer.cancel(false);
+        this.timerAt = wake;
+        this.timer = this.executor.schedule(this.tick, Math.max(0, wake - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Method:
+     *      pump( )
+     *
+     * Description:
+     *      Issues the most urgent due PIDs while fewer than one batch worth of
+     *      reads is outstanding.
+     *
+     * @return  long    System.nanoTime() of the next future deadline, or Long.MAX_VALUE.
+     */
+    private long pump() {
+        List<Entry> issue = new ArrayList<Entry>();
+        long wake = Long.MAX_VALUE;
+
+        synchronized (this) {
+            if (!this.running || this.scale == 0)
+                return (wake);
+
+            long now = System.nanoTime();
+            int window = this.batcher.isMultiPidSupported() ? this.batcher.getBatchSize() : 1;
+            for (Entry entry : this.entries)
+                if (!entry.inFlight && !entry.disabled && entry.due > now)
+                    wake = Math.min(wake, entry.due);
+
+            while (this.inFlight < window) {
+                Entry best = null;
+                double bestScore = 0;
+                for (Entry entry : this.entries) {
+                    if (entry.inFlight || entry.disabled || entry.due > now)
+                        continue;
+                    double score = entry.urgency(now);
+                    if (best == null || score > bestScore) {
+                        best = entry;
+                        bestScore = score;
+                    }
+                }
+                if (best == null)
+                    break;
+                best.inFlight = true;
+                this.inFlight++;
+                issue.add(best);
+            }
+        }
+
+        for (Entry entry : issue)
+            this.batcher.request(entry.pid, entry);
+        return (wake);
+    }
+
+    /**
+     * Method:
+     *      completed( Entry, boolean )
+     *
+     * Description:
+     *      Updates deadlines and rate measurements when a read finishes and
+     *      reports rate shortfalls or recoveries.
+     */
+    private void completed(Entry entry, boolean success) {
+        int report = 0;
+        double achieved;
+        synchronized (this) {
+            if (!entry.inFlight)
+                return; /* Additional ECUs answering the same read. */
+            long now = System.nanoTime();
+            entry.inFlight = false;
+            this.inFlight--;
+
+            /* Next deadline: one period after the previous one, but never in the past by more than a period. */
+            long period = (this.scale > 0) ? (long) (entry.period / this.scale) : entry.period;
+            entry.due = Math.max(entry.due + period, now - period);
+
+            if (success) {
+                if (this.lastCompletion != 0)
+                    this.completionInterval = ewma(this.completionInterval, now - this.lastCompletion);
+                this.lastCompletion = now;
+
+                if (entry.lastSample != 0) {
+                    entry.interval = ewma(entry.interval, now - entry.lastSample);
+                    entry.samples++;
+                }
+                entry.lastSample = now;
+            }
+
+            achieved = entry.achieved();
+            if (entry.samples >= MIN_SAMPLES) {
+                if (!entry.reported && achieved < entry.rate * this.scale * SHORTFALL) {
+                    entry.reported = true;
+                    report = 1;
+                } else if (entry.reported && achieved >= entry.rate * this.scale * RECOVERY) {
+                    entry.reported = false;
+                    report = -1;
+                }
+            }
+            this.notifyAll();
+        }
+
+        /* Choose the replacement while the batcher is still completing, so it rides in the next batch. */
+        long wake = this.pump();
+        synchronized (this) {
+            this.arm(wake);
+        }
+
+        for (SchedulerCallbackInterface listener : this.listeners) {
+            if (report > 0)
+                listener.rateUnattainable(entry.pid, entry.rate, achieved);
+            else if (report < 0)
+                listener.rateRestored(entry.pid, entry.rate, achieved);
+        }
+    }
+
+    private static double ewma(double average, double sample) {
+        return ((average == 0) ? sample : average + ALPHA * (sample - average));
+    }
+
+
+    /**
+     * Class:
+     *      Entry
+     *
+     * Description:
+     *      Scheduling state of one registered PID.
+     */
+    private class Entry implements PIDCallbackInterface {
+        final int pid;
+        final double rate;
+        final long period;
+        final int priority;
+        final PIDCallbackInterface callback;
+
+        long due;
+        boolean inFlight;
+        boolean disabled;
+        boolean removed;
+        boolean reported;
+        long lastSample;
+        double interval;
+        int samples;
+
+        Entry(int pid, double rate, int priority, PIDCallbackInterface callback) {
+            this.pid = pid;
+            this.rate = rate;
+            this.period = (long) (1e9 / rate);
+            this.priority = priority;
+            this.callback = callback;
+        }
+
+        /*
+         * Lateness in periods (1.0 = due now), scaled by priority.
+         */
+        double urgency(long now) {
+            double late = 1.0 + (double) (now - this.due) / this.period;
+            return (late * (1 + Math.max(0, this.priority)));
+        }
+
+        double achieved() {
+            return ((this.interval > 0) ? 1e9 / this.interval : 0);
+        }
+
+        @Override
+        public void pidReceived(int pid, int ecu, byte[] data, int offset, int length) {
+            if (!this.removed)
+                this.callback.pidReceived(pid, ecu, data, offset, length);
+            completed(this, true);
+        }
+
+        @Override
+        public void pidFailed(int pid, Exception cause) {
+            if (cause instanceof NoDataException) {
+                synchronized (PIDScheduler.this) {
+                    this.disabled = true;
+                }
+            }
+            if (!this.removed)
+                this.callback.pidFailed(pid, cause);
+            completed(this, false);
+        }
+    }
+}
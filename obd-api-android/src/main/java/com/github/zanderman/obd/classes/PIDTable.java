@@ -0,0 +1,68 @@
+package com.github.zanderman.obd.classes;
+
+/**
+ * Class:
+ *      PIDTable
+ *
+ * Description:
+ *      Static SAE J1979 reference data for Mode 01 PIDs, indexed by PID.
+ */
+public final class PIDTable {
+
+    /**
+     * Number of data bytes returned for each Mode 01 PID (0 when unknown).
+     */
+    private static final byte[] LENGTHS = new byte[256];
+
+    static {
+        int[][] ranges = {
+                /* { first PID, last PID, data bytes } */
+                {0x00, 0x01, 4}, {0x02, 0x03, 2}, {0x04, 0x0B, 1}, {0x0C, 0x0C, 2},
+                {0x0D, 0x0F, 1}, {0x10, 0x10, 2}, {0x11, 0x13, 1}, {0x14, 0x1B, 2},
+                {0x1C, 0x1E, 1}, {0x1F, 0x1F, 2}, {0x20, 0x20, 4}, {0x21, 0x23, 2},
+                {0x24, 0x2B, 4}, {0x2C, 0x30, 1}, {0x31, 0x32, 2}, {0x33, 0x33, 1},
+                {0x34, 0x3B, 4}, {0x3C, 0x3F, 2}, {0x40, 0x41, 4}, {0x42, 0x44, 2},
+                {0x45, 0x4C, 1}, {0x4D, 0x4E, 2}, {0x4F, 0x50, 4}, {0x51, 0x52, 1},
+                {0x53, 0x59, 2}, {0x5A, 0x5C, 1}, {0x5D, 0x5E, 2}, {0x5F, 0x5F, 1},
+                {0x60, 0x60, 4}, {0x61, 0x62, 1}, {0x63, 0x63, 2}, {0x64, 0x64, 5},
+                {0x65, 0x65, 2}, {0x66, 0x66, 5}, {0x67, 0x67, 3}, {0x68, 0x69, 7},
+                {0x6A, 0x6C, 5}, {0x6D, 0x6D, 11}, {0x6E, 0x6E, 9}, {0x6F, 0x6F, 3},
+                {0x70, 0x70, 10}, {0x71, 0x71, 6}, {0x72, 0x74, 5}, {0x75, 0x76, 7},
+                {0x77, 0x77, 5}, {0x78, 0x79, 9}, {0x7A, 0x7B, 7}, {0x7C, 0x7C, 9},
+                {0x7D, 0x7E, 1}, {0x7F, 0x7F, 13}, {0x80, 0x80, 4}, {0x81, 0x82, 41},
+                {0x83, 0x83, 9}, {0x84, 0x84, 1}, {0x85, 0x85, 10}, {0x86, 0x87, 5},
+                {0x88, 0x88, 13}, {0x89, 0x8A, 41}, {0x8B, 0x8B, 7}, {0x8C, 0x8C, 17},
+                {0x8D, 0x8E, 1}, {0x8F, 0x8F, 7}, {0x90, 0x90, 3}, {0x91, 0x91, 5},
+                {0x92, 0x92, 2}, {0x93, 0x93, 3}, {0x94, 0x94, 12}, {0x98, 0x99, 9},
+                {0x9A, 0x9A, 6}, {0x9B, 0x9B, 4}, {0x9C, 0x9C, 17}, {0x9D, 0x9D, 4},
+                {0x9E, 0x9E, 2}, {0x9F, 0x9F, 9}, {0xA0, 0xA0, 4}, {0xA1, 0xA1, 9},
+                {0xA2, 0xA2, 2}, {0xA3, 0xA3, 9}, {0xA4, 0xA6, 4}, {0xC0, 0xC0, 4}
+        };
+        for (int[] range : ranges)
+            for (int pid = range[0]; pid <= range[1]; pid++)
+                LENGTHS[pid] = (byte) range[2];
+    }
+
+
+    /**
+     * Constructor:
+     *      PIDTable( )
+     *
+     * Description:
+     *      Static helper; not instantiable.
+     */
+    private PIDTable() {
+        super();
+    }
+
+    /**
+     * Method:
+     *      length( int )
+     *
+     * @param   pid     Mode 01 PID.
+     * @return  int     Number of data bytes the PID returns, or 0 when unknown.
+     */
+    public static int length(int pid) {
+        return (LENGTHS[pid & 0xFF]);
+    }
+}
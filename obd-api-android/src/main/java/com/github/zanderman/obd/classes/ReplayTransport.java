@@ -0,0 +1,349 @@
+package com.github.zanderman.obd.classes;
+
+import com.github.zanderman.obd.interfaces.OBDTransport;
+import com.github.zanderman.obd.interfaces.TripLogCallbackInterface;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Class:
+ *      ReplayTransport
+ *
+ * Description:
+ *      In-process OBDTransport that answers commands from a recorded trip log,
+ *      so an OBDAdapter (and everything built on it) runs against a real
+ *      session without a car or Bluetooth.
+ *
+ *      Each command written is matched to the next recorded exchange with the
+ *      same command (a few unmatched recorded exchanges may be skipped) and
+ *      answered with the frames recorded for it, followed by a '>' prompt.
+ *      Commands that have no recorded counterpart are answered with "?".
+ *
+ *      Timing follows the speed factor: at 1.0 every response is released no
+ *      earlier than its original position on the trip timeline (and never
+ *      sooner than its original latency after the command), at N times that
+ *      timeline is compressed N-fold, and at MAX_SPEED responses are released
+ *      immediately. When the recording is exhausted the input stream ends,
+ *      exactly as a dropped link would.
+ */
+public class ReplayTransport implements OBDTransport {
+
+    /**
+     * Constants
+     */
+    public static final double REAL_TIME = 1.0;
+    public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+    private static final int LOOKAHEAD = 32;    /* Recorded exchanges that may be skipped to find a match. */
+    private static final byte[] PROMPT = {'>'};
+    private static final String UNKNOWN = "?\r\r>";
+
+    /**
+     * Private Members
+     */
+    private final ByteQueueInputStream inputStream = new ByteQueueInputStream();
+    private final ReplayOutputStream outputStream = new ReplayOutputStream();
+    private final BlockingQueue<String> commands = new LinkedBlockingQueue<String>();
+    private volatile boolean open;
+    private volatile double speed = REAL_TIME;
+    private Thread worker;
+
+    /* Recording: exchange i covers frames [firstFrame[i], firstFrame[i + 1]). */
+    private final List<String> exchangeCommands = new ArrayList<String>();
+    private final List<Long> exchangeTimes = new ArrayList<Long>();
+    private final List<Integer> firstFrame = new ArrayList<Integer>();
+    private final List<byte[]> frames = new ArrayList<byte[]>();
+    private final List<Long> frameTimes = new ArrayList<Long>();
+
+    /* Replay state (worker thread). */
+    private int cursor;
+    private long base;
+    private boolean started;
+    private volatile int replayed;
+    private volatile int skipped;
+    private volatile int mismatches;
+
+
+    /**
+     * Constructor:
+     *      ReplayTransport( File )
+     *
+     * @param   path            Trip log to replay.
+     * @throws  IOException     The log could not be read.
+     */
+    public ReplayTransport(File path) throws IOException {
+        this(new TripLogReader(path));
+    }
+
+    /**
+     * Constructor:
+     *      ReplayTransport( TripLogReader )
+     *
+     * Description:
+     *      Loads every exchange of a trip log into memory.
+     *
+     * @param   log             Trip log to replay.
+     * @throws  IOException     The log is corrupt.
+     */
+    public ReplayTransport(TripLogReader log) throws IOException {
+        super();
+
+        log.scan(new TripLogCallbackInterface() {
+            @Override
+            public void commandRecorded(long micros, String command) {
+                exchangeCommands.add(normalize(command));
+                exchangeTimes.add(micros);
+                firstFrame.add(frames.size());
+            }
+
+            @Override
+            public void frameRecorded(long micros, byte[] buffer, int offset, int length) {
+                if (exchangeCommands.isEmpty())
+                    return; /* Nothing asked for it. */
+                byte[] frame = new byte[length];
+                System.arraycopy(buffer, offset, frame, 0, length);
+                frames.add(frame);
+                frameTimes.add(micros);
+            }
+
+            @Override
+            public void valueRecorded(long micros, int pid, int ecu, double value) {
+                /* Decoded values are derived again by the code under test. */
+            }
+        });
+        this.firstFrame.add(this.frames.size());
+    }
+
+    /**
+     * Method:
+     *      setSpeed( double )
+     *
+     * @param   factor  REAL_TIME, a multiple of it, or MAX_SPEED.
+     */
+    public void setSpeed(double factor) {
+        if (!(factor > 0))
+            throw new IllegalArgumentException("Speed must be positive: " + factor);
+        this.speed = factor;
+    }
+
+    /**
+     * Method:
+     *      getExchangeCount( )
+     *
+     * @return  int     Number of recorded command/response exchanges.
+     */
+    public int getExchangeCount() {
+        return (this.exchangeCommands.size());
+    }
+
+    /**
+     * Method:
+     *      getReplayed( )
+     *
+     * @return  int     Exchanges answered from the recording since open().
+     */
+    public int getReplayed() {
+        return (this.replayed);
+    }
+
+    /**
+     * Method:
+     *      getSkipped( )
+     *
+     * @return  int     Recorded exchanges passed over to find a matching command.
+     */
+    public int getSkipped() {
+        return (this.skipped);
+    }
+
+    /**
+     * Method:
+     *      getMismatches( )
+     *
+     * @return  int     Commands with no recorded counterpart (answered with "?").
+     */
+    public int getMismatches() {
+        return (this.mismatches);
+    }
+
+
+    /*
+     * ---------------------------------------------------------------------
+     *  OBDTransport implementation.
+     * ---------------------------------------------------------------------
+     */
+
+    @Override
+    public synchronized void open() throws IOException {
+        if (this.open)
+            return;
+
+        this.commands.clear();
+        this.inputStream.reopen();
+        this.cursor = 0;
+        this.started = false;
+        this.replayed = 0;
+        this.skipped = 0;
+        this.mismatches = 0;
+        this.open = true;
+
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        }, "ReplayTransport");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        Thread w;
+        synchronized (this) {
+            this.open = false;
+            w = this.worker;
+            this.worker = null;
+        }
+        if (w != null)
+            w.interrupt();
+        this.inputStream.shutdown();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return (this.open);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return (this.inputStream);
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return (this.outputStream);
+    }
+
+
+    /*
+     * ---------------------------------------------------------------------
+     *  Replay.
+     * ---------------------------------------------------------------------
+     */
+
+    /**
+     * Method:
+     *      replay( )
+     *
+     * Description:
+     *      Worker loop: answers each command line from the recording in
+     *      arrival order.
+     */
+    private void replay() {
+        while (this.open) {
+            try {
+                String command = normalize(this.commands.take());
+                long written = System.nanoTime();
+
+                int match = this.find(command);
+                if (match < 0) {
+                    if (this.cursor >= this.exchangeCommands.size()) {
+                        this.inputStream.shutdown();    /* Recording exhausted. */
+                        return;
+                    }
+                    this.mismatches++;
+                    this.inputStream.push(UNKNOWN);
+                    continue;
+                }
+                this.skipped += match - this.cursor;
+                this.cursor = match + 1;
+                this.replayed++;    /* Counted before the reply can complete the command. */
+
+                long tx = this.exchangeTimes.get(match);
+                if (!this.started) {
+                    this.base = written - this.scale(tx);
+                    this.started = true;
+                }
+                for (int f = this.firstFrame.get(match); f < this.firstFrame.get(match + 1); f++) {
+                    long rx = this.frameTimes.get(f);
+                    sleepUntil(Math.max(this.base + this.scale(rx), written + this.scale(rx - tx)));
+                    byte[] frame = this.frames.get(f);
+                    this.inputStream.push(frame, 0, frame.length);
+                    this.inputStream.push(PROMPT, 0, 1);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Method:
+     *      find( String )
+     *
+     * @return  int     Index of the next recorded exchange for the command, or -1.
+     */
+    private int find(String command) {
+        int limit = Math.min(this.exchangeCommands.size(), this.cursor + LOOKAHEAD);
+        for (int i = this.cursor; i < limit; i++)
+            if (this.exchangeCommands.get(i).equals(command))
+                return (i);
+        return (-1);
+    }
+
+    /**
+     * Method:
+     *      scale( long )
+     *
+     * @return  long    Recorded microseconds converted to replay nanoseconds.
+     */
+    private long scale(long micros) {
+        double factor = this.speed;
+        return ((factor == MAX_SPEED) ? 0 : (long) (micros * 1000.0 / factor));
+    }
+
+    private static void sleepUntil(long deadline) throws InterruptedException {
+        long remaining = deadline - System.nanoTime();
+        if (remaining > 0)
+            Thread.sleep(remaining / 1000000L, (int) (remaining % 1000000L));
+    }
+
+    private static String normalize(String command) {
+        return (command.replace(" ", "").toUpperCase(Locale.US));
+    }
+
+
+    /**
+     * Class:
+     *      ReplayOutputStream
+     *
+     * Description:
+     *      Collects written bytes into command lines terminated by '\r'.
+     */
+    private class ReplayOutputStream extends OutputStream {
+        private final StringBuilder line = new StringBuilder();
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!open)
+                throw new IOException("Replay not open");
+            char c = (char) (b & 0xFF);
+            synchronized (this.line) {
+                if (c == '\r') {
+                    commands.add(this.line.toString());
+                    this.line.setLength(0);
+                } else if (c != '\n') {
+                    this.line.append(c);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.github.zanderman.obd.classes;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class:
+ *      ResponseCountHints
+ *
+ * Description:
+ *      Learns how many ECU responses each OBD request produces, so the request
+ *      can carry the ELM327 response-count digit (e.g. "010C1").
+ *
+ *      Without the digit the ELM327 keeps listening for further ECUs until its
+ *      own timeout (ATST) expires after the last reply; with it, the prompt
+ *      follows the expected reply immediately. A count is only used after it
+ *      was seen on several consecutive replies, never for multi-frame replies,
+ *      and is re-verified with an unhinted request every so often. Commands
+ *      that change the bus or protocol forget everything learned.
+ */
+class ResponseCountHints {
+
+    /**
+     * Constants
+     */
+    private static final int STABLE = 3;            /* Identical counts before a hint is used. */
+    private static final int REPROBE = 64;          /* Hinted uses between unhinted checks. */
+    private static final int MAX_COMMANDS = 256;    /* Distinct commands tracked before starting over. */
+    private static final int MAX_SINGLE_FRAME = 7;  /* Largest payload of a single CAN frame. */
+    private static final String[] RESETS = {"ATZ", "ATWS", "ATD", "ATSP", "ATTP", "ATSH", "ATCRA", "ATCF", "ATCM"};
+
+    /**
+     * Private Members
+     */
+    private final Map<String, Count> counts = new HashMap<String, Count>();
+    private boolean enabled = true;
+    private boolean unsupported;
+
+
+    /**
+     * Method:
+     *      setEnabled( boolean )
+     *
+     * @param   enabled     Whether learned hints may be sent.
+     */
+    synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Method:
+     *      isActive( )
+     *
+     * @return  boolean     True if hints are enabled and the adapter accepts them.
+     */
+    synchronized boolean isActive() {
+        return (this.enabled && !this.unsupported);
+    }
+
+    /**
+     * Method:
+     *      rejected( )
+     *
+     * Description:
+     *      The adapter answered a hinted request with "?": it does not support
+     *      hints, so none are sent for the rest of the connection.
+     */
+    synchronized void rejected() {
+        this.unsupported = true;
+    }
+
+    /**
+     * Method:
+     *      hint( String )
+     *
+     * @param   command     Command about to be written.
+     * @return  int         Response count to append (1 - 15), or 0 for none.
+     */
+    synchronized int hint(String command) {
+        if (!this.enabled || this.unsupported || !isRequest(command))
+            return (0);
+        Count c = this.counts.get(command);
+        if (c == null || c.streak < STABLE || c.responses < 1 || c.responses > 15)
+            return (0);
+        if (++c.uses % REPROBE == 0)
+            return (0);
+        return (c.responses);
+    }
+
+    /**
+     * Method:
+     *      observed( String, int, byte[], int, int )
+     *
+     * Description:
+     *      Learns from the reply to a command.
+     *
+     * @param   command     Command as submitted.
+     * @param   hint        Hint that was sent with it (0 for none).
+     * @param   frame       Reply frame.
+     * @param   offset      Frame start.
+     * @param   length      Frame length.
+     */
+    synchronized void observed(String command, int hint, byte[] frame, int offset, int length) {
+        if (command.startsWith("AT")) {
+            for (String reset : RESETS)
+                if (command.startsWith(reset))
+                    this.counts.clear();
+            return;
+        }
+        if (!isRequest(command))
+            return;
+
+        String wire = (hint > 0) ? command + Integer.toHexString(hint).toUpperCase() : command;
+        int responses;
+        try {
+            List<OBDMessage> messages = OBDResponseParser.parse(wire, frame, offset, length, false);
+            responses = messages.size();
+            for (OBDMessage message : messages)
+                if (message.payload.length > MAX_SINGLE_FRAME)
+                    responses = 0;  /* Multi-frame: never hinted. */
+        } catch (IOException e) {
+            this.counts.remove(command);
+            return;
+        }
+
+        Count c = this.counts.get(command);
+        if (c == null) {
+            if (this.counts.size() >= MAX_COMMANDS)
+                this.counts.clear();
+            c = new Count();
+            this.counts.put(command, c);
+        }
+        if (c.responses == responses && (hint == 0 || hint == responses)) {
+            c.streak++;
+        } else {
+            c.responses = responses;
+            c.streak = 1;
+        }
+    }
+
+    /**
+     * Method:
+     *      isRequest( String )
+     *
+     * @return  boolean     True for whole-byte hex OBD requests (mode and parameters).
+     */
+    private static boolean isRequest(String command) {
+        int n = command.length();
+        if (n < 4 || (n & 1) == 1)
+            return (false);
+        for (int i = 0; i < n; i++)
+            if (Character.digit(command.charAt(i), 16) < 0)
+                return (false);
+        return (true);
+    }
+
+
+    /**
+     * Class:
+     *      Count
+     *
+     * Description:
+     *      Learned response count of one request.
+     */
+    private static class Count {
+        int responses;
+        int streak;
+        int uses;
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.zanderman.obd.classes;
+
+import java.util.Random;
+
+/**
+ * Class:
+ *      RetryPolicy
+ *
+ * Description:
+ *      Number of connection attempts and the exponential backoff between them.
+ *
+ *      The wait after attempt n is initialDelay * multiplier^(n - 1), capped at
+ *      maxDelay and spread by up to +/- jitter so several adapters that failed
+ *      together do not retry in lockstep.
+ */
+public class RetryPolicy {
+
+    /**
+     * Constants
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 1, 0, 0);
+
+    /**
+     * Private Members
+     */
+    private final int maxAttempts;
+    private final long initialDelay;
+    private final double multiplier;
+    private final long maxDelay;
+    private final double jitter;
+    private final Random random = new Random();
+
+
+    /**
+     * Constructor:
+     *      RetryPolicy( )
+     *
+     * Description:
+     *      Five attempts, waiting 250 ms, 500 ms, 1 s and 2 s (+/- 20 %) in between.
+     */
+    public RetryPolicy() {
+        this(5, 250, 2.0, 8000, 0.2);
+    }
+
+    /**
+     * Constructor:
+     *      RetryPolicy( int, long, double, long, double )
+     *
+     * @param   maxAttempts     Attempts before giving up (at least 1).
+     * @param   initialDelay    Wait after the first failed attempt (in [ms]).
+     * @param   multiplier      Growth of the wait per failed attempt.
+     * @param   maxDelay        Longest wait (in [ms]).
+     * @param   jitter          Random spread of each wait (0 - 1, e.g. 0.2 for +/- 20 %).
+     */
+    public RetryPolicy(int maxAttempts, long initialDelay, double multiplier, long maxDelay, double jitter) {
+        super();
+
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialDelay = Math.max(0, initialDelay);
+        this.multiplier = Math.max(1.0, multiplier);
+        this.maxDelay = Math.max(this.initialDelay, maxDelay);
+        this.jitter = Math.max(0.0, Math.min(1.0, jitter));
+    }
+
+    /**
+     * Method:
+     *      getMaxAttempts( )
+     *
+     * @return  int     Attempts before giving up.
+     */
+    public int getMaxAttempts() {
+        return (this.maxAttempts);
+    }
+
+    /**
+     * Method:
+     *      delay( int )
+     *
+     * @param   attempt     Number of the attempt that just failed (1 for the first).
+     * @return  long        Wait before the next attempt (in [ms]).
+     */
+    public long delay(int attempt) {
+        double delay = Math.min(this.maxDelay, this.initialDelay * Math.pow(this.multiplier, Math.max(0, attempt - 1)));
+        if (this.jitter > 0) {
+            double spread;
+            synchronized (this.random) {
+                spread = this.random.nextDouble() * 2 - 1;
+            }
+            delay *= 1 + this.jitter * spread;
+        }
+        return (Math.round(delay));
+    }
+}
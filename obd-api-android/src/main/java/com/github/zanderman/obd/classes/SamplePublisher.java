@@ -0,0 +1,211 @@
+package com.github.zanderman.obd.classes;
+
+import com.github.zanderman.obd.interfaces.SampleSinkInterface;
+import com.github.zanderman.obd.interfaces.SampleSubscriberInterface;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Class:
+ *      SamplePublisher
+ *
+ * Description:
+ *      Publishes decoded samples as one stream per signal (Mode 01 PID) to
+ *      any number of subscribers, with Reactive Streams style demand and a
+ *      per-subscriber overflow policy (see SampleSubscription).
+ *
+ *      The publisher is a SampleSinkInterface: hand it to a PIDDecoder on the
+ *      reader thread like a SampleStore. Publishing a sample only appends it
+ *      to each subscriber's buffer and, if needed, schedules that
+ *      subscriber's delivery task; a slow UI or disk writer therefore never
+ *      stalls the reader, it only loses (or, with BUFFER, queues) samples.
+ *      Subscriber calls run on the executor given at subscription, or on the
+ *      publisher's own delivery thread. One thread publishes at a time.
+ */
+public class SamplePublisher implements SampleSinkInterface {
+
+    /**
+     * Overflow policies.
+     */
+    public enum Overflow {
+        DROP_OLDEST,        /* Keep the newest 'capacity' samples. */
+        CONFLATE_LATEST,    /* Keep only the newest sample. */
+        BUFFER              /* Keep every sample; fail past 'capacity'. */
+    }
+
+    /**
+     * Constants
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+    private static final SampleSubscription[] NONE = new SampleSubscription[0];
+
+    /**
+     * Private Members
+     */
+    private final AtomicReferenceArray<SampleSubscription[]> signals = new AtomicReferenceArray<SampleSubscription[]>(256);
+    private ThreadPoolExecutor delivery;    /* Own delivery thread, created on first use, exits when idle. */
+    private boolean closed;
+
+
+    /**
+     * Constructor:
+     *      SamplePublisher( )
+     */
+    public SamplePublisher() {
+        super();
+
+        for (int i = 0; i < 256; i++)
+            this.signals.set(i, NONE);
+    }
+
+    /**
+     * Method:
+     *      subscribe( int, SampleSubscriberInterface )
+     *
+     * Description:
+     *      Subscribes to a signal with DROP_OLDEST and the default capacity,
+     *      delivered on the publisher's own thread.
+     *
+     * @param   pid                 Mode 01 PID.
+     * @param   subscriber          Receiver of the samples.
+     * @return  SampleSubscription  New subscription.
+     */
+    public SampleSubscription subscribe(int pid, SampleSubscriberInterface subscriber) {
+        return (this.subscribe(pid, subscriber, Overflow.DROP_OLDEST, DEFAULT_CAPACITY, null));
+    }
+
+    /**
+     * Method:
+     *      subscribe( int, SampleSubscriberInterface, Overflow, int, Executor )
+     *
+     * Description:
+     *      Subscribes to a signal. subscriber.subscribed() is called first, on
+     *      the executor; samples flow once the subscriber requests them.
+     *
+     * @param   pid                 Mode 01 PID.
+     * @param   subscriber          Receiver of the samples.
+     * @param   policy              What to do with samples the subscriber is not ready for.
+     * @param   capacity            Samples kept for the subscriber (ignored by CONFLATE_LATEST).
+     * @param   executor            Runs the subscriber's calls (must not run them on the
+     *                              caller's thread), or null for the publisher's own thread.
+     * @return  SampleSubscription  New subscription.
+     */
+    public SampleSubscription subscribe(int pid, SampleSubscriberInterface subscriber, Overflow policy, int capacity,
+                                        Executor executor) {
+        pid &= 0xFF;
+        SampleSubscription subscription;
+        synchronized (this) {
+            if (executor == null)
+                executor = this.delivery();
+            subscription = new SampleSubscription(this, pid, subscriber, policy, capacity, executor);
+            if (this.closed) {
+                subscription.complete();
+                return (subscription);
+            }
+            SampleSubscription[] current = this.signals.get(pid);
+            SampleSubscription[] next = new SampleSubscription[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = subscription;
+            this.signals.set(pid, next);
+        }
+        subscription.signal();
+        return (subscription);
+    }
+
+    /**
+     * Method:
+     *      getSubscriberCount( int )
+     *
+     * @param   pid     Mode 01 PID.
+     * @return  int     Active subscriptions to the signal.
+     */
+    public int getSubscriberCount(int pid) {
+        return (this.signals.get(pid & 0xFF).length);
+    }
+
+    /**
+     * Method:
+     *      sample( int, int, long, double )
+     *
+     * Description:
+     *      Publishes a sample to the subscribers of its PID. Never blocks and,
+     *      except for BUFFER subscriptions, never allocates.
+     */
+    @Override
+    public void sample(int pid, int ecu, long timestamp, double value) {
+        SampleSubscription[] subscriptions = this.signals.get(pid & 0xFF);
+        for (int i = 0; i < subscriptions.length; i++)
+            subscriptions[i].offer(pid, ecu, timestamp, value);
+    }
+
+    /**
+     * Method:
+     *      close( )
+     *
+     * Description:
+     *      Ends every stream. Subscribers receive their buffered samples (as
+     *      far as requested) and then streamCompleted().
+     */
+    public void close() {
+        synchronized (this) {
+            if (this.closed)
+                return;
+            this.closed = true;
+        }
+        for (int pid = 0; pid < 256; pid++)
+            for (SampleSubscription subscription : this.signals.getAndSet(pid, NONE))
+                subscription.complete();
+    }
+
+    /**
+     * Method:
+     *      remove( SampleSubscription )
+     *
+     * Description:
+     *      Detaches a cancelled or failed subscription.
+     */
+    synchronized void remove(SampleSubscription subscription) {
+        int pid = subscription.getPid();
+        SampleSubscription[] current = this.signals.get(pid);
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] != subscription)
+                continue;
+            SampleSubscription[] next = (current.length == 1) ? NONE : new SampleSubscription[current.length - 1];
+            System.arraycopy(current, 0, next, 0, i);
+            System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+            this.signals.set(pid, next);
+            return;
+        }
+    }
+
+    /**
+     * Method:
+     *      delivery( )
+     *
+     * Description:
+     *      The publisher's own delivery thread, created on first use. Caller
+     *      holds the monitor.
+     *
+     * @return  Executor    Delivery executor.
+     */
+    private Executor delivery() {
+        if (this.delivery == null) {
+            this.delivery = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SamplePublisher");
+                    thread.setDaemon(true);
+                    return (thread);
+                }
+            });
+            this.delivery.allowCoreThreadTimeOut(true);
+        }
+        return (this.delivery);
+    }
+}
@@ -0,0 +1,184 @@
+package com.github.zanderman.obd.classes;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Class:
+ *      SampleRingBuffer
+ *
+ * Description:
+ *      Fixed-capacity time series of (timestamp, value) pairs stored in two
+ *      primitive columns.
+ *
+ *      One thread writes; any number of threads read at the same time without
+ *      locks. A reader copies the samples it wants and then re-reads the write
+ *      counter; samples the writer may have overwritten during the copy are
+ *      dropped from the result, so a snapshot is always consistent and never
+ *      blocks the writer. Values are kept as raw double bits so every slot
+ *      access has volatile ordering and no value is ever boxed.
+ */
+public class SampleRingBuffer {
+
+    /**
+     * Private Members
+     */
+    private final AtomicLongArray timestamps;
+    private final AtomicLongArray values;
+    private final AtomicLong count = new AtomicLong();  /* Samples ever written. */
+    private final int capacity;
+    private final int mask;
+
+
+    /**
+     * Constructor:
+     *      SampleRingBuffer( int )
+     *
+     * @param   capacity    Number of samples retained, rounded up to a power of two.
+     */
+    public SampleRingBuffer(int capacity) {
+        super();
+
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.timestamps = new AtomicLongArray(size);
+        this.values = new AtomicLongArray(size);
+    }
+
+    /**
+     * Method:
+     *      getCapacity( )
+     *
+     * @return  int     Number of samples retained.
+     */
+    public int getCapacity() {
+        return (this.capacity);
+    }
+
+    /**
+     * Method:
+     *      getCount( )
+     *
+     * @return  long    Number of samples ever written.
+     */
+    public long getCount() {
+        return (this.count.get());
+    }
+
+    /**
+     * Method:
+     *      add( long, double )
+     *
+     * Description:
+     *      Appends a sample, overwriting the oldest once full. Must only be
+     *      called from the single writer thread.
+     *
+     * @param   timestamp   Sample time.
+     * @param   value       Sample value.
+     */
+    public void add(long timestamp, double value) {
+        long index = this.count.get();
+        int slot = (int) (index & this.mask);
+        this.timestamps.lazySet(slot, timestamp);
+        this.values.lazySet(slot, Double.doubleToRawLongBits(value));
+        this.count.set(index + 1);
+    }
+
+    /**
+     * Method:
+     *      getLatestValue( )
+     *
+     * @return  double  Most recent value, or NaN when empty.
+     */
+    public double getLatestValue() {
+        long n = this.count.get();
+        if (n == 0)
+            return (Double.NaN);
+        return (Double.longBitsToDouble(this.values.get((int) ((n - 1) & this.mask))));
+    }
+
+    /**
+     * Method:
+     *      getLatestTimestamp( )
+     *
+     * @return  long    Most recent timestamp, or Long.MIN_VALUE when empty.
+     */
+    public long getLatestTimestamp() {
+        long n = this.count.get();
+        if (n == 0)
+            return (Long.MIN_VALUE);
+        return (this.timestamps.get((int) ((n - 1) & this.mask)));
+    }
+
+    /**
+     * Method:
+     *      snapshot( int, long[], double[] )
+     *
+     * Description:
+     *      Copies up to the most recent max samples, oldest first.
+     *
+     * @param   max         Maximum number of samples (bounded by the arrays).
+     * @param   timestamps  Receives timestamps.
+     * @param   values      Receives values.
+     * @return  int         Number of consistent samples copied.
+     */
+    public int snapshot(int max, long[] timestamps, double[] values) {
+        max = Math.min(max, Math.min(timestamps.length, values.length));
+        long end = this.count.get();
+        long start = Math.max(0, Math.max(end - max, end - this.capacity));
+        return (this.copy(start, end, timestamps, values));
+    }
+
+    /**
+     * Method:
+     *      since( long, long[], double[] )
+     *
+     * Description:
+     *      Copies the samples with a timestamp at or after the given time,
+     *      oldest first, as far as the arrays allow (most recent kept).
+     *
+     * @param   from        Earliest timestamp wanted.
+     * @param   timestamps  Receives timestamps.
+     * @param   values      Receives values.
+     * @return  int         Number of consistent samples copied.
+     */
+    public int since(long from, long[] timestamps, double[] values) {
+        int max = Math.min(timestamps.length, values.length);
+        long end = this.count.get();
+        long oldest = Math.max(0, Math.max(end - max, end - this.capacity + 1));
+
+        /* Timestamps are non-decreasing: walk back to the first one in the window. */
+        long start = end;
+        while (start > oldest && this.timestamps.get((int) ((start - 1) & this.mask)) >= from)
+            start--;
+        return (this.copy(start, end, timestamps, values));
+    }
+
+    /**
+     * Method:
+     *      copy( long, long, long[], double[] )
+     *
+     * Description:
+     *      Copies samples [start, end) and discards any the writer may have
+     *      overwritten while copying.
+     */
+    private int copy(long start, long end, long[] timestamps, double[] values) {
+        int n = (int) (end - start);
+        for (int i = 0; i < n; i++) {
+            int slot = (int) ((start + i) & this.mask);
+            timestamps[i] = this.timestamps.get(slot);
+            values[i] = Double.longBitsToDouble(this.values.get(slot));
+        }
+
+        /* The writer may be filling index 'now', which reuses the slot of index now - capacity. */
+        long now = this.count.get();
+        long valid = now - this.capacity + 1;
+        int skip = (int) Math.max(0, Math.min(n, valid - start));
+        if (skip > 0) {
+            System.arraycopy(timestamps, skip, timestamps, 0, n - skip);
+            System.arraycopy(values, skip, values, 0, n - skip);
+        }
+        return (n - skip);
+    }
+}
@@ -0,0 +1,110 @@
+package com.github.zanderman.obd.classes;
+
+import com.github.zanderman.obd.interfaces.SampleSinkInterface;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Class:
+ *      SampleStore
+ *
+ * Description:
+ *      Live sample history for an adapter: one SampleRingBuffer column per
+ *      Mode 01 PID.
+ *
+ *      The store is a SampleSinkInterface, so it can be handed straight to a
+ *      PIDDecoder on the reader thread (the single writer). UI threads read
+ *      windows with the lock-free snapshot methods of each column. A column is
+ *      bound to the first ECU that reports its PID; values for the same PID
+ *      from other ECUs are ignored.
+ */
+public class SampleStore implements SampleSinkInterface {
+
+    /**
+     * Constants
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Private Members
+     */
+    private final AtomicReferenceArray<SampleRingBuffer> columns = new AtomicReferenceArray<SampleRingBuffer>(256);
+    private final int[] ecus = new int[256];
+    private final int capacity;
+
+
+    /**
+     * Constructor:
+     *      SampleStore( )
+     *
+     * Description:
+     *      Creates a store retaining DEFAULT_CAPACITY samples per PID.
+     */
+    public SampleStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor:
+     *      SampleStore( int )
+     *
+     * @param   capacity    Samples retained per PID.
+     */
+    public SampleStore(int capacity) {
+        super();
+
+        this.capacity = capacity;
+    }
+
+    /**
+     * Method:
+     *      track( int )
+     *
+     * Description:
+     *      Creates the column for a PID ahead of time, so the writer never
+     *      allocates on the sampling path.
+     *
+     * @param   pid                 Mode 01 PID.
+     * @return  SampleRingBuffer    Column for the PID.
+     */
+    public SampleRingBuffer track(int pid) {
+        pid &= 0xFF;
+        SampleRingBuffer column = this.columns.get(pid);
+        if (column == null) {
+            this.columns.compareAndSet(pid, null, new SampleRingBuffer(this.capacity));
+            column = this.columns.get(pid);
+        }
+        return (column);
+    }
+
+    /**
+     * Method:
+     *      get( int )
+     *
+     * @param   pid                 Mode 01 PID.
+     * @return  SampleRingBuffer    Column for the PID, or null if none was recorded.
+     */
+    public SampleRingBuffer get(int pid) {
+        return (this.columns.get(pid & 0xFF));
+    }
+
+    /**
+     * Method:
+     *      sample( int, int, long, double )
+     *
+     * Description:
+     *      Appends a decoded value to its PID's column. Writer thread only.
+     */
+    @Override
+    public void sample(int pid, int ecu, long timestamp, double value) {
+        pid &= 0xFF;
+        SampleRingBuffer column = this.columns.get(pid);
+        if (column == null || column.getCount() == 0) {
+            column = this.track(pid);
+            this.ecus[pid] = ecu;
+        } else if (this.ecus[pid] != ecu) {
+            return;
+        }
+        column.add(timestamp, value);
+    }
+}
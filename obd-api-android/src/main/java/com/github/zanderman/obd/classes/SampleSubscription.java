@@ -0,0 +1,369 @@
+package com.github.zanderman.obd.classes;
+
+import com.github.zanderman.obd.interfaces.SampleSubscriberInterface;
+
+import java.nio.BufferOverflowException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Class:
+ *      SampleSubscription
+ *
+ * Description:
+ *      One subscriber's link to a SamplePublisher signal, with demand-based
+ *      flow control in the style of Reactive Streams.
+ *
+ *      The producer (the reader thread) only appends to the subscription's
+ *      buffer and, when no delivery is pending, hands a drain task to the
+ *      subscriber's executor; it never waits for the subscriber. The drain
+ *      task delivers as many samples as have been requested. What happens
+ *      to samples the subscriber is not ready for depends on the policy:
+ *
+ *          DROP_OLDEST         a ring of the given capacity; the oldest
+ *                              undelivered samples are overwritten.
+ *          CONFLATE_LATEST     only the newest undelivered sample is kept.
+ *          BUFFER              every sample is queued, up to the capacity;
+ *                              beyond that the subscription fails with a
+ *                              BufferOverflowException.
+ *
+ *      Samples overwritten or conflated away are counted by getDropped().
+ */
+public class SampleSubscription {
+
+    /**
+     * Constants
+     */
+    private static final int CONFLATE_SLOTS = 4;
+
+    /**
+     * Private Members
+     */
+    private final SamplePublisher publisher;
+    private final int pid;
+    private final SampleSubscriberInterface subscriber;
+    private final SamplePublisher.Overflow policy;
+    private final int capacity;
+    private final Executor executor;
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicInteger pending = new AtomicInteger();  /* Drain requests not yet handled. */
+    private volatile boolean cancelled;
+    private volatile boolean done;              /* Set by the producer: no more samples. */
+    private volatile Exception failure;         /* Terminal failure to report. */
+    private boolean started;                    /* Drain only: subscribed() was called. */
+    private boolean terminated;                 /* Drain only: a terminal call was made. */
+    private volatile long dropped;
+
+    /* DROP_OLDEST and CONFLATE_LATEST: single-producer ring, overwritten when full. */
+    private final AtomicLongArray keys;         /* pid << 32 | ecu */
+    private final AtomicLongArray timestamps;
+    private final AtomicLongArray values;       /* Raw double bits. */
+    private final AtomicLong written = new AtomicLong();
+    private final int mask;
+    private long read;                          /* Drain only. */
+
+    /* BUFFER: unbounded queue, limited by count. */
+    private final ConcurrentLinkedQueue<Sample> queue;
+    private final AtomicInteger queued = new AtomicInteger();
+
+
+    /**
+     * Constructor:
+     *      SampleSubscription( SamplePublisher, int, SampleSubscriberInterface, Overflow, int, Executor )
+     *
+     * @param   publisher   Publisher of the signal.
+     * @param   pid         Mode 01 PID of the signal.
+     * @param   subscriber  Receiver of the samples.
+     * @param   policy      What to do with samples the subscriber is not ready for.
+     * @param   capacity    Samples kept for the subscriber (ignored by CONFLATE_LATEST).
+     * @param   executor    Runs every subscriber call.
+     */
+    SampleSubscription(SamplePublisher publisher, int pid, SampleSubscriberInterface subscriber,
+                       SamplePublisher.Overflow policy, int capacity, Executor executor) {
+        super();
+
+        this.publisher = publisher;
+        this.pid = pid;
+        this.subscriber = subscriber;
+        this.policy = policy;
+        this.capacity = Math.max(1, capacity);
+        this.executor = executor;
+        if (policy == SamplePublisher.Overflow.BUFFER) {
+            this.queue = new ConcurrentLinkedQueue<Sample>();
+            this.keys = this.timestamps = this.values = null;
+            this.mask = 0;
+        } else {
+            /* One slot more than kept: the producer may be filling the slot of the oldest kept sample. */
+            int slots = (policy == SamplePublisher.Overflow.CONFLATE_LATEST) ? CONFLATE_SLOTS : this.capacity + 1;
+            int size = Integer.highestOneBit(Math.max(slots, 2) - 1) << 1;
+            this.queue = null;
+            this.keys = new AtomicLongArray(size);
+            this.timestamps = new AtomicLongArray(size);
+            this.values = new AtomicLongArray(size);
+            this.mask = size - 1;
+        }
+    }
+
+    /**
+     * Method:
+     *      request( long )
+     *
+     * Description:
+     *      Adds demand: up to n more samples may be delivered. Long.MAX_VALUE
+     *      means unbounded. A non-positive n fails the subscription.
+     *
+     * @param   n   Number of additional samples wanted.
+     */
+    public void request(long n) {
+        if (n <= 0) {
+            this.fail(new IllegalArgumentException("Non-positive request: " + n));
+            return;
+        }
+        long r;
+        do {
+            r = this.requested.get();
+            if (r == Long.MAX_VALUE)
+                break;
+        } while (!this.requested.compareAndSet(r, (r + n < 0) ? Long.MAX_VALUE : r + n));
+        this.signal();
+    }
+
+    /**
+     * Method:
+     *      cancel( )
+     *
+     * Description:
+     *      Stops delivery and detaches from the publisher. Buffered samples
+     *      are discarded; no terminal call is made.
+     */
+    public void cancel() {
+        this.cancelled = true;
+        this.publisher.remove(this);
+    }
+
+    /**
+     * Method:
+     *      isCancelled( )
+     *
+     * @return  boolean     True once cancelled or terminated.
+     */
+    public boolean isCancelled() {
+        return (this.cancelled);
+    }
+
+    /**
+     * Method:
+     *      getPid( )
+     *
+     * @return  int     Mode 01 PID of the signal.
+     */
+    public int getPid() {
+        return (this.pid);
+    }
+
+    /**
+     * Method:
+     *      getPolicy( )
+     *
+     * @return  Overflow    Overflow policy.
+     */
+    public SamplePublisher.Overflow getPolicy() {
+        return (this.policy);
+    }
+
+    /**
+     * Method:
+     *      getDropped( )
+     *
+     * @return  long    Samples overwritten or conflated before delivery.
+     */
+    public long getDropped() {
+        return (this.dropped);
+    }
+
+    /**
+     * Method:
+     *      offer( int, int, long, double )
+     *
+     * Description:
+     *      Producer side: buffers a sample and schedules delivery. Never waits.
+     */
+    void offer(int pid, int ecu, long timestamp, double value) {
+        if (this.cancelled || this.done)
+            return;
+        if (this.queue != null) {
+            if (this.queued.incrementAndGet() > this.capacity) {
+                this.fail(new BufferOverflowException());
+                return;
+            }
+            this.queue.offer(new Sample(pid, ecu, timestamp, value));
+        } else {
+            long index = this.written.get();
+            int slot = (int) (index & this.mask);
+            this.keys.lazySet(slot, ((long) pid << 32) | (ecu & 0xFFFFFFFFL));
+            this.timestamps.lazySet(slot, timestamp);
+            this.values.lazySet(slot, Double.doubleToRawLongBits(value));
+            this.written.set(index + 1);
+        }
+        this.signal();
+    }
+
+    /**
+     * Method:
+     *      complete( )
+     *
+     * Description:
+     *      Producer side: no more samples follow. The subscriber is told once
+     *      the buffered samples have been delivered.
+     */
+    void complete() {
+        this.done = true;
+        this.signal();
+    }
+
+    /**
+     * Method:
+     *      fail( Exception )
+     *
+     * Description:
+     *      Terminates the subscription with an error, discarding buffered samples.
+     */
+    void fail(Exception cause) {
+        if (this.failure == null)
+            this.failure = cause;
+        this.done = true;
+        this.publisher.remove(this);
+        this.signal();
+    }
+
+    /**
+     * Method:
+     *      signal( )
+     *
+     * Description:
+     *      Schedules the drain task unless it is already scheduled or running;
+     *      a running drain picks the new work up before it ends.
+     */
+    void signal() {
+        if (this.pending.getAndIncrement() != 0)
+            return;
+        try {
+            this.executor.execute(this.drain);
+        } catch (RejectedExecutionException e) {
+            this.cancelled = true;
+            this.publisher.remove(this);
+        }
+    }
+
+    /**
+     * Delivery: subscribed() first, then requested samples, then at most one
+     * terminal call. Runs on the executor, never concurrently with itself.
+     */
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            int missed = 1;
+            while (true) {
+                if (!started) {
+                    started = true;
+                    subscriber.subscribed(SampleSubscription.this);
+                }
+                long demand = requested.get();
+                long emitted = 0;
+                while (emitted != demand && !cancelled && failure == null && next())
+                    emitted++;
+                if (emitted != 0 && demand != Long.MAX_VALUE)
+                    requested.addAndGet(-emitted);
+
+                if (!cancelled && !terminated && done) {
+                    if (failure != null) {
+                        terminated = cancelled = true;
+                        subscriber.streamFailed(failure);
+                    } else if (isEmpty()) {
+                        terminated = cancelled = true;
+                        subscriber.streamCompleted();
+                    }
+                }
+                missed = pending.addAndGet(-missed);
+                if (missed == 0)
+                    return;
+            }
+        }
+    };
+
+    /**
+     * Method:
+     *      next( )
+     *
+     * Description:
+     *      Drain side: delivers the next buffered sample, if any.
+     *
+     * @return  boolean     False if nothing was buffered.
+     */
+    private boolean next() {
+        if (this.queue != null) {
+            Sample sample = this.queue.poll();
+            if (sample == null)
+                return (false);
+            this.queued.decrementAndGet();
+            this.subscriber.sampleReceived(sample.pid, sample.ecu, sample.timestamp, sample.value);
+            return (true);
+        }
+
+        int kept = this.mask;   /* The slot after the newest may be being written. */
+        while (true) {
+            long end = this.written.get();
+            long oldest = (this.policy == SamplePublisher.Overflow.CONFLATE_LATEST) ? end - 1
+                    : end - Math.min(kept, this.capacity);
+            if (this.read < oldest) {
+                this.dropped += oldest - this.read;
+                this.read = oldest;
+            }
+            if (this.read >= end)
+                return (false);
+
+            int slot = (int) (this.read & this.mask);
+            long key = this.keys.get(slot);
+            long timestamp = this.timestamps.get(slot);
+            double value = Double.longBitsToDouble(this.values.get(slot));
+
+            /* The producer filling index 'now' reuses the slot of index now - size. */
+            if (this.read <= this.written.get() - this.mask - 1)
+                continue;
+            this.read++;
+            this.subscriber.sampleReceived((int) (key >>> 32), (int) key, timestamp, value);
+            return (true);
+        }
+    }
+
+    /**
+     * Method:
+     *      isEmpty( )
+     *
+     * @return  boolean     True if nothing is left to deliver (drain side).
+     */
+    private boolean isEmpty() {
+        return ((this.queue != null) ? this.queue.isEmpty() : this.read >= this.written.get());
+    }
+
+    /**
+     * One buffered sample (BUFFER policy only).
+     */
+    private static final class Sample {
+        final int pid;
+        final int ecu;
+        final long timestamp;
+        final double value;
+
+        Sample(int pid, int ecu, long timestamp, double value) {
+            this.pid = pid;
+            this.ecu = ecu;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+    }
+}
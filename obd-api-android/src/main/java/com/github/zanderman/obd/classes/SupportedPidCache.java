@@ -0,0 +1,215 @@
+package com.github.zanderman.obd.classes;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Class:
+ *      SupportedPidCache
+ *
+ * Description:
+ *      Discovers which Mode 01 PIDs a vehicle supports and remembers the
+ *      answer per vehicle.
+ *
+ *      The probe walks the range queries 0100, 0120, 0140, ... for as long as
+ *      the previous range advertises the next one, and merges the bitmaps of
+ *      every responding ECU. Results are keyed by VIN when it is known and by
+ *      the adapter address otherwise, and can be saved to and loaded from a
+ *      small text file so later connections skip the probe entirely. Hand the
+ *      result to PIDBatcher.setSupportedPids() so unsupported PIDs are never
+ *      put on the wire.
+ */
+public class SupportedPidCache {
+
+    /**
+     * Private Members
+     */
+    private final Map<String, SupportedPids> entries = new HashMap<String, SupportedPids>();
+
+
+    /**
+     * Method:
+     *      key( String, String )
+     *
+     * @param   vin         Vehicle identification number (may be null or empty).
+     * @param   address     Adapter MAC address.
+     * @return  String      Cache key: the VIN if known, else the address.
+     */
+    public static String key(String vin, String address) {
+        if (vin != null && vin.trim().length() > 0)
+            return ("VIN:" + vin.trim().toUpperCase(Locale.US));
+        return ("ADDR:" + ((address == null) ? "" : address.toUpperCase(Locale.US)));
+    }
+
+    /**
+     * Method:
+     *      get( String, String )
+     *
+     * @param   vin             Vehicle identification number (may be null).
+     * @param   address         Adapter MAC address.
+     * @return  SupportedPids   Cached set, or null.
+     */
+    public synchronized SupportedPids get(String vin, String address) {
+        return (this.entries.get(key(vin, address)));
+    }
+
+    /**
+     * Method:
+     *      put( String, String, SupportedPids )
+     *
+     * @param   vin         Vehicle identification number (may be null).
+     * @param   address     Adapter MAC address.
+     * @param   pids        Set to remember.
+     */
+    public synchronized void put(String vin, String address, SupportedPids pids) {
+        this.entries.put(key(vin, address), pids);
+    }
+
+    /**
+     * Method:
+     *      remove( String, String )
+     *
+     * @param   vin         Vehicle identification number (may be null).
+     * @param   address     Adapter MAC address.
+     */
+    public synchronized void remove(String vin, String address) {
+        this.entries.remove(key(vin, address));
+    }
+
+    /**
+     * Method:
+     *      discover( OBDAdapter, String, boolean )
+     *
+     * Description:
+     *      Returns the cached set for the vehicle, probing (and caching) it
+     *      first if necessary. Blocks while probing; call it off the main thread.
+     *
+     * @param   adapter         Connected adapter.
+     * @param   vin             Vehicle identification number (may be null).
+     * @param   legacyHeaders   True when headers are on and the protocol is not CAN.
+     * @return  SupportedPids   Supported PIDs.
+     * @throws  IOException     The probe failed (NoDataException if no ECU answered 0100).
+     */
+    public SupportedPids discover(OBDAdapter adapter, String vin, boolean legacyHeaders) throws IOException {
+        SupportedPids pids = this.get(vin, adapter.address);
+        if (pids == null) {
+            pids = probe(adapter, legacyHeaders);
+            this.put(vin, adapter.address, pids);
+        }
+        return (pids);
+    }
+
+    /**
+     * Method:
+     *      probe( OBDAdapter, boolean )
+     *
+     * Description:
+     *      Queries the supported-PID ranges of every responding ECU.
+     *
+     * @param   adapter         Connected adapter.
+     * @param   legacyHeaders   True when headers are on and the protocol is not CAN.
+     * @return  SupportedPids   Union of the PIDs supported by all ECUs.
+     * @throws  IOException     The probe failed (NoDataException if no ECU answered 0100).
+     */
+    public static SupportedPids probe(OBDAdapter adapter, boolean legacyHeaders) throws IOException {
+        SupportedPids pids = new SupportedPids();
+        for (int base = 0x00; base <= 0xE0 && pids.isSupported(base); base += 0x20) {
+            String command = String.format(Locale.US, "01%02X", base);
+            List<OBDMessage> messages;
+            try {
+                OBDResponse response = adapter.submit(command).get();
+                byte[] frame = response.getFrame();
+                messages = OBDResponseParser.parse(command, frame, 0, frame.length, legacyHeaders);
+            } catch (NoDataException e) {
+                if (base == 0x00)
+                    throw e;
+                break;  /* Advertised but unanswered: keep what is known. */
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof NoDataException && base != 0x00)
+                    break;
+                throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(command);
+            }
+
+            for (OBDMessage message : messages) {
+                byte[] data = message.payload;
+                if (data.length >= 6 && (data[0] & 0xFF) == 0x41 && (data[1] & 0xFF) == base)
+                    pids.addRange(base, data, 2);
+            }
+        }
+        return (pids);
+    }
+
+    /**
+     * Method:
+     *      load( File )
+     *
+     * Description:
+     *      Adds the entries of a file written by save(). Malformed lines are
+     *      skipped; a missing file leaves the cache unchanged.
+     *
+     * @param   path            Cache file.
+     * @throws  IOException     The file exists but could not be read.
+     */
+    public void load(File path) throws IOException {
+        if (!path.exists())
+            return;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int split = line.lastIndexOf('=');
+                if (split <= 0)
+                    continue;
+                try {
+                    SupportedPids pids = SupportedPids.fromHex(line.substring(split + 1).trim());
+                    synchronized (this) {
+                        this.entries.put(line.substring(0, split).trim(), pids);
+                    }
+                } catch (IllegalArgumentException e) {
+                    /* Skip the malformed entry. */
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Method:
+     *      save( File )
+     *
+     * Description:
+     *      Writes every entry as a "key=hex" line.
+     *
+     * @param   path            Cache file.
+     * @throws  IOException     The file could not be written.
+     */
+    public void save(File path) throws IOException {
+        Map<String, SupportedPids> copy;
+        synchronized (this) {
+            copy = new HashMap<String, SupportedPids>(this.entries);
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(path), "UTF-8");
+        try {
+            for (Map.Entry<String, SupportedPids> entry : copy.entrySet())
+                writer.write(entry.getKey() + "=" + entry.getValue().toHex() + "\n");
+        } finally {
+            writer.close();
+        }
+    }
+}
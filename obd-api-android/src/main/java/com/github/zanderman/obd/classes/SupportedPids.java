@@ -0,0 +1,164 @@
+package com.github.zanderman.obd.classes;
+
+/**
+ * Class:
+ *      SupportedPids
+ *
+ * Description:
+ *      Compact bitset of the Mode 01 PIDs a vehicle reports as supported.
+ *
+ *      Built from the replies to 0100, 0120, 0140, ... where each reply holds
+ *      32 bits for the next 32 PIDs (most significant bit first); the last
+ *      bit of each range says whether the next range query is supported.
+ *      PID 00 is always supported. Instances are not modified once built
+ *      and can be saved as a 64 digit hex string.
+ */
+public final class SupportedPids {
+
+    /**
+     * Private Members
+     */
+    private final long[] bits = new long[4];
+
+
+    /**
+     * Constructor:
+     *      SupportedPids( )
+     *
+     * Description:
+     *      Creates an empty set; fill it with addRange() while probing.
+     */
+    SupportedPids() {
+        super();
+    }
+
+    /**
+     * Method:
+     *      addRange( int, byte[], int )
+     *
+     * Description:
+     *      Adds the 32 bits returned for one range query.
+     *
+     * @param   base    Range query PID (0x00, 0x20, ...).
+     * @param   data    Reply payload.
+     * @param   offset  Position of the first of the four bitmap bytes.
+     */
+    void addRange(int base, byte[] data, int offset) {
+        for (int i = 0; i < 32; i++)
+            if ((data[offset + (i >> 3)] & (0x80 >> (i & 7))) != 0)
+                this.set(base + 1 + i);
+    }
+
+    private void set(int pid) {
+        if (pid <= 0xFF)
+            this.bits[pid >> 6] |= 1L << (pid & 63);
+    }
+
+    /**
+     * Method:
+     *      isSupported( int )
+     *
+     * @param   pid         Mode 01 PID.
+     * @return  boolean     True if the vehicle reported the PID (PID 00 always is).
+     */
+    public boolean isSupported(int pid) {
+        pid &= 0xFF;
+        return (pid == 0 || (this.bits[pid >> 6] & (1L << (pid & 63))) != 0);
+    }
+
+    /**
+     * Method:
+     *      equalsRange( SupportedPids, int )
+     *
+     * @param   other       Set to compare with.
+     * @param   base        Range query PID (0x00, 0x20, ...).
+     * @return  boolean     True if both sets agree on the 32 PIDs after base.
+     */
+    boolean equalsRange(SupportedPids other, int base) {
+        for (int pid = base + 1; pid <= base + 32 && pid <= 0xFF; pid++)
+            if (this.isSupported(pid) != other.isSupported(pid))
+                return (false);
+        return (true);
+    }
+
+    /**
+     * Method:
+     *      count( )
+     *
+     * @return  int     Number of supported data PIDs (range queries excluded).
+     */
+    public int count() {
+        int n = 0;
+        for (int pid = 1; pid <= 0xFF; pid++)
+            if ((pid & 0x1F) != 0 && this.isSupported(pid))
+                n++;
+        return (n);
+    }
+
+    /**
+     * Method:
+     *      toHex( )
+     *
+     * @return  String  The set as 64 hex digits (PIDs 00-FF, most significant bit first).
+     */
+    public String toHex() {
+        StringBuilder out = new StringBuilder(64);
+        for (int nibble = 0; nibble < 64; nibble++) {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                int pid = nibble * 4 + i;
+                if ((this.bits[pid >> 6] & (1L << (pid & 63))) != 0)
+                    value |= 8 >> i;
+            }
+            out.append(Character.toUpperCase(Character.forDigit(value, 16)));
+        }
+        return (out.toString());
+    }
+
+    /**
+     * Method:
+     *      fromHex( String )
+     *
+     * @param   hex                         Output of toHex().
+     * @return  SupportedPids               Parsed set.
+     * @throws  IllegalArgumentException    The text is not 64 hex digits.
+     */
+    public static SupportedPids fromHex(String hex) {
+        if (hex == null || hex.length() != 64)
+            throw new IllegalArgumentException("Expected 64 hex digits: " + hex);
+        SupportedPids pids = new SupportedPids();
+        for (int nibble = 0; nibble < 64; nibble++) {
+            int value = Character.digit(hex.charAt(nibble), 16);
+            if (value < 0)
+                throw new IllegalArgumentException("Expected 64 hex digits: " + hex);
+            for (int i = 0; i < 4; i++)
+                if ((value & (8 >> i)) != 0)
+                    pids.set(nibble * 4 + i);
+        }
+        return (pids);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SupportedPids))
+            return (false);
+        SupportedPids other = (SupportedPids) o;
+        for (int i = 0; i < this.bits.length; i++)
+            if (this.bits[i] != other.bits[i])
+                return (false);
+        return (true);
+    }
+
+    @Override
+    public int hashCode() {
+        long h = 0;
+        for (long word : this.bits)
+            h = 31 * h + word;
+        return ((int) (h ^ (h >>> 32)));
+    }
+
+    @Override
+    public String toString() {
+        return (this.toHex());
+    }
+}
@@ -0,0 +1,225 @@
+package com.github.zanderman.obd.classes;
+
+import com.github.zanderman.obd.interfaces.TripLogCallbackInterface;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Class:
+ *      TripLogReader
+ *
+ * Description:
+ *      Reads a trip log written by TripLogWriter.
+ *
+ *      The file is memory-mapped and scanned sequentially without copying
+ *      frames out of the mapping more than once, so even long trips replay in
+ *      a fraction of a second. A record cut short by a crash ends the scan
+ *      quietly at the last complete record.
+ */
+public class TripLogReader {
+
+    /**
+     * Private Members
+     */
+    private final MappedByteBuffer map;
+    private final int dataStart;
+    private final long startTime;
+    private final String name;
+    private final String address;
+    private final String protocol;
+    private final String vin;
+    private byte[] scratch = new byte[256];
+
+
+    /**
+     * Constructor:
+     *      TripLogReader( File )
+     *
+     * Description:
+     *      Maps a trip log and parses its header.
+     *
+     * @param   path            Log file.
+     * @throws  IOException     File is missing, too large or not a trip log.
+     */
+    public TripLogReader(File path) throws IOException {
+        super();
+
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Trip log too large: " + path);
+            this.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            file.close();   /* The mapping stays valid after the channel is closed. */
+        }
+
+        try {
+            for (byte b : TripLogWriter.MAGIC)
+                if (this.map.get() != b)
+                    throw new IOException("Not a trip log: " + path);
+            int version = this.map.get() & 0xFF;
+            if (version != TripLogWriter.VERSION)
+                throw new IOException("Unsupported trip log version " + version);
+            this.startTime = this.map.getLong();
+            this.name = getString(this.map);
+            this.address = getString(this.map);
+            this.protocol = getString(this.map);
+            this.vin = getString(this.map);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated trip log header: " + path);
+        }
+        this.dataStart = this.map.position();
+    }
+
+    /**
+     * Method:
+     *      getStartTime( )
+     *
+     * @return  long    Wall-clock start of the recording (epoch ms).
+     */
+    public long getStartTime() {
+        return (this.startTime);
+    }
+
+    /**
+     * Method:
+     *      getName( )
+     *
+     * @return  String  Adapter name.
+     */
+    public String getName() {
+        return (this.name);
+    }
+
+    /**
+     * Method:
+     *      getAddress( )
+     *
+     * @return  String  Adapter MAC address.
+     */
+    public String getAddress() {
+        return (this.address);
+    }
+
+    /**
+     * Method:
+     *      getProtocol( )
+     *
+     * @return  String  Vehicle protocol description (empty if unknown).
+     */
+    public String getProtocol() {
+        return (this.protocol);
+    }
+
+    /**
+     * Method:
+     *      getVin( )
+     *
+     * @return  String  Vehicle identification number (empty if unknown).
+     */
+    public String getVin() {
+        return (this.vin);
+    }
+
+    /**
+     * Method:
+     *      scan( TripLogCallbackInterface )
+     *
+     * Description:
+     *      Delivers every record in order. Not thread-safe; each scan starts
+     *      from the first record.
+     *
+     * @param   callback    Record consumer.
+     * @return  long        Number of records delivered.
+     * @throws  IOException An unknown record type was found.
+     */
+    public long scan(TripLogCallbackInterface callback) throws IOException {
+        ByteBuffer in = this.map.duplicate();
+        in.position(this.dataStart);
+
+        long micros = 0;
+        long count = 0;
+        try {
+            while (in.hasRemaining()) {
+                int type = in.get() & 0xFF;
+                micros += getVarint(in);
+                switch (type) {
+                    case TripLogWriter.RECORD_COMMAND: {
+                        int n = this.fill(in, (int) getVarint(in));
+                        char[] chars = new char[n];
+                        for (int i = 0; i < n; i++)
+                            chars[i] = (char) (this.scratch[i] & 0xFF);
+                        callback.commandRecorded(micros, new String(chars));
+                        break;
+                    }
+                    case TripLogWriter.RECORD_FRAME: {
+                        int n = this.fill(in, (int) getVarint(in));
+                        callback.frameRecorded(micros, this.scratch, 0, n);
+                        break;
+                    }
+                    case TripLogWriter.RECORD_VALUE: {
+                        int pid = in.get() & 0xFF;
+                        int ecu = (int) getVarint(in);
+                        double value = Double.longBitsToDouble(in.getLong());
+                        callback.valueRecorded(micros, pid, ecu, value);
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unknown trip log record " + type + " at " + (in.position() - 1));
+                }
+                count++;
+            }
+        } catch (BufferUnderflowException e) {
+            /* Incomplete trailing record. */
+        }
+        return (count);
+    }
+
+    /**
+     * Method:
+     *      fill( ByteBuffer, int )
+     *
+     * Description:
+     *      Copies n bytes into the reusable scratch array.
+     */
+    private int fill(ByteBuffer in, int n) {
+        if (n > in.remaining())
+            throw new BufferUnderflowException();
+        if (n > this.scratch.length)
+            this.scratch = new byte[Integer.highestOneBit(n) << 1];
+        in.get(this.scratch, 0, n);
+        return (n);
+    }
+
+    /**
+     * Method:
+     *      getVarint( ByteBuffer )
+     *
+     * @return  long    Unsigned LEB128 integer.
+     */
+    static long getVarint(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 64);
+        return (value);
+    }
+
+    private static String getString(ByteBuffer in) {
+        int n = (int) getVarint(in);
+        byte[] bytes = new byte[n];
+        in.get(bytes);
+        return (new String(bytes, TripLogWriter.UTF8));
+    }
+}
@@ -0,0 +1,388 @@
+package com.github.zanderman.obd.classes;
+
+import com.github.zanderman.obd.interfaces.CommandCallbackInterface;
+import com.github.zanderman.obd.interfaces.FrameCallbackInterface;
+import com.github.zanderman.obd.interfaces.SampleSinkInterface;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Class:
+ *      TripLogWriter
+ *
+ * Description:
+ *      Records an adapter session into a compact binary trip log.
+ *
+ *      Layout (all multi-byte integers big-endian, "varint" = unsigned LEB128):
+ *
+ *          magic "OBDT", version byte, start time (epoch ms, 8 bytes),
+ *          name, address, protocol, VIN   (varint length + UTF-8 each)
+ *
+ *      followed by records of
+ *
+ *          type byte, varint microseconds since the previous record, body
+ *
+ *      where the body is a varint length plus bytes for commands and raw
+ *      frames, and a PID byte, varint ECU and 8 byte double for values.
+ *
+ *      Callers on the reader and writer threads only encode into an in-memory
+ *      batch; a background thread swaps batches and appends them to the file
+ *      with one FileChannel write per batch.
+ */
+public class TripLogWriter implements FrameCallbackInterface, CommandCallbackInterface, SampleSinkInterface {
+
+    /**
+     * Constants
+     */
+    static final byte[] MAGIC = {'O', 'B', 'D', 'T'};
+    static final int VERSION = 1;
+    static final int RECORD_COMMAND = 1;
+    static final int RECORD_FRAME = 2;
+    static final int RECORD_VALUE = 3;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int BATCH_SIZE = 64 * 1024;    /* Bytes per in-memory batch. */
+    private static final long FLUSH_INTERVAL = 250;     /* Time (in [ms]) between background flushes. */
+
+    /**
+     * Private Members
+     */
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Object lock = new Object();
+    private ByteBuffer front = ByteBuffer.allocate(BATCH_SIZE);    /* Being filled by callers (guarded by lock). */
+    private ByteBuffer back = ByteBuffer.allocate(BATCH_SIZE);     /* Being written by the flusher. */
+    private final long origin;
+    private long last;
+    private long records;
+    private long bytesWritten;
+    private boolean closed;
+    private IOException failure;
+    private final Thread flusher;
+    private OBDAdapter attached;
+
+
+    /**
+     * Constructor:
+     *      TripLogWriter( File, String, String, String, String )
+     *
+     * Description:
+     *      Creates (or truncates) a trip log, writes its header and starts the
+     *      background flusher.
+     *
+     * @param   path        Log file.
+     * @param   name        Adapter name.
+     * @param   address     Adapter MAC address.
+     * @param   protocol    Vehicle protocol description (may be null).
+     * @param   vin         Vehicle identification number (may be null).
+     * @throws  IOException File could not be created.
+     */
+    public TripLogWriter(File path, String name, String address, String protocol, String vin) throws IOException {
+        super();
+
+        this.file = new RandomAccessFile(path, "rw");
+        this.file.setLength(0);
+        this.channel = this.file.getChannel();
+        this.origin = System.nanoTime();
+        this.last = this.origin;
+
+        ByteBuffer header = ByteBuffer.allocate(1024);
+        header.put(MAGIC);
+        header.put((byte) VERSION);
+        header.putLong(System.currentTimeMillis());
+        putString(header, name);
+        putString(header, address);
+        putString(header, protocol);
+        putString(header, vin);
+        header.flip();
+        this.bytesWritten = this.channel.write(header);
+
+        this.flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "TripLogWriter-" + path.getName());
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Method:
+     *      attach( OBDAdapter )
+     *
+     * Description:
+     *      Starts recording every command and frame of an adapter.
+     *
+     * @param   adapter     Adapter to record.
+     */
+    public synchronized void attach(OBDAdapter adapter) {
+        this.detach();
+        adapter.addCommandListener(this);
+        adapter.addFrameListener(this);
+        this.attached = adapter;
+    }
+
+    /**
+     * Method:
+     *      detach( )
+     *
+     * Description:
+     *      Stops recording the attached adapter, if any.
+     */
+    public synchronized void detach() {
+        if (this.attached == null)
+            return;
+        this.attached.removeCommandListener(this);
+        this.attached.removeFrameListener(this);
+        this.attached = null;
+    }
+
+    /**
+     * Method:
+     *      getRecords( )
+     *
+     * @return  long    Number of records accepted so far.
+     */
+    public long getRecords() {
+        synchronized (this.lock) {
+            return (this.records);
+        }
+    }
+
+    /**
+     * Method:
+     *      getBytesWritten( )
+     *
+     * @return  long    Number of bytes appended to the file so far.
+     */
+    public long getBytesWritten() {
+        synchronized (this.lock) {
+            return (this.bytesWritten);
+        }
+    }
+
+    /**
+     * Method:
+     *      commandSent( String )
+     *
+     * Description:
+     *      Records a transmitted command.
+     */
+    @Override
+    public void commandSent(String command) {
+        int n = command.length();
+        synchronized (this.lock) {
+            if (!this.reserve(n + 16))
+                return;
+            this.header(RECORD_COMMAND);
+            putVarint(this.front, n);
+            for (int i = 0; i < n; i++)
+                this.front.put((byte) command.charAt(i));
+        }
+    }
+
+    /**
+     * Method:
+     *      frameReceived( byte[], int, int )
+     *
+     * Description:
+     *      Records a raw response frame.
+     */
+    @Override
+    public void frameReceived(byte[] buffer, int offset, int length) {
+        synchronized (this.lock) {
+            if (!this.reserve(length + 16))
+                return;
+            this.header(RECORD_FRAME);
+            putVarint(this.front, length);
+            this.front.put(buffer, offset, length);
+        }
+    }
+
+    /**
+     * Method:
+     *      readerStopped( Exception )
+     *
+     * Description:
+     *      The recorded link is gone; buffered records are flushed.
+     */
+    @Override
+    public void readerStopped(Exception cause) {
+        synchronized (this.lock) {
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * Method:
+     *      sample( int, int, long, double )
+     *
+     * Description:
+     *      Records a decoded value. The record is stamped with the log's own
+     *      clock so that all records share one timeline.
+     */
+    @Override
+    public void sample(int pid, int ecu, long timestamp, double value) {
+        synchronized (this.lock) {
+            if (!this.reserve(32))
+                return;
+            this.header(RECORD_VALUE);
+            this.front.put((byte) pid);
+            putVarint(this.front, ecu);
+            this.front.putLong(Double.doubleToRawLongBits(value));
+        }
+    }
+
+    /**
+     * Method:
+     *      close( )
+     *
+     * Description:
+     *      Detaches, flushes every buffered record and closes the file.
+     *
+     * @throws  IOException     A background write failed or the file could not be closed.
+     */
+    public void close() throws IOException {
+        this.detach();
+        synchronized (this.lock) {
+            if (this.closed)
+                return;
+            this.closed = true;
+            this.lock.notifyAll();
+        }
+        try {
+            this.flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (this.failure == null)
+                this.channel.force(false);
+        } finally {
+            this.file.close();
+        }
+        if (this.failure != null)
+            throw this.failure;
+    }
+
+    /**
+     * Method:
+     *      reserve( int )
+     *
+     * Description:
+     *      Makes room for a record in the front batch, waiting for the flusher
+     *      if the batch is full. Records are never dropped while the log is
+     *      open. Called with lock held.
+     *
+     * @return  boolean     False if the log is closed or failed.
+     */
+    private boolean reserve(int size) {
+        if (size > this.front.capacity()) {
+            /* Oversized record: grow the batch rather than split it. */
+            ByteBuffer larger = ByteBuffer.allocate(Integer.highestOneBit(size) << 1);
+            this.front.flip();
+            larger.put(this.front);
+            this.front = larger;
+        }
+        while (this.front.remaining() < size && !this.closed && this.failure == null) {
+            this.lock.notifyAll();
+            try {
+                this.lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return (false);
+            }
+        }
+        return (!this.closed && this.failure == null);
+    }
+
+    /**
+     * Method:
+     *      header( int )
+     *
+     * Description:
+     *      Writes a record type and its time delta. Called with lock held.
+     */
+    private void header(int type) {
+        long now = System.nanoTime();
+        long delta = (now - this.last) / 1000L;
+        this.last += delta * 1000L;     /* Keep the sub-microsecond remainder for the next record. */
+        this.front.put((byte) type);
+        putVarint(this.front, delta);
+        this.records++;
+    }
+
+    /**
+     * Method:
+     *      flushLoop( )
+     *
+     * Description:
+     *      Flusher thread body: periodically swaps the batches and appends the
+     *      full one to the file outside the lock.
+     */
+    private void flushLoop() {
+        boolean done = false;
+        while (!done) {
+            ByteBuffer batch;
+            synchronized (this.lock) {
+                if (!this.closed && this.front.position() < BATCH_SIZE / 2) {
+                    try {
+                        this.lock.wait(FLUSH_INTERVAL);
+                    } catch (InterruptedException e) {
+                        this.closed = true;
+                    }
+                }
+                done = this.closed;
+                batch = this.front;
+                this.front = this.back;
+                this.back = batch;
+                this.lock.notifyAll();
+            }
+
+            batch.flip();
+            try {
+                int n = 0;
+                while (batch.hasRemaining())
+                    n += this.channel.write(batch);
+                synchronized (this.lock) {
+                    this.bytesWritten += n;
+                }
+            } catch (IOException e) {
+                synchronized (this.lock) {
+                    this.failure = e;
+                    this.lock.notifyAll();
+                }
+                done = true;
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Method:
+     *      putVarint( ByteBuffer, long )
+     *
+     * Description:
+     *      Writes an unsigned LEB128 integer.
+     */
+    static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = (value == null) ? new byte[0] : value.getBytes(UTF8);
+        int n = Math.min(bytes.length, 200);
+        putVarint(buffer, n);
+        buffer.put(bytes, 0, n);
+    }
+}
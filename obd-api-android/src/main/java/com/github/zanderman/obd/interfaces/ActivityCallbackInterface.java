@@ -0,0 +1,18 @@
+package com.github.zanderman.obd.interfaces;
+
+import com.github.zanderman.obd.classes.ActivityMonitor;
+
+/**
+ * Interface:
+ *      ActivityCallbackInterface
+ *
+ * Description:
+ *      Public interface for ActivityMonitor state changes.
+ */
+public interface ActivityCallbackInterface {
+
+    /**
+     * Activity Callbacks.
+     */
+    public void activityChanged( ActivityMonitor.State from, ActivityMonitor.State to ); /* The vehicle's activity state (and polling duty) changed. */
+}
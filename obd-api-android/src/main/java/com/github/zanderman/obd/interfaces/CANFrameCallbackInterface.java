@@ -0,0 +1,20 @@
+package com.github.zanderman.obd.interfaces;
+
+/**
+ * Interface:
+ *      CANFrameCallbackInterface
+ *
+ * Description:
+ *      Public interface for consumers of monitored CAN frames (see OBDMonitor).
+ *      Frames arrive on the connection's reader thread at bus rate; a slow
+ *      consumer makes the ELM327 overrun, so hand the values off quickly.
+ */
+public interface CANFrameCallbackInterface {
+
+    /**
+     * Monitor Callbacks.
+     */
+    public void canFrameReceived( int id, int dlc, long payload, long timestamp ); /* One frame: ID (CANFrameParser.EXTENDED set for 29-bit), data length, data bytes packed from the top byte down, System.nanoTime() of arrival. */
+    public void monitorOverrun( long overruns ); /* The ELM327 reported BUFFER FULL; frames were lost. Running total. */
+    public void monitorStopped( Exception cause ); /* Monitoring ended; cause is null after stop(). */
+}
@@ -0,0 +1,20 @@
+package com.github.zanderman.obd.interfaces;
+
+/**
+ * Interface:
+ *      CommandCallbackInterface
+ *
+ * Description:
+ *      Public interface for observers of commands written to an ELM327.
+ *
+ *      Called on the pipeline's writer thread just before the command bytes
+ *      are written, so an observer always sees a command ahead of its
+ *      response. Implementations must return quickly.
+ */
+public interface CommandCallbackInterface {
+
+    /**
+     * Command Callbacks.
+     */
+    public void commandSent( String command ); /* Command (without terminator) is being written to the adapter. */
+}
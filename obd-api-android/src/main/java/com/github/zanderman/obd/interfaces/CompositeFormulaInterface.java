@@ -0,0 +1,18 @@
+package com.github.zanderman.obd.interfaces;
+
+/**
+ * Interface:
+ *      CompositeFormulaInterface
+ *
+ * Description:
+ *      Public interface for the formula of a composite signal (see
+ *      DerivedMetrics.composite()). It runs on the sampling thread for every
+ *      update of an input, so it must not block or allocate.
+ */
+public interface CompositeFormulaInterface {
+
+    /**
+     * Formula Callbacks.
+     */
+    public double compute( double[] inputs ); /* Latest input values in registration order; return NaN to emit nothing. */
+}
@@ -0,0 +1,20 @@
+package com.github.zanderman.obd.interfaces;
+
+import com.github.zanderman.obd.classes.OBDAdapter;
+
+/**
+ * Interface:
+ *      ConnectionCallbackInterface
+ *
+ * Description:
+ *      Public interface for the progress of an asynchronous OBDAdapter connect.
+ */
+public interface ConnectionCallbackInterface {
+
+    /**
+     * Connection Callbacks.
+     */
+    public void connected( OBDAdapter adapter ); /* The link is up and the adapter accepts commands. */
+    public void attemptFailed( OBDAdapter adapter, int attempt, Exception cause, long retryMillis ); /* An attempt failed; the next one starts after retryMillis. */
+    public void connectionFailed( OBDAdapter adapter, Exception cause ); /* Every attempt failed, or the connect was cancelled. */
+}
@@ -0,0 +1,22 @@
+package com.github.zanderman.obd.interfaces;
+
+import com.github.zanderman.obd.classes.OBDEvent;
+
+import java.util.List;
+
+/**
+ * Interface:
+ *      EventBatchCallbackInterface
+ *
+ * Description:
+ *      Public interface for batched OBDEventBus listeners. Called at most
+ *      once per display frame on the main thread with every event published
+ *      since the previous frame.
+ */
+public interface EventBatchCallbackInterface {
+
+    /**
+     * Event Callbacks.
+     */
+    public void eventsReceived( List<OBDEvent> events ); /* Events in publication order; only valid during the call. */
+}
@@ -0,0 +1,20 @@
+package com.github.zanderman.obd.interfaces;
+
+import com.github.zanderman.obd.classes.OBDEvent;
+
+/**
+ * Interface:
+ *      EventCallbackInterface
+ *
+ * Description:
+ *      Public interface for direct OBDEventBus listeners. Called on the
+ *      thread that published the event (reader, writer or main thread), so
+ *      implementations must return quickly.
+ */
+public interface EventCallbackInterface {
+
+    /**
+     * Event Callbacks.
+     */
+    public void eventReceived( OBDEvent event ); /* One adapter or discovery event. */
+}
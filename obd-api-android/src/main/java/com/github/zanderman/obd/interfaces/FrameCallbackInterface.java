@@ -0,0 +1,21 @@
+package com.github.zanderman.obd.interfaces;
+
+/**
+ * Interface:
+ *      FrameCallbackInterface
+ *
+ * Description:
+ *      Public interface for consumers of complete ELM327 response frames.
+ *
+ *      A frame is every byte received before a '>' prompt. The byte array passed
+ *      to frameReceived() is owned by the reader and reused for later frames, so
+ *      implementations must copy anything they need to keep beyond the call.
+ */
+public interface FrameCallbackInterface {
+
+    /**
+     * Framing Callbacks.
+     */
+    public void frameReceived( byte[] buffer, int offset, int length ); /* A complete frame (prompt excluded) is available. */
+    public void readerStopped( Exception cause ); /* The reader has ended; cause is null on an orderly stop. */
+}
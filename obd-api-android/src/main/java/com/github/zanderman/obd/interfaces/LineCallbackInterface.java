@@ -0,0 +1,19 @@
+package com.github.zanderman.obd.interfaces;
+
+/**
+ * Interface:
+ *      LineCallbackInterface
+ *
+ * Description:
+ *      Public interface for consumers of single lines of ELM327 output as
+ *      they arrive, for streams that have no prompt to wait for (ATMA
+ *      monitoring) or long multi-line replies (ISO-TP reassembly). As with
+ *      frames, the byte array belongs to the reader and is reused.
+ */
+public interface LineCallbackInterface {
+
+    /**
+     * Line Callbacks.
+     */
+    public void lineReceived( byte[] buffer, int offset, int length, long timestamp ); /* One line (terminator excluded) and the System.nanoTime() of the read that completed it. */
+}
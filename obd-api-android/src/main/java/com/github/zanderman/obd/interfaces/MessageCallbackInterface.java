@@ -0,0 +1,20 @@
+package com.github.zanderman.obd.interfaces;
+
+import com.github.zanderman.obd.classes.OBDMessage;
+
+/**
+ * Interface:
+ *      MessageCallbackInterface
+ *
+ * Description:
+ *      Public interface for consumers of reassembled response messages (see
+ *      ISOTPReassembler). Messages are delivered on the connection's reader
+ *      thread as soon as their last segment arrives.
+ */
+public interface MessageCallbackInterface {
+
+    /**
+     * Message Callbacks.
+     */
+    public void messageReceived( OBDMessage message ); /* One complete payload from one ECU. */
+}
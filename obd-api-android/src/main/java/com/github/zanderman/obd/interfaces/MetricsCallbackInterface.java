@@ -0,0 +1,21 @@
+package com.github.zanderman.obd.interfaces;
+
+import com.github.zanderman.obd.classes.CommandMetrics;
+import com.github.zanderman.obd.classes.OBDAdapter;
+
+import java.util.Map;
+
+/**
+ * Interface:
+ *      MetricsCallbackInterface
+ *
+ * Description:
+ *      Public interface for periodic OBDManager metrics reports.
+ */
+public interface MetricsCallbackInterface {
+
+    /**
+     * Metrics Callbacks.
+     */
+    public void metricsReported( OBDAdapter adapter, Map<String, CommandMetrics> snapshot ); /* Copy of a session's per-command metrics, keyed by command. */
+}
@@ -0,0 +1,31 @@
+package com.github.zanderman.obd.interfaces;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Interface:
+ *      OBDTransport
+ *
+ * Description:
+ *      Public interface for the byte-stream link between an OBDAdapter and the
+ *      physical (or simulated) ELM327 device. Implementations decide how the
+ *      link is established; the adapter only ever sees the two streams.
+ */
+public interface OBDTransport {
+
+    /**
+     * Link Lifecycle.
+     */
+    public void open() throws IOException; /* Establish the link. Blocks until connected or failed. */
+    public void close() throws IOException; /* Tear down the link. Safe to call when never opened. */
+    public boolean isOpen(); /* Whether the link is currently established. */
+
+
+    /**
+     * Link Streams.
+     */
+    public InputStream getInputStream() throws IOException; /* Bytes arriving from the device. */
+    public OutputStream getOutputStream() throws IOException; /* Bytes headed to the device. */
+}
@@ -0,0 +1,18 @@
+package com.github.zanderman.obd.interfaces;
+
+/**
+ * Interface:
+ *      PIDCallbackInterface
+ *
+ * Description:
+ *      Public interface for receiving individual Mode 01 PID values.
+ *      The data array may be shared; copy anything kept beyond the call.
+ */
+public interface PIDCallbackInterface {
+
+    /**
+     * PID Callbacks.
+     */
+    public void pidReceived( int pid, int ecu, byte[] data, int offset, int length ); /* Raw data bytes of one PID from one ECU. */
+    public void pidFailed( int pid, Exception cause ); /* The PID could not be read (e.g. NoDataException). */
+}
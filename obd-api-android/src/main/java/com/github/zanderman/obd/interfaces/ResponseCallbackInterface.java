@@ -0,0 +1,20 @@
+package com.github.zanderman.obd.interfaces;
+
+import com.github.zanderman.obd.classes.OBDResponse;
+
+/**
+ * Interface:
+ *      ResponseCallbackInterface
+ *
+ * Description:
+ *      Public interface for asynchronous command completion callbacks.
+ *      Callbacks run on the connection's reader thread and should return quickly.
+ */
+public interface ResponseCallbackInterface {
+
+    /**
+     * Response Callbacks.
+     */
+    public void responseReceived( OBDResponse response ); /* The command completed with a response. */
+    public void responseFailed( String command, Exception cause ); /* The command timed out, was cancelled or the link failed. */
+}
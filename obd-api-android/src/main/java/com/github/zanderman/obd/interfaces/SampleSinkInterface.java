@@ -0,0 +1,17 @@
+package com.github.zanderman.obd.interfaces;
+
+/**
+ * Interface:
+ *      SampleSinkInterface
+ *
+ * Description:
+ *      Public interface for consumers of decoded samples. All arguments are
+ *      primitives so that delivering a sample never allocates or boxes.
+ */
+public interface SampleSinkInterface {
+
+    /**
+     * Sample Callbacks.
+     */
+    public void sample( int pid, int ecu, long timestamp, double value ); /* One decoded value (SI units, see PIDDecoder). */
+}
@@ -0,0 +1,22 @@
+package com.github.zanderman.obd.interfaces;
+
+import com.github.zanderman.obd.classes.SampleSubscription;
+
+/**
+ * Interface:
+ *      SampleSubscriberInterface
+ *
+ * Description:
+ *      Public interface for subscribers of a SamplePublisher signal. Calls
+ *      never overlap and never run on the thread producing the samples.
+ */
+public interface SampleSubscriberInterface {
+
+    /**
+     * Subscriber Callbacks.
+     */
+    public void subscribed( SampleSubscription subscription ); /* First call; nothing is delivered until samples are requested. */
+    public void sampleReceived( int pid, int ecu, long timestamp, double value ); /* One requested sample (SI units, see PIDDecoder). */
+    public void streamFailed( Exception cause ); /* Terminal: the subscription failed (e.g. its buffer overflowed). */
+    public void streamCompleted( ); /* Terminal: the publisher was closed and every buffered sample delivered. */
+}
@@ -0,0 +1,17 @@
+package com.github.zanderman.obd.interfaces;
+
+/**
+ * Interface:
+ *      SchedulerCallbackInterface
+ *
+ * Description:
+ *      Public interface for PIDScheduler rate reports.
+ */
+public interface SchedulerCallbackInterface {
+
+    /**
+     * Scheduler Callbacks.
+     */
+    public void rateUnattainable( int pid, double targetHz, double achievedHz ); /* A PID is running well below its target rate. */
+    public void rateRestored( int pid, double targetHz, double achievedHz ); /* A previously reported PID is back at its target rate. */
+}
@@ -0,0 +1,21 @@
+package com.github.zanderman.obd.interfaces;
+
+/**
+ * Interface:
+ *      TripLogCallbackInterface
+ *
+ * Description:
+ *      Public interface for consumers of a recorded trip log.
+ *
+ *      Timestamps are microseconds since the start of the recording. Frame
+ *      bytes are only valid for the duration of the call.
+ */
+public interface TripLogCallbackInterface {
+
+    /**
+     * Trip Log Callbacks.
+     */
+    public void commandRecorded( long micros, String command ); /* A command was sent to the adapter. */
+    public void frameRecorded( long micros, byte[] buffer, int offset, int length ); /* A response frame was received. */
+    public void valueRecorded( long micros, int pid, int ecu, double value ); /* A decoded PID value was recorded. */
+}
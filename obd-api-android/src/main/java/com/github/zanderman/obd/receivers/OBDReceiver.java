@@ -7,6 +7,8 @@ import android.content.Context;
 import android.content.Intent;
 
 import com.github.zanderman.obd.R;
+import com.github.zanderman.obd.classes.OBDEvent;
+import com.github.zanderman.obd.classes.OBDEventBus;
 import com.github.zanderman.obd.interfaces.BluetoothCallbackInterface;
 import com.github.zanderman.obd.interfaces.CommunicationCallbackInterface;
 
@@ -16,6 +18,7 @@ import com.github.zanderman.obd.interfaces.CommunicationCallbackInterface;
  *
  * Description:
  *      Primary broadcast receiver representation for all OBD Bluetooth actions.
+ *      Discovery broadcasts are also forwarded to an OBDEventBus, when given.
  */
 public class OBDReceiver extends BroadcastReceiver {
 
@@ -24,6 +27,7 @@ public class OBDReceiver extends BroadcastReceiver {
      */
     final BluetoothCallbackInterface bluetoothCallbackInterface;
     final CommunicationCallbackInterface communicationCallbackInterface;
+    final OBDEventBus eventBus;
 
     /**
      * Custom Broadcasts.
@@ -44,6 +48,7 @@ public class OBDReceiver extends BroadcastReceiver {
 
         this.bluetoothCallbackInterface = null;
         this.communicationCallbackInterface = null;
+        this.eventBus = null;
     }
 
     /**
@@ -56,6 +61,21 @@ public class OBDReceiver extends BroadcastReceiver {
      * @param bluetoothCallbackInterface    Primary callback interface used.
      */
     public OBDReceiver(final BluetoothCallbackInterface bluetoothCallbackInterface) {
+        this(bluetoothCallbackInterface, null);
+    }
+
+    /**
+     * Constructor:
+     *      OBDReceiver( final BluetoothCallbackInterface, final OBDEventBus )
+     *
+     * Description:
+     *      Creates a new OBDReceiver object that reports discovery actions to a
+     *      Bluetooth callback interface and publishes them on an event bus.
+     *
+     * @param bluetoothCallbackInterface    Primary callback interface used (may be null).
+     * @param eventBus                      Bus on which discovery events are published (may be null).
+     */
+    public OBDReceiver(final BluetoothCallbackInterface bluetoothCallbackInterface, final OBDEventBus eventBus) {
         super();
 
         /**
@@ -63,6 +83,7 @@ public class OBDReceiver extends BroadcastReceiver {
          */
         this.bluetoothCallbackInterface = bluetoothCallbackInterface;
         this.communicationCallbackInterface = null;
+        this.eventBus = eventBus;
     }
 
 
@@ -85,6 +106,7 @@ public class OBDReceiver extends BroadcastReceiver {
          */
         this.communicationCallbackInterface = communicationCallbackInterface;
         this.bluetoothCallbackInterface= null;
+        this.eventBus = null;
     }
 
     /**
@@ -101,25 +123,66 @@ public class OBDReceiver extends BroadcastReceiver {
     public void onReceive(Context context, Intent intent) {
 
         /**
-         * Check for different actions.
+         * Ignore broadcasts without an action.
          */
-        switch ( intent.getAction() )
+        String action = intent.getAction();
+        if ( action == null )
+            return;
+
+        /**
+         * Check for different actions; each action fires its own callback only.
+         */
+        switch ( action )
+        {
+            case OBDReceiver.COMMUNICATION_RECEIVE:
+                if ( this.communicationCallbackInterface != null )
+                    this.communicationCallbackInterface.receive( );
+                break;
+            case OBDReceiver.COMMUNICATION_TRANSMIT:
+                if ( this.communicationCallbackInterface != null )
+                    this.communicationCallbackInterface.transmit( context.getString(R.string.OutgoingData) );
+                break;
+            case BluetoothDevice.ACTION_FOUND:
+                this.discovery(action, (BluetoothDevice) intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE));
+                break;
+            default:
+                this.discovery(action, null);
+                break;
+        }
+    }
+
+    /**
+     * Method:
+     *      discovery( String, BluetoothDevice )
+     *
+     * Description:
+     *      Reports a discovery action to the Bluetooth callback interface and
+     *      the event bus. Other actions are ignored.
+     *
+     * @param action    Broadcast action.
+     * @param device    Device found (ACTION_FOUND only; may be null).
+     */
+    void discovery(String action, BluetoothDevice device) {
+        switch ( action )
         {
             case BluetoothAdapter.ACTION_DISCOVERY_STARTED:
                 if ( this.bluetoothCallbackInterface != null )
                     this.bluetoothCallbackInterface.discoveryStarted();
+                if ( this.eventBus != null )
+                    this.eventBus.publish(new OBDEvent(OBDEvent.Type.DISCOVERY_STARTED, null, null, null));
+                break;
             case BluetoothAdapter.ACTION_DISCOVERY_FINISHED:
                 if ( this.bluetoothCallbackInterface != null )
                     this.bluetoothCallbackInterface.discoveryFinished();
+                if ( this.eventBus != null )
+                    this.eventBus.publish(new OBDEvent(OBDEvent.Type.DISCOVERY_FINISHED, null, null, null));
+                break;
             case BluetoothDevice.ACTION_FOUND:
                 if ( this.bluetoothCallbackInterface != null )
-                    this.bluetoothCallbackInterface.discoveryFound((BluetoothDevice) intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE));
-            case OBDReceiver.COMMUNICATION_RECEIVE:
-                if ( this.communicationCallbackInterface != null )
-                    this.communicationCallbackInterface.receive( );
-            case OBDReceiver.COMMUNICATION_TRANSMIT:
-                if ( this.communicationCallbackInterface != null )
-                    this.communicationCallbackInterface.transmit( context.getString(R.string.OutgoingData) );
+                    this.bluetoothCallbackInterface.discoveryFound(device);
+                if ( this.eventBus != null )
+                    this.eventBus.publish(new OBDEvent(OBDEvent.Type.DEVICE_FOUND, null, device, null));
+                break;
         }
     }
 }
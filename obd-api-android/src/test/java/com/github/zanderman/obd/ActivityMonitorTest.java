@@ -0,0 +1,233 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.ActivityMonitor;
+import com.github.zanderman.obd.classes.ELM327Simulator;
+import com.github.zanderman.obd.classes.OBDAdapter;
+import com.github.zanderman.obd.classes.OBDEvent;
+import com.github.zanderman.obd.classes.OBDEventBus;
+import com.github.zanderman.obd.classes.OBDProfile;
+import com.github.zanderman.obd.classes.PIDScheduler;
+import com.github.zanderman.obd.interfaces.ActivityCallbackInterface;
+import com.github.zanderman.obd.interfaces.EventCallbackInterface;
+import com.github.zanderman.obd.interfaces.PIDCallbackInterface;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for activity-aware polling and the engine-off heartbeat.
+ */
+public class ActivityMonitorTest {
+
+    private ELM327Simulator simulator;
+    private OBDAdapter adapter;
+    private PIDScheduler scheduler;
+    private ActivityMonitor monitor;
+    private final List<String> changes = new CopyOnWriteArrayList<String>();
+
+    /**
+     * Counts samples of all PIDs.
+     */
+    private static class Counter implements PIDCallbackInterface {
+        final AtomicInteger samples = new AtomicInteger();
+
+        @Override
+        public void pidReceived(int pid, int ecu, byte[] data, int offset, int length) {
+            samples.incrementAndGet();
+        }
+
+        @Override
+        public void pidFailed(int pid, Exception cause) {
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new ELM327Simulator();
+        simulator.setSearchOnFirstQuery(false);
+        simulator.setDefaultLatency(5);
+        adapter = new OBDAdapter(simulator, "Simulator", "00:00:00:00:00:00");
+        assertTrue(adapter.connect());
+        adapter.submit("ATE0").get(1, TimeUnit.SECONDS);
+        scheduler = new PIDScheduler(adapter);
+        monitor = new ActivityMonitor(adapter, scheduler);
+        monitor.setHeartbeat(150);
+        monitor.addListener(new ActivityCallbackInterface() {
+            @Override
+            public void activityChanged(ActivityMonitor.State from, ActivityMonitor.State to) {
+                changes.add(from + ">" + to);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        monitor.stop();
+        scheduler.stop();
+        adapter.disconnect();
+    }
+
+    /**
+     * Waits for a state and for the listeners to have been told about it
+     * (they are called after the state is set).
+     */
+    private void await(ActivityMonitor.State state, long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        while (!announced(state) && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(state, monitor.getState());
+        assertTrue(changes.toString(), announced(state));
+    }
+
+    private boolean announced(ActivityMonitor.State state) {
+        return (monitor.getState() == state && !changes.isEmpty()
+                && changes.get(changes.size() - 1).endsWith(">" + state));
+    }
+
+    @Test
+    public void engineOffPausesPollingAndRpmWakesWithinOneHeartbeat() throws Exception {
+        final List<String> events = new CopyOnWriteArrayList<String>();
+        OBDEventBus bus = new OBDEventBus(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+            }
+        }, 16);
+        bus.addListener(new EventCallbackInterface() {
+            @Override
+            public void eventReceived(OBDEvent event) {
+                if (event.getType() == OBDEvent.Type.ACTIVITY_CHANGED)
+                    events.add(event.getData());
+            }
+        });
+        adapter.setEventBus(bus);
+
+        Counter counter = new Counter();
+        scheduler.register(ActivityMonitor.PID_RPM, 20, 1, monitor.observe(counter));
+        scheduler.start();
+        monitor.start();
+        Thread.sleep(200);
+        assertEquals(ActivityMonitor.State.ACTIVE, monitor.getState());
+        assertTrue(counter.samples.get() > 0);
+
+        /* Three readings of 0 RPM stop the polling. */
+        simulator.setPid(0x0C, 0x00, 0x00);
+        await(ActivityMonitor.State.ENGINE_OFF, 1000);
+        assertEquals(0.0, scheduler.getRateScale(), 0.0);
+        Thread.sleep(50);
+        int paused = counter.samples.get();
+        Thread.sleep(400);
+        assertEquals(paused, counter.samples.get());
+        assertTrue(monitor.getHeartbeats() >= 2);
+        assertTrue(adapter.getMetrics().get("ATRV").getSent() >= 2);
+
+        /* The next heartbeat sees the engine running and restores full rate. */
+        simulator.setPid(0x0C, 0x1A, 0xF8);
+        long start = System.currentTimeMillis();
+        await(ActivityMonitor.State.ACTIVE, 1000);
+        assertTrue(System.currentTimeMillis() - start < 150 + 100);
+        assertEquals(1.0, scheduler.getRateScale(), 0.0);
+        int resumed = counter.samples.get();
+        Thread.sleep(300);
+        assertTrue(counter.samples.get() - resumed >= 3);
+
+        assertEquals("[ACTIVE>ENGINE_OFF, ENGINE_OFF>ACTIVE]", changes.toString());
+        assertEquals("[ENGINE_OFF, ACTIVE]", events.toString());
+    }
+
+    @Test
+    public void noDataIsConfirmedBeforeBackingOff() throws Exception {
+        Counter counter = new Counter();
+        scheduler.register(ActivityMonitor.PID_RPM, 20, 1, monitor.observe(counter));
+        scheduler.start();
+        monitor.start();
+        Thread.sleep(200);
+
+        /* The ECU goes quiet: one NO DATA from the scheduler, then two confirming reads. */
+        simulator.removePid(0x0C);
+        await(ActivityMonitor.State.ENGINE_OFF, 1000);
+        assertEquals(3, adapter.getMetrics().get("010C").getNoData());
+        assertEquals(0.0, scheduler.getRateScale(), 0.0);
+
+        /* A charging voltage alone wakes the polling, which picks up RPM again. */
+        simulator.setVoltage("14.2V");
+        simulator.setPid(0x0C, 0x1A, 0xF8);
+        await(ActivityMonitor.State.ACTIVE, 1000);
+        int resumed = counter.samples.get();
+        Thread.sleep(300);
+        assertTrue(counter.samples.get() - resumed >= 3);
+    }
+
+    @Test
+    public void lowVoltageNeedsOnlyOneZeroRpm() throws Exception {
+        monitor.setEngineOffLimits(100, 3, 13.0);
+        PIDCallbackInterface observer = monitor.observe(null);
+        scheduler.register(ActivityMonitor.PID_VOLTAGE, 20, 1, observer);
+        scheduler.register(ActivityMonitor.PID_RPM, 20, 1, observer);
+        scheduler.start();
+        monitor.start();
+        Thread.sleep(200);
+        assertEquals(ActivityMonitor.State.ACTIVE, monitor.getState());
+
+        /* 12.586 V is below charging, so the first 0 RPM is taken as engine off. */
+        simulator.setPid(0x0C, 0x00, 0x00);
+        await(ActivityMonitor.State.ENGINE_OFF, 500);
+    }
+
+    @Test
+    public void stationaryEngineIdlesAtReducedRate() throws Exception {
+        monitor.setIdle(100, 0.25);
+        PIDCallbackInterface observer = monitor.observe(null);
+        scheduler.register(ActivityMonitor.PID_RPM, 20, 1, observer);
+        scheduler.register(ActivityMonitor.PID_SPEED, 20, 1, observer);
+        scheduler.start();
+        monitor.start();
+        Thread.sleep(200);
+        assertEquals(ActivityMonitor.State.ACTIVE, monitor.getState());
+
+        simulator.setPid(0x0D, 0x00);
+        await(ActivityMonitor.State.IDLE, 1000);
+        assertEquals(0.25, scheduler.getRateScale(), 0.0);
+
+        /* Moving again is seen within one reduced-rate cycle (1 / 5 Hz). */
+        simulator.setPid(0x0D, 0x3C);
+        await(ActivityMonitor.State.ACTIVE, 200 + 100);
+        assertEquals(1.0, scheduler.getRateScale(), 0.0);
+        assertEquals("[ACTIVE>IDLE, IDLE>ACTIVE]", changes.toString());
+    }
+
+    @Test
+    public void lowPowerSleepsTheAdapterBetweenHeartbeats() throws Exception {
+        OBDProfile session = adapter.initialize();
+        monitor.setLowPower(true);
+        scheduler.register(ActivityMonitor.PID_RPM, 20, 1, monitor.observe(null));
+        scheduler.start();
+        monitor.start();
+        Thread.sleep(200);
+
+        simulator.setPid(0x0C, 0x00, 0x00);
+        await(ActivityMonitor.State.LOW_POWER, 1000);
+        long deadline = System.currentTimeMillis() + 1000;
+        while (adapter.getMetrics().get("ATLP") == null && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertNotNull(adapter.getMetrics().get("ATLP"));
+
+        /* Each heartbeat wakes the adapter (any character) and replays the session. */
+        simulator.setPid(0x0C, 0x1A, 0xF8);
+        await(ActivityMonitor.State.ACTIVE, 2000);
+        assertTrue(adapter.getMetrics().get("ATI").getSent() >= 1);
+        assertTrue(adapter.getMetrics().get("ATD").getSent() >= 1);
+        assertEquals(1, adapter.getMetrics().get("ATZ").getSent());
+        assertSame(session, adapter.getSession());
+        assertEquals(1.0, scheduler.getRateScale(), 0.0);
+        assertEquals("[ACTIVE>LOW_POWER, LOW_POWER>ACTIVE]", changes.toString());
+    }
+}
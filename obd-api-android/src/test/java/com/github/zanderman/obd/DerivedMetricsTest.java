@@ -0,0 +1,148 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.DerivedMetrics;
+import com.github.zanderman.obd.classes.SampleStore;
+import com.github.zanderman.obd.interfaces.CompositeFormulaInterface;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for streaming derived metrics.
+ */
+public class DerivedMetricsTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void tripComputerIntegratesSpeedAndFuel() {
+        SampleStore store = new SampleStore();
+        DerivedMetrics metrics = new DerivedMetrics(store);
+        metrics.addFuelEconomy();
+
+        /* 100 s at 36 km/h burning 5 g/s of air: 1 km. */
+        for (int t = 0; t <= 100; t++) {
+            metrics.sample(0x0D, 0x7E8, t * SECOND, 36);
+            metrics.sample(0x10, 0x7E8, t * SECOND + 1000, 5);
+        }
+        double rate = 5 * 3600.0 / (DerivedMetrics.AIR_FUEL_RATIO * DerivedMetrics.FUEL_DENSITY);
+        assertEquals(1.0, metrics.getValue(DerivedMetrics.TRIP_DISTANCE), 1e-9);
+        assertEquals(rate, metrics.getValue(DerivedMetrics.FUEL_RATE), 1e-9);
+        assertEquals(100 * rate / 36, metrics.getValue(DerivedMetrics.FUEL_ECONOMY), 1e-9);
+        assertEquals(rate * 100 / 3600, metrics.getValue(DerivedMetrics.TRIP_FUEL), 1e-9);
+        assertEquals(100 * rate * 100 / 3600, metrics.getValue(DerivedMetrics.TRIP_ECONOMY), 1e-6);
+
+        /* Inputs and derived signals both reach the downstream store. */
+        assertEquals(101, store.get(0x0D).getCount());
+        assertEquals(101, store.get(DerivedMetrics.TRIP_DISTANCE).getCount());
+        assertEquals(1.0, store.get(DerivedMetrics.TRIP_DISTANCE).getLatestValue(), 1e-9);
+
+        /* A dropped link does not add distance; standing still has no economy. */
+        metrics.sample(0x0D, 0x7E8, 200 * SECOND, 0);
+        assertEquals(1.0, metrics.getValue(DerivedMetrics.TRIP_DISTANCE), 1e-9);
+        assertEquals(100 * rate / 36, metrics.getValue(DerivedMetrics.FUEL_ECONOMY), 1e-9);
+
+        /* Other ECUs are passed on but not derived from. */
+        metrics.sample(0x0D, 0x7E9, 201 * SECOND, 250);
+        assertEquals(1.0, metrics.getValue(DerivedMetrics.TRIP_DISTANCE), 1e-9);
+
+        metrics.reset();
+        metrics.sample(0x0D, 0x7E8, 300 * SECOND, 36);
+        assertEquals(0.0, metrics.getValue(DerivedMetrics.TRIP_DISTANCE), 0);
+        assertTrue(Double.isNaN(metrics.getValue(DerivedMetrics.FUEL_RATE)));
+    }
+
+    @Test
+    public void windowsAndAveragesMatchBruteForce() {
+        DerivedMetrics metrics = new DerivedMetrics(null, TimeUnit.MILLISECONDS);
+        metrics.window(0xE1, 0x0C, DerivedMetrics.Statistic.MIN, 50);
+        metrics.window(0xE2, 0x0C, DerivedMetrics.Statistic.MAX, 50);
+        metrics.window(0xE3, 0x0C, DerivedMetrics.Statistic.MEAN, 50);
+        metrics.ewma(0xE4, 0x0C, 1.0);
+
+        Random random = new Random(7);
+        double[] history = new double[5000];
+        for (int i = 0; i < history.length; i++) {
+            history[i] = 800 + random.nextInt(6000);
+            metrics.sample(0x0C, 0x7E8, i * 100L, history[i]);
+
+            double min = Double.MAX_VALUE, max = -Double.MAX_VALUE, sum = 0;
+            int from = Math.max(0, i - 49);
+            for (int k = from; k <= i; k++) {
+                min = Math.min(min, history[k]);
+                max = Math.max(max, history[k]);
+                sum += history[k];
+            }
+            assertEquals(min, metrics.getValue(0xE1), 0);
+            assertEquals(max, metrics.getValue(0xE2), 0);
+            assertEquals(sum / (i - from + 1), metrics.getValue(0xE3), 1e-6);
+        }
+
+        /* A step settles to 1 - 1/e after one time constant. */
+        metrics.sample(0x0C, 0x7E8, 600000, 0);
+        metrics.sample(0x0C, 0x7E8, 601000, 1000);
+        assertEquals(1000 * (1 - Math.exp(-1)), metrics.getValue(0xE4), 1e-6);
+    }
+
+    @Test
+    public void compositesChainAndRejectCycles() {
+        DerivedMetrics metrics = new DerivedMetrics(null);
+        metrics.composite(0xE1, new CompositeFormulaInterface() {
+            @Override
+            public double compute(double[] inputs) {
+                return (inputs[0] * inputs[1]);
+            }
+        }, 0x0C, 0x04);
+        metrics.window(0xE2, 0xE1, DerivedMetrics.Statistic.MAX, 10);
+
+        metrics.sample(0x0C, 0x7E8, 0, 3000);
+        assertTrue(Double.isNaN(metrics.getValue(0xE1)));
+        metrics.sample(0x04, 0x7E8, 1, 50);
+        assertEquals(150000, metrics.getValue(0xE1), 0);
+        metrics.sample(0x04, 0x7E8, 2, 20);
+        assertEquals(60000, metrics.getValue(0xE1), 0);
+        assertEquals(150000, metrics.getValue(0xE2), 0);
+
+        try {
+            metrics.integrate(0xE1, 0x0D, 1);
+            fail("signal derived twice");
+        } catch (IllegalArgumentException e) {
+            /* Expected. */
+        }
+        try {
+            metrics.integrate(0x0C, 0xE2, 1);
+            fail("cycle accepted");
+        } catch (IllegalArgumentException e) {
+            /* Expected. */
+        }
+    }
+
+    /**
+     * Cost per sample must not grow with the length of the trip.
+     */
+    @Test
+    public void costDoesNotGrowWithHistory() {
+        DerivedMetrics metrics = new DerivedMetrics(null);
+        metrics.addFuelEconomy();
+        metrics.window(0xE1, 0x0D, DerivedMetrics.Statistic.MEAN, 600);
+        metrics.window(0xE2, 0x0D, DerivedMetrics.Statistic.MAX, 600);
+        metrics.ewma(0xE3, 0x10, 5);
+
+        long[] nanos = new long[4];
+        long t = 0;
+        for (int round = 0; round < nanos.length; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < 250000; i++, t += 50000000L) {
+                metrics.sample(0x0D, 0x7E8, t, 30 + (i % 90));
+                metrics.sample(0x10, 0x7E8, t, 2 + (i % 40));
+            }
+            nanos[round] = System.nanoTime() - start;
+        }
+        assertTrue(String.format("%.1f ns/sample, %.1f ns/sample warming up", nanos[3] / 500000.0, nanos[1] / 500000.0),
+                nanos[3] < 3 * nanos[1] + 20000000L);
+    }
+}
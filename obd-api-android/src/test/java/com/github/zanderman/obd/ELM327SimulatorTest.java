@@ -0,0 +1,88 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.ELM327Simulator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the in-process ELM327 simulator transport.
+ */
+public class ELM327SimulatorTest {
+
+    private ELM327Simulator simulator;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new ELM327Simulator();
+        simulator.open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        simulator.close();
+    }
+
+    private String query(String command) throws Exception {
+        OutputStream out = simulator.getOutputStream();
+        out.write((command + "\r").getBytes("US-ASCII"));
+        out.flush();
+
+        InputStream in = simulator.getInputStream();
+        StringBuilder reply = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '>')
+            reply.append((char) c);
+        return reply.toString();
+    }
+
+    @Test
+    public void echoAndSearchingOnFirstQuery() throws Exception {
+        assertEquals("010C\rSEARCHING...\r41 0C 1A F8\r\r", query("010C"));
+        assertEquals("010C\r41 0C 1A F8\r\r", query("010C"));
+    }
+
+    @Test
+    public void compactFormatAndNoData() throws Exception {
+        query("ATE0");
+        query("ATS0");
+        query("0100");
+        assertEquals("410D3C\r\r", query("010D"));
+        assertEquals("NO DATA\r\r", query("01FF"));
+    }
+
+    @Test
+    public void multiFrameVinWithHeaders() throws Exception {
+        query("ATE0");
+        query("ATH1");
+        query("0100");
+        assertEquals("7E8 10 14 49 02 01 31 48 47\r"
+                + "7E8 21 43 4D 38 32 36 33 33\r"
+                + "7E8 22 41 30 30 34 33 35 32\r\r", query("0902"));
+    }
+
+    @Test
+    public void injectedFaultReplacesNextAnswer() throws Exception {
+        query("ATE0");
+        query("0100");
+        simulator.injectFault("BUFFER FULL");
+        assertEquals("BUFFER FULL\r\r", query("010C"));
+        assertEquals("41 0C 1A F8\r\r", query("010C"));
+    }
+
+    @Test
+    public void perCommandLatency() throws Exception {
+        query("ATE0");
+        query("0100");
+        simulator.setLatency("010C", 50);
+        long start = System.nanoTime();
+        query("010C");
+        assertTrue((System.nanoTime() - start) >= 50000000L);
+    }
+}
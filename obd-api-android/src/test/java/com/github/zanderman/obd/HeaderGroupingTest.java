@@ -0,0 +1,157 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.ELM327Simulator;
+import com.github.zanderman.obd.classes.OBDAdapter;
+import com.github.zanderman.obd.classes.OBDCommand;
+import com.github.zanderman.obd.classes.OBDCommandPipeline.Priority;
+import com.github.zanderman.obd.classes.OBDFuture;
+import com.github.zanderman.obd.classes.OBDTarget;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for ECU addressing and header-switch grouping.
+ */
+public class HeaderGroupingTest {
+
+    private ELM327Simulator simulator;
+    private OBDAdapter adapter;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new ELM327Simulator();
+        simulator.setSearchOnFirstQuery(false);
+        simulator.setEcuPid(ELM327Simulator.ECU_TRANSMISSION, 0x05, 0x5A);
+        simulator.setEcuPid(ELM327Simulator.ECU_TRANSMISSION, 0x0C, 0x00, 0x00);
+        adapter = new OBDAdapter(simulator, "Simulator", "00:00:00:00:00:00");
+        adapter.setResponseCountHints(false);
+        assertTrue(adapter.connect());
+        adapter.submit("ATE0").get(1, TimeUnit.SECONDS);
+        adapter.submit("ATH1").get(1, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        adapter.disconnect();
+    }
+
+    private static long sent(OBDAdapter adapter, String command) {
+        return ((adapter.getMetrics().get(command) != null) ? adapter.getMetrics().get(command).getSent() : 0);
+    }
+
+    @Test
+    public void targetsDeriveTheirReplyAddress() {
+        assertEquals(0x7E9, OBDTarget.TRANSMISSION.getReceive());
+        assertEquals(0x18DAF118, OBDTarget.of(0x18DA18F1).getReceive());
+        assertEquals(OBDTarget.ANY, OBDTarget.of(0x7DF).getReceive());
+        assertEquals(OBDTarget.of(0x7E1), OBDTarget.TRANSMISSION);
+        assertEquals("7E1/7E9", OBDTarget.TRANSMISSION.toString());
+        assertEquals("18DA18F1/18DAF118", OBDTarget.of(0x18DA18F1).toString());
+    }
+
+    @Test
+    public void interleavedPollsShareHeaderSwitches() throws Exception {
+        adapter.setHeaderGrouping(200);
+        simulator.setLatency("ATRV", 30);
+        OBDCommand rpm = OBDCommand.of("010C");
+        OBDCommand coolant = OBDCommand.of("0105");
+
+        /* A naive loop alternates ECUs and would switch before every request. */
+        OBDFuture blocker = adapter.submit("ATRV");
+        Thread.sleep(10);
+        List<OBDFuture> engine = new ArrayList<OBDFuture>();
+        List<OBDFuture> transmission = new ArrayList<OBDFuture>();
+        for (int i = 0; i < 10; i++) {
+            engine.add(adapter.submit(rpm, OBDTarget.ENGINE, Priority.REALTIME, null));
+            transmission.add(adapter.submit(coolant, OBDTarget.TRANSMISSION, Priority.REALTIME, null));
+        }
+        blocker.get(1, TimeUnit.SECONDS);
+        for (OBDFuture f : engine)
+            assertEquals("7E8 04 41 0C 1A F8 00 00 00", f.get(1, TimeUnit.SECONDS).getText());
+        for (OBDFuture f : transmission)
+            assertEquals("7E9 03 41 05 5A 00 00 00 00", f.get(1, TimeUnit.SECONDS).getText());
+
+        assertEquals(2, adapter.getHeaderSwitches());
+        assertEquals(18, adapter.getHeaderSwitchesSaved());
+        assertEquals(1, sent(adapter, "ATSH7E0"));
+        assertEquals(1, sent(adapter, "ATSH7E1"));
+
+        /* Once the state is known, requests for the current ECU need nothing. */
+        adapter.submit(coolant, OBDTarget.TRANSMISSION, Priority.REALTIME, null).get(1, TimeUnit.SECONDS);
+        assertEquals(2, adapter.getHeaderSwitches());
+    }
+
+    @Test
+    public void untargetedRequestsGoBackToTheFunctionalHeader() throws Exception {
+        /* Addressing is left alone until a request names an ECU. */
+        String all = adapter.submit("010C").get(1, TimeUnit.SECONDS).getText();
+        assertTrue(all, all.contains("7E8") && all.contains("7E9"));
+        assertEquals(0, sent(adapter, "ATSH7DF"));
+
+        String one = adapter.submit(OBDCommand.of("010C"), OBDTarget.TRANSMISSION, Priority.INTERACTIVE, null)
+                .get(1, TimeUnit.SECONDS).getText();
+        assertEquals("7E9 04 41 0C 00 00 00 00 00", one);
+        String both = adapter.submit("010C").get(1, TimeUnit.SECONDS).getText();
+        assertTrue(both, both.contains("7E8") && both.contains("7E9"));
+        assertEquals(1, sent(adapter, "ATSH7DF"));
+        assertEquals(1, sent(adapter, "ATCRA"));
+        assertEquals(2, adapter.getHeaderSwitches());
+    }
+
+    @Test
+    public void extendedHeadersSetThePriorityOnce() throws Exception {
+        simulator.setVehicleProtocol(7);
+        OBDCommand rpm = OBDCommand.of("010C");
+        OBDTarget engine = OBDTarget.of(0x18DA10F1);
+        OBDTarget transmission = OBDTarget.of(0x18DA11F1);
+
+        /* ELM327 v1.x only takes six digit headers, the priority goes out with ATCP. */
+        String one = adapter.submit(rpm, transmission, Priority.INTERACTIVE, null).get(1, TimeUnit.SECONDS).getText();
+        assertTrue(one, one.replace(" ", "").startsWith("18DAF111"));
+        String other = adapter.submit(rpm, engine, Priority.INTERACTIVE, null).get(1, TimeUnit.SECONDS).getText();
+        assertTrue(other, other.replace(" ", "").startsWith("18DAF110"));
+        adapter.submit(rpm, OBDTarget.ENGINE, Priority.INTERACTIVE, null).get(1, TimeUnit.SECONDS);
+        adapter.submit(rpm, transmission, Priority.INTERACTIVE, null).get(1, TimeUnit.SECONDS);
+
+        assertEquals(1, sent(adapter, "ATCP18"));
+        assertEquals(2, sent(adapter, "ATSHDA11F1"));
+        assertEquals(1, sent(adapter, "ATSHDA10F1"));
+        assertEquals(0, sent(adapter, "ATSH18DA11F1"));
+        assertEquals(4, adapter.getHeaderSwitches());
+    }
+
+    @Test
+    public void applicationHeaderCommandsInvalidateTheCache() throws Exception {
+        OBDCommand rpm = OBDCommand.of("010C");
+        adapter.submit(rpm, OBDTarget.ENGINE, Priority.INTERACTIVE, null).get(1, TimeUnit.SECONDS);
+        adapter.submit("ATSH7E1").get(1, TimeUnit.SECONDS);
+        String text = adapter.submit(rpm, OBDTarget.ENGINE, Priority.INTERACTIVE, null).get(1, TimeUnit.SECONDS).getText();
+        assertTrue(text, text.startsWith("7E8"));
+        assertEquals(2, sent(adapter, "ATSH7E0"));
+    }
+
+    @Test
+    public void strictOrderWithoutGrouping() throws Exception {
+        adapter.setHeaderGrouping(0);
+        simulator.setLatency("ATRV", 50);
+        OBDFuture blocker = adapter.submit("ATRV");
+        Thread.sleep(10);
+        OBDFuture last = null;
+        for (int i = 0; i < 3; i++) {
+            adapter.submit(OBDCommand.of("010C"), OBDTarget.ENGINE, Priority.BACKGROUND, null);
+            last = adapter.submit(OBDCommand.of("0105"), OBDTarget.TRANSMISSION, Priority.BACKGROUND, null);
+        }
+        blocker.get(1, TimeUnit.SECONDS);
+        last.get(1, TimeUnit.SECONDS);
+        assertEquals(6, adapter.getHeaderSwitches());
+        assertEquals(0, adapter.getHeaderSwitchesSaved());
+    }
+}
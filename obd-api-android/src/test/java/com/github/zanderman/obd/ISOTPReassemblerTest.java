@@ -0,0 +1,181 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.ELM327Simulator;
+import com.github.zanderman.obd.classes.ISOTPReassembler;
+import com.github.zanderman.obd.classes.OBDAdapter;
+import com.github.zanderman.obd.classes.OBDMessage;
+import com.github.zanderman.obd.classes.OBDResponseParser;
+import com.github.zanderman.obd.interfaces.MessageCallbackInterface;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for incremental ISO-TP reassembly.
+ */
+public class ISOTPReassemblerTest {
+
+    /**
+     * Collects delivered messages.
+     */
+    private static class Messages implements MessageCallbackInterface {
+        final List<OBDMessage> messages = new CopyOnWriteArrayList<OBDMessage>();
+
+        @Override
+        public void messageReceived(OBDMessage message) {
+            this.messages.add(message);
+        }
+    }
+
+    private static void feed(ISOTPReassembler reassembler, String line) {
+        byte[] bytes = ("xx" + line + "\r").getBytes();
+        reassembler.lineReceived(bytes, 2, line.length(), 0);
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder text = new StringBuilder();
+        for (byte b : bytes)
+            text.append(String.format("%02X", b & 0xFF));
+        return (text.toString());
+    }
+
+    private static final String VIN = "1HGCM82633A004352";
+
+    private static String vinPayload() {
+        StringBuilder text = new StringBuilder("490201");
+        for (char c : VIN.toCharArray())
+            text.append(String.format("%02X", (int) c));
+        return (text.toString());
+    }
+
+    @Test
+    public void interleavedEcusAreDeliveredAsTheyComplete() {
+        Messages out = new Messages();
+        ISOTPReassembler reassembler = new ISOTPReassembler(out, false, "0902");
+
+        feed(reassembler, "0902");
+        feed(reassembler, "7E8 10 14 49 02 01 31 48 47");
+        feed(reassembler, "18 DA F1 11 10 09 49 02 01 41 42 43");
+        feed(reassembler, "7E8 21 43 4D 38 32 36 33 33");
+        feed(reassembler, "18 DA F1 11 21 44 45 46 AA AA AA AA");
+        assertEquals(1, out.messages.size());
+        assertEquals(0x18DAF111, out.messages.get(0).ecu);
+        assertEquals("490201414243444546", hex(out.messages.get(0).payload));
+        assertEquals(1, reassembler.getPending());
+
+        feed(reassembler, "7E8 22 41 30 30 34 33 35 32");
+        assertEquals(2, out.messages.size());
+        assertEquals(0x7E8, out.messages.get(1).ecu);
+        assertEquals(vinPayload(), hex(out.messages.get(1).payload));
+        assertEquals(0, reassembler.getPending());
+    }
+
+    @Test
+    public void segmentsAreOrderedBySequenceNumber() {
+        Messages out = new Messages();
+        ISOTPReassembler reassembler = new ISOTPReassembler(out, false, null);
+
+        /* 130 bytes: first frame plus 18 consecutive frames, sequence wraps after F. */
+        byte[] payload = new byte[130];
+        for (int i = 0; i < payload.length; i++)
+            payload[i] = (byte) i;
+        List<String> lines = new ArrayList<String>();
+        lines.add("7E8" + String.format("10%02X", payload.length) + hex(Arrays.copyOfRange(payload, 0, 6)));
+        for (int at = 6, sequence = 1; at < payload.length; at += 7, sequence++)
+            lines.add("7E8" + String.format("2%X", sequence & 0x0F)
+                    + hex(Arrays.copyOfRange(payload, at, Math.min(at + 7, payload.length))));
+
+        /* Swap neighbours on both sides of the wrap and repeat one segment. */
+        feed(reassembler, lines.get(0));
+        for (int i = 1; i < lines.size(); i++) {
+            if (i == 3 || i == 15 || i == 17)
+                continue;
+            feed(reassembler, lines.get(i));
+            if (i == 4 || i == 16 || i == 18)
+                feed(reassembler, lines.get(i - 1));
+            if (i == 10)
+                feed(reassembler, lines.get(i));
+        }
+        assertEquals(1, out.messages.size());
+        assertEquals(hex(payload), hex(out.messages.get(0).payload));
+
+        /* The headerless form: length line, then "N:" segments. */
+        feed(reassembler, "014");
+        feed(reassembler, "0: 49 02 01 31 48 47");
+        feed(reassembler, "2: 41 30 30 34 33 35 32");
+        feed(reassembler, "1: 43 4D 38 32 36 33 33");
+        assertEquals(2, out.messages.size());
+        assertEquals(OBDMessage.NO_HEADER, out.messages.get(1).ecu);
+        assertEquals(vinPayload(), hex(out.messages.get(1).payload));
+
+        /* Single frames and status lines. */
+        feed(reassembler, "SEARCHING...");
+        feed(reassembler, "7E9 03 41 0D 3C AA AA AA AA");
+        feed(reassembler, "41 0C 1A F8");
+        assertEquals(4, out.messages.size());
+        assertEquals("410D3C", hex(out.messages.get(2).payload));
+        assertEquals(OBDMessage.NO_HEADER, out.messages.get(3).ecu);
+        assertEquals(4, reassembler.getMessages());
+    }
+
+    @Test
+    public void parserUsesSequenceOrder() throws Exception {
+        String frame = "0902\r7E8 10 14 49 02 01 31 48 47\r7E8 22 41 30 30 34 33 35 32\r7E8 21 43 4D 38 32 36 33 33\r\r";
+        List<OBDMessage> messages = OBDResponseParser.parse("0902", frame.getBytes(), 0, frame.length(), false);
+        assertEquals(1, messages.size());
+        assertEquals(vinPayload(), hex(messages.get(0).payload));
+
+        String partial = "7E8 10 14 49 02 01 31 48 47\r7E8 21 43 4D 38 32 36 33 33\r";
+        try {
+            OBDResponseParser.parse("0902", partial.getBytes(), 0, partial.length(), false);
+            fail("incomplete response parsed");
+        } catch (IOException e) {
+            assertEquals("Incomplete multi-frame response", e.getMessage());
+        }
+    }
+
+    @Test
+    public void adapterQueryReassemblesWhileReceiving() throws Exception {
+        ELM327Simulator simulator = new ELM327Simulator();
+        simulator.setSearchOnFirstQuery(false);
+        simulator.setVin(VIN);
+        simulator.setDtcs(0x0133, 0x0420, 0x0171, 0x0300);
+        OBDAdapter adapter = new OBDAdapter(simulator, "Simulator", "00:00:00:00:00:00");
+        assertTrue(adapter.connect());
+
+        /* Headers off: the headerless form. */
+        Messages vin = new Messages();
+        adapter.query("0902", vin).get(1, TimeUnit.SECONDS);
+        assertEquals(1, vin.messages.size());
+        assertEquals(vinPayload(), hex(vin.messages.get(0).payload));
+
+        /* Headers on. */
+        adapter.submit("ATH1").get(1, TimeUnit.SECONDS);
+        Messages dtcs = new Messages();
+        String text = adapter.query("03", dtcs).get(1, TimeUnit.SECONDS).getText();
+        assertTrue(text, text.contains("7E8"));
+        assertEquals(1, dtcs.messages.size());
+        assertEquals(0x7E8, dtcs.messages.get(0).ecu);
+        assertEquals("43040133042001710300", hex(dtcs.messages.get(0).payload));
+
+        /* Normal commands are unaffected afterwards. */
+        assertTrue(adapter.submit("010C").get(1, TimeUnit.SECONDS).getText().contains("7E8"));
+        adapter.disconnect();
+
+        Messages none = new Messages();
+        try {
+            adapter.query("0902", none).get(1, TimeUnit.SECONDS);
+            fail("query on a closed adapter");
+        } catch (Exception e) {
+            assertTrue(none.messages.isEmpty());
+        }
+    }
+}
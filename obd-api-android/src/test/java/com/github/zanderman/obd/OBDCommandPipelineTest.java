@@ -0,0 +1,84 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.ELM327Simulator;
+import com.github.zanderman.obd.classes.OBDAdapter;
+import com.github.zanderman.obd.classes.OBDFuture;
+import com.github.zanderman.obd.classes.OBDResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the asynchronous command pipeline, driven through the simulator.
+ */
+public class OBDCommandPipelineTest {
+
+    private ELM327Simulator simulator;
+    private OBDAdapter adapter;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new ELM327Simulator();
+        simulator.setSearchOnFirstQuery(false);
+        adapter = new OBDAdapter(simulator, "Simulator", "00:00:00:00:00:00");
+        assertTrue(adapter.connect());
+        adapter.submit("ATE0").get(1, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        adapter.disconnect();
+    }
+
+    @Test
+    public void responsesAreMatchedInOrder() throws Exception {
+        List<OBDFuture> futures = new ArrayList<OBDFuture>();
+        for (int i = 0; i < 100; i++)
+            futures.add(adapter.submit((i % 2 == 0) ? "010C" : "010D"));
+        for (int i = 0; i < 100; i++) {
+            OBDResponse response = futures.get(i).get(1, TimeUnit.SECONDS);
+            assertEquals((i % 2 == 0) ? "41 0C 1A F8" : "41 0D 3C", response.getText());
+        }
+    }
+
+    @Test
+    public void throughputIsBoundByLinkLatencyNotFixedSleeps() throws Exception {
+        simulator.setDefaultLatency(5);
+        long start = System.nanoTime();
+        OBDFuture last = null;
+        for (int i = 0; i < 40; i++)
+            last = adapter.submit("010C");
+        last.get(5, TimeUnit.SECONDS);
+        long elapsedMs = (System.nanoTime() - start) / 1000000L;
+        assertTrue("40 queries took " + elapsedMs + " ms", elapsedMs < 40 * 5 * 3);
+    }
+
+    @Test
+    public void legacySendReceiveStillWorks() {
+        assertTrue(adapter.send("010D\r\n"));
+        assertEquals("41 0D 3C", adapter.receive());
+    }
+
+    @Test
+    public void missingPromptTimesOut() throws Exception {
+        simulator.setLatency("010C", 150);
+        adapter.setResponseTimeout(100);
+        try {
+            adapter.submit("010C").get(1, TimeUnit.SECONDS);
+            fail("expected timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        /* The late prompt must not be attributed to the next command. */
+        assertEquals("41 0D 3C", adapter.submit("010D").get(1, TimeUnit.SECONDS).getText());
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.CommandMetrics;
+import com.github.zanderman.obd.classes.ELM327Simulator;
+import com.github.zanderman.obd.classes.OBDAdapter;
+import com.github.zanderman.obd.classes.OBDCommand;
+import com.github.zanderman.obd.classes.OBDFuture;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for pre-encoded commands and the repeat-last-command write path.
+ */
+public class OBDCommandTest {
+
+    @Test
+    public void commandsAreInternedAndEncodedOnce() {
+        OBDCommand rpm = OBDCommand.of("010C");
+        assertTrue(rpm == OBDCommand.of("010C"));
+        assertEquals("010C", OBDCommand.of("010C\r\n").getText());
+        assertFalse(rpm.isAt());
+        assertTrue(OBDCommand.of("atz").isAt());
+    }
+
+    @Test
+    public void repeatedRequestsAreSentAsALoneCarriageReturn() throws Exception {
+        ELM327Simulator simulator = new ELM327Simulator();
+        simulator.setSearchOnFirstQuery(false);
+        OBDAdapter adapter = new OBDAdapter(simulator, "Simulator", "00:00:00:00:00:00");
+        adapter.setResponseCountHints(false);
+        adapter.setRepeatLastCommand(true);
+        assertTrue(adapter.connect());
+        adapter.submit("ATE0").get(1, TimeUnit.SECONDS);
+
+        OBDCommand rpm = OBDCommand.of("010C");
+        OBDFuture last = null;
+        for (int i = 0; i < 20; i++) {
+            last = adapter.submit(rpm, null);
+            assertEquals("41 0C 1A F8", last.get(1, TimeUnit.SECONDS).getText());
+        }
+        /* A different request breaks the run; AT commands are never repeated. */
+        assertEquals("41 0D 3C", adapter.submit("010D").get(1, TimeUnit.SECONDS).getText());
+        assertEquals("41 0C 1A F8", adapter.submit(rpm, null).get(1, TimeUnit.SECONDS).getText());
+        adapter.submit("ATRV").get(1, TimeUnit.SECONDS);
+        adapter.submit("ATRV").get(1, TimeUnit.SECONDS);
+
+        CommandMetrics metrics = adapter.getMetrics().get("010C");
+        assertEquals(21, metrics.getSent());
+        assertEquals(2 * 5 + 19, metrics.getBytesOut());
+        assertEquals(10, adapter.getMetrics().get("ATRV").getBytesOut());
+        adapter.disconnect();
+    }
+
+    @Test
+    public void repeatIsOffByDefault() throws Exception {
+        ELM327Simulator simulator = new ELM327Simulator();
+        simulator.setSearchOnFirstQuery(false);
+        OBDAdapter adapter = new OBDAdapter(simulator, "Simulator", "00:00:00:00:00:00");
+        adapter.setResponseCountHints(false);
+        assertTrue(adapter.connect());
+        for (int i = 0; i < 3; i++)
+            adapter.submit(OBDCommand.of("010C"), null).get(1, TimeUnit.SECONDS);
+        assertEquals(15, adapter.getMetrics().get("010C").getBytesOut());
+        adapter.disconnect();
+    }
+}
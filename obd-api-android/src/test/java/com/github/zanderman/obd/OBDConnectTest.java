@@ -0,0 +1,199 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.ELM327Simulator;
+import com.github.zanderman.obd.classes.OBDAdapter;
+import com.github.zanderman.obd.classes.OBDConnectFuture;
+import com.github.zanderman.obd.classes.OBDManager;
+import com.github.zanderman.obd.classes.RetryPolicy;
+import com.github.zanderman.obd.interfaces.ConnectionCallbackInterface;
+import com.github.zanderman.obd.interfaces.OBDTransport;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for asynchronous connects with retry and backoff.
+ */
+public class OBDConnectTest {
+
+    /**
+     * Simulator link whose first opens fail, each after a short delay.
+     */
+    private static class FlakyTransport implements OBDTransport {
+        final ELM327Simulator simulator = new ELM327Simulator();
+        final AtomicInteger failures;
+        final AtomicInteger opens = new AtomicInteger();
+
+        FlakyTransport(int failures) {
+            this.failures = new AtomicInteger(failures);
+            simulator.setSearchOnFirstQuery(false);
+        }
+
+        @Override
+        public void open() throws IOException {
+            opens.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (failures.getAndDecrement() > 0)
+                throw new IOException("Connection refused");
+            simulator.open();
+        }
+
+        @Override
+        public void close() throws IOException {
+            simulator.close();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return (simulator.isOpen());
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return (simulator.getInputStream());
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return (simulator.getOutputStream());
+        }
+    }
+
+    /**
+     * Records the reported progress.
+     */
+    private static class Progress implements ConnectionCallbackInterface {
+        final List<Long> retries = new CopyOnWriteArrayList<Long>();
+        final List<String> threads = new CopyOnWriteArrayList<String>();
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile boolean connected;
+        volatile Exception failure;
+
+        @Override
+        public void connected(OBDAdapter adapter) {
+            connected = true;
+            threads.add(Thread.currentThread().getName());
+            finished.countDown();
+        }
+
+        @Override
+        public void attemptFailed(OBDAdapter adapter, int attempt, Exception cause, long retryMillis) {
+            retries.add(retryMillis);
+            threads.add(Thread.currentThread().getName());
+        }
+
+        @Override
+        public void connectionFailed(OBDAdapter adapter, Exception cause) {
+            failure = cause;
+            finished.countDown();
+        }
+    }
+
+    @Test
+    public void retriesWithExponentialBackoff() throws Exception {
+        FlakyTransport transport = new FlakyTransport(2);
+        OBDAdapter adapter = new OBDAdapter(transport, "Flaky", "00:00:00:00:00:01");
+        Progress progress = new Progress();
+
+        long start = System.nanoTime();
+        OBDConnectFuture future = adapter.connectAsync(new RetryPolicy(5, 20, 2.0, 1000, 0), progress);
+        assertTrue("connectAsync blocked", System.nanoTime() - start < 40000000L);
+        assertFalse(future.isDone());
+
+        assertSame(adapter, future.get(2, TimeUnit.SECONDS));
+        assertTrue(progress.finished.await(1, TimeUnit.SECONDS));
+        assertTrue(progress.connected);
+        assertEquals(3, future.getAttempts());
+        assertEquals(2, progress.retries.size());
+        assertEquals(Long.valueOf(20), progress.retries.get(0));
+        assertEquals(Long.valueOf(40), progress.retries.get(1));
+        assertFalse(adapter.submit("010C").get(1, TimeUnit.SECONDS).isNoData());
+        adapter.disconnect();
+    }
+
+    @Test
+    public void givesUpAfterTheLastAttempt() throws Exception {
+        FlakyTransport transport = new FlakyTransport(10);
+        OBDAdapter adapter = new OBDAdapter(transport, "Flaky", "00:00:00:00:00:02");
+        Progress progress = new Progress();
+
+        OBDConnectFuture future = adapter.connectAsync(new RetryPolicy(3, 10, 2.0, 1000, 0), progress);
+        try {
+            future.get(2, TimeUnit.SECONDS);
+            fail("Expected the connect to fail");
+        } catch (ExecutionException e) {
+            assertEquals("Connection refused", e.getCause().getMessage());
+        }
+        assertTrue(progress.finished.await(1, TimeUnit.SECONDS));
+        assertNotNull(progress.failure);
+        assertEquals(3, transport.opens.get());
+        assertFalse(adapter.isConnected());
+        assertNull(adapter.getSession());
+        assertTrue("disconnect after a failed connect", adapter.disconnect());
+    }
+
+    @Test
+    public void cancelStopsRetrying() throws Exception {
+        FlakyTransport transport = new FlakyTransport(10);
+        OBDAdapter adapter = new OBDAdapter(transport, "Flaky", "00:00:00:00:00:03");
+        OBDConnectFuture future = adapter.connectAsync(new RetryPolicy(10, 200, 2.0, 1000, 0), null);
+        Thread.sleep(100);
+        assertTrue(future.cancel(true));
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("Expected a cancellation");
+        } catch (CancellationException expected) {
+            /* Cancelled during the first backoff. */
+        }
+        Thread.sleep(300);
+        assertEquals(1, transport.opens.get());
+    }
+
+    @Test
+    public void managedSessionsRetryOnTheConnectPool() throws Exception {
+        OBDManager manager = new OBDManager();
+        try {
+            OBDAdapter adapter = new OBDAdapter(new FlakyTransport(1), "Flaky", "00:00:00:00:00:04");
+            Progress progress = new Progress();
+            OBDConnectFuture future = manager.addSession(adapter, new RetryPolicy(3, 10, 2.0, 1000, 0), progress);
+            assertSame(adapter, future.get(2, TimeUnit.SECONDS));
+            assertTrue(progress.finished.await(1, TimeUnit.SECONDS));
+            for (String thread : progress.threads)
+                assertTrue(thread, thread.startsWith("OBDManager-connect"));
+            assertEquals(1, manager.getSessions().size());
+        } finally {
+            manager.shutdown();
+        }
+    }
+
+    @Test
+    public void policyCapsTheBackoff() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 3.0, 500, 0);
+        assertEquals(100, policy.delay(1));
+        assertEquals(300, policy.delay(2));
+        assertEquals(500, policy.delay(3));
+        assertEquals(500, policy.delay(9));
+
+        RetryPolicy jittered = new RetryPolicy(10, 1000, 2.0, 8000, 0.2);
+        for (int i = 0; i < 100; i++) {
+            long delay = jittered.delay(2);
+            assertTrue(String.valueOf(delay), delay >= 1600 && delay <= 2400);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.ELM327Simulator;
+import com.github.zanderman.obd.classes.OBDAdapter;
+import com.github.zanderman.obd.classes.OBDEvent;
+import com.github.zanderman.obd.classes.OBDEventBus;
+import com.github.zanderman.obd.interfaces.EventBatchCallbackInterface;
+import com.github.zanderman.obd.interfaces.EventCallbackInterface;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the in-process event bus.
+ */
+public class OBDEventBusTest {
+
+    /**
+     * Frame clock driven by the test: each frame() runs the pending flush.
+     */
+    private static class Frames implements Executor {
+        final List<Runnable> posted = new ArrayList<Runnable>();
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            this.posted.add(task);
+        }
+
+        synchronized void frame() {
+            List<Runnable> tasks = new ArrayList<Runnable>(this.posted);
+            this.posted.clear();
+            for (Runnable task : tasks)
+                task.run();
+        }
+    }
+
+    /**
+     * Records batches.
+     */
+    private static class Batches implements EventBatchCallbackInterface {
+        final List<List<OBDEvent>> batches = new ArrayList<List<OBDEvent>>();
+
+        @Override
+        public void eventsReceived(List<OBDEvent> events) {
+            this.batches.add(new ArrayList<OBDEvent>(events));
+        }
+    }
+
+    @Test
+    public void batchesAreDeliveredOncePerFrame() {
+        Frames frames = new Frames();
+        OBDEventBus bus = new OBDEventBus(frames, 4);
+        Batches batches = new Batches();
+
+        /* Nothing is queued without batched listeners. */
+        bus.publish(new OBDEvent(OBDEvent.Type.DISCOVERY_STARTED, null, null, null));
+        assertTrue(frames.posted.isEmpty());
+
+        bus.addBatchListener(batches);
+        bus.addBatchListener(batches);
+        for (int i = 0; i < 3; i++)
+            bus.publish(new OBDEvent(OBDEvent.Type.FRAME_RECEIVED, null, null, "41 0C " + i));
+        assertEquals(1, frames.posted.size());
+        assertTrue(batches.batches.isEmpty());
+
+        frames.frame();
+        assertEquals(1, batches.batches.size());
+        assertEquals(3, batches.batches.get(0).size());
+        assertEquals("41 0C 2", batches.batches.get(0).get(2).getData());
+
+        /* A full queue drops the oldest events. */
+        for (int i = 0; i < 10; i++)
+            bus.publish(new OBDEvent(OBDEvent.Type.FRAME_RECEIVED, null, null, String.valueOf(i)));
+        assertEquals(1, frames.posted.size());
+        frames.frame();
+        assertEquals(2, batches.batches.size());
+        assertEquals(4, batches.batches.get(1).size());
+        assertEquals("6", batches.batches.get(1).get(0).getData());
+        assertEquals(6, bus.getDropped());
+
+        bus.removeBatchListener(batches);
+        assertFalse(bus.hasListeners());
+        bus.publish(new OBDEvent(OBDEvent.Type.DISCOVERY_FINISHED, null, null, null));
+        assertTrue(frames.posted.isEmpty());
+    }
+
+    @Test
+    public void adapterPublishesItsEvents() throws Exception {
+        ELM327Simulator simulator = new ELM327Simulator();
+        simulator.setSearchOnFirstQuery(false);
+        OBDAdapter adapter = new OBDAdapter(simulator, "Simulator", "00:00:00:00:00:00");
+        OBDEventBus bus = new OBDEventBus(new Frames(), 16);
+        final List<OBDEvent> events = new CopyOnWriteArrayList<OBDEvent>();
+        bus.addListener(new EventCallbackInterface() {
+            @Override
+            public void eventReceived(OBDEvent event) {
+                events.add(event);
+            }
+        });
+        adapter.setEventBus(bus);
+
+        assertTrue(adapter.connect());
+        adapter.submit("010C").get(1, TimeUnit.SECONDS);
+        adapter.disconnect();
+        adapter.disconnect();
+
+        List<OBDEvent.Type> types = new ArrayList<OBDEvent.Type>();
+        for (OBDEvent event : events)
+            types.add(event.getType());
+        assertEquals(OBDEvent.Type.CONNECTED, types.get(0));
+        assertTrue(types.contains(OBDEvent.Type.COMMAND_SENT));
+        assertTrue(types.contains(OBDEvent.Type.FRAME_RECEIVED));
+        assertEquals(OBDEvent.Type.DISCONNECTED, types.get(types.size() - 1));
+        assertEquals("one DISCONNECTED for two disconnect() calls",
+                types.indexOf(OBDEvent.Type.DISCONNECTED), types.lastIndexOf(OBDEvent.Type.DISCONNECTED));
+        for (OBDEvent event : events)
+            assertTrue(event.getAdapter() == adapter);
+    }
+}
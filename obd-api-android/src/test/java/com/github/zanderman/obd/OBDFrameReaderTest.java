@@ -0,0 +1,96 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.OBDFrameReader;
+import com.github.zanderman.obd.interfaces.FrameCallbackInterface;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the single-reader prompt framing engine.
+ */
+public class OBDFrameReaderTest {
+
+    /**
+     * Collects frames as Strings and records how the reader stopped.
+     */
+    private static class Collector implements FrameCallbackInterface {
+        final List<String> frames = new ArrayList<String>();
+        boolean stopped;
+        Exception cause;
+
+        @Override
+        public void frameReceived(byte[] buffer, int offset, int length) {
+            frames.add(new String(buffer, offset, length));
+        }
+
+        @Override
+        public void readerStopped(Exception cause) {
+            this.stopped = true;
+            this.cause = cause;
+        }
+    }
+
+    /**
+     * Input stream that hands out at most a few bytes per read, like a slow link.
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        private final int chunk;
+
+        TrickleInputStream(String data, int chunk) {
+            super(data.getBytes());
+            this.chunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, chunk));
+        }
+    }
+
+    private Collector run(InputStream in, int capacity) {
+        Collector collector = new Collector();
+        new OBDFrameReader(in, collector, capacity).run();
+        return collector;
+    }
+
+    @Test
+    public void splitsFramesOnPrompt() {
+        Collector c = run(new TrickleInputStream("41 0C 1A F8\r\r>41 0D 3C\r\r>", 3), 64);
+        assertEquals(2, c.frames.size());
+        assertEquals("41 0C 1A F8\r\r", c.frames.get(0));
+        assertEquals("41 0D 3C\r\r", c.frames.get(1));
+        assertTrue(c.stopped);
+        assertNull(c.cause);
+    }
+
+    @Test
+    public void framesWrappingTheRingAreIntact() {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 50; i++)
+            data.append("7E8 03 41 0D ").append(i % 10).append("0\r\r>");
+        Collector c = run(new TrickleInputStream(data.toString(), 7), 64);
+        assertEquals(50, c.frames.size());
+        for (int i = 0; i < 50; i++)
+            assertEquals("7E8 03 41 0D " + (i % 10) + "0\r\r", c.frames.get(i));
+    }
+
+    @Test
+    public void oversizedFrameIsDiscardedAndReaderResynchronizes() {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+            data.append("X");
+        data.append(">OK\r\r>");
+        Collector collector = new Collector();
+        OBDFrameReader reader = new OBDFrameReader(new TrickleInputStream(data.toString(), 5), collector, 64);
+        reader.run();
+        assertEquals(1, reader.getOverruns());
+        assertEquals("OK\r\r", collector.frames.get(collector.frames.size() - 1));
+    }
+}
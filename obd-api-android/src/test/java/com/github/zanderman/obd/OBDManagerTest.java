@@ -0,0 +1,151 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.ELM327Simulator;
+import com.github.zanderman.obd.classes.OBDAdapter;
+import com.github.zanderman.obd.classes.OBDManager;
+import com.github.zanderman.obd.classes.OBDResponse;
+import com.github.zanderman.obd.classes.PIDScheduler;
+import com.github.zanderman.obd.interfaces.PIDCallbackInterface;
+import com.github.zanderman.obd.interfaces.ResponseCallbackInterface;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for managed adapter sessions on shared executors.
+ */
+public class OBDManagerTest {
+
+    private static final int SESSIONS = 4;
+    private static final String ADDRESS = "00:00:00:00:4D:0";  /* Own addresses, so threads left by other tests are not counted. */
+
+    private OBDManager manager;
+    private final List<OBDAdapter> adapters = new ArrayList<OBDAdapter>();
+
+    @Before
+    public void setUp() throws Exception {
+        manager = new OBDManager();
+        for (int i = 0; i < SESSIONS; i++) {
+            ELM327Simulator simulator = new ELM327Simulator();
+            simulator.setSearchOnFirstQuery(false);
+            simulator.setDefaultLatency(2);
+            OBDAdapter adapter = new OBDAdapter(simulator, "Simulator " + i, ADDRESS + i);
+            adapters.add(adapter);
+            assertTrue(manager.addSession(adapter).get(1, TimeUnit.SECONDS));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    private static int threads(String prefix) {
+        int n = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+            if (thread.isAlive() && thread.getName().startsWith(prefix))
+                n++;
+        return (n);
+    }
+
+    @Test
+    public void sessionsShareAFixedSetOfThreads() throws Exception {
+        int idle = threads("PIDScheduler");
+        List<PIDScheduler> schedulers = new ArrayList<PIDScheduler>();
+        for (OBDAdapter adapter : adapters) {
+            PIDScheduler scheduler = new PIDScheduler(adapter);
+            scheduler.register(0x0C, 50, 1, new PIDCallbackInterface() {
+                @Override
+                public void pidReceived(int pid, int ecu, byte[] data, int offset, int length) {
+                }
+
+                @Override
+                public void pidFailed(int pid, Exception cause) {
+                }
+            });
+            scheduler.start(manager.getScheduler());
+            schedulers.add(scheduler);
+        }
+        Thread.sleep(1500);
+
+        assertEquals(0, threads("OBDCommandPipeline-" + ADDRESS));
+        assertTrue(threads("PIDScheduler") <= idle);
+        assertEquals(SESSIONS, threads("OBDFrameReader-" + ADDRESS));
+        assertTrue(threads("OBDManager-") <= 5);
+
+        for (OBDAdapter adapter : adapters)
+            assertTrue(adapter.address, adapter.getFramesReceived() > 20);
+        assertTrue("rate " + manager.getFrameRate(), manager.getFrameRate() > SESSIONS * 20);
+        assertTrue(manager.getByteRate() > manager.getFrameRate());
+
+        /* Removing a session at runtime leaves the others running. */
+        schedulers.get(0).stop();
+        OBDAdapter removed = adapters.get(0);
+        long total = manager.getFramesReceived();
+        assertTrue(manager.removeSession(removed));
+        assertFalse(removed.isConnected());
+        assertEquals(SESSIONS - 1, manager.getSessions().size());
+        /* The reader ends once its stream is closed. */
+        long deadline = System.currentTimeMillis() + 1000;
+        while (threads("OBDFrameReader-" + ADDRESS) > SESSIONS - 1 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(SESSIONS - 1, threads("OBDFrameReader-" + ADDRESS));
+        long before = adapters.get(1).getFramesReceived();
+        Thread.sleep(200);
+        assertTrue(adapters.get(1).getFramesReceived() > before);
+        assertTrue(manager.getFramesReceived() >= total);
+
+        for (PIDScheduler scheduler : schedulers)
+            scheduler.stop();
+    }
+
+    @Test
+    public void callbacksRunOnTheDispatchPool() throws Exception {
+        final AtomicReference<String> thread = new AtomicReference<String>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        adapters.get(1).submit("010D", new ResponseCallbackInterface() {
+            @Override
+            public void responseReceived(OBDResponse response) {
+                thread.set(Thread.currentThread().getName());
+                latch.countDown();
+            }
+
+            @Override
+            public void responseFailed(String command, Exception cause) {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertTrue(thread.get(), thread.get().startsWith("OBDManager-dispatch"));
+    }
+
+    @Test
+    public void deadlinesAreEnforcedWithoutAWriterThread() throws Exception {
+        ELM327Simulator slow = new ELM327Simulator();
+        slow.setSearchOnFirstQuery(false);
+        slow.setLatency("0105", 400);
+        OBDAdapter adapter = new OBDAdapter(slow, "Slow", "00:00:00:00:00:99");
+        assertTrue(manager.addSession(adapter).get(1, TimeUnit.SECONDS));
+        adapter.setResponseTimeout(150);
+
+        try {
+            adapter.submit("0105").get(1, TimeUnit.SECONDS);
+            fail("Expected a timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        /* The slot is freed once the late prompt (or a second timeout) passes. */
+        assertFalse(adapter.submit("010C").get(1, TimeUnit.SECONDS).isNoData());
+    }
+}
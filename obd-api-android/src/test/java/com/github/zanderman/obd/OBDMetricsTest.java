@@ -0,0 +1,166 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.CommandMetrics;
+import com.github.zanderman.obd.classes.ELM327Simulator;
+import com.github.zanderman.obd.classes.LatencyHistogram;
+import com.github.zanderman.obd.classes.OBDAdapter;
+import com.github.zanderman.obd.classes.OBDManager;
+import com.github.zanderman.obd.classes.OBDMetrics;
+import com.github.zanderman.obd.interfaces.MetricsCallbackInterface;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the per-command link metrics.
+ */
+public class OBDMetricsTest {
+
+    @Test
+    public void histogramTracksPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int ms = 1; ms <= 1000; ms++)
+            histogram.record(ms * 1000000L);
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000000L, histogram.getMax());
+        assertEquals(500.5e6, histogram.getMean(), 1);
+        long median = histogram.getPercentile(0.5);
+        assertTrue(String.valueOf(median), median >= 500000000L && median <= 500000000L * 9 / 8);
+        long p99 = histogram.getPercentile(0.99);
+        assertTrue(String.valueOf(p99), p99 >= 990000000L && p99 <= 1000000000L);
+        assertEquals(1000000000L, histogram.getPercentile(1.0));
+
+        LatencyHistogram copy = histogram.copy();
+        histogram.record(5000000000L);
+        assertEquals(1000, copy.getCount());
+        copy.add(histogram);
+        assertEquals(2001, copy.getCount());
+        assertEquals(5000000000L, copy.getMax());
+    }
+
+    @Test
+    public void adapterRecordsEachCommand() throws Exception {
+        ELM327Simulator simulator = new ELM327Simulator();
+        simulator.setSearchOnFirstQuery(false);
+        simulator.setLatency("010C", 20);
+        simulator.setLatency("0105", 400);
+        OBDAdapter adapter = new OBDAdapter(simulator, "Simulator", "00:00:00:00:00:00");
+        assertTrue(adapter.connect());
+        adapter.setResponseTimeout(150);
+
+        for (int i = 0; i < 10; i++)
+            adapter.submit("010C").get(1, TimeUnit.SECONDS);
+        assertTrue(adapter.submit("0199").get(1, TimeUnit.SECONDS).isNoData());
+        simulator.injectFault("CAN ERROR");
+        adapter.submit("010D").get(1, TimeUnit.SECONDS);
+        adapter.submit("ATXYZ").get(1, TimeUnit.SECONDS);
+        try {
+            adapter.submit("0105").get(1, TimeUnit.SECONDS);
+            fail("Expected a timeout");
+        } catch (ExecutionException expected) {
+            /* Deadline of 150 ms against a 400 ms reply. */
+        }
+        adapter.submit("010D").get(1, TimeUnit.SECONDS);
+        adapter.disconnect();
+
+        Map<String, CommandMetrics> snapshot = adapter.getMetrics().snapshot();
+        CommandMetrics rpm = snapshot.get("010C");
+        assertEquals(10, rpm.getSent());
+        assertEquals(10, rpm.getReplies());
+        assertEquals(0, rpm.getErrors());
+        assertTrue(rpm.getBytesOut() >= 50);
+        assertTrue(rpm.getBytesIn() > 0);
+        assertEquals(10, rpm.getPrompt().getCount());
+        assertEquals(10, rpm.getFirstByte().getCount());
+        assertTrue(rpm.toString(), rpm.getPrompt().getPercentile(0.5) >= 20000000L);
+        assertTrue(rpm.getFirstByte().getPercentile(0.5) <= rpm.getPrompt().getPercentile(0.5));
+        assertEquals(10, rpm.getQueueWait().getCount());
+
+        assertEquals(1, snapshot.get("0199").getNoData());
+        assertEquals(1, snapshot.get("010D").getErrors());
+        assertEquals(2, snapshot.get("010D").getReplies());
+        assertEquals(1, snapshot.get("ATXYZ").getErrors());
+        assertEquals(1, snapshot.get("0105").getTimeouts());
+
+        CommandMetrics total = adapter.getMetrics().getTotal();
+        assertEquals(1, total.getTimeouts());
+        assertEquals(2, total.getErrors());
+        assertTrue(total.getSent() >= 15);
+
+        /* The snapshot is a copy. */
+        assertEquals(10, rpm.getSent());
+        assertTrue(rpm != adapter.getMetrics().get("010C"));
+    }
+
+    @Test
+    public void managerReportsSessionsPeriodically() throws Exception {
+        OBDManager manager = new OBDManager();
+        try {
+            ELM327Simulator simulator = new ELM327Simulator();
+            simulator.setSearchOnFirstQuery(false);
+            OBDAdapter adapter = new OBDAdapter(simulator, "Simulator", "00:00:00:00:00:01");
+            assertTrue(manager.addSession(adapter).get(1, TimeUnit.SECONDS));
+            adapter.submit("010C").get(1, TimeUnit.SECONDS);
+
+            final AtomicReference<Map<String, CommandMetrics>> reported = new AtomicReference<Map<String, CommandMetrics>>();
+            final AtomicReference<String> thread = new AtomicReference<String>();
+            final CountDownLatch latch = new CountDownLatch(1);
+            manager.setMetricsPeriod(50);
+            manager.addMetricsListener(new MetricsCallbackInterface() {
+                @Override
+                public void metricsReported(OBDAdapter adapter, Map<String, CommandMetrics> snapshot) {
+                    reported.set(snapshot);
+                    thread.set(Thread.currentThread().getName());
+                    latch.countDown();
+                }
+            });
+            assertTrue(latch.await(1, TimeUnit.SECONDS));
+            assertEquals(1, reported.get().get("010C").getReplies());
+            assertTrue(thread.get(), thread.get().startsWith("OBDManager-dispatch"));
+            assertEquals(1, manager.snapshotMetrics().get("010C").getSent());
+        } finally {
+            manager.shutdown();
+        }
+    }
+
+    /**
+     * Recording must not allocate once a command has been seen. Uses the
+     * HotSpot per-thread allocation counter when the JVM provides one.
+     */
+    @Test
+    public void recordingDoesNotAllocate() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Method allocated;
+        try {
+            allocated = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+        } catch (Exception e) {
+            return; /* Not a HotSpot JVM; nothing to measure. */
+        }
+        long thread = Thread.currentThread().getId();
+        OBDMetrics metrics = new OBDMetrics();
+        LatencyHistogram histogram = new LatencyHistogram();
+        String[] commands = { "010C", "010D", "0105" };
+
+        for (int i = 0; i < 200000; i++)
+            histogram.record(i * 997L);
+
+        long before = (Long) allocated.invoke(bean, thread);
+        for (int i = 0; i < 1000000; i++) {
+            histogram.record(i * 997L);
+            metrics.get(commands[i % 3]);
+        }
+        long bytesAllocated = (Long) allocated.invoke(bean, thread) - before;
+        assertTrue("allocated " + bytesAllocated + " bytes", bytesAllocated < 1024);
+    }
+}
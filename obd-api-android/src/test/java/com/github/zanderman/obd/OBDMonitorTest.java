@@ -0,0 +1,227 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.CANFrameParser;
+import com.github.zanderman.obd.classes.ELM327Simulator;
+import com.github.zanderman.obd.classes.OBDAdapter;
+import com.github.zanderman.obd.classes.OBDMonitor;
+import com.github.zanderman.obd.interfaces.CANFrameCallbackInterface;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for ATMA monitoring and the CAN frame parser.
+ */
+public class OBDMonitorTest {
+
+    /**
+     * Keeps the latest frame and counts per ID class.
+     */
+    private static class Frames implements CANFrameCallbackInterface {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong overruns = new AtomicLong();
+        final CountDownLatch stopped = new CountDownLatch(1);
+        volatile int id;
+        volatile int dlc;
+        volatile long payload;
+        volatile boolean wrongId;
+        volatile Exception cause;
+        int expectedId = -1;
+
+        @Override
+        public void canFrameReceived(int id, int dlc, long payload, long timestamp) {
+            this.id = id;
+            this.dlc = dlc;
+            this.payload = payload;
+            if (this.expectedId >= 0 && id != this.expectedId)
+                this.wrongId = true;
+            this.count.incrementAndGet();
+        }
+
+        @Override
+        public void monitorOverrun(long overruns) {
+            this.overruns.set(overruns);
+        }
+
+        @Override
+        public void monitorStopped(Exception cause) {
+            this.cause = cause;
+            this.stopped.countDown();
+        }
+    }
+
+    private static void line(CANFrameParser parser, String text) {
+        byte[] bytes = ("xx" + text + "\r").getBytes();
+        parser.lineReceived(bytes, 2, text.length(), 1234);
+    }
+
+    @Test
+    public void parserReadsEveryLayout() {
+        Frames frames = new Frames();
+        CANFrameParser parser = new CANFrameParser(frames);
+
+        line(parser, "7E8 03 41 0D 3C");
+        assertEquals(0x7E8, frames.id);
+        assertEquals(4, frames.dlc);
+        assertEquals(0x03410D3C00000000L, frames.payload);
+        assertEquals(0x3C, CANFrameParser.byteAt(frames.payload, 3));
+
+        line(parser, "7E806410C1AF8AAAA");
+        assertEquals(0x7E8, frames.id);
+        assertEquals(7, frames.dlc);
+        assertEquals(0xF8, CANFrameParser.byteAt(frames.payload, 4));
+
+        line(parser, "18 DA F1 10 03 41 0D 3C 00 00 00 00");
+        assertEquals(0x18DAF110 | CANFrameParser.EXTENDED, frames.id);
+        assertEquals(8, frames.dlc);
+        assertEquals(0x03410D3C00000000L, frames.payload);
+
+        line(parser, "18DAF1100241");
+        assertEquals(0x18DAF110 | CANFrameParser.EXTENDED, frames.id);
+        assertEquals(2, frames.dlc);
+
+        line(parser, "\n3E8 4 01 02 03 04 ");
+        assertEquals(0x3E8, frames.id);
+        assertEquals(4, frames.dlc);
+        assertEquals(0x0102030400000000L, frames.payload);
+
+        line(parser, "7DF");
+        assertEquals(0x7DF, frames.id);
+        assertEquals(0, frames.dlc);
+        assertEquals(6, parser.getFrames());
+
+        line(parser, "7E8 03 41 0D <RX ERROR");
+        line(parser, "7E8 03 41 0");
+        line(parser, "BUFFER FULL");
+        line(parser, "");
+        line(parser, "STOPPED");
+        assertEquals(6, parser.getFrames());
+        assertEquals(2, parser.getErrors());
+        assertEquals(1, parser.getOverruns());
+        assertEquals(1, frames.overruns.get());
+        assertEquals("STOPPED", parser.getLastMessage());
+
+        parser.addFilter(0x7E8, 0x7F8);
+        line(parser, "7E9 02 41 00");
+        line(parser, "7DF 02 01 00");
+        line(parser, "18DAF1100241");
+        assertEquals(7, parser.getFrames());
+        assertEquals(2, parser.getFiltered());
+        assertEquals(0x7E9, frames.id);
+    }
+
+    @Test
+    public void monitorFiltersRearmsAndStops() throws Exception {
+        ELM327Simulator simulator = new ELM327Simulator();
+        simulator.setSearchOnFirstQuery(false);
+        simulator.addBusFrame(0x7DF, 0x02, 0x01, 0x0C);
+        simulator.addBusFrame(0x7E8, 0x04, 0x41, 0x0C, 0x1A, 0xF8);
+        simulator.addBusFrame(0x18DAF110, 0x03, 0x41, 0x0D, 0x3C);
+        simulator.setMonitorLimit(900);
+        OBDAdapter adapter = new OBDAdapter(simulator, "Simulator", "00:00:00:00:00:00");
+        assertTrue(adapter.connect());
+
+        Frames frames = new Frames();
+        frames.expectedId = 0x7E8;
+        OBDMonitor monitor = new OBDMonitor(adapter, frames);
+        monitor.addFilter(0x7E8, 0x7FF | CANFrameParser.EXTENDED);
+        monitor.start();
+
+        /* Each pass ends in BUFFER FULL after 900 frames, 300 of them 7E8. */
+        long deadline = System.currentTimeMillis() + 2000;
+        while (monitor.getRearms() < 3 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        monitor.stop();
+        assertTrue(frames.stopped.await(1, TimeUnit.SECONDS));
+        assertNull(frames.cause);
+        assertFalse(monitor.isRunning());
+        assertFalse(frames.wrongId);
+        assertTrue(monitor.getRearms() >= 3);
+        assertTrue(frames.overruns.get() >= 3);
+        assertTrue(frames.count.get() >= 900);
+        assertEquals(5, frames.dlc);
+        assertEquals(0x1A, CANFrameParser.byteAt(frames.payload, 3));
+        assertTrue(Math.abs(monitor.getParser().getFiltered() - 2 * frames.count.get()) <= 2);
+
+        /* Headers are off again and the link answers normally. */
+        assertTrue(adapter.submit("010C").get(1, TimeUnit.SECONDS).getText().replace(" ", "").endsWith("410C1AF8"));
+        adapter.disconnect();
+    }
+
+    @Test
+    public void monitorEndsOnOtherMessages() throws Exception {
+        ELM327Simulator simulator = new ELM327Simulator();
+        simulator.setSearchOnFirstQuery(false);
+        simulator.addBusFrame(0x7E8, 0x02, 0x41, 0x00);
+        simulator.setMonitorLimit(10);
+        OBDAdapter adapter = new OBDAdapter(simulator, "Simulator", "00:00:00:00:00:00");
+        assertTrue(adapter.connect());
+
+        Frames frames = new Frames();
+        OBDMonitor monitor = new OBDMonitor(adapter, frames);
+        monitor.setRearm(false);
+        monitor.start();
+        assertTrue(frames.stopped.await(1, TimeUnit.SECONDS));
+        assertNotNull(frames.cause);
+        assertTrue(frames.cause.getMessage(), frames.cause.getMessage().contains("BUFFER FULL"));
+        assertEquals(10, frames.count.get());
+        adapter.disconnect();
+    }
+
+    /**
+     * Streams unlimited traffic for a moment and checks the rate and that
+     * the reader thread does not allocate per frame (HotSpot only).
+     */
+    @Test
+    public void monitorSustainsHighFrameRates() throws Exception {
+        ELM327Simulator simulator = new ELM327Simulator();
+        simulator.setSearchOnFirstQuery(false);
+        simulator.addBusFrame(0x7E8, 0x04, 0x41, 0x0C, 0x1A, 0xF8);
+        simulator.addBusFrame(0x201, 0x00, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77);
+        OBDAdapter adapter = new OBDAdapter(simulator, "Simulator", "00:00:00:00:00:02");
+        assertTrue(adapter.connect());
+
+        Frames frames = new Frames();
+        OBDMonitor monitor = adapter.monitor(frames);
+        long wait = System.currentTimeMillis() + 1000;
+        while (frames.count.get() < 1000 && System.currentTimeMillis() < wait)
+            Thread.sleep(1);
+
+        Thread reader = null;
+        for (Thread t : Thread.getAllStackTraces().keySet())
+            if (t.getName().equals("OBDFrameReader-00:00:00:00:00:02"))
+                reader = t;
+        assertNotNull(reader);
+        Method allocated = null;
+        try {
+            allocated = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+        } catch (Exception e) {
+            /* Not a HotSpot JVM. */
+        }
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        long bytesBefore = (allocated != null) ? (Long) allocated.invoke(bean, reader.getId()) : 0;
+        long before = frames.count.get();
+        long start = System.nanoTime();
+        Thread.sleep(300);
+        long received = frames.count.get() - before;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long bytes = (allocated != null) ? (Long) allocated.invoke(bean, reader.getId()) - bytesBefore : 0;
+
+        monitor.stop();
+        assertTrue(frames.stopped.await(1, TimeUnit.SECONDS));
+        assertNull(frames.cause);
+        String measured = String.format("%.0f frames/s, %d bytes allocated over %d frames", received / seconds, bytes, received);
+        assertTrue(measured, received / seconds > 20000);
+        assertTrue(measured, bytes < received / 10 + 4096);
+        adapter.disconnect();
+    }
+}
@@ -0,0 +1,150 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.ELM327Simulator;
+import com.github.zanderman.obd.classes.OBDAdapter;
+import com.github.zanderman.obd.classes.OBDInitializer;
+import com.github.zanderman.obd.classes.OBDProfile;
+import com.github.zanderman.obd.classes.OBDProfileStore;
+import com.github.zanderman.obd.interfaces.CommandCallbackInterface;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for stored adapter profiles and fast re-initialization.
+ */
+public class OBDProfileTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    private ELM327Simulator simulator;
+    private File directory;
+    private final List<String> sent = new CopyOnWriteArrayList<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new ELM327Simulator();
+        simulator.addEcu(ELM327Simulator.ECU_TRANSMISSION);
+        simulator.setEcuPid(ELM327Simulator.ECU_TRANSMISSION, 0x0D, 0x3C);
+        directory = File.createTempFile("profiles", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    private OBDAdapter connect() {
+        OBDAdapter adapter = new OBDAdapter(simulator, "Simulator", ADDRESS);
+        adapter.addCommandListener(new CommandCallbackInterface() {
+            @Override
+            public void commandSent(String command) {
+                sent.add(command);
+            }
+        });
+        assertTrue(adapter.connect());
+        sent.clear();
+        return (adapter);
+    }
+
+    @Test
+    public void reconnectReplaysTheStoredProfile() throws Exception {
+        OBDAdapter adapter = connect();
+        OBDInitializer initializer = new OBDInitializer(adapter);
+        OBDProfile first = initializer.initialize(new OBDProfileStore(directory));
+        adapter.disconnect();
+        List<String> full = new ArrayList<String>(sent);
+
+        assertFalse(initializer.usedFastPath());
+        assertEquals(6, first.getProtocol());
+        assertEquals(2, first.getEcus().size());
+        assertTrue(first.getSupportedPids().isSupported(0x0C));
+        assertTrue(first.getElmTimeout() > 0);
+        assertTrue(sent.contains("ATZ"));
+        assertTrue(sent.contains("ATSP0"));
+
+        /* A new store reads the profile back from disk. */
+        adapter = connect();
+        initializer = new OBDInitializer(adapter);
+        OBDProfile second = initializer.initialize(new OBDProfileStore(directory));
+
+        assertTrue(sent.toString(), initializer.usedFastPath());
+        assertEquals(first.getSupportedPids(), second.getSupportedPids());
+        assertEquals(first.getEcus(), second.getEcus());
+        assertFalse(sent.contains("ATZ"));
+        assertFalse(sent.contains("ATSP0"));
+        assertTrue(sent.contains("ATSP6"));
+
+        /* No reset, no search and a single probe: fewer round trips than detection. */
+        assertEquals(sent.toString(), 1, Collections.frequency(sent, "0100"));
+        assertTrue("fast " + sent + ", full " + full, sent.size() < full.size());
+        assertFalse(adapter.submit("010D").get().isNoData());
+        adapter.disconnect();
+    }
+
+    @Test
+    public void mismatchFallsBackToDetection() throws Exception {
+        OBDProfileStore store = new OBDProfileStore(directory);
+        OBDAdapter adapter = connect();
+        new OBDInitializer(adapter).initialize(store);
+        adapter.disconnect();
+
+        /* Another car behind the same adapter: K-line, one ECU, other PIDs. */
+        simulator = new ELM327Simulator();
+        simulator.setVehicleProtocol(3);
+        simulator.setPid(0x06, 0x80);
+        adapter = connect();
+        OBDInitializer initializer = new OBDInitializer(adapter);
+        OBDProfile profile = initializer.initialize(store);
+        adapter.disconnect();
+
+        assertFalse(initializer.usedFastPath());
+        assertTrue(sent.contains("ATSP6"));
+        assertTrue(sent.contains("ATZ"));
+        assertEquals(3, profile.getProtocol());
+        assertEquals(1, profile.getEcus().size());
+        assertTrue(profile.getSupportedPids().isSupported(0x06));
+        assertEquals(3, new OBDProfileStore(directory).get(ADDRESS).getProtocol());
+    }
+
+    @Test
+    public void propertiesRoundTrip() throws Exception {
+        OBDAdapter adapter = connect();
+        OBDProfile profile = new OBDInitializer(adapter).initialize((OBDProfile) null);
+        adapter.disconnect();
+
+        OBDProfile copy = OBDProfile.fromProperties(profile.toProperties());
+        assertEquals(profile.getAddress(), copy.getAddress());
+        assertEquals(profile.getProtocol(), copy.getProtocol());
+        assertEquals(profile.isSpaces(), copy.isSpaces());
+        assertEquals(profile.getEcus(), copy.getEcus());
+        assertEquals(profile.getSupportedPids(), copy.getSupportedPids());
+        assertEquals(profile.getElmTimeout(), copy.getElmTimeout());
+        assertEquals(profile.getUpdated(), copy.getUpdated());
+
+        OBDProfileStore store = new OBDProfileStore(directory);
+        assertNull(store.get(ADDRESS));
+        assertNull(store.getLatest());
+        store.put(profile);
+        OBDProfile older = new OBDProfile("00:11:22:33:44:66");
+        older.setUpdated(profile.getUpdated() - 1000);
+        store.put(older);
+        assertEquals(ADDRESS, new OBDProfileStore(directory).getLatest().getAddress());
+        store.remove(ADDRESS);
+        assertNull(new OBDProfileStore(directory).get(ADDRESS));
+    }
+}
@@ -0,0 +1,161 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.ELM327Simulator;
+import com.github.zanderman.obd.classes.OBDAdapter;
+import com.github.zanderman.obd.classes.OBDInitializer;
+import com.github.zanderman.obd.classes.OBDProfile;
+import com.github.zanderman.obd.classes.OBDResponseParser;
+import com.github.zanderman.obd.classes.PIDBatcher;
+import com.github.zanderman.obd.interfaces.FrameCallbackInterface;
+import com.github.zanderman.obd.interfaces.PIDCallbackInterface;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for managed session initialization and the compact format.
+ */
+public class OBDSessionTest {
+
+    private ELM327Simulator simulator;
+    private OBDAdapter adapter;
+    private final AtomicInteger bytes = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        simulator = new ELM327Simulator();
+        adapter = new OBDAdapter(simulator, "Simulator", "00:00:00:00:00:00");
+        adapter.addFrameListener(new FrameCallbackInterface() {
+            @Override
+            public void frameReceived(byte[] buffer, int offset, int length) {
+                bytes.addAndGet(length);
+            }
+
+            @Override
+            public void readerStopped(Exception cause) {
+            }
+        });
+        assertTrue(adapter.connect());
+    }
+
+    @After
+    public void tearDown() {
+        adapter.disconnect();
+    }
+
+    private int replyBytes(String command) throws Exception {
+        bytes.set(0);
+        adapter.submit(command).get(1, TimeUnit.SECONDS);
+        return (bytes.get());
+    }
+
+    @Test
+    public void initializationShrinksReplies() throws Exception {
+        adapter.submit("ATSP6").get(1, TimeUnit.SECONDS);
+        int verbose = replyBytes("010C");
+
+        OBDProfile session = adapter.initialize();
+        assertSame(session, adapter.getSession());
+        assertTrue(session.isCompact());
+        assertFalse(session.isHeaders());
+        assertEquals(6, session.getProtocol());
+
+        int compact = replyBytes("010C");
+        assertTrue(compact + " vs " + verbose, compact * 10 <= verbose * 6);
+
+        adapter.disconnect();
+        assertNull(adapter.getSession());
+    }
+
+    @Test
+    public void headersAreEnabledForSeveralEcus() throws Exception {
+        simulator.addEcu(ELM327Simulator.ECU_TRANSMISSION);
+        simulator.setEcuPid(ELM327Simulator.ECU_TRANSMISSION, 0x0D, 0x3D);
+
+        OBDProfile session = adapter.initialize();
+        assertTrue(session.isHeaders());
+        assertEquals(2, session.getEcus().size());
+        assertTrue(session.getEcus().contains(ELM327Simulator.ECU_TRANSMISSION));
+
+        /* The batcher takes protocol and format from the session: no ATDPN. */
+        final Map<Integer, Integer> speeds = new ConcurrentHashMap<Integer, Integer>();
+        final CountDownLatch latch = new CountDownLatch(2);
+        PIDBatcher batcher = new PIDBatcher(adapter);
+        batcher.request(0x0D, new PIDCallbackInterface() {
+            @Override
+            public void pidReceived(int pid, int ecu, byte[] data, int offset, int length) {
+                speeds.put(ecu, data[offset] & 0xFF);
+                latch.countDown();
+            }
+
+            @Override
+            public void pidFailed(int pid, Exception cause) {
+            }
+        });
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertTrue(batcher.isMultiPidSupported());
+        assertEquals(Integer.valueOf(0x3C), speeds.get(ELM327Simulator.ECU_ENGINE));
+        assertEquals(Integer.valueOf(0x3D), speeds.get(ELM327Simulator.ECU_TRANSMISSION));
+    }
+
+    @Test
+    public void compactKLineSessionSkipsBusInit() throws Exception {
+        simulator.setVehicleProtocol(3);
+        OBDProfile session = adapter.initialize();
+        assertTrue(session.isCompact());
+        assertEquals(3, session.getProtocol());
+
+        byte[] ok = "BUS INIT: ...OK\r410C1AF8\r\r".getBytes(Charset.forName("US-ASCII"));
+        assertEquals(1, OBDResponseParser.parse(session, "010C", ok, 0, ok.length).size());
+        byte[] error = "BUS INIT: ...ERROR\r\r".getBytes(Charset.forName("US-ASCII"));
+        try {
+            OBDResponseParser.parse(session, "010C", error, 0, error.length);
+            fail("Bus init failed");
+        } catch (IOException expected) {
+            assertEquals("BUS INIT: ...ERROR", expected.getMessage());
+        }
+
+        /* Closing the bus makes the next request initialize it again. */
+        adapter.submit("ATPC").get(1, TimeUnit.SECONDS);
+        final Map<Integer, Integer> rpm = new ConcurrentHashMap<Integer, Integer>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        new PIDBatcher(adapter).request(0x0C, new PIDCallbackInterface() {
+            @Override
+            public void pidReceived(int pid, int ecu, byte[] data, int offset, int length) {
+                rpm.put(pid, ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF));
+                latch.countDown();
+            }
+
+            @Override
+            public void pidFailed(int pid, Exception cause) {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(0x1AF8), rpm.get(0x0C));
+    }
+
+    @Test
+    public void failedStepLeavesNoSession() throws Exception {
+        OBDInitializer initializer = new OBDInitializer(adapter);
+        initializer.setProtocol(3);
+        try {
+            adapter.initialize(initializer, null);
+            fail("Vehicle does not speak ISO 9141-2");
+        } catch (IOException expected) {
+            /* 0100 is not answered on the wrong protocol. */
+        }
+        assertNull(adapter.getSession());
+    }
+}
@@ -0,0 +1,149 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.ELM327Simulator;
+import com.github.zanderman.obd.classes.NoDataException;
+import com.github.zanderman.obd.classes.OBDAdapter;
+import com.github.zanderman.obd.classes.PIDBatcher;
+import com.github.zanderman.obd.interfaces.PIDCallbackInterface;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for Mode 01 multi-PID batching.
+ */
+public class PIDBatcherTest {
+
+    private ELM327Simulator simulator;
+    private OBDAdapter adapter;
+
+    /**
+     * Records the first value (as hex) or failure per PID.
+     */
+    private static class Recorder implements PIDCallbackInterface {
+        final Map<Integer, String> values = new ConcurrentHashMap<Integer, String>();
+        final Map<Integer, Exception> failures = new ConcurrentHashMap<Integer, Exception>();
+        final CountDownLatch latch;
+
+        Recorder(int expected) {
+            latch = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void pidReceived(int pid, int ecu, byte[] data, int offset, int length) {
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < length; i++)
+                hex.append(String.format("%02X", data[offset + i]));
+            if (values.put(pid, hex.toString()) == null)
+                latch.countDown();
+        }
+
+        @Override
+        public void pidFailed(int pid, Exception cause) {
+            failures.put(pid, cause);
+            latch.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        simulator = new ELM327Simulator();
+        simulator.setSearchOnFirstQuery(false);
+    }
+
+    @After
+    public void tearDown() {
+        adapter.disconnect();
+    }
+
+    private PIDBatcher connect() throws Exception {
+        adapter = new OBDAdapter(simulator, "Simulator", "00:00:00:00:00:00");
+        assertTrue(adapter.connect());
+        adapter.submit("ATE0").get(1, TimeUnit.SECONDS);
+        return new PIDBatcher(adapter);
+    }
+
+    @Test
+    public void combinesPendingReadsOnCan() throws Exception {
+        PIDBatcher batcher = connect();
+        batcher.setMultiPidSupported(true);
+        simulator.setLatency("010C", 100);  /* Keep the first read in flight while the rest queue up. */
+        int[] pids = {0x0C, 0x0D, 0x05, 0x10, 0x11, 0x0F};
+        Recorder recorder = new Recorder(pids.length);
+        for (int pid : pids)
+            batcher.request(pid, recorder);
+        assertTrue(recorder.latch.await(2, TimeUnit.SECONDS));
+
+        assertEquals("1AF8", recorder.values.get(0x0C));
+        assertEquals("3C", recorder.values.get(0x0D));
+        assertEquals("7B", recorder.values.get(0x05));
+        assertEquals("0190", recorder.values.get(0x10));
+        assertEquals("33", recorder.values.get(0x11));
+        assertEquals("44", recorder.values.get(0x0F));
+        assertTrue(batcher.getRequestsSent() <= 2);
+    }
+
+    @Test
+    public void splitsRepliesFromSeveralEcusWithHeaders() throws Exception {
+        simulator.setEcuPid(ELM327Simulator.ECU_TRANSMISSION, 0x0D, 0x3D);
+        PIDBatcher batcher = connect();
+        adapter.submit("ATH1").get(1, TimeUnit.SECONDS);
+        batcher.setMultiPidSupported(true);
+
+        final Map<Integer, String> byEcu = new ConcurrentHashMap<Integer, String>();
+        final CountDownLatch latch = new CountDownLatch(3);
+        PIDCallbackInterface callback = new PIDCallbackInterface() {
+            @Override
+            public void pidReceived(int pid, int ecu, byte[] data, int offset, int length) {
+                byEcu.put((ecu << 8) | pid, String.format("%02X", data[offset]));
+                latch.countDown();
+            }
+
+            @Override
+            public void pidFailed(int pid, Exception cause) {
+                fail(cause.toString());
+            }
+        };
+        batcher.request(0x0C, callback);
+        batcher.request(0x0D, callback);
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals("3C", byEcu.get((0x7E8 << 8) | 0x0D));
+        assertEquals("3D", byEcu.get((0x7E9 << 8) | 0x0D));
+        assertEquals("1A", byEcu.get((0x7E8 << 8) | 0x0C));
+    }
+
+    @Test
+    public void fallsBackToSingleRequestsOffCan() throws Exception {
+        simulator.setVehicleProtocol(3);
+        PIDBatcher batcher = connect();
+        Recorder recorder = new Recorder(3);
+        batcher.request(0x0C, recorder);
+        batcher.request(0x0D, recorder);
+        batcher.request(0x05, recorder);
+        assertTrue(recorder.latch.await(2, TimeUnit.SECONDS));
+        assertFalse(batcher.isMultiPidSupported());
+        assertEquals("1AF8", recorder.values.get(0x0C));
+        assertEquals("3C", recorder.values.get(0x0D));
+        assertEquals("7B", recorder.values.get(0x05));
+    }
+
+    @Test
+    public void unsupportedPidFailsWithNoData() throws Exception {
+        PIDBatcher batcher = connect();
+        batcher.setMultiPidSupported(true);
+        Recorder recorder = new Recorder(2);
+        batcher.request(0x0C, recorder);
+        batcher.request(0x5C, recorder);
+        assertTrue(recorder.latch.await(2, TimeUnit.SECONDS));
+        assertEquals("1AF8", recorder.values.get(0x0C));
+        assertTrue(recorder.failures.get(0x5C) instanceof NoDataException);
+    }
+}
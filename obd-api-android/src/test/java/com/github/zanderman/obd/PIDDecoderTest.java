@@ -0,0 +1,124 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.OBDMessage;
+import com.github.zanderman.obd.classes.PIDDecoder;
+import com.github.zanderman.obd.interfaces.SampleSinkInterface;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests and allocation microbenchmark for the table-driven PID decoder.
+ */
+public class PIDDecoderTest {
+
+    /**
+     * Sink storing the last value and ECU per PID in primitive arrays.
+     */
+    private static class ArraySink implements SampleSinkInterface {
+        final double[] values = new double[256];
+        final int[] ecus = new int[256];
+        int count;
+
+        @Override
+        public void sample(int pid, int ecu, long timestamp, double value) {
+            values[pid] = value;
+            ecus[pid] = ecu;
+            count++;
+        }
+    }
+
+    private static byte[] frame(String text) {
+        return text.getBytes();
+    }
+
+    @Test
+    public void scalesWithJ1979Formulas() {
+        assertEquals(1726.0, PIDDecoder.value(0x0C, new byte[] {0x1A, (byte) 0xF8}, 0, 2), 1e-9);
+        assertEquals(83.0, PIDDecoder.value(0x05, new byte[] {0x7B}, 0, 1), 1e-9);
+        assertEquals(4.0, PIDDecoder.value(0x10, new byte[] {0x01, (byte) 0x90}, 0, 2), 1e-9);
+        assertEquals(12.586, PIDDecoder.value(0x42, new byte[] {0x31, 0x2A}, 0, 2), 1e-9);
+        assertEquals(0xBE3FA813L, (long) PIDDecoder.value(0x00, new byte[] {(byte) 0xBE, 0x3F, (byte) 0xA8, 0x13}, 0, 4));
+    }
+
+    @Test
+    public void decodesCompactAndSpacedFrames() {
+        PIDDecoder decoder = new PIDDecoder();
+        ArraySink sink = new ArraySink();
+        assertEquals(1, decoder.decode(frame("410C1AF8\r\r"), 0, 10, 0, sink));
+        assertEquals(1726.0, sink.values[0x0C], 1e-9);
+        assertEquals(2, decoder.decode(frame("SEARCHING...\r41 0D 3C 05 7B\r\r"), 0, 29, 0, sink));
+        assertEquals(60.0, sink.values[0x0D], 1e-9);
+        assertEquals(83.0, sink.values[0x05], 1e-9);
+        assertEquals(OBDMessage.NO_HEADER, sink.ecus[0x05]);
+    }
+
+    @Test
+    public void decodesMultiFrameMultiEcuBatches() {
+        PIDDecoder decoder = new PIDDecoder();
+        ArraySink sink = new ArraySink();
+        String text = "7E8 10 0F 41 0C 1A F8 0D 3C\r"
+                + "7E9 03 41 0F 44 00 00 00 00\r"
+                + "7E8 21 05 7B 10 01 90 11 33\r"
+                + "7E8 22 0F 44 00 00 00 00 00\r\r";
+        byte[] bytes = frame(text);
+        assertEquals(7, decoder.decode(bytes, 0, bytes.length, 0, sink));
+        assertEquals(1726.0, sink.values[0x0C], 1e-9);
+        assertEquals(4.0, sink.values[0x10], 1e-9);
+        assertEquals(20.0, sink.values[0x11], 0.01);
+        assertEquals(28.0, sink.values[0x0F], 1e-9);
+        assertEquals(0x7E8, sink.ecus[0x0F]);
+
+        String headerless = "00F\r0: 41 0C 1A F8 0D 3C\r1: 05 7B 10 01 90 11 33\r2: 0F 44 00 00 00 00 00\r\r";
+        bytes = frame(headerless);
+        assertEquals(6, decoder.decode(bytes, 0, bytes.length, 0, sink));
+        assertEquals(83.0, sink.values[0x05], 1e-9);
+    }
+
+    @Test
+    public void ignoresErrorsAndEcho() {
+        PIDDecoder decoder = new PIDDecoder();
+        ArraySink sink = new ArraySink();
+        byte[] bytes = frame("010C\rNO DATA\r\r");
+        assertEquals(0, decoder.decode(bytes, 0, bytes.length, 0, sink));
+    }
+
+    /**
+     * Microbenchmark: decoding must not allocate once warmed up. Uses the
+     * HotSpot per-thread allocation counter when the JVM provides one.
+     */
+    @Test
+    public void decodingDoesNotAllocate() throws Exception {
+        PIDDecoder decoder = new PIDDecoder();
+        ArraySink sink = new ArraySink();
+        byte[] bytes = frame("7E8 10 0F 41 0C 1A F8 0D 3C\r7E8 21 05 7B 10 01 90 11 33\r7E8 22 0F 44 00 00 00 00 00\r\r");
+
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Method allocated;
+        try {
+            allocated = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+        } catch (Exception e) {
+            return; /* Not a HotSpot JVM; nothing to measure. */
+        }
+        long thread = Thread.currentThread().getId();
+
+        for (int i = 0; i < 200000; i++)
+            decoder.decode(bytes, 0, bytes.length, i, sink);
+
+        int iterations = 1000000;
+        long before = (Long) allocated.invoke(bean, thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            decoder.decode(bytes, 0, bytes.length, i, sink);
+        long nanos = System.nanoTime() - start;
+        long bytesAllocated = (Long) allocated.invoke(bean, thread) - before;
+
+        assertTrue(String.format("%.1f ns/sample, %d bytes allocated over %d samples",
+                (double) nanos / (6.0 * iterations), bytesAllocated, 6 * iterations), bytesAllocated < 1024);
+    }
+}
@@ -0,0 +1,142 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.ELM327Simulator;
+import com.github.zanderman.obd.classes.OBDAdapter;
+import com.github.zanderman.obd.classes.NoDataException;
+import com.github.zanderman.obd.classes.PIDScheduler;
+import com.github.zanderman.obd.interfaces.CommandCallbackInterface;
+import com.github.zanderman.obd.interfaces.PIDCallbackInterface;
+import com.github.zanderman.obd.interfaces.SchedulerCallbackInterface;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for rate-based PID polling.
+ */
+public class PIDSchedulerTest {
+
+    private ELM327Simulator simulator;
+    private OBDAdapter adapter;
+    private PIDScheduler scheduler;
+
+    /**
+     * Counts samples per PID slot.
+     */
+    private static class Counter implements PIDCallbackInterface {
+        final AtomicInteger samples = new AtomicInteger();
+
+        @Override
+        public void pidReceived(int pid, int ecu, byte[] data, int offset, int length) {
+            samples.incrementAndGet();
+        }
+
+        @Override
+        public void pidFailed(int pid, Exception cause) {
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new ELM327Simulator();
+        simulator.setSearchOnFirstQuery(false);
+        simulator.setDefaultLatency(5);
+        adapter = new OBDAdapter(simulator, "Simulator", "00:00:00:00:00:00");
+        assertTrue(adapter.connect());
+        adapter.submit("ATE0").get(1, TimeUnit.SECONDS);
+        scheduler = new PIDScheduler(adapter);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.stop();
+        adapter.disconnect();
+    }
+
+    @Test
+    public void pollsEachPidAtItsOwnRate() throws Exception {
+        Counter rpm = new Counter();
+        Counter speed = new Counter();
+        Counter coolant = new Counter();
+        scheduler.register(0x0C, 20, 2, rpm);
+        scheduler.register(0x0D, 10, 1, speed);
+        scheduler.register(0x05, 0.2, 0, coolant);
+        scheduler.start();
+        Thread.sleep(1000);
+
+        assertTrue("rpm " + rpm.samples.get(), rpm.samples.get() >= 17 && rpm.samples.get() <= 23);
+        assertTrue("speed " + speed.samples.get(), speed.samples.get() >= 8 && speed.samples.get() <= 12);
+        assertEquals(1, coolant.samples.get());
+    }
+
+    @Test
+    public void sessionSupportedPidsKeepUnsupportedReadsOffTheWire() throws Exception {
+        adapter.initialize();
+        final List<String> sent = new CopyOnWriteArrayList<String>();
+        adapter.addCommandListener(new CommandCallbackInterface() {
+            @Override
+            public void commandSent(String command) {
+                sent.add(command);
+            }
+        });
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Counter rpm = new Counter();
+        scheduler.register(0x0C, 20, 1, rpm);
+        scheduler.register(0x5C, 20, 1, new PIDCallbackInterface() {
+            @Override
+            public void pidReceived(int pid, int ecu, byte[] data, int offset, int length) {
+            }
+
+            @Override
+            public void pidFailed(int pid, Exception cause) {
+                failure.set(cause);
+            }
+        });
+        scheduler.start();
+        Thread.sleep(300);
+
+        assertTrue(failure.get() instanceof NoDataException);
+        assertTrue(rpm.samples.get() > 0);
+        for (String command : sent)
+            for (int i = 2; i + 2 <= command.length(); i += 2)
+                assertFalse(command, command.substring(i, i + 2).equals("5C"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroRateIsRejected() {
+        scheduler.register(0x0C, 0, 1, new Counter());
+    }
+
+    @Test
+    public void reportsUnattainableRates() throws Exception {
+        simulator.setDefaultLatency(40);
+        scheduler.getBatcher().setMultiPidSupported(false);
+        final CountDownLatch reported = new CountDownLatch(1);
+        scheduler.addListener(new SchedulerCallbackInterface() {
+            @Override
+            public void rateUnattainable(int pid, double targetHz, double achievedHz) {
+                if (pid == 0x0D)
+                    reported.countDown();
+            }
+
+            @Override
+            public void rateRestored(int pid, double targetHz, double achievedHz) {
+            }
+        });
+        scheduler.register(0x0C, 20, 2, new Counter());
+        scheduler.register(0x0D, 20, 0, new Counter());
+        scheduler.start();
+        assertTrue(reported.await(3, TimeUnit.SECONDS));
+        assertTrue(scheduler.getAchievedRate(0x0C) > scheduler.getAchievedRate(0x0D));
+    }
+}
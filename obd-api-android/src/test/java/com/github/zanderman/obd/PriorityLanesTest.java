@@ -0,0 +1,193 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.ELM327Simulator;
+import com.github.zanderman.obd.classes.OBDAdapter;
+import com.github.zanderman.obd.classes.OBDCommand;
+import com.github.zanderman.obd.classes.OBDCommandPipeline.Priority;
+import com.github.zanderman.obd.classes.OBDFuture;
+import com.github.zanderman.obd.classes.OBDResponse;
+import com.github.zanderman.obd.interfaces.ResponseCallbackInterface;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the pipeline's priority lanes.
+ */
+public class PriorityLanesTest {
+
+    private ELM327Simulator simulator;
+    private OBDAdapter adapter;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new ELM327Simulator();
+        simulator.setSearchOnFirstQuery(false);
+        adapter = new OBDAdapter(simulator, "Simulator", "00:00:00:00:00:00");
+        adapter.setResponseCountHints(false);
+        assertTrue(adapter.connect());
+        adapter.submit("ATE0").get(1, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        adapter.disconnect();
+    }
+
+    /**
+     * Records the lane of each completed command.
+     */
+    private static ResponseCallbackInterface record(final List<String> order, final String tag) {
+        return (new ResponseCallbackInterface() {
+            @Override
+            public void responseReceived(OBDResponse response) {
+                order.add(tag);
+            }
+
+            @Override
+            public void responseFailed(String command, Exception cause) {
+                order.add("failed");
+            }
+        });
+    }
+
+    @Test
+    public void higherLanesGoFirstWithinStarvationLimits() throws Exception {
+        simulator.setLatency("ATRV", 100);
+        adapter.setStarvationLimit(Priority.BACKGROUND, 3);
+        List<String> order = new CopyOnWriteArrayList<String>();
+
+        /* Hold the prompt, then queue lowest lanes first. */
+        OBDFuture blocker = adapter.submit("ATRV");
+        Thread.sleep(20);
+        OBDCommand rpm = OBDCommand.of("010C");
+        OBDCommand speed = OBDCommand.of("010D");
+        for (int i = 0; i < 4; i++)
+            adapter.submit(speed, Priority.BACKGROUND, record(order, "B"));
+        for (int i = 0; i < 8; i++)
+            adapter.submit(rpm, Priority.REALTIME, record(order, "R"));
+        OBDFuture last = adapter.submit(OBDCommand.of("03"), Priority.INTERACTIVE, record(order, "I"));
+        assertEquals(8, adapter.getQueueLength(Priority.REALTIME));
+        assertEquals(4, adapter.getQueueLength(Priority.BACKGROUND));
+
+        blocker.get(1, TimeUnit.SECONDS);
+        last.get(1, TimeUnit.SECONDS);
+        long deadline = System.currentTimeMillis() + 2000;
+        while (order.size() < 13 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+
+        /* Interactive first; background promoted after every three higher picks. */
+        assertEquals("[I, R, R, B, R, R, R, B, R, R, R, B, B]", order.toString());
+        assertEquals(2, adapter.getPromotions());
+    }
+
+    @Test
+    public void pollsThroughThePreEncodedFormYieldToUserRequests() throws Exception {
+        simulator.setLatency("ATRV", 100);
+        List<String> order = new CopyOnWriteArrayList<String>();
+
+        OBDFuture blocker = adapter.submit("ATRV");
+        Thread.sleep(20);
+        OBDCommand rpm = OBDCommand.of("010C");
+        for (int i = 0; i < 10; i++)
+            adapter.submit(rpm, record(order, "R"));
+        assertEquals(10, adapter.getQueueLength(Priority.REALTIME));
+        assertEquals(0, adapter.getQueueLength(Priority.INTERACTIVE));
+        OBDFuture dtcs = adapter.submit("03", record(order, "I"));
+
+        blocker.get(1, TimeUnit.SECONDS);
+        dtcs.get(1, TimeUnit.SECONDS);
+        long deadline = System.currentTimeMillis() + 2000;
+        while (order.size() < 11 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals("[I, R, R, R, R, R, R, R, R, R, R]", order.toString());
+    }
+
+    @Test
+    public void interactiveWaitsLessThanARoundTripBehindPolling() throws Exception {
+        simulator.setDefaultLatency(10);
+        final OBDCommand rpm = OBDCommand.of("010C");
+        final AtomicBoolean polling = new AtomicBoolean(true);
+        final AtomicInteger polls = new AtomicInteger();
+
+        /* Two pollers keep a deep realtime backlog, well above 20 Hz of demand. */
+        List<Thread> pollers = new ArrayList<Thread>();
+        for (int p = 0; p < 2; p++) {
+            Thread poller = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (polling.get()) {
+                        if (adapter.getQueueLength(Priority.REALTIME) < 30) {
+                            adapter.submit(rpm, Priority.REALTIME, null);
+                            polls.incrementAndGet();
+                        } else {
+                            try {
+                                Thread.sleep(2);
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                    }
+                }
+            });
+            poller.start();
+            pollers.add(poller);
+        }
+        Thread.sleep(200);
+
+        long worstWait = 0;
+        long worstRoundTrip = 0;
+        for (int i = 0; i < 10; i++) {
+            OBDResponse response = adapter.submit(OBDCommand.of("0902"), Priority.INTERACTIVE, null).get(2, TimeUnit.SECONDS);
+            assertTrue(response.getText(), response.getText().contains("49"));
+            worstWait = Math.max(worstWait, response.getQueueNanos());
+            worstRoundTrip = Math.max(worstRoundTrip, response.getRoundTripNanos());
+            Thread.sleep(15);
+        }
+        polling.set(false);
+        for (Thread poller : pollers)
+            poller.join();
+
+        /* At worst an interactive request waits out the poll already in flight. */
+        worstRoundTrip = Math.max(worstRoundTrip, adapter.getMetrics().get("010C").getPrompt().getMax());
+        assertTrue(polls.get() > 20);
+        assertTrue("waited " + worstWait / 1e6 + " ms", worstWait < worstRoundTrip);
+    }
+
+    @Test
+    public void concurrentClientsAllGetTheirOwnResponses() throws Exception {
+        final List<Throwable> errors = new CopyOnWriteArrayList<Throwable>();
+        List<Thread> clients = new ArrayList<Thread>();
+        for (int c = 0; c < 4; c++) {
+            final Priority lane = Priority.values()[c % 3];
+            final String command = (c % 2 == 0) ? "010C" : "010D";
+            final String reply = (c % 2 == 0) ? "41 0C 1A F8" : "41 0D 3C";
+            Thread client = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 50; i++)
+                            assertEquals(reply, adapter.submit(OBDCommand.of(command), lane, null).get(2, TimeUnit.SECONDS).getText());
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            });
+            client.start();
+            clients.add(client);
+        }
+        for (Thread client : clients)
+            client.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+}
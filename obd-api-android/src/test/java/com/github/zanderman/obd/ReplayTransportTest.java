@@ -0,0 +1,130 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.ELM327Simulator;
+import com.github.zanderman.obd.classes.OBDAdapter;
+import com.github.zanderman.obd.classes.PIDBatcher;
+import com.github.zanderman.obd.classes.ReplayTransport;
+import com.github.zanderman.obd.classes.TripLogWriter;
+import com.github.zanderman.obd.interfaces.PIDCallbackInterface;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for replaying recorded trips through an OBDAdapter.
+ */
+public class ReplayTransportTest {
+
+    private static final String[] SESSION = {"ATZ", "ATE0", "ATH1", "010C", "010D", "0902", "010C"};
+
+    /**
+     * Records SESSION against the simulator, with 010D answering slowly.
+     */
+    private static File record() throws Exception {
+        File path = File.createTempFile("trip", ".obdt");
+        path.deleteOnExit();
+
+        ELM327Simulator simulator = new ELM327Simulator();
+        simulator.setLatency("010D", 100);
+        OBDAdapter adapter = new OBDAdapter(simulator, "Simulator", "00:00:00:00:00:00");
+        TripLogWriter writer = new TripLogWriter(path, adapter.name, adapter.address, null, null);
+        writer.attach(adapter);
+        assertTrue(adapter.connect());
+        for (String command : SESSION)
+            adapter.submit(command).get(1, TimeUnit.SECONDS);
+        adapter.disconnect();
+        writer.close();
+        return (path);
+    }
+
+    @Test
+    public void replaysSessionThroughAdapter() throws Exception {
+        File path = record();
+        ELM327Simulator simulator = new ELM327Simulator();
+        simulator.setLatency("010D", 100);
+        OBDAdapter live = new OBDAdapter(simulator, "Simulator", "00:00:00:00:00:00");
+        assertTrue(live.connect());
+        String[] expected = new String[SESSION.length];
+        for (int i = 0; i < SESSION.length; i++)
+            expected[i] = live.submit(SESSION[i]).get(1, TimeUnit.SECONDS).getText();
+        live.disconnect();
+
+        ReplayTransport replay = new ReplayTransport(path);
+        assertEquals(SESSION.length, replay.getExchangeCount());
+        replay.setSpeed(ReplayTransport.MAX_SPEED);
+        OBDAdapter adapter = new OBDAdapter(replay, "Replay", "00:00:00:00:00:00");
+        assertTrue(adapter.connect());
+
+        long start = System.nanoTime();
+        for (int i = 0; i < SESSION.length; i++) {
+            assertEquals(SESSION[i], expected[i], adapter.submit(SESSION[i]).get(1, TimeUnit.SECONDS).getText());
+
+            /* Commands that were never recorded are answered like an unknown command. */
+            if (i == 2)
+                assertEquals("?", adapter.submit("0105").get(1, TimeUnit.SECONDS).getText());
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(SESSION.length, replay.getReplayed());
+        assertEquals(1, replay.getMismatches());
+        adapter.disconnect();
+    }
+
+    @Test
+    public void keepsRecordedTimingAtRealTime() throws Exception {
+        File path = record();
+        ReplayTransport replay = new ReplayTransport(path);
+        replay.setSpeed(ReplayTransport.REAL_TIME);
+        OBDAdapter adapter = new OBDAdapter(replay, "Replay", "00:00:00:00:00:00");
+        assertTrue(adapter.connect());
+
+        for (int i = 0; i < 4; i++)
+            adapter.submit(SESSION[i]).get(1, TimeUnit.SECONDS);
+        long start = System.nanoTime();
+        adapter.submit("010D").get(1, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        assertTrue("010D took " + elapsed / 1000000 + " ms", elapsed >= TimeUnit.MILLISECONDS.toNanos(90));
+        adapter.disconnect();
+
+        /* At 10x the same exchange takes a tenth of the time. */
+        replay.setSpeed(10 * ReplayTransport.REAL_TIME);
+        assertTrue(adapter.connect());
+        for (int i = 0; i < 4; i++)
+            adapter.submit(SESSION[i]).get(1, TimeUnit.SECONDS);
+        start = System.nanoTime();
+        adapter.submit("010D").get(1, TimeUnit.SECONDS);
+        elapsed = System.nanoTime() - start;
+        assertTrue("010D took " + elapsed / 1000000 + " ms", elapsed >= TimeUnit.MILLISECONDS.toNanos(9));
+        assertTrue("010D took " + elapsed / 1000000 + " ms", elapsed < TimeUnit.MILLISECONDS.toNanos(60));
+        adapter.disconnect();
+    }
+
+    @Test
+    public void endOfRecordingDropsTheLink() throws Exception {
+        File path = record();
+        ReplayTransport replay = new ReplayTransport(path);
+        replay.setSpeed(ReplayTransport.MAX_SPEED);
+        OBDAdapter adapter = new OBDAdapter(replay, "Replay", "00:00:00:00:00:00");
+        assertTrue(adapter.connect());
+        for (String command : SESSION)
+            adapter.submit(command).get(1, TimeUnit.SECONDS);
+
+        final CountDownLatch failed = new CountDownLatch(1);
+        new PIDBatcher(adapter).request(0x0C, new PIDCallbackInterface() {
+            @Override
+            public void pidReceived(int pid, int ecu, byte[] data, int offset, int length) {
+            }
+
+            @Override
+            public void pidFailed(int pid, Exception cause) {
+                failed.countDown();
+            }
+        });
+        assertTrue(failed.await(1, TimeUnit.SECONDS));
+        adapter.disconnect();
+    }
+}
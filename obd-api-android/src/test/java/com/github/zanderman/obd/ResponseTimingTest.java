@@ -0,0 +1,104 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.ELM327Simulator;
+import com.github.zanderman.obd.classes.LatencyEstimator;
+import com.github.zanderman.obd.classes.OBDAdapter;
+import com.github.zanderman.obd.classes.OBDFuture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for learned response deadlines and ELM327 response-count hints.
+ */
+public class ResponseTimingTest {
+
+    private ELM327Simulator simulator;
+    private OBDAdapter adapter;
+
+    @Before
+    public void setUp() {
+        simulator = new ELM327Simulator();
+        simulator.setSearchOnFirstQuery(false);
+        simulator.setModelResponseWait(true);   /* ATST 32h with ATAT1: 100 ms after the last reply. */
+    }
+
+    @After
+    public void tearDown() {
+        adapter.disconnect();
+    }
+
+    private void connect() throws Exception {
+        adapter = new OBDAdapter(simulator, "Simulator", "00:00:00:00:00:00");
+        assertTrue(adapter.connect());
+        adapter.submit("ATE0").get(1, TimeUnit.SECONDS);
+    }
+
+    private long timed(String command, String expected) throws Exception {
+        long start = System.nanoTime();
+        assertEquals(expected, adapter.submit(command).get(1, TimeUnit.SECONDS).getText());
+        return (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    @Test
+    public void hintsRemoveTheElmWait() throws Exception {
+        connect();
+        for (int i = 0; i < 3; i++)
+            assertTrue(timed("010C", "41 0C 1A F8") >= 90);
+        for (int i = 0; i < 5; i++)
+            assertTrue(timed("010C", "41 0C 1A F8") < 50);
+    }
+
+    @Test
+    public void adaptersRejectingHintsFallBackTransparently() throws Exception {
+        simulator.setResponseCountHints(false);
+        connect();
+        for (int i = 0; i < 6; i++)
+            timed("010C", "41 0C 1A F8");
+        assertFalse(adapter.isResponseCountHintsActive());
+    }
+
+    @Test
+    public void deadlinesFollowMeasuredLatency() throws Exception {
+        simulator.setModelResponseWait(false);
+        connect();
+        for (int i = 0; i < 10; i++)
+            timed("010C", "41 0C 1A F8");
+        LatencyEstimator estimator = adapter.getLatencyEstimator();
+        assertEquals(LatencyEstimator.DEFAULT_MINIMUM, estimator.timeout("010C"));
+        assertEquals(2000, estimator.timeout("0105"));
+
+        /* A measured command fails at its learned deadline, not the 2 s ceiling. */
+        simulator.setLatency("010C", 800);
+        long start = System.nanoTime();
+        try {
+            adapter.submit("010C").get(2, TimeUnit.SECONDS);
+            fail("Expected a timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(2 * LatencyEstimator.DEFAULT_MINIMUM, estimator.timeout("010C"));
+
+        /* An unmeasured slow command still gets the full ceiling. */
+        simulator.setLatency("0105", 800);
+        assertEquals("41 05 7B", adapter.submit("0105").get(3, TimeUnit.SECONDS).getText());
+    }
+
+    @Test
+    public void tunesElmTimeoutFromMeasurements() throws Exception {
+        connect();
+        assertNull(adapter.tuneElmTiming());
+        timed("010C", "41 0C 1A F8");
+        OBDFuture tuned = adapter.tuneElmTiming();
+        assertNotNull(tuned);
+        assertEquals("OK", tuned.get(1, TimeUnit.SECONDS).getText());
+    }
+}
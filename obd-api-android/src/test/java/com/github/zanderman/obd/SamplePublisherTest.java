@@ -0,0 +1,169 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.SamplePublisher;
+import com.github.zanderman.obd.classes.SampleSubscription;
+import com.github.zanderman.obd.interfaces.SampleSubscriberInterface;
+
+import org.junit.Test;
+
+import java.nio.BufferOverflowException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for per-signal sample streams with backpressure.
+ */
+public class SamplePublisherTest {
+
+    /**
+     * Records what it receives; optionally slow and with an initial demand.
+     */
+    private static class Recorder implements SampleSubscriberInterface {
+        final List<Double> values = new CopyOnWriteArrayList<Double>();
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final long initial;
+        final long delay;
+        volatile SampleSubscription subscription;
+        volatile Exception failure;
+        volatile boolean completed;
+        volatile String thread;
+
+        Recorder(long initial, long delay) {
+            this.initial = initial;
+            this.delay = delay;
+        }
+
+        @Override
+        public void subscribed(SampleSubscription subscription) {
+            this.subscription = subscription;
+            this.thread = Thread.currentThread().getName();
+            if (this.initial > 0)
+                subscription.request(this.initial);
+            this.subscribed.countDown();
+        }
+
+        @Override
+        public void sampleReceived(int pid, int ecu, long timestamp, double value) {
+            this.values.add(value);
+            if (this.delay > 0) {
+                try {
+                    Thread.sleep(this.delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public void streamFailed(Exception cause) {
+            this.failure = cause;
+            this.finished.countDown();
+        }
+
+        @Override
+        public void streamCompleted() {
+            this.completed = true;
+            this.finished.countDown();
+        }
+    }
+
+    @Test
+    public void slowSubscriberNeverStallsTheProducer() throws Exception {
+        SamplePublisher publisher = new SamplePublisher();
+        Recorder slow = new Recorder(Long.MAX_VALUE, 5);
+        SampleSubscription subscription = publisher.subscribe(0x0C, slow, SamplePublisher.Overflow.DROP_OLDEST, 16, null);
+        assertTrue(slow.subscribed.await(1, TimeUnit.SECONDS));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 10000; i++)
+            publisher.sample(0x0C, 0x7E8, i, i);
+        long elapsed = System.nanoTime() - start;
+        publisher.close();
+
+        assertTrue("publishing took " + elapsed / 1000000 + " ms", elapsed < TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(slow.finished.await(2, TimeUnit.SECONDS));
+        assertTrue(slow.completed);
+        assertEquals("SamplePublisher", slow.thread);
+        assertEquals(10000, slow.values.size() + subscription.getDropped());
+        assertTrue(slow.values.size() <= 40);
+        assertEquals(9999.0, slow.values.get(slow.values.size() - 1), 0);
+        for (int i = 1; i < slow.values.size(); i++)
+            assertTrue(slow.values.get(i) > slow.values.get(i - 1));
+    }
+
+    @Test
+    public void demandLimitsDelivery() throws Exception {
+        SamplePublisher publisher = new SamplePublisher();
+        Recorder recorder = new Recorder(3, 0);
+        SampleSubscription subscription = publisher.subscribe(0x0D, recorder, SamplePublisher.Overflow.BUFFER, 100, null);
+        assertTrue(recorder.subscribed.await(1, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 10; i++)
+            publisher.sample(0x0D, 0x7E8, i, i);
+        publisher.sample(0x0C, 0x7E8, 0, 1234);  /* Another signal. */
+        Thread.sleep(100);
+        assertEquals(3, recorder.values.size());
+
+        subscription.request(2);
+        Thread.sleep(100);
+        assertEquals(5, recorder.values.size());
+        assertEquals(4.0, recorder.values.get(4), 0);
+
+        /* Completion waits for the buffered samples to be requested. */
+        publisher.close();
+        Thread.sleep(100);
+        assertFalse(recorder.completed);
+        subscription.request(Long.MAX_VALUE);
+        assertTrue(recorder.finished.await(1, TimeUnit.SECONDS));
+        assertEquals(10, recorder.values.size());
+        assertEquals(0, subscription.getDropped());
+    }
+
+    @Test
+    public void conflationDeliversTheLatestSample() throws Exception {
+        SamplePublisher publisher = new SamplePublisher();
+        Recorder recorder = new Recorder(0, 0);
+        SampleSubscription subscription = publisher.subscribe(0x05, recorder, SamplePublisher.Overflow.CONFLATE_LATEST, 0, null);
+        assertTrue(recorder.subscribed.await(1, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 100; i++)
+            publisher.sample(0x05, 0x7E8, i, i);
+        subscription.request(1);
+        Thread.sleep(100);
+        assertEquals(1, recorder.values.size());
+        assertEquals(99.0, recorder.values.get(0), 0);
+        assertEquals(99, subscription.getDropped());
+    }
+
+    @Test
+    public void bufferOverflowFailsTheSubscription() throws Exception {
+        SamplePublisher publisher = new SamplePublisher();
+        Recorder recorder = new Recorder(0, 0);
+        publisher.subscribe(0x0C, recorder, SamplePublisher.Overflow.BUFFER, 10, null);
+        Recorder other = new Recorder(Long.MAX_VALUE, 0);
+        SampleSubscription second = publisher.subscribe(0x0C, other);
+        assertEquals(2, publisher.getSubscriberCount(0x0C));
+        assertTrue(recorder.subscribed.await(1, TimeUnit.SECONDS));
+        assertTrue(other.subscribed.await(1, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 11; i++)
+            publisher.sample(0x0C, 0x7E8, i, i);
+        assertTrue(recorder.finished.await(1, TimeUnit.SECONDS));
+        assertTrue(recorder.failure instanceof BufferOverflowException);
+        assertEquals(1, publisher.getSubscriberCount(0x0C));
+
+        /* The other subscriber keeps receiving; delivery is asynchronous. */
+        long deadline = System.currentTimeMillis() + 1000;
+        while (other.values.size() < 11 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(11, other.values.size());
+        second.cancel();
+        assertEquals(0, publisher.getSubscriberCount(0x0C));
+        assertFalse(other.completed);
+    }
+}
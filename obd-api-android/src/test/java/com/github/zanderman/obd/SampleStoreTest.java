@@ -0,0 +1,78 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.SampleRingBuffer;
+import com.github.zanderman.obd.classes.SampleStore;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the primitive sample ring buffer and store.
+ */
+public class SampleStoreTest {
+
+    @Test
+    public void snapshotReturnsMostRecentOldestFirst() {
+        SampleRingBuffer ring = new SampleRingBuffer(5);
+        assertEquals(8, ring.getCapacity());
+        assertTrue(Double.isNaN(ring.getLatestValue()));
+
+        for (int i = 0; i < 20; i++)
+            ring.add(i * 10, i);
+
+        long[] ts = new long[16];
+        double[] vs = new double[16];
+        int n = ring.snapshot(16, ts, vs);
+        assertEquals(7, n);     /* The slot the writer would reuse next is never returned. */
+        assertEquals(130, ts[0]);
+        assertEquals(19.0, vs[n - 1], 0);
+
+        n = ring.since(170, ts, vs);
+        assertEquals(3, n);
+        assertEquals(17.0, vs[0], 0);
+        assertEquals(190, ring.getLatestTimestamp());
+    }
+
+    @Test
+    public void storeBindsColumnToFirstEcu() {
+        SampleStore store = new SampleStore(16);
+        store.sample(0x0C, 0x7E8, 1, 800);
+        store.sample(0x0C, 0x7E9, 2, 5);
+        store.sample(0x0C, 0x7E8, 3, 900);
+
+        assertNull(store.get(0x0D));
+        assertEquals(2, store.get(0x0C).getCount());
+        assertEquals(900.0, store.get(0x0C).getLatestValue(), 0);
+    }
+
+    @Test
+    public void concurrentReadersSeeConsistentSamples() throws Exception {
+        final SampleRingBuffer ring = new SampleRingBuffer(64);
+        final AtomicReference<String> error = new AtomicReference<String>();
+        final int total = 2000000;
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long[] ts = new long[64];
+                double[] vs = new double[64];
+                while (ring.getCount() < total && error.get() == null) {
+                    int n = ring.snapshot(64, ts, vs);
+                    for (int i = 0; i < n; i++) {
+                        /* The writer stores value == 2 * timestamp, consecutive timestamps. */
+                        if (vs[i] != 2.0 * ts[i] || (i > 0 && ts[i] != ts[i - 1] + 1))
+                            error.set("Torn sample at " + i + ": " + ts[i] + " -> " + vs[i]);
+                    }
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < total; i++)
+            ring.add(i, 2.0 * i);
+        reader.join();
+        assertNull(error.get(), error.get());
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.ELM327Simulator;
+import com.github.zanderman.obd.classes.NoDataException;
+import com.github.zanderman.obd.classes.OBDAdapter;
+import com.github.zanderman.obd.classes.PIDBatcher;
+import com.github.zanderman.obd.classes.SupportedPidCache;
+import com.github.zanderman.obd.classes.SupportedPids;
+import com.github.zanderman.obd.interfaces.CommandCallbackInterface;
+import com.github.zanderman.obd.interfaces.PIDCallbackInterface;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for supported-PID discovery and caching.
+ */
+public class SupportedPidCacheTest {
+
+    private ELM327Simulator simulator;
+    private OBDAdapter adapter;
+    private final List<String> sent = new CopyOnWriteArrayList<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new ELM327Simulator();
+        simulator.setSearchOnFirstQuery(false);
+        simulator.addEcu(ELM327Simulator.ECU_TRANSMISSION);
+        simulator.setEcuPid(ELM327Simulator.ECU_TRANSMISSION, 0xA4, 0x00, 0x00, 0x00, 0x00);
+        adapter = new OBDAdapter(simulator, "Simulator", "00:00:00:00:00:00");
+        adapter.addCommandListener(new CommandCallbackInterface() {
+            @Override
+            public void commandSent(String command) {
+                sent.add(command);
+            }
+        });
+        assertTrue(adapter.connect());
+        adapter.submit("ATE0").get(1, TimeUnit.SECONDS);
+        sent.clear();
+    }
+
+    @After
+    public void tearDown() {
+        adapter.disconnect();
+    }
+
+    @Test
+    public void probeMergesEveryEcuAndRange() throws Exception {
+        SupportedPids pids = SupportedPidCache.probe(adapter, false);
+
+        int[] expected = {0x04, 0x05, 0x0B, 0x0C, 0x0D, 0x0F, 0x10, 0x11, 0x1F, 0x2F, 0x42, 0x46, 0xA4};
+        for (int pid : expected)
+            assertTrue(Integer.toHexString(pid), pids.isSupported(pid));
+        assertEquals(expected.length, pids.count());
+        assertFalse(pids.isSupported(0x06));
+        assertFalse(pids.isSupported(0xE0));
+        assertEquals(pids, SupportedPids.fromHex(pids.toHex()));
+        assertTrue(sent.contains("01A0"));
+        assertFalse(sent.contains("01C0"));
+    }
+
+    @Test
+    public void cacheSkipsTheProbeAndSurvivesAReload() throws Exception {
+        SupportedPidCache cache = new SupportedPidCache();
+        SupportedPids first = cache.discover(adapter, null, false);
+        int probes = sent.size();
+        assertSame(first, cache.discover(adapter, "", false));
+        assertEquals(probes, sent.size());
+
+        /* Keyed by VIN when known. */
+        assertNull(cache.get("1HGCM82633A004352", adapter.address));
+
+        File path = File.createTempFile("pids", ".txt");
+        path.deleteOnExit();
+        cache.save(path);
+        SupportedPidCache reloaded = new SupportedPidCache();
+        reloaded.load(path);
+        assertEquals(first, reloaded.get(null, "00:00:00:00:00:00"));
+    }
+
+    @Test
+    public void batcherNeverSendsUnsupportedPids() throws Exception {
+        PIDBatcher batcher = new PIDBatcher(adapter);
+        batcher.setSupportedPids(SupportedPidCache.probe(adapter, false));
+        sent.clear();
+
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        batcher.request(0x06, new PIDCallbackInterface() {
+            @Override
+            public void pidReceived(int pid, int ecu, byte[] data, int offset, int length) {
+            }
+
+            @Override
+            public void pidFailed(int pid, Exception cause) {
+                failure.set(cause);
+            }
+        });
+        assertTrue(failure.get() instanceof NoDataException);
+        assertTrue(sent.isEmpty());
+        assertEquals(0, batcher.getRequestsSent());
+    }
+
+    @Test(expected = NoDataException.class)
+    public void probeFailsWithoutAVehicle() throws Exception {
+        adapter.submit("ATSP3").get(1, TimeUnit.SECONDS);
+        SupportedPidCache.probe(adapter, false);
+    }
+}
@@ -0,0 +1,128 @@
+package com.github.zanderman.obd;
+
+import com.github.zanderman.obd.classes.ELM327Simulator;
+import com.github.zanderman.obd.classes.OBDAdapter;
+import com.github.zanderman.obd.classes.TripLogReader;
+import com.github.zanderman.obd.classes.TripLogWriter;
+import com.github.zanderman.obd.interfaces.TripLogCallbackInterface;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the binary trip log writer and reader.
+ */
+public class TripLogTest {
+
+    /**
+     * Collects records as text.
+     */
+    private static class Collector implements TripLogCallbackInterface {
+        final List<String> records = new ArrayList<String>();
+        long lastMicros = -1;
+        boolean ordered = true;
+
+        @Override
+        public void commandRecorded(long micros, String command) {
+            check(micros);
+            records.add("TX " + command);
+        }
+
+        @Override
+        public void frameRecorded(long micros, byte[] buffer, int offset, int length) {
+            check(micros);
+            records.add("RX " + new String(buffer, offset, length).replace('\r', '|'));
+        }
+
+        @Override
+        public void valueRecorded(long micros, int pid, int ecu, double value) {
+            check(micros);
+            records.add("PID " + Integer.toHexString(pid) + " " + Integer.toHexString(ecu) + " " + value);
+        }
+
+        private void check(long micros) {
+            ordered &= micros >= lastMicros;
+            lastMicros = micros;
+        }
+    }
+
+    @Test
+    public void recordsAdapterSession() throws Exception {
+        File path = File.createTempFile("trip", ".obdt");
+        path.deleteOnExit();
+
+        OBDAdapter adapter = new OBDAdapter(new ELM327Simulator(), "Simulator", "00:00:00:00:00:00");
+        TripLogWriter writer = new TripLogWriter(path, adapter.name, adapter.address, "ISO 15765-4 (CAN 11/500)", "1HGCM82633A004352");
+        writer.attach(adapter);
+        assertTrue(adapter.connect());
+        adapter.submit("ATE0").get(1, TimeUnit.SECONDS);
+        adapter.submit("010C").get(1, TimeUnit.SECONDS);
+        writer.sample(0x0C, 0x7E8, 0, 812.5);
+        adapter.disconnect();
+        writer.close();
+
+        TripLogReader reader = new TripLogReader(path);
+        assertEquals("Simulator", reader.getName());
+        assertEquals("1HGCM82633A004352", reader.getVin());
+        Collector collector = new Collector();
+        assertEquals(5, reader.scan(collector));
+        assertEquals("TX ATE0", collector.records.get(0));
+        assertEquals("TX 010C", collector.records.get(2));
+        assertTrue(collector.records.get(3), collector.records.get(3).startsWith("RX SEARCHING...|41 0C"));
+        assertEquals("PID c 7e8 812.5", collector.records.get(4));
+        assertTrue(collector.ordered);
+    }
+
+    @Test
+    public void scansOneHourTripQuickly() throws Exception {
+        File path = File.createTempFile("trip", ".obdt");
+        path.deleteOnExit();
+
+        /* One hour at 50 exchanges per second: command, frame and decoded value each. */
+        int exchanges = 3600 * 50;
+        byte[] frame = "7E8 04 41 0C 1A F8\r\r".getBytes("US-ASCII");
+        TripLogWriter writer = new TripLogWriter(path, "Simulator", "00:00:00:00:00:00", null, null);
+        for (int i = 0; i < exchanges; i++) {
+            writer.commandSent("010C");
+            writer.frameReceived(frame, 0, frame.length);
+            writer.sample(0x0C, 0x7E8, 0, i);
+        }
+        writer.close();
+        assertEquals(3L * exchanges, writer.getRecords());
+        assertEquals(path.length(), writer.getBytesWritten());
+
+        TripLogReader reader = new TripLogReader(path);
+        final double[] sum = new double[1];
+        TripLogCallbackInterface counter = new TripLogCallbackInterface() {
+            @Override
+            public void commandRecorded(long micros, String command) {
+            }
+
+            @Override
+            public void frameRecorded(long micros, byte[] buffer, int offset, int length) {
+                sum[0] += length;
+            }
+
+            @Override
+            public void valueRecorded(long micros, int pid, int ecu, double value) {
+                sum[0] += value;
+            }
+        };
+        reader.scan(counter);   /* Warm-up. */
+        sum[0] = 0;
+        long start = System.nanoTime();
+        long records = reader.scan(counter);
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(3L * exchanges, records);
+        assertEquals(exchanges * (double) frame.length + (double) exchanges * (exchanges - 1) / 2, sum[0], 0);
+        assertTrue("Scan of " + path.length() + " bytes, " + records + " records took " + elapsed / 1000000 + " ms",
+                elapsed < TimeUnit.SECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.zanderman.obd.receivers;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import com.github.zanderman.obd.classes.OBDEvent;
+import com.github.zanderman.obd.classes.OBDEventBus;
+import com.github.zanderman.obd.interfaces.BluetoothCallbackInterface;
+import com.github.zanderman.obd.interfaces.EventCallbackInterface;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the dispatch of discovery broadcasts.
+ */
+public class OBDReceiverTest {
+
+    @Test
+    public void discoveryFiresOnlyTheMatchingCallback() {
+        final List<String> calls = new ArrayList<String>();
+        OBDEventBus bus = new OBDEventBus(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                task.run();
+            }
+        }, 16);
+        final List<OBDEvent> events = new ArrayList<OBDEvent>();
+        bus.addListener(new EventCallbackInterface() {
+            @Override
+            public void eventReceived(OBDEvent event) {
+                events.add(event);
+            }
+        });
+        OBDReceiver receiver = new OBDReceiver(new BluetoothCallbackInterface() {
+            @Override
+            public void bluetoothError(String message) {
+                calls.add("error");
+            }
+
+            @Override
+            public void discoveryStarted() {
+                calls.add("started");
+            }
+
+            @Override
+            public void discoveryFinished() {
+                calls.add("finished");
+            }
+
+            @Override
+            public void discoveryFound(BluetoothDevice device) {
+                calls.add("found");
+            }
+        }, bus);
+
+        receiver.discovery(BluetoothAdapter.ACTION_DISCOVERY_STARTED, null);
+        receiver.discovery(BluetoothDevice.ACTION_FOUND, null);
+        receiver.discovery(BluetoothAdapter.ACTION_DISCOVERY_FINISHED, null);
+        receiver.discovery(OBDReceiver.COMMUNICATION_RECEIVE, null);
+
+        assertEquals("[started, found, finished]", calls.toString());
+        assertEquals(3, events.size());
+        assertEquals(OBDEvent.Type.DISCOVERY_STARTED, events.get(0).getType());
+        assertEquals(OBDEvent.Type.DEVICE_FOUND, events.get(1).getType());
+        assertEquals(OBDEvent.Type.DISCOVERY_FINISHED, events.get(2).getType());
+    }
+}